@@ -0,0 +1,20 @@
+package com.uab.ofernandez.bridge.api;
+
+import android.util.Log;
+
+import com.uab.ofernandez.bridge.business.NFCLogger;
+
+/**
+ * Sends the log messages of the protocol classes to the android log.
+ */
+final class AndroidNFCLogger implements NFCLogger {
+
+	static final AndroidNFCLogger INSTANCE = new AndroidNFCLogger();
+
+	private AndroidNFCLogger(){}
+
+	@Override
+	public void println(int priority, String tag, String message) {
+		Log.println(priority, tag, message);
+	}
+}
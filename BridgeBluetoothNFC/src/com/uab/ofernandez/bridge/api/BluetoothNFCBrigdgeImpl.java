@@ -1,21 +1,93 @@
 package com.uab.ofernandez.bridge.api;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.util.Log;
 
 import com.uab.ofernandez.bridge.business.BluetoothConnectionHandler;
+import com.uab.ofernandez.bridge.business.BluetoothRFCommLink;
+import com.uab.ofernandez.bridge.business.NFCAccessList;
+import com.uab.ofernandez.bridge.business.NFCAdaptivePoolingScheduler;
+import com.uab.ofernandez.bridge.business.NFCCommandChannel;
+import com.uab.ofernandez.bridge.business.NFCConnectionListener;
+import com.uab.ofernandez.bridge.business.NFCConnectionSupervisor;
+import com.uab.ofernandez.bridge.business.NFCEventServer;
+import com.uab.ofernandez.bridge.business.NFCLink;
+import com.uab.ofernandez.bridge.business.NFCLinkFactory;
+import com.uab.ofernandez.bridge.business.NFCLog;
+import com.uab.ofernandez.bridge.business.NFCPoolerLifecycle;
 import com.uab.ofernandez.bridge.business.NFCPoolingHandler;
+import com.uab.ofernandez.bridge.business.NFCReaderStats;
+import com.uab.ofernandez.bridge.business.NFCReaderStatsSnapshot;
+import com.uab.ofernandez.bridge.business.NFCResponse;
+import com.uab.ofernandez.bridge.business.NFCStreamRecorder;
+import com.uab.ofernandez.bridge.business.NFCTagJournal;
+import com.uab.ofernandez.bridge.business.NFCTagListener;
+import com.uab.ofernandez.bridge.business.NFCTrace;
 
 public final class BluetoothNFCBrigdgeImpl implements IBluetoothNFCBridge{
 
-	private static BluetoothSocket mmBTSocket;
+	private static BluetoothRFCommLink.Factory mmLinkFactory;
+	private static NFCConnectionSupervisor mmSupervisor;
+	private static volatile NFCCommandChannel mmCommandChannel;
+	//Kept across the connections, so the reconnections are measured too.
+	private static final NFCReaderStats mmStats = new NFCReaderStats();
+	private static final NFCTrace mmTrace = new NFCTrace();
 	private static BluetoothNFCBrigdgeImpl instance;
+	private static NFCTagJournal mmJournal;
+	private static NFCEventServer mmEventServer;
+	private static volatile NFCStreamRecorder mmRecorder;
 
-	private BluetoothNFCBrigdgeImpl(){}
+	/*
+	 * Opens the links of the supervisor, recording them while a capture is
+	 * started, so the capture can begin and end between reconnections.
+	 */
+	private static final NFCLinkFactory mmCapturingFactory = new NFCLinkFactory() {
+		@Override
+		public NFCLink open() throws IOException {
+			NFCLink link = mmLinkFactory.open();
+			NFCStreamRecorder recorder = mmRecorder;
+			return recorder == null ? link : recorder.wrap(link);
+		}
+	};
+
+	//Kept across the connections, like the stats.
+	private static final CopyOnWriteArrayList<NFCConnectionListener> mmConnectionListeners =
+		new CopyOnWriteArrayList<NFCConnectionListener>();
+
+	/*
+	 * Follows the connection supervised: the new connections replace the
+	 * command channel, and the pooling that failed with the lost connection
+	 * is resumed on them.
+	 */
+	private static final NFCConnectionListener mmReconnectionListener = new NFCConnectionListener() {
+		@Override
+		public void onConnectionStateChanged(int state, NFCCommandChannel channel) {
+			if(state == NFCConnectionSupervisor.STATE_CONNECTED){
+				boolean reconnected = mmCommandChannel != null && mmCommandChannel != channel;
+				mmCommandChannel = channel;
+				if(reconnected){
+					try {
+						NFCPoolingHandler.getInstance().resumePooling(channel);
+					} catch (Exception e) {
+						Log.e(IConstants.MY_TAG, "*** Unable to resume the pooling: "+e.getMessage());
+					}
+				}
+			}
+			for(NFCConnectionListener listener : mmConnectionListeners){
+				listener.onConnectionStateChanged(state, channel);
+			}
+		}
+	};
+
+	private BluetoothNFCBrigdgeImpl(){
+		NFCLog.setLogger(AndroidNFCLogger.INSTANCE);
+	}
 
 	//Singleton design pattern.
 	//Only one instance of this class is necessary.
@@ -37,35 +109,223 @@ public final class BluetoothNFCBrigdgeImpl implements IBluetoothNFCBridge{
 		if(device==null){
 			throw new Exception("The device does not have Bluetooth hardware...");
 		}
-		mmBTSocket = BluetoothConnectionHandler.createBluetoothRFCommSocket(device);
-		BluetoothConnectionHandler.connectBluetoothRFCommSocket(mmBTSocket);
+		if(mmSupervisor != null){
+			//already connected: close the previous connection first.
+			mmSupervisor.close();
+		}
+		mmLinkFactory = new BluetoothRFCommLink.Factory(device);
+		mmSupervisor = new NFCConnectionSupervisor(mmCapturingFactory, mmStats, mmTrace);
+		mmSupervisor.addListener(mmReconnectionListener);
+		mmCommandChannel = mmSupervisor.connect();
 		Log.i(IConstants.MY_TAG, "*** END startBluetoothRFCommConnection");
 		return true;
 	}
 
 	@Override
 	public final boolean startNFCPooling(long poolingTime, Activity context) throws IOException, InterruptedException {
-		if(mmBTSocket==null || poolingTime <=0 || context == null){
+		if(mmCommandChannel==null || poolingTime <=0){
 			Log.d(IConstants.MY_TAG, "*** startNFCPooling - invalid arguments!");
 			return false;
 		}
 		Log.i(IConstants.MY_TAG, "*** BEGIN startNFCPooling");
-		NFCPoolingHandler.getInstance().startPoolingBridge(mmBTSocket, poolingTime, context);
+		boolean started = NFCPoolingHandler.getInstance().startPoolingBridge(mmCommandChannel, poolingTime, context);
 		Log.i(IConstants.MY_TAG, "*** END startNFCPooling");
-		return true;
+		return started;
+	}
+
+	@Override
+	public final boolean startNFCPoolingSession(long poolingTime, int pollNumber, int period, Activity context)
+	throws IOException, InterruptedException {
+		if(mmCommandChannel==null || poolingTime <=0){
+			Log.d(IConstants.MY_TAG, "*** startNFCPoolingSession - invalid arguments!");
+			return false;
+		}
+		Log.i(IConstants.MY_TAG, "*** BEGIN startNFCPoolingSession");
+		boolean started = NFCPoolingHandler.getInstance().startPoolingSession(mmCommandChannel, poolingTime, pollNumber, period, context);
+		Log.i(IConstants.MY_TAG, "*** END startNFCPoolingSession");
+		return started;
+	}
+
+	@Override
+	public final boolean startNFCPoolingAdaptive(NFCAdaptivePoolingScheduler scheduler, Activity context)
+	throws IOException, InterruptedException {
+		if(mmCommandChannel==null || scheduler == null){
+			Log.d(IConstants.MY_TAG, "*** startNFCPoolingAdaptive - invalid arguments!");
+			return false;
+		}
+		Log.i(IConstants.MY_TAG, "*** BEGIN startNFCPoolingAdaptive");
+		boolean started = NFCPoolingHandler.getInstance().startPoolingAdaptive(mmCommandChannel, scheduler, context);
+		Log.i(IConstants.MY_TAG, "*** END startNFCPoolingAdaptive");
+		return started;
+	}
+
+	@Override
+	public final float getEffectivePoolingRate() {
+		return NFCPoolingHandler.getInstance().getEffectivePoolingRate();
+	}
+
+	@Override
+	public final NFCReaderStatsSnapshot getPoolingStats(boolean reset) {
+		return mmStats.snapshot(reset);
+	}
+
+	@Override
+	public final String dumpTrace(int maxEvents) {
+		return mmTrace.dump(maxEvents);
+	}
+
+	@Override
+	public final void setFastConnect(boolean fastConnect) {
+		BluetoothConnectionHandler.setFastConnect(fastConnect);
+	}
+
+	@Override
+	public final int getConnectionState() {
+		NFCConnectionSupervisor supervisor = mmSupervisor;
+		return supervisor == null ? NFCConnectionSupervisor.STATE_DISCONNECTED : supervisor.getState();
+	}
+
+	@Override
+	public final void addConnectionListener(NFCConnectionListener listener) {
+		if(listener != null){
+			mmConnectionListeners.addIfAbsent(listener);
+		}
+	}
+
+	@Override
+	public final void removeConnectionListener(NFCConnectionListener listener) {
+		mmConnectionListeners.remove(listener);
+	}
+
+	@Override
+	public final void addNFCTagListener(NFCTagListener listener) {
+		NFCPoolingHandler.getInstance().addTagListener(listener);
+	}
+
+	@Override
+	public final void removeNFCTagListener(NFCTagListener listener) {
+		NFCPoolingHandler.getInstance().removeTagListener(listener);
+	}
+
+	@Override
+	public final void setAccessList(NFCAccessList accessList) {
+		NFCPoolingHandler.getInstance().setAccessList(accessList);
+	}
+
+	@Override
+	public final void setNdefReading(boolean enabled) {
+		NFCPoolingHandler.getInstance().setNdefReading(enabled);
+	}
+
+	@Override
+	public final void setPresenceTracking(int departureCycles, long heartbeatInterval) {
+		NFCPoolingHandler.getInstance().setPresenceTracking(departureCycles, heartbeatInterval);
+	}
+
+	@Override
+	public final void setInventoryMode(int maxTags) {
+		NFCPoolingHandler.getInstance().setInventoryMode(maxTags);
+	}
+
+	@Override
+	public final synchronized NFCTagJournal openJournal(File directory) throws IOException {
+		closeJournal();
+		mmJournal = new NFCTagJournal(directory);
+		NFCPoolingHandler.getInstance().addTagListener(mmJournal);
+		Log.i(IConstants.MY_TAG, "*** Tag journal opened at offset "+mmJournal.getNextOffset());
+		return mmJournal;
+	}
+
+	@Override
+	public final synchronized NFCTagJournal getJournal() {
+		return mmJournal;
+	}
+
+	@Override
+	public final synchronized void closeJournal() {
+		if(mmJournal != null){
+			NFCPoolingHandler.getInstance().removeTagListener(mmJournal);
+			mmJournal.close();
+			mmJournal = null;
+		}
+	}
+
+	@Override
+	public final synchronized NFCEventServer startEventServer(InetSocketAddress address) throws IOException {
+		stopEventServer();
+		NFCEventServer server = new NFCEventServer(address, NFCEventServer.DEFAULT_CLIENT_BUFFER, NFCEventServer.POLICY_DISCONNECT);
+		server.start();
+		NFCPoolingHandler.getInstance().addTagListener(server);
+		mmEventServer = server;
+		return server;
+	}
+
+	@Override
+	public final synchronized void stopEventServer() {
+		if(mmEventServer != null){
+			NFCPoolingHandler.getInstance().removeTagListener(mmEventServer);
+			mmEventServer.close();
+			mmEventServer = null;
+		}
+	}
+
+	@Override
+	public final synchronized NFCStreamRecorder startStreamCapture(File file) throws IOException {
+		stopStreamCapture();
+		mmRecorder = new NFCStreamRecorder(file);
+		Log.i(IConstants.MY_TAG, "*** Capturing the NFC traffic to "+file);
+		return mmRecorder;
+	}
+
+	@Override
+	public final synchronized void stopStreamCapture() {
+		NFCStreamRecorder recorder = mmRecorder;
+		if(recorder != null){
+			mmRecorder = null;
+			recorder.close();
+			Log.i(IConstants.MY_TAG, "*** NFC traffic capture stopped: "+recorder.getRecords()+" chunks, "
+					+recorder.getBytes()+" bytes");
+		}
+	}
+
+	@Override
+	public final NFCResponse transceive(int command, byte[] payload, long timeout) throws IOException, InterruptedException {
+		NFCCommandChannel channel = mmCommandChannel;
+		if(channel == null){
+			throw new IOException("The bluetooth connection is not started!");
+		}
+		return channel.transceive(command, payload, 0, payload == null ? 0 : payload.length, timeout);
 	}
 
 	@Override
 	public final void stopNFCPooling() throws IOException {
 		Log.i(IConstants.MY_TAG, "*** BEGIN stopNFCPooling");
-		NFCPoolingHandler.getInstance().stopPoolingBridge(mmBTSocket);
+		NFCPoolingHandler.getInstance().stopPoolingBridge();
 		Log.i(IConstants.MY_TAG, "*** END stopNFCPooling");
 	}
 
+	@Override
+	public final NFCPoolerLifecycle.Completion requestStopNFCPooling() {
+		return NFCPoolingHandler.getInstance().stopPooling();
+	}
+
+	@Override
+	public final int getPoolingState() {
+		return NFCPoolingHandler.getInstance().getPoolingState();
+	}
+
 	@Override
 	public final void stopBluetoothRFCommConnection() throws IOException {
 		Log.i(IConstants.MY_TAG, "*** BEGIN stopBluetoothRFCommConnection");
-		BluetoothConnectionHandler.diconnectBluetoothRFCommSocket(mmBTSocket);
+		mmCommandChannel = null;
+		if(mmSupervisor != null){
+			mmSupervisor.close();
+			mmSupervisor = null;
+		}
+		BluetoothRFCommLink link = mmLinkFactory == null ? null : mmLinkFactory.getLastLink();
+		if(link != null){
+			BluetoothConnectionHandler.diconnectBluetoothRFCommSocket(link.getSocket());
+		}
 		Log.i(IConstants.MY_TAG, "*** END stopBluetoothRFCommConnection");
 	}
 
@@ -1,9 +1,22 @@
 package com.uab.ofernandez.bridge.api;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 
 import android.app.Activity;
 
+import com.uab.ofernandez.bridge.business.NFCAccessList;
+import com.uab.ofernandez.bridge.business.NFCAdaptivePoolingScheduler;
+import com.uab.ofernandez.bridge.business.NFCConnectionListener;
+import com.uab.ofernandez.bridge.business.NFCEventServer;
+import com.uab.ofernandez.bridge.business.NFCPoolerLifecycle;
+import com.uab.ofernandez.bridge.business.NFCReaderStatsSnapshot;
+import com.uab.ofernandez.bridge.business.NFCResponse;
+import com.uab.ofernandez.bridge.business.NFCStreamRecorder;
+import com.uab.ofernandez.bridge.business.NFCTagJournal;
+import com.uab.ofernandez.bridge.business.NFCTagListener;
+
 public interface IBluetoothNFCBridge {
 	/**
 	 * Creates a SSP/RFComm socket and connects it to the device specified.
@@ -21,7 +34,8 @@ public interface IBluetoothNFCBridge {
 	 * 		bluetooth socket previously created.
 	 * @param poolingTime The pooling time in miliseconds.
 	 * @param context The activity context caller. This same activity will receive the
-	 * 		intents with the readed tags.
+	 * 		intents with the readed tags. If null, the tags are only delivered to the
+	 * 		listeners added with "addNFCTagListener".
 	 * @return True if everything goes without errors.
 	 * @throws IOException
 	 * @throws InterruptedException
@@ -29,11 +43,257 @@ public interface IBluetoothNFCBridge {
 	public boolean startNFCPooling(long poolingTime, Activity context) throws IOException, InterruptedException;
 
 	/**
-	 * Stops the NFC pooling..
+	 * Activates the NFC pooling in continuous session mode. The NFC hardware is
+	 * 		woken up once and kept scanning until "stopNFCPooling" is called,
+	 * 		saving the wake up and power down calls of every pooling cycle.
+	 * @param poolingTime The minimum time between two scans in miliseconds.
+	 * @param pollNumber Number of pooling rounds of every scan (0x01 to 0xFE).
+	 * @param period Period between pooling rounds in units of 150ms (0x01 to 0x0F).
+	 * @param context The activity context caller. This same activity will receive the
+	 * 		intents with the readed tags. If null, the tags are only delivered to the
+	 * 		listeners added with "addNFCTagListener".
+	 * @return True if everything goes without errors.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public boolean startNFCPoolingSession(long poolingTime, int pollNumber, int period, Activity context) throws IOException, InterruptedException;
+
+	/**
+	 * Activates the NFC pooling with a period that follows the tags activity:
+	 * 		fast right after a detection or during the busy windows, and backing
+	 * 		off up to a maximum period while idle.
+	 * @param scheduler The pooling scheduler, with its fast and maximum periods.
+	 * @param context The activity context caller. This same activity will receive the
+	 * 		intents with the readed tags. If null, the tags are only delivered to the
+	 * 		listeners added with "addNFCTagListener".
+	 * @return True if everything goes without errors.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public boolean startNFCPoolingAdaptive(NFCAdaptivePoolingScheduler scheduler, Activity context) throws IOException, InterruptedException;
+
+	/**
+	 * Gets the number of pooling cycles per second actually performed. This
+	 * can be useful for monitoring the adaptive pooling.
+	 * @return The smoothed pooling rate in cycles per second.
+	 */
+	public float getEffectivePoolingRate();
+
+	/**
+	 * Gets the response time of every phase of the pooling cycle (wake up,
+	 * 		scan, power down and whole cycle) and the link counters: bytes,
+	 * 		cycles, no card responses, checksum errors, short reads, IO errors
+	 * 		and detected tags. This can be useful to find slow readers.
+	 * @param reset If true, the values are cleared and a new measure interval starts.
+	 * @return A copy of the values since the last reset.
+	 */
+	public NFCReaderStatsSnapshot getPoolingStats(boolean reset);
+
+	/**
+	 * Formats the last commands and responses exchanged with the NFC module,
+	 * 		with their timing and frames. They are always recorded in memory,
+	 * 		and also written to the log when the pooling fails and DEBUG_ENABLED
+	 * 		is set.
+	 * @param maxEvents Maximum number of events, the most recent ones.
+	 * @return The trace, one event per line.
+	 */
+	public String dumpTrace(int maxEvents);
+
+	/**
+	 * Enables the fast connect mode: the bluetooth adapter stays enabled when
+	 * 		the connection is closed, and the devices already found by name are
+	 * 		connected directly by their address. A stop and start of the bridge
+	 * 		then only takes the RFComm connection time. The device name given to
+	 * 		"startBluetoothRFCommConnection" can also be the bluetooth address
+	 * 		(XX:XX:XX:XX:XX:XX), in any mode.
+	 * @param fastConnect True to enable the fast connect mode. Disabled by default.
+	 */
+	public void setFastConnect(boolean fastConnect);
+
+	/**
+	 * Gets the state of the bluetooth connection. The connection is watched
+	 * 		after "startBluetoothRFCommConnection": when it is lost it is opened
+	 * 		again automatically, waiting longer after every failed attempt, and
+	 * 		the pooling that was running is resumed.
+	 * @return One of the NFCConnectionSupervisor.STATE_* constants.
+	 */
+	public int getConnectionState();
+
+	/**
+	 * Adds a listener notified of every connection state change, for instance
+	 * 		to show the link losses and reconnections.
+	 * @param listener The connection listener.
+	 */
+	public void addConnectionListener(NFCConnectionListener listener);
+
+	/**
+	 * Removes a listener added with "addConnectionListener".
+	 * @param listener The connection listener.
+	 */
+	public void removeConnectionListener(NFCConnectionListener listener);
+
+	/**
+	 * Adds a listener that receives the raw detected tags straight from the
+	 * 		pooling, without going through the intent broadcast. The listener is
+	 * 		called from a dedicated dispatcher thread.
+	 * @param listener The tag listener.
+	 */
+	public void addNFCTagListener(NFCTagListener listener);
+
+	/**
+	 * Removes a listener added with "addNFCTagListener".
+	 * @param listener The tag listener.
+	 */
+	public void removeNFCTagListener(NFCTagListener listener);
+
+	/**
+	 * Sets the allow/deny list checked right after every tag is read. The
+	 * decision of each tag is sent in the {@link IConstants#ID_NFC_ACCESS_1}
+	 * and {@link IConstants#ID_NFC_ACCESS_2} intent extras. It can be called
+	 * before or while pooling.
+	 * @param accessList The list, usually loaded with NFCAccessList.load(),
+	 * 		or null to stop checking the tags.
+	 */
+	public void setAccessList(NFCAccessList accessList);
+
+	/**
+	 * Enables the reading of the NDEF message of the type 2 tags (NTAG,
+	 * 		Mifare Ultralight), for instance the ticket data. The pages are read
+	 * 		right after the scan and only up to the end of the message, and the
+	 * 		tags are delivered with their message (NFCTagEvent.getNdefMessage()
+	 * 		and the {@link IConstants#ID_NFC_NDEF_1} intent extras). It applies
+	 * 		to the next pooling started.
+	 * @param enabled True to read the tags memory. Disabled by default.
+	 */
+	public void setNdefReading(boolean enabled);
+
+	/**
+	 * Reports the tags entering and leaving the field instead of the tags of
+	 * 		every scan, so a card left on the reader is delivered once. The
+	 * 		events (NFCTagEvent.getType() and the {@link IConstants#ID_NFC_EVENT_1}
+	 * 		intent extras) are ARRIVED, optional PRESENT heartbeats, and
+	 * 		DEPARTED with the time the tag stayed in the field. With the NDEF
+	 * 		reading, a tag is read only when it arrives. It applies to the next
+	 * 		pooling started.
+	 * @param departureCycles Number of consecutive scans without a tag before
+	 * 		it is reported as departed, or 0 to disable the tracking. Disabled
+	 * 		by default.
+	 * @param heartbeatInterval Time between the PRESENT events of a tag in
+	 * 		the field, in miliseconds, or 0 to send none.
+	 */
+	public void setPresenceTracking(int departureCycles, long heartbeatInterval);
+
+	/**
+	 * Finds all the ISO14443A tags in the field on every pooling cycle,
+	 * 		instead of the first two, with repeated InListPassiveTarget rounds
+	 * 		that release the tags already found. The tags of a cycle are
+	 * 		delivered together, in intents of up to two tags. The NDEF message
+	 * 		of the tags is not read in this mode. It applies to the next
+	 * 		pooling started, except in continuous session mode.
+	 * @param maxTags Maximum number of tags found by a cycle, at least 2, or
+	 * 		0 to disable the inventory. Disabled by default.
+	 */
+	public void setInventoryMode(int maxTags);
+
+	/**
+	 * Starts recording every detected tag in a journal on disk, so the reads
+	 * 		are kept while no application is listening and can be looked up by
+	 * 		time or UID, or replayed from the last one consumed. An existing
+	 * 		journal in the directory is continued. A journal already open is
+	 * 		closed first.
+	 * @param directory The directory of the journal, for instance under
+	 * 		Context.getFilesDir().
+	 * @return The journal.
+	 * @throws IOException If the journal could not be opened.
+	 */
+	public NFCTagJournal openJournal(File directory) throws IOException;
+
+	/**
+	 * @return The journal opened with "openJournal", or null.
+	 */
+	public NFCTagJournal getJournal();
+
+	/**
+	 * Stops recording the tags and closes the journal.
+	 */
+	public void closeJournal();
+
+	/**
+	 * Starts a TCP server streaming every detected tag to the connected
+	 * 		clients, in the binary format described in NFCEventServer, for the
+	 * 		programs that are not Android applications. The clients that do not
+	 * 		keep up are disconnected. A server already started is stopped first.
+	 * @param address The address to listen on: the loopback address to serve
+	 * 		only the programs of the device, or any address to serve the LAN.
+	 * @return The server.
+	 * @throws IOException If the address could not be bound.
+	 */
+	public NFCEventServer startEventServer(InetSocketAddress address) throws IOException;
+
+	/**
+	 * Stops the server started with "startEventServer" and disconnects its
+	 * 		clients.
+	 */
+	public void stopEventServer();
+
+	/**
+	 * Starts capturing the raw bytes exchanged with the NFC module into a
+	 * 		trace file, to reproduce the field problems off-device with
+	 * 		NFCStreamReplay. It applies to the connections opened afterwards,
+	 * 		including the reconnections: call it before
+	 * 		"startBluetoothRFCommConnection" to capture the first NFC calls. A
+	 * 		capture already started is stopped first.
+	 * @param file The trace file. An existing file is replaced.
+	 * @return The recorder.
+	 * @throws IOException If the file could not be created.
+	 */
+	public NFCStreamRecorder startStreamCapture(File file) throws IOException;
+
+	/**
+	 * Stops the capture started with "startStreamCapture" and closes the
+	 * 		trace file. The connection is not affected.
+	 */
+	public void stopStreamCapture();
+
+	/**
+	 * Sends any command to the NFC module and waits for its response, for
+	 * 		instance InListPassiveTarget (0x4A), InDataExchange (0x40) or
+	 * 		RFConfiguration (0x32). The frame and its checksums are built from
+	 * 		the command code and parameters. The module handles one command at
+	 * 		a time, so a command sent while pooling is queued behind the
+	 * 		running scan and can wait for it to finish. The timeout only
+	 * 		runs once the command is written.
+	 * @param command The command code.
+	 * @param payload The command parameters, or null if it has none.
+	 * @param timeout Maximum time in miliseconds to wait for the response.
+	 * @return The response, with the data following the response code. Check
+	 * 		its status: it can be a NACK, an error frame or a timeout.
+	 * @throws IOException If the connection is not started or is closed.
+	 * @throws InterruptedException
+	 */
+	public NFCResponse transceive(int command, byte[] payload, long timeout) throws IOException, InterruptedException;
+
+	/**
+	 * Stops the NFC pooling.. The command running on the NFC module is
+	 * 		aborted, and it waits until the pooling thread finishes.
 	 * @throws IOException
 	 */
 	public void stopNFCPooling() throws IOException;
 
+	/**
+	 * Asks the NFC pooling to stop without waiting, for instance from the
+	 * 		UI thread. The pooling can be started again as soon as the returned
+	 * 		completion is done.
+	 * @return Done when the pooling thread finishes, with its final state.
+	 */
+	public NFCPoolerLifecycle.Completion requestStopNFCPooling();
+
+	/**
+	 * @return The state of the pooling, one of the NFCPoolerLifecycle.STATE_*
+	 * 		values: IDLE, STARTING, RUNNING, STOPPING or FAILED.
+	 */
+	public int getPoolingState();
+
 	/**
 	 * Closes the SPP/RFComm connection. This should be called only AFTER the
 	 * 		"stopNFCPooling" is called.
@@ -16,5 +16,19 @@ public interface IConstants {
 
 	public static final String ID_NFC_TAG_1 = "TAG1";
 	public static final String ID_NFC_TAG_2 = "TAG2";
+	//Access decision of each tag (NFCAccessList.ACCESS_*), only present when an access list is set.
+	public static final String ID_NFC_ACCESS_1 = "ACCESS1";
+	public static final String ID_NFC_ACCESS_2 = "ACCESS2";
+	//Raw NDEF message of each tag (byte[]), only present when the memory reading is enabled.
+	public static final String ID_NFC_NDEF_1 = "NDEF1";
+	public static final String ID_NFC_NDEF_2 = "NDEF2";
+	//Presence event of each tag (NFCTagEvent.TYPE_*) and its time in the field in miliseconds (long),
+	//only present when the presence tracking is enabled.
+	public static final String ID_NFC_EVENT_1 = "EVENT1";
+	public static final String ID_NFC_EVENT_2 = "EVENT2";
+	public static final String ID_NFC_DWELL_1 = "DWELL1";
+	public static final String ID_NFC_DWELL_2 = "DWELL2";
+	//Reader that detected the tags, only present when several readers are managed.
+	public static final String ID_NFC_READER = "READER";
 
 }
@@ -0,0 +1,564 @@
+package com.uab.ofernandez.bridge.api;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.app.Activity;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.content.Context;
+import android.util.Log;
+
+import com.uab.ofernandez.bridge.business.BluetoothConnectionHandler;
+import com.uab.ofernandez.bridge.business.NFCAccessList;
+import com.uab.ofernandez.bridge.business.NFCAdaptivePoolingScheduler;
+import com.uab.ofernandez.bridge.business.NFCCommandChannel;
+import com.uab.ofernandez.bridge.business.NFCCommandFuture;
+import com.uab.ofernandez.bridge.business.NFCFrameHandler;
+import com.uab.ofernandez.bridge.business.NFCIntentBroadcaster;
+import com.uab.ofernandez.bridge.business.NFCLog;
+import com.uab.ofernandez.bridge.business.NFCPresenceTracker;
+import com.uab.ofernandez.bridge.business.NFCReaderSession;
+import com.uab.ofernandez.bridge.business.NFCReaderStatsSnapshot;
+import com.uab.ofernandez.bridge.business.NFCResponse;
+import com.uab.ofernandez.bridge.business.NFCTagDispatcher;
+import com.uab.ofernandez.bridge.business.NFCTagListener;
+
+/**
+ * Drives several Bluetooth NFC bridges at once from a small fixed thread pool.
+ *
+ * Every reader has its own socket, command channel and pooling state
+ * machine. No thread is dedicated to a reader: each reader is a task that
+ * makes all the progress possible without blocking and then schedules
+ * itself again, so a handful of threads can serve many readers.
+ *
+ * The readers are identified by the bluetooth address of their device. The
+ * tags intents carry this identifier in the {@link IConstants#ID_NFC_READER}
+ * extra.
+ */
+public final class NFCReaderManager {
+
+	/*
+	 * Time between two checks of the socket while a response is expected.
+	 * This bounds the reaction time to the arrival of a response.
+	 */
+	private static final long PUMP_INTERVAL = 5;
+	//Tag events waiting for the listeners, and events delivered per call.
+	private static final int EVENT_QUEUE_CAPACITY = 1024;
+	private static final int EVENT_BATCH_SIZE = 16;
+
+	private final ScheduledExecutorService mExecutor;
+	private final ConcurrentHashMap<String, Reader> mReaders = new ConcurrentHashMap<String, Reader>();
+	//Allow/deny list shared by all the readers.
+	private volatile NFCAccessList mAccessList;
+	//Read the NDEF message of the tags in the next poolings.
+	private volatile boolean mNdefReading = false;
+	//Presence tracking of the next poolings. No tracking if the cycles are 0.
+	private volatile int mDepartureCycles = 0;
+	private volatile long mHeartbeatInterval = 0;
+	//Maximum tags of the inventory of the next poolings. No inventory if 0.
+	private volatile int mInventoryTags = 0;
+	//Delivers the tags of all the readers to the listeners.
+	private final NFCTagDispatcher mDispatcher = new NFCTagDispatcher(EVENT_QUEUE_CAPACITY, EVENT_BATCH_SIZE);
+
+	/**
+	 * @param poolSize Number of threads shared by all the readers.
+	 */
+	public NFCReaderManager(int poolSize){
+		NFCLog.setLogger(AndroidNFCLogger.INSTANCE);
+		mExecutor = new ScheduledThreadPoolExecutor(Math.max(1, poolSize));
+		mDispatcher.start();
+	}
+
+	/**
+	 * Connects a new reader. This call blocks while the RFComm socket is
+	 * connected, so it should not be done from the UI thread.
+	 * @param deviceName The name of the paired bridge device.
+	 * @param context The activity context that is performing the call.
+	 * @return The reader identifier, or null if the arguments are not valid.
+	 * @throws IOException
+	 * @throws Exception
+	 */
+	public String addReader(String deviceName, Activity context) throws IOException, Exception {
+		if(deviceName == null || deviceName.length()==0 || context==null){
+			Log.d(IConstants.MY_TAG, "*** addReader - invalid arguments!");
+			return null;
+		}
+		BluetoothDevice device = BluetoothConnectionHandler.getBluetoothDevice(context, deviceName);
+		String readerId = device.getAddress();
+		if(mReaders.containsKey(readerId)){
+			return readerId;
+		}
+
+		BluetoothSocket socket = BluetoothConnectionHandler.createBluetoothRFCommSocket(device);
+		BluetoothConnectionHandler.connectBluetoothRFCommSocket(socket);
+		NFCCommandChannel channel = new NFCCommandChannel(socket.getInputStream(), socket.getOutputStream());
+
+		mReaders.put(readerId, new Reader(device, socket, channel));
+		Log.i(IConstants.MY_TAG, "*** addReader - connected "+BluetoothConnectionHandler.getDeviceDescription(device));
+		return readerId;
+	}
+
+	/**
+	 * Activates the NFC pooling of a reader.
+	 * @param readerId The reader identifier returned by addReader.
+	 * @param poolingTime The pooling time in miliseconds.
+	 * @param context The context used to broadcast the readed tags as intents,
+	 * 		or null to deliver them only to the tag listeners.
+	 * @return True if the pooling was started.
+	 */
+	public boolean startNFCPooling(String readerId, long poolingTime, Context context){
+		Reader reader = readerId == null ? null : mReaders.get(readerId);
+		if(reader==null || poolingTime<=0){
+			Log.d(IConstants.MY_TAG, "*** startNFCPooling - invalid arguments!");
+			return false;
+		}
+		return reader.start(new NFCReaderSession(readerId, reader.mChannel, mDispatcher, poolingTime), context);
+	}
+
+	/**
+	 * Activates the NFC pooling of a reader in continuous session mode.
+	 * @param readerId The reader identifier returned by addReader.
+	 * @param poolingTime The minimum time between two scans in miliseconds.
+	 * @param pollNumber Number of pooling rounds of every scan (0x01 to 0xFE).
+	 * @param period Period between pooling rounds in units of 150ms (0x01 to 0x0F).
+	 * @param context The context used to broadcast the readed tags as intents,
+	 * 		or null to deliver them only to the tag listeners.
+	 * @return True if the pooling was started.
+	 */
+	public boolean startNFCPoolingSession(String readerId, long poolingTime, int pollNumber, int period, Context context){
+		Reader reader = readerId == null ? null : mReaders.get(readerId);
+		if(reader==null || poolingTime<=0){
+			Log.d(IConstants.MY_TAG, "*** startNFCPoolingSession - invalid arguments!");
+			return false;
+		}
+		NFCReaderSession session = new NFCReaderSession(readerId, reader.mChannel, mDispatcher, poolingTime);
+		if(!session.setSessionMode(pollNumber, period)){
+			return false;
+		}
+		return reader.start(session, context);
+	}
+
+	/**
+	 * Activates the NFC pooling of a reader with a period that follows the
+	 * tags activity.
+	 * @param readerId The reader identifier returned by addReader.
+	 * @param scheduler The pooling scheduler. Every reader needs its own one.
+	 * @param context The context used to broadcast the readed tags as intents,
+	 * 		or null to deliver them only to the tag listeners.
+	 * @return True if the pooling was started.
+	 */
+	public boolean startNFCPoolingAdaptive(String readerId, NFCAdaptivePoolingScheduler scheduler, Context context){
+		Reader reader = readerId == null ? null : mReaders.get(readerId);
+		if(reader==null || scheduler==null){
+			Log.d(IConstants.MY_TAG, "*** startNFCPoolingAdaptive - invalid arguments!");
+			return false;
+		}
+		NFCReaderSession session = new NFCReaderSession(readerId, reader.mChannel, mDispatcher, scheduler.getPoolingTime());
+		session.setAdaptiveScheduler(scheduler);
+		return reader.start(session, context);
+	}
+
+	/**
+	 * @return The effective number of pooling cycles per second of a reader.
+	 */
+	public float getEffectivePoolingRate(String readerId){
+		Reader reader = readerId == null ? null : mReaders.get(readerId);
+		if(reader == null){
+			return 0;
+		}
+		synchronized (reader) {
+			return reader.mSession == null ? 0 : reader.mSession.getEffectivePoolingRate();
+		}
+	}
+
+	/**
+	 * @param readerId The reader identifier returned by addReader.
+	 * @param reset If true, the values are cleared and a new measure interval starts.
+	 * @return The pooling latencies and counters of a reader since the last
+	 * 		reset, or null if the reader is unknown.
+	 */
+	public NFCReaderStatsSnapshot getPoolingStats(String readerId, boolean reset){
+		Reader reader = readerId == null ? null : mReaders.get(readerId);
+		if(reader == null){
+			return null;
+		}
+		return reader.mChannel.getStats().snapshot(reset);
+	}
+
+	/**
+	 * @param readerId The reader identifier returned by addReader.
+	 * @param maxEvents Maximum number of events, the most recent ones.
+	 * @return The last commands and responses exchanged with the reader, one
+	 * 		per line, or null if the reader is unknown.
+	 */
+	public String dumpTrace(String readerId, int maxEvents){
+		Reader reader = readerId == null ? null : mReaders.get(readerId);
+		if(reader == null){
+			return null;
+		}
+		return reader.mChannel.getTrace().dump(maxEvents);
+	}
+
+	/**
+	 * Enables the reading of the NDEF message of the tags for all the
+	 * readers. It applies to the next poolings started.
+	 * @param enabled True to read the tags memory.
+	 */
+	public void setNdefReading(boolean enabled){
+		mNdefReading = enabled;
+	}
+
+	/**
+	 * Reports the tags entering and leaving the field instead of the tags of
+	 * every scan, for all the readers. It applies to the next poolings started.
+	 * @param departureCycles Number of consecutive scans without a tag before
+	 * 		it is reported as departed, or 0 to disable the tracking.
+	 * @param heartbeatInterval Time between the PRESENT events of a tag in
+	 * 		the field, in miliseconds, or 0 to send none.
+	 */
+	public void setPresenceTracking(int departureCycles, long heartbeatInterval){
+		if(departureCycles < 0 || heartbeatInterval < 0){
+			throw new IllegalArgumentException("Invalid presence tracking: "+departureCycles+"/"+heartbeatInterval);
+		}
+		mDepartureCycles = departureCycles;
+		mHeartbeatInterval = heartbeatInterval;
+	}
+
+	/**
+	 * Finds all the tags of the field on every cycle, for all the readers,
+	 * with repeated InListPassiveTarget rounds instead of the first two. It
+	 * applies to the next poolings started, except the continuous session
+	 * mode ones.
+	 * @param maxTags Maximum number of tags found by a cycle, at least 2, or
+	 * 		0 to disable the inventory.
+	 */
+	public void setInventoryMode(int maxTags){
+		if(maxTags < 0 || maxTags == 1){
+			throw new IllegalArgumentException("Invalid inventory size: "+maxTags);
+		}
+		mInventoryTags = maxTags;
+	}
+
+	/**
+	 * Sends any command to a reader and waits for its response. A command
+	 * sent while pooling is queued behind the running scan of the reader and
+	 * can wait for it to finish.
+	 * @param readerId The reader identifier returned by addReader.
+	 * @param command The command code.
+	 * @param payload The command parameters, or null if it has none.
+	 * @param timeout Maximum time in miliseconds to wait for the response.
+	 * @return The response. Check its status.
+	 * @throws IOException If the reader is unknown or its connection is closed.
+	 * @throws InterruptedException
+	 */
+	public NFCResponse transceive(String readerId, int command, byte[] payload, long timeout)
+	throws IOException, InterruptedException{
+		Reader reader = readerId == null ? null : mReaders.get(readerId);
+		if(reader == null){
+			throw new IOException("Unknown reader "+readerId);
+		}
+		NFCCommandFuture future = new NFCCommandFuture(
+				NFCFrameHandler.getCommand(command, payload, 0, payload == null ? 0 : payload.length), timeout);
+		if(!reader.mChannel.submit(future)){
+			throw new IOException("The command channel of reader "+readerId+" is closed or full!");
+		}
+		reader.wake();
+		future.await();
+		return NFCResponse.of(future);
+	}
+
+	/**
+	 * Adds a listener that receives the tags of all the readers. The events
+	 * carry the reader identifier, and several events can be delivered by
+	 * one call.
+	 */
+	public void addTagListener(NFCTagListener listener){
+		mDispatcher.addListener(listener);
+	}
+
+	public void removeTagListener(NFCTagListener listener){
+		mDispatcher.removeListener(listener);
+	}
+
+	/**
+	 * Sets the allow/deny list checked for the tags of all the readers. It
+	 * applies to the running poolings and to the next ones.
+	 * @param accessList The list, or null to stop checking the tags.
+	 */
+	public void setAccessList(NFCAccessList accessList){
+		mAccessList = accessList;
+		for(Reader reader : mReaders.values()){
+			synchronized (reader) {
+				if(reader.mSession != null){
+					reader.mSession.setAccessList(accessList);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops the NFC pooling of a reader. The pooling finishes asynchronously,
+	 * after the current command completes.
+	 */
+	public void stopNFCPooling(String readerId){
+		Reader reader = readerId == null ? null : mReaders.get(readerId);
+		if(reader != null){
+			reader.stop();
+		}
+	}
+
+	/**
+	 * Stops the pooling of a reader and closes its connection.
+	 * @throws IOException
+	 */
+	public void removeReader(String readerId) throws IOException{
+		Reader reader = readerId == null ? null : mReaders.remove(readerId);
+		if(reader != null){
+			reader.close();
+		}
+	}
+
+	/**
+	 * @return The identifiers of the connected readers.
+	 */
+	public List<String> getReaderIds(){
+		return new ArrayList<String>(mReaders.keySet());
+	}
+
+	/**
+	 * @return A string with the format "device_name @ XX:XX:XX:XX:XX:XX"
+	 */
+	public String getDeviceDescription(String readerId){
+		Reader reader = readerId == null ? null : mReaders.get(readerId);
+		return BluetoothConnectionHandler.getDeviceDescription(reader == null ? null : reader.mDevice);
+	}
+
+	/**
+	 * Closes all the readers and the thread pool.
+	 */
+	public void shutdown(){
+		for(String readerId : getReaderIds()){
+			try {
+				removeReader(readerId);
+			} catch (IOException e) {
+				Log.e(IConstants.MY_TAG, "*** shutdown - Error while closing reader "+readerId+": "+e);
+			}
+		}
+		mExecutor.shutdown();
+		mDispatcher.shutdown();
+	}
+
+	/**
+	 * A connected reader and the task that drives its pooling.
+	 *
+	 * The pooling task reschedules itself after every step. A single chain
+	 * of runs drives the session: a wake up while a run executes is only
+	 * flagged, and the run reschedules itself at once; otherwise a new chain
+	 * replaces the scheduled one, whose run finishes without doing anything.
+	 */
+	private final class Reader {
+		private final BluetoothDevice mDevice;
+		private final BluetoothSocket mSocket;
+		private final NFCCommandChannel mChannel;
+		//Held while the channel is pumped, by the pooling or by a transceive.
+		private final Object mPumpLock = new Object();
+		//Pumps the commands sent while the reader is not pooling.
+		private final Runnable mPumpTask = new Runnable() {
+			@Override
+			public void run() {
+				pumpCommands();
+			}
+		};
+		//Guarded by this.
+		private NFCReaderSession mSession;
+		private ScheduledFuture<?> mTask;
+		private NFCIntentBroadcaster mBroadcaster;
+		//The current chain of pooling runs, and whether one of its runs executes.
+		private PoolingTask mChain;
+		private boolean mRunning = false;
+		//Set by a wake up during a run, so the run is repeated immediately.
+		private boolean mWakeRequested = false;
+
+		Reader(BluetoothDevice device, BluetoothSocket socket, NFCCommandChannel channel){
+			mDevice = device;
+			mSocket = socket;
+			mChannel = channel;
+		}
+
+		synchronized boolean start(NFCReaderSession session, Context context){
+			if(mSession != null && !mSession.isFinished()){
+				//pooling is already running!
+				return false;
+			}
+			if(mBroadcaster != null){
+				mDispatcher.removeListener(mBroadcaster);
+				mBroadcaster = null;
+			}
+			if(context != null){
+				mBroadcaster = new NFCIntentBroadcaster(context, session.getReaderId());
+				mDispatcher.addListener(mBroadcaster);
+			}
+			session.setAccessList(mAccessList);
+			session.setNdefReading(mNdefReading);
+			int inventoryTags = mInventoryTags;
+			if(inventoryTags > 0 && !session.setInventoryMode(inventoryTags)){
+				Log.w(IConstants.MY_TAG, "*** NFCReaderManager - No inventory in continuous session mode, reader "+session.getReaderId());
+			}
+			int departureCycles = mDepartureCycles;
+			if(departureCycles > 0){
+				//every reader follows its own field, with all the tags of an inventory...
+				session.setPresenceTracker(new NFCPresenceTracker(Math.max(NFCPresenceTracker.DEFAULT_CAPACITY, inventoryTags),
+						departureCycles, mHeartbeatInterval));
+			}
+			mSession = session;
+			startChain();
+			return true;
+		}
+
+		synchronized void stop(){
+			if(mSession == null){
+				return;
+			}
+			mSession.requestStop();
+			//run the task now instead of waiting for the next cycle...
+			runNow();
+		}
+
+		/**
+		 * Gets the commands queued by a transceive written: by the pooling
+		 * task if it runs, by the pump task otherwise.
+		 */
+		synchronized void wake(){
+			if(mSession != null && !mSession.isFinished()){
+				runNow();
+			}
+			else if(!mExecutor.isShutdown()){
+				mExecutor.execute(mPumpTask);
+			}
+		}
+
+		/**
+		 * Runs the pooling task as soon as possible. Called holding this.
+		 */
+		private void runNow(){
+			if(mRunning){
+				//the running step reschedules itself at once...
+				mWakeRequested = true;
+			}
+			else if(!mExecutor.isShutdown()){
+				startChain();
+			}
+		}
+
+		/**
+		 * Replaces the chain of runs by a new one that runs now. Called
+		 * holding this. A run of the old chain still executing does not
+		 * reschedule itself.
+		 */
+		private void startChain(){
+			if(mTask != null){
+				//the run could be starting already: it is ignored anyway.
+				mTask.cancel(false);
+			}
+			mChain = new PoolingTask();
+			mRunning = false;
+			mWakeRequested = false;
+			mTask = mExecutor.schedule(mChain, 0, TimeUnit.MILLISECONDS);
+		}
+
+		private void pumpCommands(){
+			synchronized (mPumpLock) {
+				try {
+					mChannel.pump();
+				} catch (IOException e) {
+					Log.e(IConstants.MY_TAG, "*** NFCReaderManager - Reader "+mDevice.getAddress()+" failed: "+e);
+					return;
+				}
+			}
+			synchronized (this) {
+				//the pooling task pumps the channel while it runs...
+				if(mChannel.isBusy() && (mSession == null || mSession.isFinished()) && !mExecutor.isShutdown()){
+					mExecutor.schedule(mPumpTask, PUMP_INTERVAL, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+
+		void close() throws IOException{
+			stop();
+			synchronized (this) {
+				if(mBroadcaster != null){
+					mDispatcher.removeListener(mBroadcaster);
+				}
+			}
+			mChannel.close();
+			BluetoothConnectionHandler.closeBluetoothRFCommSocket(mSocket);
+		}
+
+		private void runPooling(PoolingTask chain) {
+			NFCReaderSession session;
+			synchronized (this) {
+				if(chain != mChain || mSession == null){
+					//a run of a replaced chain...
+					return;
+				}
+				session = mSession;
+				mRunning = true;
+				mWakeRequested = false;
+			}
+
+			long delay;
+			synchronized (mPumpLock) {
+				try {
+					mChannel.pump();
+					delay = session.step(NFCReaderSession.now());
+					//write the commands queued by the step without waiting for the next run...
+					mChannel.pump();
+				} catch (IOException e) {
+					//the pending commands are failed, so the session finishes.
+					Log.e(IConstants.MY_TAG, "*** NFCReaderManager - Reader "+session.getReaderId()+" failed: "+e);
+					delay = session.step(NFCReaderSession.now());
+				}
+			}
+			synchronized (this) {
+				if(chain != mChain){
+					//replaced by the pooling of a new session meanwhile...
+					return;
+				}
+				mRunning = false;
+				if(delay == NFCReaderSession.FINISHED){
+					if(mChannel.isBusy()){
+						//a transceive queued meanwhile...
+						wake();
+					}
+					return;
+				}
+				if(mWakeRequested){
+					delay = 0;
+				}
+				else if(session.isAwaitingResponse() || mChannel.isBusy()){
+					delay = Math.min(delay, PUMP_INTERVAL);
+				}
+				if(session == mSession && !mExecutor.isShutdown()){
+					mTask = mExecutor.schedule(chain, delay, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+
+		/**
+		 * A run of the pooling. The same instance is rescheduled by its chain.
+		 */
+		private final class PoolingTask implements Runnable {
+			@Override
+			public void run() {
+				runPooling(this);
+			}
+		}
+	}
+}
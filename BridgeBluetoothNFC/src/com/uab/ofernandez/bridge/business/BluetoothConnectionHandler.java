@@ -3,25 +3,71 @@ package com.uab.ofernandez.bridge.business;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 
 import com.uab.ofernandez.bridge.api.IConstants;
 
 public final class BluetoothConnectionHandler {
 
+	//Maximum time to wait for the adapter to be switched on or off.
+	private static final long ADAPTER_STATE_TIMEOUT = 10000;
+
 	private static BluetoothAdapter mBluetoothAdapter;
 	private static BluetoothDevice mBTdevice;
+	private static Context mContext;
+
+	//Fast connect mode: keeps the adapter enabled and reuses the known devices.
+	private static volatile boolean mFastConnect = false;
+	//Address of the devices already found, by device name.
+	private static final ConcurrentHashMap<String, String> mKnownDevices = new ConcurrentHashMap<String, String>();
+	//BluetoothDevice.createRfcommSocket(int), looked up once.
+	private static volatile Method mCreateRfcommSocket;
+	//Receives the adapter state changes, since the UI thread can be the one waiting.
+	private static Handler mStateHandler;
+
+	/**
+	 * Enables or disables the fast connect mode. In fast connect mode the
+	 * bluetooth adapter is kept enabled when the socket is disconnected, and
+	 * the devices already found are connected directly by their address,
+	 * without looking them up again among the paired devices.
+	 */
+	public final static void setFastConnect(boolean fastConnect){
+		mFastConnect = fastConnect;
+	}
+
+	public final static boolean isFastConnect(){
+		return mFastConnect;
+	}
 
+	/**
+	 * Finds a paired device.
+	 * @param context Used to follow the adapter state changes.
+	 * @param deviceName Part of the device name, or the device bluetooth
+	 * 		address (XX:XX:XX:XX:XX:XX) to skip the look up.
+	 * @return The device.
+	 * @throws IOException If the device was not found or the bluetooth
+	 * 		adapter could not be enabled.
+	 */
 	public final static BluetoothDevice getBluetoothDevice(Activity context, String deviceName)
 	throws IOException{
 		if(context == null || deviceName == null || deviceName.length()==0){
 			throw new IOException("The parameters are not valid...");
 		}
+		mContext = context.getApplicationContext();
 
 		//get the hardware BT adapter handler...
 		mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
@@ -34,37 +80,42 @@ public final class BluetoothConnectionHandler {
 		if (!mBluetoothAdapter.isEnabled()) {
 			/*
 			 * Enable bluetooth adapter hardware.
-			 * We wait some time for the adapter state change to STATE_ON
+			 * We wait for the adapter state change to STATE_ON
 			 * otherwise the it will not be possible to connect the Bluetooth socket!!
 			 */
-			mBluetoothAdapter.enable();
-			int iter = 0;
-			while (mBluetoothAdapter.getState()!=BluetoothAdapter.STATE_ON && iter++<=50) {
-				//wait for the Bluetooth adapter gets on STATE_ON a maximum of 10 seconds....
-				try {
-					//Wait
-					Thread.sleep(200);
-				} catch (InterruptedException e) {
-					Log.d(IConstants.MY_TAG, "Failed on sleep...");
-				}
+			if(!changeAdapterState(mContext, true)){
+				throw new IOException("The bluetooth adapter could not be enabled!");
 			}
 		}
+
+		//connect directly to the given or known address...
+		String address = BluetoothAdapter.checkBluetoothAddress(deviceName)
+			? deviceName : mFastConnect ? mKnownDevices.get(deviceName.toUpperCase()) : null;
+		if(address != null){
+			mBTdevice = mBluetoothAdapter.getRemoteDevice(address);
+			Log.d(IConstants.MY_TAG,"*** Known device -> "+address);
+			return mBTdevice;
+		}
+
 		ArrayList<BluetoothDevice> pairedDevices = new ArrayList<BluetoothDevice>(mBluetoothAdapter.getBondedDevices());
 
 		// Loop through paired devices to find OUR device bridge.
+		BluetoothDevice bridgeDevice = null;
 		for (BluetoothDevice device : pairedDevices) {
 			if(device.getName().contains(deviceName.toUpperCase())){
 				Log.d(IConstants.MY_TAG,"*** Paired device -> "+device.getName() + "@" + device.getAddress());
-				mBTdevice = device;
+				bridgeDevice = device;
 
 				break;
 			}
 		}
 
-		if(mBTdevice == null){
+		if(bridgeDevice == null){
 			throw new IOException("The device \""+deviceName+"\""+" was not found!"  );
 		}
 
+		mKnownDevices.put(deviceName.toUpperCase(), bridgeDevice.getAddress());
+		mBTdevice = bridgeDevice;
 		return mBTdevice;
 	}
 
@@ -75,7 +126,11 @@ public final class BluetoothConnectionHandler {
 			throw new IOException("The parameter is not valid...");
 		}
 
-		Method m = device.getClass().getMethod("createRfcommSocket", new Class[] { int.class });
+		Method m = mCreateRfcommSocket;
+		if(m == null){
+			m = device.getClass().getMethod("createRfcommSocket", new Class[] { int.class });
+			mCreateRfcommSocket = m;
+		}
 		btSocket = (BluetoothSocket) m.invoke(device, Integer.valueOf(1));
 
 		Log.d(IConstants.MY_TAG,"*** Bluetooth class: "+btSocket.getRemoteDevice().getBluetoothClass().toString());
@@ -101,30 +156,88 @@ public final class BluetoothConnectionHandler {
 		}
 		btSocket.close();
 
-		//disconnect bluetooth...
-		if(mBluetoothAdapter.isEnabled()){
-			mBluetoothAdapter.disable();
-			int iter = 0;
-			while (mBluetoothAdapter.getState()!=BluetoothAdapter.STATE_OFF && iter++<=50) {
-				//wait for the Bluetooth adapter gets on STATE_OFF a maximum of 10 seconds....
-				try {
-					//Wait
-					Thread.sleep(200);
-				} catch (InterruptedException e) {
-					Log.d(IConstants.MY_TAG, "Failed on sleep...");
-				}
+		//disconnect bluetooth... unless it will be used again soon.
+		if(!mFastConnect && mBluetoothAdapter != null && mBluetoothAdapter.isEnabled()){
+			if(mContext == null){
+				mBluetoothAdapter.disable();
+			}
+			else if(!changeAdapterState(mContext, false)){
+				Log.w(IConstants.MY_TAG, "*** The bluetooth adapter is still not disabled...");
 			}
 		}
 		Log.d(IConstants.MY_TAG, "*** Disconnected the socket...");
 		return true;
 	}
 
+	/**
+	 * Closes a RFComm socket, keeping the bluetooth adapter enabled. Used when
+	 * other connections are still open.
+	 */
+	public final static boolean closeBluetoothRFCommSocket(BluetoothSocket btSocket)
+	throws IOException{
+		if(btSocket == null){
+			return false;
+		}
+		btSocket.close();
+		Log.d(IConstants.MY_TAG, "*** Closed the socket...");
+		return true;
+	}
+
+	/**
+	 * Switches the bluetooth adapter on or off, and waits for the adapter
+	 * state change broadcast.
+	 * @return True if the adapter reached the state in time.
+	 */
+	private static boolean changeAdapterState(Context context, boolean on){
+		final int target = on ? BluetoothAdapter.STATE_ON : BluetoothAdapter.STATE_OFF;
+		final CountDownLatch reached = new CountDownLatch(1);
+		BroadcastReceiver receiver = new BroadcastReceiver() {
+			@Override
+			public void onReceive(Context c, Intent intent) {
+				if(intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR) == target){
+					reached.countDown();
+				}
+			}
+		};
+		context.registerReceiver(receiver, new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED), null, getStateHandler());
+		try {
+			if(on){
+				mBluetoothAdapter.enable();
+			}
+			else{
+				mBluetoothAdapter.disable();
+			}
+			//the state could have changed before the receiver was registered...
+			return mBluetoothAdapter.getState() == target
+				|| reached.await(ADAPTER_STATE_TIMEOUT, TimeUnit.MILLISECONDS)
+				|| mBluetoothAdapter.getState() == target;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return mBluetoothAdapter.getState() == target;
+		} finally {
+			context.unregisterReceiver(receiver);
+		}
+	}
+
+	private static synchronized Handler getStateHandler(){
+		if(mStateHandler == null){
+			HandlerThread thread = new HandlerThread("BluetoothAdapterState");
+			thread.start();
+			mStateHandler = new Handler(thread.getLooper());
+		}
+		return mStateHandler;
+	}
+
 	public final static String getDeviceDescription(){
-		if(mBTdevice == null){
+		return getDeviceDescription(mBTdevice);
+	}
+
+	public final static String getDeviceDescription(BluetoothDevice device){
+		if(device == null){
 			return new String("");
 		}
 
-		return mBTdevice.getName()+" @ "+mBTdevice.getAddress();
+		return device.getName()+" @ "+device.getAddress();
 	}
 
 }
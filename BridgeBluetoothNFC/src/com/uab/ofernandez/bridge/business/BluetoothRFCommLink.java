@@ -0,0 +1,88 @@
+package com.uab.ofernandez.bridge.business;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+/**
+ * A bluetooth RFComm socket used as a {@link NFCLink}.
+ */
+public final class BluetoothRFCommLink implements NFCLink {
+
+	private final BluetoothSocket mSocket;
+
+	public BluetoothRFCommLink(BluetoothSocket socket){
+		mSocket = socket;
+	}
+
+	public BluetoothSocket getSocket(){
+		return mSocket;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return mSocket.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return mSocket.getOutputStream();
+	}
+
+	@Override
+	public void close() throws IOException {
+		BluetoothConnectionHandler.closeBluetoothRFCommSocket(mSocket);
+	}
+
+	/**
+	 * Opens the RFComm connections to a device found once, so the
+	 * reconnections do not look it up again among the paired devices.
+	 */
+	public static final class Factory implements NFCLinkFactory {
+
+		private final BluetoothDevice mDevice;
+		private volatile BluetoothRFCommLink mLastLink;
+
+		public Factory(BluetoothDevice device){
+			if(device == null){
+				throw new IllegalArgumentException("The bluetooth device is not valid");
+			}
+			mDevice = device;
+		}
+
+		public BluetoothDevice getDevice(){
+			return mDevice;
+		}
+
+		/**
+		 * @return The link opened last, or null.
+		 */
+		public BluetoothRFCommLink getLastLink(){
+			return mLastLink;
+		}
+
+		@Override
+		public NFCLink open() throws IOException {
+			BluetoothSocket socket;
+			try {
+				socket = BluetoothConnectionHandler.createBluetoothRFCommSocket(mDevice);
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException("Unable to create the RFComm socket: "+e);
+			}
+			try {
+				BluetoothConnectionHandler.connectBluetoothRFCommSocket(socket);
+			} catch (IOException e) {
+				BluetoothConnectionHandler.closeBluetoothRFCommSocket(socket);
+				throw e;
+			}
+			BluetoothRFCommLink link = new BluetoothRFCommLink(socket);
+			mLastLink = link;
+			return link;
+		}
+	}
+}
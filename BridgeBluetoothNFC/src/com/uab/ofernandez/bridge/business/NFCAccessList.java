@@ -0,0 +1,190 @@
+package com.uab.ofernandez.bridge.business;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Allow/deny list of NFC tag identifiers, checked in the pooling thread
+ * right after a tag is read.
+ *
+ * The list is loaded from a text file with one hexadecimal identifier per
+ * line. A line starting with '-' denies the identifier, and a line with no
+ * prefix or starting with '+' allows it. Empty lines and lines starting with
+ * '#' are ignored. A denied identifier is denied even if it is also allowed.
+ *
+ * Once loaded the list is only read, so it can be shared by several readers.
+ */
+public final class NFCAccessList {
+
+	/**************************************************************************
+	 * Access decisions
+	 **************************************************************************/
+	/** The tag was not checked against any list. */
+	public static final int ACCESS_UNCHECKED = 0;
+	/** The tag is in neither list. */
+	public static final int ACCESS_UNKNOWN = 1;
+	public static final int ACCESS_GRANTED = 2;
+	public static final int ACCESS_DENIED = 3;
+
+	private static final int DEFAULT_EXPECTED_SIZE = 1024;
+
+	private final NFCUidSet mAllowed;
+	private final NFCUidSet mDenied;
+	private int mInvalidEntries = 0;
+
+	/**
+	 * @param expectedAllowed Number of allowed identifiers expected.
+	 * @param expectedDenied Number of denied identifiers expected.
+	 */
+	public NFCAccessList(int expectedAllowed, int expectedDenied){
+		mAllowed = new NFCUidSet(expectedAllowed);
+		mDenied = new NFCUidSet(expectedDenied);
+	}
+
+	/**
+	 * Loads a list file.
+	 * @param file The list file.
+	 * @param expectedSize Number of identifiers expected in the file, to
+	 * 		avoid resizing while loading.
+	 * @return The loaded list.
+	 * @throws IOException
+	 */
+	public static NFCAccessList load(File file, int expectedSize) throws IOException{
+		InputStream in = new FileInputStream(file);
+		try {
+			return load(in, expectedSize);
+		}
+		finally{
+			in.close();
+		}
+	}
+
+	/**
+	 * Loads a list from a stream. The stream is not closed.
+	 * @param in The list, in the file format.
+	 * @param expectedSize Number of identifiers expected.
+	 * @return The loaded list.
+	 * @throws IOException
+	 */
+	public static NFCAccessList load(InputStream in, int expectedSize) throws IOException{
+		if(expectedSize <= 0){
+			expectedSize = DEFAULT_EXPECTED_SIZE;
+		}
+		//most of the entries are usually allowed badges.
+		NFCAccessList list = new NFCAccessList(expectedSize, expectedSize / 8);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"), 64 * 1024);
+		String line;
+		while((line = reader.readLine()) != null){
+			list.parseLine(line);
+		}
+		return list;
+	}
+
+	public boolean allow(byte[] buffer, int offset, int length){
+		return mAllowed.add(buffer, offset, length);
+	}
+
+	public boolean deny(byte[] buffer, int offset, int length){
+		return mDenied.add(buffer, offset, length);
+	}
+
+	/**
+	 * Decides the access of a tag. No object is created.
+	 * @param buffer Buffer containing the tag identifier.
+	 * @param offset Position of the identifier in the buffer.
+	 * @param length Length of the identifier.
+	 * @return {@link #ACCESS_GRANTED}, {@link #ACCESS_DENIED} or
+	 * 		{@link #ACCESS_UNKNOWN}.
+	 */
+	public int check(byte[] buffer, int offset, int length){
+		return checkKey(NFCUidSet.toKey(buffer, offset, length));
+	}
+
+	/**
+	 * Decides the access of a tag.
+	 * @return {@link #ACCESS_GRANTED}, {@link #ACCESS_DENIED} or
+	 * 		{@link #ACCESS_UNKNOWN}.
+	 */
+	public int check(NFCTagId tagId){
+		return checkKey(NFCUidSet.toKey(tagId));
+	}
+
+	/**
+	 * Checks all the tags of a list and stores the decisions in it.
+	 */
+	public void check(NFCTagList tagList){
+		byte[] uids = tagList.getUidBuffer();
+		for(int i=0; i<tagList.size(); i++){
+			tagList.setAccess(i, check(uids, tagList.getUidOffset(i), tagList.getUidLength(i)));
+		}
+	}
+
+	public int getAllowedCount(){
+		return mAllowed.size();
+	}
+
+	public int getDeniedCount(){
+		return mDenied.size();
+	}
+
+	/**
+	 * @return The number of lines of the loaded file that were skipped
+	 * 		because they are not a valid identifier.
+	 */
+	public int getInvalidEntries(){
+		return mInvalidEntries;
+	}
+
+	private int checkKey(long key){
+		if(mDenied.containsKey(key)){
+			return ACCESS_DENIED;
+		}
+		if(mAllowed.containsKey(key)){
+			return ACCESS_GRANTED;
+		}
+		return ACCESS_UNKNOWN;
+	}
+
+	private void parseLine(String line){
+		int begin = 0;
+		int end = line.length();
+		while(begin < end && line.charAt(begin) <= ' '){ begin++; }
+		while(end > begin && line.charAt(end-1) <= ' '){ end--; }
+		if(begin == end || line.charAt(begin) == '#'){
+			return;
+		}
+
+		boolean denied = false;
+		char prefix = line.charAt(begin);
+		if(prefix == '-' || prefix == '+'){
+			denied = prefix == '-';
+			begin++;
+		}
+
+		//hex digits are packed straight into the key...
+		int length = (end - begin) / 2;
+		if(length < 1 || length > NFCUidSet.MAX_UID_LENGTH || (end - begin) % 2 != 0){
+			mInvalidEntries++;
+			return;
+		}
+		long key = length;
+		for(int i=begin; i<end; i++){
+			int digit = Character.digit(line.charAt(i), 16);
+			if(digit < 0){
+				mInvalidEntries++;
+				return;
+			}
+			key = (key << 4) | digit;
+		}
+		if(denied){
+			mDenied.addKey(key);
+		}
+		else{
+			mAllowed.addKey(key);
+		}
+	}
+}
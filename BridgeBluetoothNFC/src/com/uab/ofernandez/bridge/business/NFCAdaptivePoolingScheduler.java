@@ -0,0 +1,115 @@
+package com.uab.ofernandez.bridge.business;
+
+import java.util.TimeZone;
+
+/**
+ * Decides the pooling period from the tags activity.
+ *
+ * Right after a tag is detected, and during the configured busy windows,
+ * the reader is pooled at the fast period. While nothing happens the period
+ * doubles on every cycle until it reaches the maximum period.
+ *
+ * An instance keeps the state of a single reader, so it must not be shared
+ * between readers.
+ */
+public final class NFCAdaptivePoolingScheduler {
+
+	private static final int MAX_BUSY_WINDOWS = 8;
+	private static final long MINUTE = 60 * 1000L;
+	private static final long DAY = 24 * 60 * MINUTE;
+
+	private final long mFastPoolingTime;
+	private final long mMaxPoolingTime;
+	private final long mFastHoldTime;
+
+	//Busy windows as pairs of [start, end) minutes of the day.
+	private final int[] mBusyWindows = new int[2 * MAX_BUSY_WINDOWS];
+	private int mBusyWindowCount = 0;
+
+	private volatile long mPoolingTime;
+	private long mLastTagTime;
+	private boolean mTagSeen = false;
+
+	/**
+	 * @param fastPoolingTime The pooling period after a detection or during
+	 * 		a busy window, in miliseconds.
+	 * @param maxPoolingTime The longest pooling period while idle, in miliseconds.
+	 * @param fastHoldTime How long the fast period is kept after the last
+	 * 		detection, in miliseconds.
+	 */
+	public NFCAdaptivePoolingScheduler(long fastPoolingTime, long maxPoolingTime, long fastHoldTime){
+		if(fastPoolingTime <= 0 || maxPoolingTime < fastPoolingTime || fastHoldTime < 0){
+			throw new IllegalArgumentException("Invalid pooling times: "+fastPoolingTime+"/"+maxPoolingTime+"/"+fastHoldTime);
+		}
+		mFastPoolingTime = fastPoolingTime;
+		mMaxPoolingTime = maxPoolingTime;
+		mFastHoldTime = fastHoldTime;
+		mPoolingTime = fastPoolingTime;
+	}
+
+	/**
+	 * Adds a daily window where the reader is always pooled at the fast
+	 * period. The window can go over midnight (start > end).
+	 * @param startMinute Start of the window, in minutes from 00:00 local time.
+	 * @param endMinute End of the window (excluded), in minutes from 00:00.
+	 * @return False if the window is not valid or there are too many windows.
+	 */
+	public synchronized boolean addBusyWindow(int startMinute, int endMinute){
+		if(mBusyWindowCount == MAX_BUSY_WINDOWS || startMinute < 0 || startMinute >= 24*60
+				|| endMinute < 0 || endMinute > 24*60 || startMinute == endMinute){
+			return false;
+		}
+		mBusyWindows[2*mBusyWindowCount] = startMinute;
+		mBusyWindows[2*mBusyWindowCount + 1] = endMinute;
+		mBusyWindowCount++;
+		return true;
+	}
+
+	/**
+	 * Computes the period of the next pooling cycle.
+	 * @param now The current time in miliseconds, from a monotonic clock.
+	 * @param tagDetected True if the last cycle detected some tag.
+	 * @return The pooling period in miliseconds.
+	 */
+	public synchronized long nextPoolingTime(long now, boolean tagDetected){
+		if(tagDetected){
+			mLastTagTime = now;
+			mTagSeen = true;
+		}
+
+		if((mTagSeen && now - mLastTagTime < mFastHoldTime) || isBusyTime()){
+			mPoolingTime = mFastPoolingTime;
+		}
+		else{
+			//nothing is happening... back off.
+			mPoolingTime = Math.min(mPoolingTime * 2, mMaxPoolingTime);
+		}
+		return mPoolingTime;
+	}
+
+	/**
+	 * @return The pooling period currently used, in miliseconds.
+	 */
+	public long getPoolingTime(){
+		return mPoolingTime;
+	}
+
+	private boolean isBusyTime(){
+		if(mBusyWindowCount == 0){
+			return false;
+		}
+		long wallClock = System.currentTimeMillis();
+		long localTime = wallClock + TimeZone.getDefault().getOffset(wallClock);
+		int minute = (int)(((localTime % DAY) + DAY) % DAY / MINUTE);
+
+		for(int i=0; i<mBusyWindowCount; i++){
+			int start = mBusyWindows[2*i];
+			int end = mBusyWindows[2*i + 1];
+			boolean inside = start < end ? (minute >= start && minute < end) : (minute >= start || minute < end);
+			if(inside){
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,614 @@
+package com.uab.ofernandez.bridge.business;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.uab.ofernandez.bridge.api.IConstants;
+
+/**
+ * Asynchronous command channel over the bluetooth socket.
+ *
+ * The commands are queued and written by a dedicated writer thread, while a
+ * dedicated reader thread rebuilds the response frames and completes the
+ * matching {@link NFCCommandFuture}. The NFC module only handles one command
+ * at a time (a new command aborts the running one), so a single command is
+ * in flight on the link: the next queued command is written the moment the
+ * previous response is parsed, without any pause in between.
+ *
+ * The channel lives as long as the bluetooth connection, since the reader
+ * thread is only released when the socket is closed.
+ *
+ * Every command has two deadlines: the ACK, that the NFC module sends as
+ * soon as it receives the command, and the response. A missed deadline
+ * writes the command again, up to the maximum retries. A command never
+ * acknowledged means the link is dead: the channel is marked as stalled,
+ * which a {@link NFCConnectionSupervisor} turns into a reconnection. As the
+ * ACK comes within a round trip, the stall is found in a fraction of a
+ * second even while a long InAutoPoll is running.
+ *
+ * Instead of starting its own threads, the channel can also be driven by
+ * calling {@link #pump()} periodically from a shared thread pool. Both modes
+ * must not be mixed on the same channel.
+ */
+public final class NFCCommandChannel {
+
+	private static final int MAX_PENDING_COMMANDS = 16;
+	private static final int RING_BUFFER_SIZE = 1024;
+	private static final int ACK_LENGTH = 6;
+	private static final byte TFI_RESPONSE = (byte)0xD5;
+	private static final byte TFI_ERROR = 0x7F;
+	public static final long DEFAULT_ACK_TIMEOUT = 300;
+	public static final int DEFAULT_MAX_RETRIES = 1;
+
+	private final InputStream mInputStream;
+	private final OutputStream mOutputStream;
+	private final NFCReaderStats mStats;
+	private final NFCTrace mTrace;
+
+	private final ArrayBlockingQueue<NFCCommandFuture> mQueue =
+		new ArrayBlockingQueue<NFCCommandFuture>(MAX_PENDING_COMMANDS);
+	private final NFCFrameAssembler mAssembler = new NFCFrameAssembler(RING_BUFFER_SIZE);
+	/*
+	 * Responses are rebuilt as ACK + frame. The ACK is always the same,
+	 * so it is written once and the frames are copied after it.
+	 */
+	private final byte[] mFrameBuffer = new byte[NFCCommandFuture.MAX_RESPONSE_LENGTH];
+
+	//Command waiting for its response. Guarded by mLock.
+	private final Object mLock = new Object();
+	private NFCCommandFuture mInFlight;
+	private long mInFlightDeadline;
+	private long mAckDeadline;
+	private boolean mAcked;
+	//Times the command in flight was written again.
+	private int mRetries;
+	//Serializes the writes of the commands and of the abort ACK.
+	private final Object mWriteLock = new Object();
+
+	private volatile boolean mClosed = false;
+	private volatile boolean mStalled = false;
+	private volatile long mAckTimeout = DEFAULT_ACK_TIMEOUT;
+	private volatile int mMaxRetries = DEFAULT_MAX_RETRIES;
+	private Thread mWriterThread;
+	private Thread mReaderThread;
+
+	private final AtomicLong mStrayFrames = new AtomicLong();
+	//Checksum errors already counted. Only used by the thread that
+	//dispatches the frames: the reader thread, or the one pumping.
+	private long mCorruptedFrames = 0;
+	//Error that closed the channel, if any.
+	private volatile IOException mFailure;
+	//Last activity on the link, in miliseconds of NFCReaderSession.now().
+	private volatile long mLastWriteTime;
+	private volatile long mLastReceiveTime;
+
+	public NFCCommandChannel(InputStream inputStream, OutputStream outputStream){
+		this(inputStream, outputStream, new NFCReaderStats(), new NFCTrace());
+	}
+
+	/**
+	 * @param stats Where the bytes and the link errors are counted.
+	 * @param trace Where the commands and responses are traced.
+	 * 		Both can be shared with the previous channel of the same reader,
+	 * 		to keep the history after a reconnection.
+	 */
+	public NFCCommandChannel(InputStream inputStream, OutputStream outputStream, NFCReaderStats stats, NFCTrace trace){
+		mInputStream = inputStream;
+		mOutputStream = outputStream;
+		mStats = stats;
+		mTrace = trace;
+		mLastWriteTime = mLastReceiveTime = NFCReaderSession.now();
+		byte[] ack = NFCFrameHandler.NFC_ACK.getNFCCall();
+		System.arraycopy(ack, 0, mFrameBuffer, 0, ack.length);
+	}
+
+	/**
+	 * Starts the writer and reader threads.
+	 */
+	public synchronized void start(){
+		if(mWriterThread != null){
+			return;
+		}
+		mWriterThread = new Thread() {
+			public void run() {
+				writerLoop();
+			}
+		};
+		mWriterThread.setName("NFCCommandChannel-TX");
+		mReaderThread = new Thread() {
+			public void run() {
+				readerLoop();
+			}
+		};
+		mReaderThread.setName("NFCCommandChannel-RX");
+		mReaderThread.start();
+		mWriterThread.start();
+	}
+
+	/**
+	 * Makes all the progress possible without blocking: expires the command
+	 * in flight, writes the next queued command when the link is free and
+	 * dispatches the frames already received. Used when the channel threads
+	 * are not started.
+	 * @throws IOException If the socket failed. The channel is closed and
+	 * 		the pending commands are failed.
+	 */
+	public void pump() throws IOException{
+		if(mClosed){
+			throw new IOException("The command channel is closed!");
+		}
+		try {
+			boolean progress = true;
+			while(progress){
+				NFCCommandFuture expired = null;
+				NFCCommandFuture next = null;
+				synchronized (mLock) {
+					long now = System.nanoTime();
+					NFCCommandFuture missed = missedDeadline(now);
+					if(missed != null && missed == mInFlight){
+						next = missed;
+					}
+					else{
+						expired = missed;
+					}
+					if(mInFlight == null){
+						next = mQueue.poll();
+						if(next != null){
+							setInFlight(next, now);
+						}
+					}
+				}
+				if(expired != null){
+					expire(expired);
+				}
+				if(next != null){
+					writeCommand(next);
+				}
+				int numBytesRead = mAssembler.fill(mInputStream);
+				progress = numBytesRead > 0;
+				if(progress){
+					mLastReceiveTime = NFCReaderSession.now();
+					mStats.add(NFCReaderStats.COUNTER_BYTES_IN, numBytesRead);
+					dispatchFrames();
+				}
+			}
+		} catch (IOException e) {
+			mFailure = e;
+			mClosed = true;
+			failed();
+			failPending();
+			throw e;
+		}
+	}
+
+	/**
+	 * Sets the watchdog of the commands.
+	 * @param ackTimeout Maximum time for the NFC module to acknowledge a
+	 * 		command, in miliseconds, or 0 to only check the response deadline.
+	 * 		It must be longer than the link round trip.
+	 * @param maxRetries Times a command is written again when a deadline is
+	 * 		missed, before it expires.
+	 */
+	public void setWatchdog(long ackTimeout, int maxRetries){
+		if(ackTimeout < 0 || maxRetries < 0){
+			throw new IllegalArgumentException("Invalid watchdog: "+ackTimeout+"/"+maxRetries);
+		}
+		mAckTimeout = ackTimeout;
+		mMaxRetries = maxRetries;
+	}
+
+	/**
+	 * @return True if a command was never acknowledged by the NFC module,
+	 * 		even after the retries. The link is considered dead: the channel
+	 * 		goes on, but it should be replaced with a new connection.
+	 */
+	public boolean isStalled(){
+		return mStalled;
+	}
+
+	/**
+	 * @return True if a command is waiting for its response.
+	 */
+	public boolean isBusy(){
+		synchronized (mLock) {
+			return mInFlight != null || !mQueue.isEmpty();
+		}
+	}
+
+	/**
+	 * Queues a command. The same future can be submitted again once it is
+	 * completed.
+	 * @param command The command to send.
+	 * @return False if the channel is closed or too many commands are queued.
+	 */
+	public boolean submit(NFCCommandFuture command){
+		if(command == null || mClosed){
+			return false;
+		}
+		command.reset();
+		if(!mQueue.offer(command)){
+			return false;
+		}
+		synchronized (mLock) {
+			//wakes up the writer thread...
+			mLock.notifyAll();
+		}
+		if(mClosed){
+			//closed meanwhile... make sure nobody waits forever.
+			failPending();
+		}
+		return true;
+	}
+
+	/**
+	 * Sends any command and waits for its response. Only for a started
+	 * channel: a pumped channel must be pumped by somebody else meanwhile.
+	 * @param command The command code.
+	 * @param payload The command parameters. Can be null if length is 0.
+	 * @param offset Position of the parameters in the payload buffer.
+	 * @param length Number of parameters.
+	 * @param timeout Maximum time in milliseconds to wait for the response.
+	 * @return The response, also when it failed or timed out.
+	 * @throws IOException If the channel is closed or too many commands are queued.
+	 * @throws InterruptedException
+	 */
+	public NFCResponse transceive(int command, byte[] payload, int offset, int length, long timeout)
+	throws IOException, InterruptedException{
+		NFCCommandFuture future = new NFCCommandFuture(NFCFrameHandler.getCommand(command, payload, offset, length), timeout);
+		if(!submit(future)){
+			throw new IOException(mClosed ? "The command channel is closed!" : "Too many commands queued!");
+		}
+		future.await();
+		return NFCResponse.of(future);
+	}
+
+	/**
+	 * Cancels the command in flight and the queued ones, which complete
+	 * with {@link NFCCommandFuture#STATUS_CANCELLED}. An ACK frame is written
+	 * to the NFC module, which makes it abort the command it is running, so
+	 * a long InAutoPoll does not delay a stop. The channel stays open.
+	 * @return The number of commands cancelled.
+	 */
+	public int abort(){
+		ArrayList<NFCCommandFuture> cancelled = new ArrayList<NFCCommandFuture>();
+		NFCCommandFuture inFlight;
+		synchronized (mLock) {
+			inFlight = mInFlight;
+			mInFlight = null;
+			mQueue.drainTo(cancelled);
+			mLock.notifyAll();
+		}
+		if(inFlight != null){
+			if(!mClosed){
+				byte[] ack = NFCFrameHandler.NFC_ACK.getNFCCall();
+				try {
+					synchronized (mWriteLock) {
+						mOutputStream.write(ack, 0, ack.length);
+						mOutputStream.flush();
+					}
+					mStats.add(NFCReaderStats.COUNTER_BYTES_OUT, ack.length);
+				} catch (IOException e) {
+					//the reader or the writer finds the broken link...
+				}
+			}
+			mTrace.record(NFCTrace.EVENT_RX, inFlight.getCommand().getCommandCode(), NFCCommandFuture.STATUS_CANCELLED, 0);
+			inFlight.complete(NFCCommandFuture.STATUS_CANCELLED, null, 0, 0);
+		}
+		for(NFCCommandFuture command : cancelled){
+			command.complete(NFCCommandFuture.STATUS_CANCELLED, null, 0, 0);
+		}
+		return cancelled.size() + (inFlight == null ? 0 : 1);
+	}
+
+	/**
+	 * Stops the channel threads and fails all the pending commands. The
+	 * reader thread finishes when the bluetooth socket is closed.
+	 */
+	public void close(){
+		mClosed = true;
+		Thread writer = mWriterThread;
+		if(writer != null){
+			writer.interrupt();
+		}
+		failPending();
+	}
+
+	public boolean isClosed(){
+		return mClosed;
+	}
+
+	/**
+	 * @return The number of response frames received while no command was
+	 * 		waiting for them, or not matching the command in flight.
+	 */
+	public long getStrayFrames(){
+		return mStrayFrames.get();
+	}
+
+	/**
+	 * @return The socket error that closed the channel, or null if the
+	 * 		channel is open or was closed by {@link #close()}.
+	 */
+	public IOException getFailure(){
+		return mFailure;
+	}
+
+	/**
+	 * @return When a command was last written, in miliseconds of
+	 * 		{@link NFCReaderSession#now()}.
+	 */
+	public long getLastWriteTime(){
+		return mLastWriteTime;
+	}
+
+	/**
+	 * @return When data was last received, in miliseconds of
+	 * 		{@link NFCReaderSession#now()}.
+	 */
+	public long getLastReceiveTime(){
+		return mLastReceiveTime;
+	}
+
+	public NFCFrameAssembler getAssembler(){
+		return mAssembler;
+	}
+
+	public NFCReaderStats getStats(){
+		return mStats;
+	}
+
+	public NFCTrace getTrace(){
+		return mTrace;
+	}
+
+	private void writerLoop(){
+		try {
+			while(!mClosed){
+				/*
+				 * Waits until the command in flight is answered or misses a
+				 * deadline, then takes the next command. It is set in flight
+				 * holding mLock, so an abort always finds it.
+				 */
+				NFCCommandFuture missed = null;
+				NFCCommandFuture command = null;
+				boolean retry = false;
+				synchronized (mLock) {
+					while(command == null){
+						long now = System.nanoTime();
+						if(mInFlight != null){
+							missed = missedDeadline(now);
+							if(missed != null){
+								retry = missed == mInFlight;
+								break;
+							}
+							mLock.wait(nextDeadline(now) / 1000000L + 1);
+						}
+						else{
+							command = mQueue.poll();
+							if(command != null){
+								setInFlight(command, now);
+							}
+							else{
+								mLock.wait();
+							}
+						}
+					}
+				}
+				if(retry){
+					writeCommand(missed);
+					continue;
+				}
+				if(missed != null){
+					expire(missed);
+					continue;
+				}
+				writeCommand(command);
+			}
+		} catch (InterruptedException e) {
+			//channel closed...
+		} catch (IOException e) {
+			//the pooling logs it when its command fails...
+			mFailure = e;
+			failed();
+		}
+		mClosed = true;
+		failPending();
+	}
+
+	/*
+	 * Writes the command in flight. Skipped if it was aborted meanwhile: an
+	 * abort that finds the command still in flight writes its ACK after it.
+	 */
+	private void writeCommand(NFCCommandFuture command) throws IOException{
+		byte[] frame = command.getCommand().getNFCCall();
+		synchronized (mWriteLock) {
+			synchronized (mLock) {
+				if(mInFlight != command){
+					return;
+				}
+			}
+			command.markSent(System.nanoTime());
+			mOutputStream.write(frame, 0, frame.length);
+			mOutputStream.flush();
+		}
+		mLastWriteTime = NFCReaderSession.now();
+		mStats.add(NFCReaderStats.COUNTER_BYTES_OUT, frame.length);
+		mTrace.record(NFCTrace.EVENT_TX, command.getCommand().getCommandCode(), 0, frame.length);
+	}
+
+	//Called holding mLock.
+	private void setInFlight(NFCCommandFuture command, long now){
+		mInFlight = command;
+		mRetries = 0;
+		startDeadlines(command, now);
+	}
+
+	//Called holding mLock.
+	private void startDeadlines(NFCCommandFuture command, long now){
+		mInFlightDeadline = now + command.getTimeout()*1000000L;
+		mAckDeadline = now + mAckTimeout*1000000L;
+		mAcked = false;
+	}
+
+	/**
+	 * @return Nanoseconds until the next deadline of the command in flight.
+	 * 		Called holding mLock.
+	 */
+	private long nextDeadline(long now){
+		long deadline = mInFlightDeadline;
+		if(!mAcked && mAckTimeout > 0 && mAckDeadline - deadline < 0){
+			deadline = mAckDeadline;
+		}
+		return Math.max(0, deadline - now);
+	}
+
+	/**
+	 * Checks the deadlines of the command in flight. Called holding mLock.
+	 * @return The command in flight if it must be written again, the command
+	 * 		that expired, no longer in flight, or null if no deadline was missed.
+	 */
+	private NFCCommandFuture missedDeadline(long now){
+		NFCCommandFuture command = mInFlight;
+		if(command == null){
+			return null;
+		}
+		boolean ackMissed = !mAcked && mAckTimeout > 0 && now - mAckDeadline >= 0;
+		if(!ackMissed && now - mInFlightDeadline < 0){
+			return null;
+		}
+		if(mRetries < mMaxRetries && !mClosed){
+			mRetries++;
+			mStats.increment(NFCReaderStats.COUNTER_RETRIES);
+			startDeadlines(command, now);
+			return command;
+		}
+		mInFlight = null;
+		if(!mAcked && !mStalled){
+			mStalled = true;
+			mStats.increment(NFCReaderStats.COUNTER_STALLS);
+			NFCLog.w(IConstants.MY_TAG, "*** NFCCommandChannel - Command 0x"+Integer.toHexString(command.getCommand().getCommandCode())
+					+" not acknowledged after "+(mRetries+1)+" attempts, the link is stalled");
+		}
+		return command;
+	}
+
+	private void expire(NFCCommandFuture command){
+		mStats.increment(NFCReaderStats.COUNTER_SHORT_READS);
+		mTrace.record(NFCTrace.EVENT_RX, command.getCommand().getCommandCode(), NFCCommandFuture.STATUS_TIMEOUT, 0);
+		command.complete(NFCCommandFuture.STATUS_TIMEOUT, null, 0, 0);
+	}
+
+	private void failed(){
+		mStats.increment(NFCReaderStats.COUNTER_IO_ERRORS);
+		mTrace.record(NFCTrace.EVENT_IO_ERROR, -1, 0, 0);
+	}
+
+	private void readerLoop(){
+		try {
+			while(!mClosed){
+				mStats.add(NFCReaderStats.COUNTER_BYTES_IN, mAssembler.read(mInputStream));
+				mLastReceiveTime = NFCReaderSession.now();
+				dispatchFrames();
+			}
+		} catch (IOException e) {
+			if(!mClosed){
+				mFailure = e;
+				failed();
+			}
+		}
+		mClosed = true;
+		Thread writer = mWriterThread;
+		if(writer != null){
+			writer.interrupt();
+		}
+		failPending();
+	}
+
+	/**
+	 * Completes the command in flight with the received frames.
+	 */
+	private void dispatchFrames(){
+		long corrupted = mAssembler.getCorruptedFrames();
+		mStats.add(NFCReaderStats.COUNTER_CHECKSUM_ERRORS, corrupted - mCorruptedFrames);
+		mCorruptedFrames = corrupted;
+
+		int frameLength;
+		while((frameLength = mAssembler.nextFrame(mFrameBuffer, ACK_LENGTH)) > 0){
+			int type = mAssembler.getLastFrameType();
+			if(type == NFCFrameAssembler.FRAME_ACK){
+				//the response frame comes next...
+				synchronized (mLock) {
+					mAcked = mInFlight != null;
+				}
+				continue;
+			}
+
+			NFCCommandFuture command;
+			int status;
+			synchronized (mLock) {
+				command = mInFlight;
+				status = getResponseStatus(command, type);
+				if(status == NFCCommandFuture.STATUS_PENDING){
+					mStrayFrames.incrementAndGet();
+					mTrace.record(NFCTrace.EVENT_STRAY, -1, 0, mFrameBuffer, ACK_LENGTH, frameLength);
+					continue;
+				}
+				//traced before the link is free for the next command...
+				mTrace.record(NFCTrace.EVENT_RX, command.getCommand().getCommandCode(), status, mFrameBuffer, ACK_LENGTH, frameLength);
+				mInFlight = null;
+				mLock.notifyAll();
+			}
+			if(status == NFCCommandFuture.STATUS_ERROR_FRAME){
+				mStats.increment(NFCReaderStats.COUNTER_ERROR_FRAMES);
+			}
+			if(status == NFCCommandFuture.STATUS_NACK){
+				mStats.increment(NFCReaderStats.COUNTER_NACKS);
+				command.complete(status, mFrameBuffer, ACK_LENGTH, frameLength);
+			}
+			else{
+				command.complete(status, mFrameBuffer, 0, ACK_LENGTH + frameLength);
+			}
+		}
+	}
+
+	/**
+	 * @return The status for the command in flight after receiving the last
+	 * 		frame, or STATUS_PENDING if the frame does not belong to it.
+	 */
+	private int getResponseStatus(NFCCommandFuture command, int frameType){
+		if(command == null){
+			return NFCCommandFuture.STATUS_PENDING;
+		}
+		if(frameType == NFCFrameAssembler.FRAME_NACK){
+			return NFCCommandFuture.STATUS_NACK;
+		}
+		byte tfi = mFrameBuffer[ACK_LENGTH + 5];
+		if(tfi == TFI_ERROR){
+			return NFCCommandFuture.STATUS_ERROR_FRAME;
+		}
+		int code = command.getCommand().getCommandCode();
+		if(tfi == TFI_RESPONSE && (code < 0 || (mFrameBuffer[ACK_LENGTH + 6] & 0xFF) == code + 1)){
+			return NFCCommandFuture.STATUS_DONE;
+		}
+		return NFCCommandFuture.STATUS_PENDING;
+	}
+
+	private void failPending(){
+		NFCCommandFuture command;
+		synchronized (mLock) {
+			command = mInFlight;
+			mInFlight = null;
+			mLock.notifyAll();
+		}
+		if(command != null){
+			command.complete(NFCCommandFuture.STATUS_IO_ERROR, null, 0, 0);
+		}
+		while((command = mQueue.poll()) != null){
+			command.complete(NFCCommandFuture.STATUS_IO_ERROR, null, 0, 0);
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package com.uab.ofernandez.bridge.business;
+
+/**
+ * A command sent through a {@link NFCCommandChannel} and its response.
+ *
+ * The response buffer is allocated once, so the same instance can be
+ * submitted again once it is completed. This keeps the pooling cycles free
+ * of garbage.
+ */
+public final class NFCCommandFuture {
+
+	/**************************************************************************
+	 * Command status
+	 **************************************************************************/
+	public static final int STATUS_PENDING = 0;
+	public static final int STATUS_DONE = 1;
+	public static final int STATUS_TIMEOUT = 2;
+	//The NFC module answered with a NACK frame.
+	public static final int STATUS_NACK = 3;
+	//The NFC module answered with an application error frame.
+	public static final int STATUS_ERROR_FRAME = 4;
+	//The channel failed or was closed before the response.
+	public static final int STATUS_IO_ERROR = 5;
+	//The command was cancelled by NFCCommandChannel.abort().
+	public static final int STATUS_CANCELLED = 6;
+
+	/*
+	 * ACK + longest normal information frame.
+	 */
+	public static final int MAX_RESPONSE_LENGTH = 6 + 255 + 7;
+
+	private volatile NFCFrameHandler mCommand;
+	private final long mTimeout;
+	private final NFCCommandListener mListener;
+
+	private final byte[] mResponse = new byte[MAX_RESPONSE_LENGTH];
+	private int mResponseLength = 0;
+	private int mStatus = STATUS_PENDING;
+	//System.nanoTime() when the command was written and when it completed.
+	private long mSentTime = 0;
+	private long mCompletedTime = 0;
+
+	/**
+	 * @param command The command to send.
+	 * @param timeout Maximum time in milliseconds to wait for the response,
+	 * 		from the moment the command is written to the socket.
+	 */
+	public NFCCommandFuture(NFCFrameHandler command, long timeout){
+		this(command, timeout, null);
+	}
+
+	/**
+	 * @param command The command to send.
+	 * @param timeout Maximum time in milliseconds to wait for the response,
+	 * 		from the moment the command is written to the socket.
+	 * @param listener Notified when the command completes. Can be null.
+	 */
+	public NFCCommandFuture(NFCFrameHandler command, long timeout, NFCCommandListener listener){
+		mCommand = command;
+		mTimeout = timeout;
+		mListener = listener;
+	}
+
+	public NFCFrameHandler getCommand(){
+		return mCommand;
+	}
+
+	/**
+	 * Changes the command written by the next submit, so the same instance
+	 * can send a sequence of commands (for instance, the reads of the pages
+	 * of a tag). Must not be called while the command is queued or in flight.
+	 * @param command The command to send.
+	 */
+	public void setCommand(NFCFrameHandler command){
+		mCommand = command;
+	}
+
+	public long getTimeout(){
+		return mTimeout;
+	}
+
+	/**
+	 * Waits until the command completes.
+	 * @return The final status of the command.
+	 * @throws InterruptedException
+	 */
+	public synchronized int await() throws InterruptedException{
+		while(mStatus == STATUS_PENDING){
+			wait();
+		}
+		return mStatus;
+	}
+
+	public synchronized boolean isDone(){
+		return mStatus != STATUS_PENDING;
+	}
+
+	public synchronized int getStatus(){
+		return mStatus;
+	}
+
+	/**
+	 * @return The response buffer: the ACK followed by the response frame, as
+	 * 		expected by {@link NFCFrameHandler}. Only valid when the status is
+	 * 		{@link #STATUS_DONE}.
+	 */
+	public byte[] getResponse(){
+		return mResponse;
+	}
+
+	public synchronized int getResponseLength(){
+		return mResponseLength;
+	}
+
+	/**
+	 * @return The time between the command written to the socket and its
+	 * 		completion, in nanoseconds, or -1 if it was never written.
+	 */
+	public synchronized long getLatency(){
+		if(mSentTime == 0 || mStatus == STATUS_PENDING){
+			return -1;
+		}
+		return mCompletedTime - mSentTime;
+	}
+
+	/**
+	 * @return The System.nanoTime() of the completion.
+	 */
+	public synchronized long getCompletedTime(){
+		return mCompletedTime;
+	}
+
+	/**
+	 * Prepares the command to be submitted again.
+	 */
+	synchronized void reset(){
+		mStatus = STATUS_PENDING;
+		mResponseLength = 0;
+		mSentTime = 0;
+	}
+
+	synchronized void markSent(long now){
+		mSentTime = now;
+	}
+
+	void complete(int status, byte[] buffer, int offset, int length){
+		synchronized (this) {
+			if(mStatus != STATUS_PENDING){
+				return;
+			}
+			if(buffer != null && length > 0){
+				mResponseLength = Math.min(length, mResponse.length);
+				System.arraycopy(buffer, offset, mResponse, 0, mResponseLength);
+			}
+			mStatus = status;
+			mCompletedTime = System.nanoTime();
+			notifyAll();
+		}
+		if(mListener != null){
+			mListener.onCommandCompleted(this);
+		}
+	}
+}
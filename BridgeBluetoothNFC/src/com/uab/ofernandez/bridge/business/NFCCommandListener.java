@@ -0,0 +1,16 @@
+package com.uab.ofernandez.bridge.business;
+
+/**
+ * Callback for the completion of a command sent through a
+ * {@link NFCCommandChannel}.
+ */
+public interface NFCCommandListener {
+
+	/**
+	 * Called from the channel reader (or writer, on timeout) thread when the
+	 * command completes. Implementations must return quickly.
+	 * @param command The completed command. Check its status before using
+	 * 		the response.
+	 */
+	public void onCommandCompleted(NFCCommandFuture command);
+}
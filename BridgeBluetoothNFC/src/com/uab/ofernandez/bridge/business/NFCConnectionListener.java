@@ -0,0 +1,16 @@
+package com.uab.ofernandez.bridge.business;
+
+/**
+ * Callback for the connection state changes of a reader, see
+ * {@link NFCConnectionSupervisor}.
+ */
+public interface NFCConnectionListener {
+
+	/**
+	 * Called from the supervisor thread. Implementations must return quickly.
+	 * @param state One of the NFCConnectionSupervisor.STATE_* constants.
+	 * @param channel The command channel of the new connection when the state
+	 * 		is STATE_CONNECTED, null otherwise.
+	 */
+	public void onConnectionStateChanged(int state, NFCCommandChannel channel);
+}
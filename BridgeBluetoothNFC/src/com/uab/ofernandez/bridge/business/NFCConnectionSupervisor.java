@@ -0,0 +1,336 @@
+package com.uab.ofernandez.bridge.business;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.uab.ofernandez.bridge.api.IConstants;
+
+/**
+ * Keeps the connection with a reader alive.
+ *
+ * Once connected, a supervisor thread watches the command channel. When the
+ * link fails, when the channel finds a command never acknowledged by the
+ * NFC module, or when commands keep being written without any answer for
+ * longer than the stall timeout, the link is closed and opened again with
+ * the same {@link NFCLinkFactory}, waiting between the attempts with a
+ * jittered exponential backoff. Every new connection gets a new command
+ * channel, handed to the listeners with the STATE_CONNECTED notification so
+ * they can resume the pooling on it.
+ */
+public final class NFCConnectionSupervisor {
+
+	/**************************************************************************
+	 * Connection states
+	 **************************************************************************/
+	public static final int STATE_DISCONNECTED = 0;
+	public static final int STATE_CONNECTING = 1;
+	public static final int STATE_CONNECTED = 2;
+	//The link was lost, waiting before the next connection attempt.
+	public static final int STATE_RECONNECTING = 3;
+	public static final int STATE_CLOSED = 4;
+
+	private static final long DEFAULT_INITIAL_BACKOFF = 500;
+	private static final long DEFAULT_MAX_BACKOFF = 30000;
+	private static final long DEFAULT_STALL_TIMEOUT = 10000;
+	//How often the channel is checked. A stalled link is replaced within a second.
+	private static final long CHECK_PERIOD = 100;
+	//The backoff restarts after a connection lasting this long.
+	private static final long STABLE_CONNECTION = 60000;
+
+	private final NFCLinkFactory mFactory;
+	private final NFCReaderStats mStats;
+	private final NFCTrace mTrace;
+	private final CopyOnWriteArrayList<NFCConnectionListener> mListeners = new CopyOnWriteArrayList<NFCConnectionListener>();
+	private final Random mRandom = new Random();
+
+	private long mInitialBackoff = DEFAULT_INITIAL_BACKOFF;
+	private long mMaxBackoff = DEFAULT_MAX_BACKOFF;
+	private long mStallTimeout = DEFAULT_STALL_TIMEOUT;
+	private long mAckTimeout = NFCCommandChannel.DEFAULT_ACK_TIMEOUT;
+	private int mMaxRetries = NFCCommandChannel.DEFAULT_MAX_RETRIES;
+
+	//Guarded by this.
+	private NFCLink mLink;
+	private NFCCommandChannel mChannel;
+	private Thread mThread;
+	private volatile int mState = STATE_DISCONNECTED;
+	private volatile boolean mClosed = false;
+	private volatile long mReconnections = 0;
+
+	/**
+	 * @param factory Opens the links to the reader.
+	 * @param stats Shared by the command channels of all the connections.
+	 * @param trace Shared by the command channels of all the connections.
+	 */
+	public NFCConnectionSupervisor(NFCLinkFactory factory, NFCReaderStats stats, NFCTrace trace){
+		if(factory == null || stats == null || trace == null){
+			throw new IllegalArgumentException("The supervisor needs a link factory, stats and trace");
+		}
+		mFactory = factory;
+		mStats = stats;
+		mTrace = trace;
+	}
+
+	/**
+	 * Sets the waits between the connection attempts. Each failed attempt
+	 * doubles the wait, up to the maximum, and a random part of up to half the
+	 * wait is removed so several readers do not retry in lockstep.
+	 * @param initialBackoff Wait before the first attempt, in miliseconds.
+	 * @param maxBackoff Longest wait, in miliseconds.
+	 */
+	public synchronized NFCConnectionSupervisor setBackoff(long initialBackoff, long maxBackoff){
+		if(initialBackoff <= 0 || maxBackoff < initialBackoff){
+			throw new IllegalArgumentException("Invalid backoff: "+initialBackoff+"/"+maxBackoff);
+		}
+		mInitialBackoff = initialBackoff;
+		mMaxBackoff = maxBackoff;
+		return this;
+	}
+
+	/**
+	 * @param stallTimeout How long commands can be written without receiving
+	 * 		anything before the link is considered lost, in miliseconds. It
+	 * 		must be longer than the longest command deadline, or 0 to disable
+	 * 		the stall detection.
+	 */
+	public synchronized NFCConnectionSupervisor setStallTimeout(long stallTimeout){
+		mStallTimeout = stallTimeout;
+		return this;
+	}
+
+	/**
+	 * Sets the watchdog of the command channels of the next connections,
+	 * see {@link NFCCommandChannel#setWatchdog(long, int)}.
+	 */
+	public synchronized NFCConnectionSupervisor setWatchdog(long ackTimeout, int maxRetries){
+		if(ackTimeout < 0 || maxRetries < 0){
+			throw new IllegalArgumentException("Invalid watchdog: "+ackTimeout+"/"+maxRetries);
+		}
+		mAckTimeout = ackTimeout;
+		mMaxRetries = maxRetries;
+		return this;
+	}
+
+	public void addListener(NFCConnectionListener listener){
+		if(listener != null){
+			mListeners.addIfAbsent(listener);
+		}
+	}
+
+	public void removeListener(NFCConnectionListener listener){
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * Opens the first connection and starts watching it. Fails without
+	 * retrying, so a wrong configuration is reported to the caller at once.
+	 * @return The command channel of the connection, already started.
+	 * @throws IOException If the reader could not be reached.
+	 */
+	public synchronized NFCCommandChannel connect() throws IOException{
+		if(mClosed){
+			throw new IOException("The connection supervisor is closed!");
+		}
+		if(mThread != null){
+			return mChannel;
+		}
+		setState(STATE_CONNECTING, null);
+		try {
+			install(mFactory.open());
+		} catch (IOException e) {
+			setState(STATE_DISCONNECTED, null);
+			throw e;
+		}
+		mThread = new Thread() {
+			public void run() {
+				superviseLoop();
+			}
+		};
+		mThread.setName("NFCConnectionSupervisor");
+		mThread.setDaemon(true);
+		mThread.start();
+		setState(STATE_CONNECTED, mChannel);
+		return mChannel;
+	}
+
+	/**
+	 * Stops watching the connection and closes it.
+	 */
+	public void close(){
+		Thread thread;
+		synchronized (this) {
+			mClosed = true;
+			thread = mThread;
+			closeLink();
+		}
+		if(thread != null){
+			thread.interrupt();
+			if(thread != Thread.currentThread()){
+				try {
+					thread.join(CHECK_PERIOD * 4);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		setState(STATE_CLOSED, null);
+	}
+
+	public int getState(){
+		return mState;
+	}
+
+	/**
+	 * @return The command channel of the current connection, or null while
+	 * 		disconnected.
+	 */
+	public synchronized NFCCommandChannel getChannel(){
+		return mState == STATE_CONNECTED ? mChannel : null;
+	}
+
+	/**
+	 * @return The number of connections opened again after a link loss.
+	 */
+	public long getReconnections(){
+		return mReconnections;
+	}
+
+	private void superviseLoop(){
+		int attempt = 0;
+		long connectedAt = NFCReaderSession.now();
+		try {
+			while(!mClosed){
+				NFCCommandChannel channel;
+				synchronized (this) {
+					channel = mChannel;
+				}
+				if(!isLost(channel)){
+					Thread.sleep(CHECK_PERIOD);
+					continue;
+				}
+
+				//the link is lost... reconnect until it works.
+				synchronized (this) {
+					if(mClosed){
+						break;
+					}
+					closeLink();
+				}
+				if(NFCReaderSession.now() - connectedAt >= STABLE_CONNECTION){
+					attempt = 0;
+				}
+				while(!mClosed){
+					setState(STATE_RECONNECTING, null);
+					Thread.sleep(backoff(attempt++));
+					setState(STATE_CONNECTING, null);
+					NFCLink link;
+					try {
+						//without the lock: the connection can take seconds...
+						link = mFactory.open();
+					} catch (IOException e) {
+						NFCLog.w(IConstants.MY_TAG, "*** NFCConnectionSupervisor - Reconnection attempt "+attempt+" failed: "+e.getMessage());
+						continue;
+					}
+					synchronized (this) {
+						if(mClosed){
+							closeQuietly(link);
+							break;
+						}
+						try {
+							install(link);
+						} catch (IOException e) {
+							NFCLog.w(IConstants.MY_TAG, "*** NFCConnectionSupervisor - Reconnection attempt "+attempt+" failed: "+e.getMessage());
+							continue;
+						}
+						channel = mChannel;
+					}
+					mReconnections++;
+					connectedAt = NFCReaderSession.now();
+					NFCLog.i(IConstants.MY_TAG, "*** NFCConnectionSupervisor - Reconnected after "+attempt+" attempts");
+					setState(STATE_CONNECTED, channel);
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			//closed...
+		}
+	}
+
+	/**
+	 * @return True if the channel failed or stalled.
+	 */
+	private boolean isLost(NFCCommandChannel channel){
+		if(channel == null || channel.isClosed()){
+			return true;
+		}
+		if(channel.isStalled()){
+			NFCLog.w(IConstants.MY_TAG, "*** NFCConnectionSupervisor - The NFC module stopped answering, the link is stalled");
+			return true;
+		}
+		long stallTimeout;
+		synchronized (this) {
+			stallTimeout = mStallTimeout;
+		}
+		if(stallTimeout > 0 && channel.getLastWriteTime() - channel.getLastReceiveTime() > stallTimeout){
+			NFCLog.w(IConstants.MY_TAG, "*** NFCConnectionSupervisor - Nothing received for "
+					+(channel.getLastWriteTime() - channel.getLastReceiveTime())+" ms, the link is stalled");
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return The wait before an attempt: the exponential backoff minus a
+	 * 		random part of up to its half.
+	 */
+	private synchronized long backoff(int attempt){
+		long delay = Math.min(mMaxBackoff, mInitialBackoff << Math.min(attempt, 20));
+		return delay - (long)(mRandom.nextDouble() * delay / 2);
+	}
+
+	//Called holding the lock.
+	private void install(NFCLink link) throws IOException{
+		NFCCommandChannel channel;
+		try {
+			channel = new NFCCommandChannel(link.getInputStream(), link.getOutputStream(), mStats, mTrace);
+		} catch (IOException e) {
+			closeQuietly(link);
+			throw e;
+		}
+		channel.setWatchdog(mAckTimeout, mMaxRetries);
+		channel.start();
+		mLink = link;
+		mChannel = channel;
+	}
+
+	//Called holding the lock.
+	private void closeLink(){
+		if(mChannel != null){
+			mChannel.close();
+		}
+		if(mLink != null){
+			//releases the channel reader thread...
+			closeQuietly(mLink);
+			mLink = null;
+		}
+	}
+
+	private static void closeQuietly(NFCLink link){
+		try {
+			link.close();
+		} catch (IOException e) {
+			NFCLog.w(IConstants.MY_TAG, "*** NFCConnectionSupervisor - Error closing the link: "+e.getMessage());
+		}
+	}
+
+	private void setState(int state, NFCCommandChannel channel){
+		if(mState == STATE_CLOSED || (mClosed && state != STATE_CLOSED)){
+			return;
+		}
+		mState = state;
+		for(NFCConnectionListener listener : mListeners){
+			listener.onConnectionStateChanged(state, channel);
+		}
+	}
+}
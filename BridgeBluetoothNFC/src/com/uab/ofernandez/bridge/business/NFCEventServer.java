@@ -0,0 +1,500 @@
+package com.uab.ofernandez.bridge.business;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.uab.ofernandez.bridge.api.IConstants;
+
+/**
+ * TCP server streaming the detected tags to any number of subscribers, for
+ * instance a back-office collector or the kiosk software, without an
+ * Android application in between.
+ *
+ * It is added as a {@link NFCTagListener} to a dispatcher. Every batch of
+ * events is encoded once, and queued to every client. A single thread
+ * serves all the clients with a selector, writing all the queued frames of
+ * a client in one gathering write. Each client has a bounded buffer: when a
+ * client does not read fast enough it is disconnected, or its oldest frames
+ * are dropped (conflated), so it never slows down the pooling. The clients
+ * find the frames lost from the gaps in the sequence numbers.
+ *
+ * Frames, big endian, each one prefixed by its length:
+ * <pre>
+ * u16 length of the rest of the frame
+ * u8  type: 0 hello, 1 tag event
+ * hello:  u8 protocol version, u64 sequence of the next event
+ * event:  u64 sequence, u64 timestamp (ms), u8 access, u8 event type
+ *         (NFCTagEvent.TYPE_*), u32 dwell time (ms), u8 card type,
+ *         u8 UID length, UID, u8 reader id length, reader id (UTF-8),
+ *         u16 NDEF message length, NDEF message
+ * </pre>
+ * The clients may send nothing: the data received is discarded.
+ *
+ * The application needs the android.permission.INTERNET permission.
+ */
+public final class NFCEventServer implements NFCTagListener {
+
+	/**************************************************************************
+	 * Slow clients policies
+	 **************************************************************************/
+	//The client is disconnected when its buffer is full.
+	public static final int POLICY_DISCONNECT = 0;
+	//The oldest frames not being written are dropped.
+	public static final int POLICY_CONFLATE = 1;
+
+	/**************************************************************************
+	 * Frames
+	 **************************************************************************/
+	public static final int FRAME_HELLO = 0;
+	public static final int FRAME_TAG_EVENT = 1;
+	public static final int PROTOCOL_VERSION = 2;
+	private static final int HELLO_LENGTH = 2 + 1 + 1 + 8;
+	//Length prefix, type, sequence, timestamp, access, event type, dwell time, card type,
+	//lengths of UID, reader and NDEF.
+	private static final int EVENT_HEADER_LENGTH = 2 + 1 + 8 + 8 + 1 + 1 + 4 + 1 + 1 + 1 + 2;
+	private static final int MAX_READER_ID_BYTES = 0xFF;
+
+	public static final int DEFAULT_CLIENT_BUFFER = 64 * 1024;
+	//Frames written by each gathering write.
+	private static final int GATHER_SIZE = 64;
+	private static final int READ_BUFFER_SIZE = 512;
+	//Maximum time to wait for the server thread to finish, in miliseconds.
+	private static final long CLOSE_TIMEOUT = 1000;
+
+	private final InetSocketAddress mAddress;
+	private final int mClientBuffer;
+	private final int mPolicy;
+
+	private final CopyOnWriteArrayList<Client> mClients = new CopyOnWriteArrayList<Client>();
+	private final AtomicBoolean mWakeupPending = new AtomicBoolean();
+	private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private Selector mSelector;
+	private ServerSocketChannel mServerChannel;
+	private Thread mThread;
+	private volatile boolean mClosed = false;
+
+	//Only written by the dispatcher thread.
+	private volatile long mSequence = 0;
+	//Only used by the dispatcher thread.
+	private String mLastReaderId;
+	private byte[] mLastReaderBytes = new byte[0];
+
+	private final AtomicLong mEventsQueued = new AtomicLong();
+	private final AtomicLong mEventsDropped = new AtomicLong();
+	private final AtomicLong mClientsDropped = new AtomicLong();
+
+	/**
+	 * @param address The address to listen on, for instance the loopback
+	 * 		address to serve only the local applications. Port 0 takes any free
+	 * 		port, see {@link #getPort()}.
+	 * @param clientBuffer Maximum number of bytes queued for each client.
+	 * @param policy What is done with the clients that fill their buffer,
+	 * 		{@link #POLICY_DISCONNECT} or {@link #POLICY_CONFLATE}.
+	 */
+	public NFCEventServer(InetSocketAddress address, int clientBuffer, int policy){
+		if(clientBuffer <= 0 || (policy != POLICY_DISCONNECT && policy != POLICY_CONFLATE)){
+			throw new IllegalArgumentException("Invalid client buffer or policy: "+clientBuffer+"/"+policy);
+		}
+		mAddress = address;
+		mClientBuffer = clientBuffer;
+		mPolicy = policy;
+	}
+
+	/**
+	 * Binds the address and starts the server thread.
+	 * @throws IOException If the address could not be bound.
+	 */
+	public synchronized void start() throws IOException{
+		if(mThread != null){
+			return;
+		}
+		mSelector = Selector.open();
+		try {
+			mServerChannel = ServerSocketChannel.open();
+			mServerChannel.socket().setReuseAddress(true);
+			mServerChannel.socket().bind(mAddress);
+			mServerChannel.configureBlocking(false);
+			mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			closeQuietly();
+			throw e;
+		}
+		mThread = new Thread() {
+			public void run() {
+				serve();
+			}
+		};
+		mThread.setName("NFCEventServer");
+		mThread.setDaemon(true);
+		mThread.start();
+		NFCLog.i(IConstants.MY_TAG, "*** NFCEventServer - Listening on "+mServerChannel.socket().getLocalSocketAddress());
+	}
+
+	/**
+	 * Disconnects the clients and stops the server thread.
+	 */
+	public void close(){
+		Thread thread;
+		synchronized (this) {
+			mClosed = true;
+			thread = mThread;
+			if(mSelector != null){
+				mSelector.wakeup();
+			}
+		}
+		if(thread != null && thread != Thread.currentThread()){
+			try {
+				thread.join(CLOSE_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return The port listened on, or -1 if the server is not started.
+	 */
+	public synchronized int getPort(){
+		return mServerChannel == null ? -1 : mServerChannel.socket().getLocalPort();
+	}
+
+	public int getClientCount(){
+		return mClients.size();
+	}
+
+	/**
+	 * @return The number of events queued to the clients, counting each
+	 * 		event once.
+	 */
+	public long getEventsQueued(){
+		return mEventsQueued.get();
+	}
+
+	/**
+	 * @return The number of events dropped for the slow clients, counting
+	 * 		each client.
+	 */
+	public long getEventsDropped(){
+		return mEventsDropped.get();
+	}
+
+	/**
+	 * @return The number of clients disconnected because they were too slow.
+	 */
+	public long getClientsDropped(){
+		return mClientsDropped.get();
+	}
+
+	@Override
+	public void onNFCTags(NFCTagEvent[] events, int count) {
+		if(mClosed || count == 0){
+			return;
+		}
+		ByteBuffer frames = encode(events, count);
+		mEventsQueued.addAndGet(count);
+		if(mClients.isEmpty()){
+			return;
+		}
+		boolean queued = false;
+		for(Client client : mClients){
+			queued |= client.offer(frames.duplicate(), count);
+		}
+		if(queued && mWakeupPending.compareAndSet(false, true)){
+			mSelector.wakeup();
+		}
+	}
+
+	/**
+	 * @return The frames of a batch of events, ready to be written.
+	 */
+	private ByteBuffer encode(NFCTagEvent[] events, int count){
+		int length = 0;
+		for(int i=0; i<count; i++){
+			NFCNdefMessage message = events[i].getNdefMessage();
+			length += EVENT_HEADER_LENGTH + events[i].getTagId().length() + readerBytes(events[i].getReaderId()).length
+				+ (message == null ? 0 : message.getLength());
+		}
+		ByteBuffer frames = ByteBuffer.allocate(length);
+		long sequence = mSequence;
+		for(int i=0; i<count; i++){
+			NFCTagEvent event = events[i];
+			NFCTagId tagId = event.getTagId();
+			byte[] reader = readerBytes(event.getReaderId());
+			NFCNdefMessage message = event.getNdefMessage();
+			byte[] ndef = message == null ? null : message.getBytes();
+			int ndefLength = ndef == null ? 0 : ndef.length;
+			frames.putShort((short)(EVENT_HEADER_LENGTH - 2 + tagId.length() + reader.length + ndefLength));
+			frames.put((byte)FRAME_TAG_EVENT);
+			frames.putLong(sequence++);
+			frames.putLong(event.getTimestamp());
+			frames.put((byte)event.getAccess());
+			frames.put((byte)event.getType());
+			frames.putInt((int)Math.min(event.getDwellTime(), Integer.MAX_VALUE));
+			frames.put(tagId.getCardType());
+			frames.put((byte)tagId.length());
+			for(int j=0; j<tagId.length(); j++){
+				frames.put(tagId.getByte(j));
+			}
+			frames.put((byte)reader.length);
+			frames.put(reader);
+			frames.putShort((short)ndefLength);
+			if(ndef != null){
+				frames.put(ndef);
+			}
+		}
+		mSequence = sequence;
+		frames.flip();
+		return frames;
+	}
+
+	/**
+	 * @return The UTF-8 reader identifier, cut to the frame limit.
+	 */
+	private byte[] readerBytes(String readerId){
+		if(readerId == null){
+			return new byte[0];
+		}
+		if(!readerId.equals(mLastReaderId)){
+			try {
+				byte[] bytes = readerId.getBytes("UTF-8");
+				mLastReaderBytes = bytes.length > MAX_READER_ID_BYTES ? Arrays.copyOf(bytes, MAX_READER_ID_BYTES) : bytes;
+			} catch (UnsupportedEncodingException e) {
+				mLastReaderBytes = new byte[0];
+			}
+			mLastReaderId = readerId;
+		}
+		return mLastReaderBytes;
+	}
+
+	/*************************************************************************/
+
+	private void serve(){
+		try {
+			while(!mClosed){
+				mSelector.select();
+				mWakeupPending.set(false);
+				Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+				while(keys.hasNext()){
+					SelectionKey key = keys.next();
+					keys.remove();
+					if(!key.isValid()){
+						continue;
+					}
+					if(key.isAcceptable()){
+						accept();
+						continue;
+					}
+					Client client = (Client)key.attachment();
+					if(key.isReadable()){
+						read(client);
+					}
+					if(key.isValid() && key.isWritable()){
+						write(client);
+					}
+				}
+				for(Client client : mClients){
+					if(client.isFailed()){
+						mClientsDropped.incrementAndGet();
+						NFCLog.w(IConstants.MY_TAG, "*** NFCEventServer - Slow client disconnected: "+client);
+						disconnect(client);
+					}
+					else if(client.mKey.isValid()){
+						client.mKey.interestOps(client.hasFrames() ?
+								SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+					}
+				}
+			}
+		} catch (IOException e) {
+			NFCLog.e(IConstants.MY_TAG, "*** NFCEventServer - Server stopped: "+e);
+		} finally {
+			for(Client client : mClients){
+				disconnect(client);
+			}
+			synchronized (this) {
+				mClosed = true;
+				closeQuietly();
+			}
+		}
+	}
+
+	private void accept() throws IOException{
+		SocketChannel channel = mServerChannel.accept();
+		if(channel == null){
+			return;
+		}
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			Client client = new Client(channel);
+			ByteBuffer hello = ByteBuffer.allocate(HELLO_LENGTH);
+			hello.putShort((short)(HELLO_LENGTH - 2));
+			hello.put((byte)FRAME_HELLO);
+			hello.put((byte)PROTOCOL_VERSION);
+			//the events of a batch being queued meanwhile may come before the sequence announced.
+			hello.putLong(mSequence);
+			hello.flip();
+			client.offer(hello, 0);
+			client.mKey = channel.register(mSelector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, client);
+			mClients.add(client);
+			NFCLog.i(IConstants.MY_TAG, "*** NFCEventServer - Client connected: "+client);
+		} catch (IOException e) {
+			channel.close();
+			NFCLog.w(IConstants.MY_TAG, "*** NFCEventServer - Client not accepted: "+e);
+		}
+	}
+
+	private void read(Client client){
+		try {
+			mReadBuffer.clear();
+			if(client.mChannel.read(mReadBuffer) < 0){
+				disconnect(client);
+			}
+		} catch (IOException e) {
+			disconnect(client);
+		}
+	}
+
+	private void write(Client client){
+		try {
+			client.write();
+		} catch (IOException e) {
+			disconnect(client);
+		}
+	}
+
+	private void disconnect(Client client){
+		if(mClients.remove(client)){
+			NFCLog.i(IConstants.MY_TAG, "*** NFCEventServer - Client disconnected: "+client);
+		}
+		if(client.mKey != null){
+			client.mKey.cancel();
+		}
+		try {
+			client.mChannel.close();
+		} catch (IOException e) {
+			//nothing to do...
+		}
+	}
+
+	private void closeQuietly(){
+		try {
+			if(mServerChannel != null){
+				mServerChannel.close();
+			}
+		} catch (IOException e) {
+			//nothing to do...
+		}
+		try {
+			if(mSelector != null){
+				mSelector.close();
+			}
+		} catch (IOException e) {
+			//nothing to do...
+		}
+	}
+
+	/**
+	 * A subscriber and its queue of frames.
+	 */
+	private final class Client {
+		final SocketChannel mChannel;
+		SelectionKey mKey;
+		//Buffers of frames, and the number of events of each.
+		private final ArrayDeque<ByteBuffer> mFrames = new ArrayDeque<ByteBuffer>();
+		private final ArrayDeque<Integer> mEvents = new ArrayDeque<Integer>();
+		private final ByteBuffer[] mGather = new ByteBuffer[GATHER_SIZE];
+		private int mQueuedBytes = 0;
+		private boolean mFailed = false;
+		private final String mName;
+
+		Client(SocketChannel channel){
+			mChannel = channel;
+			mName = String.valueOf(channel.socket().getRemoteSocketAddress());
+		}
+
+		/**
+		 * Queues frames, applying the slow clients policy when the buffer is
+		 * full.
+		 * @return True if the frames were queued.
+		 */
+		synchronized boolean offer(ByteBuffer frames, int events){
+			if(mFailed){
+				return false;
+			}
+			int length = frames.remaining();
+			if(mQueuedBytes + length > mClientBuffer && !mFrames.isEmpty()){
+				if(mPolicy == POLICY_DISCONNECT){
+					mFailed = true;
+					mEventsDropped.addAndGet(events);
+					return true;
+				}
+				//the first buffer can be half written, it is kept...
+				ByteBuffer first = mFrames.peekFirst();
+				boolean keepFirst = first.position() > 0;
+				if(keepFirst){
+					mFrames.pollFirst();
+				}
+				Integer firstEvents = keepFirst ? mEvents.pollFirst() : null;
+				while(mQueuedBytes + length > mClientBuffer && !mFrames.isEmpty()){
+					mQueuedBytes -= mFrames.pollFirst().limit();
+					mEventsDropped.addAndGet(mEvents.pollFirst());
+				}
+				if(keepFirst){
+					mFrames.addFirst(first);
+					mEvents.addFirst(firstEvents);
+				}
+			}
+			mFrames.addLast(frames);
+			mEvents.addLast(events);
+			mQueuedBytes += length;
+			return true;
+		}
+
+		synchronized boolean hasFrames(){
+			return !mFrames.isEmpty();
+		}
+
+		synchronized boolean isFailed(){
+			return mFailed;
+		}
+
+		/**
+		 * Writes as many frames as the socket takes, in one call.
+		 */
+		synchronized void write() throws IOException{
+			int count = 0;
+			for(ByteBuffer frames : mFrames){
+				if(count == GATHER_SIZE){
+					break;
+				}
+				mGather[count++] = frames;
+			}
+			if(count == 0){
+				return;
+			}
+			mChannel.write(mGather, 0, count);
+			Arrays.fill(mGather, 0, count, null);
+			while(!mFrames.isEmpty() && !mFrames.peekFirst().hasRemaining()){
+				mQueuedBytes -= mFrames.pollFirst().limit();
+				mEvents.pollFirst();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return mName;
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package com.uab.ofernandez.bridge.business;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Rebuilds the NFC frames from the bytes received over the bluetooth
+ * socket.
+ *
+ * A read on the RFCOMM stream can return part of a frame, or several frames
+ * at once. The received bytes are accumulated in a ring buffer and the
+ * complete frames (ACK, NACK and information frames) are handed out one by
+ * one. Junk bytes and frames with a wrong checksum are skipped until the
+ * next "00 00 FF" preamble.
+ */
+public final class NFCFrameAssembler {
+
+	/**************************************************************************
+	 * Frame types
+	 **************************************************************************/
+	public static final int FRAME_NONE = 0;
+	public static final int FRAME_ACK = 1;
+	public static final int FRAME_NACK = 2;
+	public static final int FRAME_INFORMATION = 3;
+
+	private static final int ACK_LENGTH = 6;
+	//PREAMBLE + START CODE (2) + LEN + LCS + DCS + POSTAMBLE
+	private static final int FRAME_OVERHEAD = 7;
+	//Position of the TFI byte from the beginning of the frame
+	private static final int FRAME_DATA = 5;
+
+	private final byte[] mRing;
+	private final int mMask;
+	//Absolute positions. The buffer content is [mHead, mTail).
+	private int mHead = 0;
+	private int mTail = 0;
+
+	private int mLastFrameType = FRAME_NONE;
+	private long mDiscardedBytes = 0;
+	private long mCorruptedFrames = 0;
+
+	/**
+	 * @param capacity The ring buffer size. It is rounded up to a power of two
+	 * 		and should hold several maximum size frames.
+	 */
+	public NFCFrameAssembler(int capacity){
+		int size = Integer.highestOneBit(Math.max(capacity, 2*262) - 1) << 1;
+		mRing = new byte[size];
+		mMask = size - 1;
+	}
+
+	/**
+	 * @return The number of received bytes not handed out yet.
+	 */
+	public int size(){
+		return mTail - mHead;
+	}
+
+	public int free(){
+		return mRing.length - size();
+	}
+
+	/**
+	 * Stores received bytes.
+	 * @return The number of bytes stored. Less than length if the ring buffer
+	 * 		is full.
+	 */
+	public int write(byte[] src, int offset, int length){
+		int count = Math.min(length, free());
+		for(int i=0; i<count; ){
+			int index = mTail & mMask;
+			int chunk = Math.min(count - i, mRing.length - index);
+			System.arraycopy(src, offset + i, mRing, index, chunk);
+			mTail += chunk;
+			i += chunk;
+		}
+		return count;
+	}
+
+	/**
+	 * Reads into the ring buffer the bytes available in the stream, without
+	 * blocking when the stream is empty.
+	 * @return The number of bytes read.
+	 * @throws IOException If the stream fails or was closed.
+	 */
+	public int fill(InputStream inputStream) throws IOException{
+		int available = inputStream.available();
+		if(available <= 0){
+			return 0;
+		}
+		if(free() == 0){
+			//the consumer is not keeping up. Drop the oldest data.
+			discard(ACK_LENGTH);
+		}
+		int index = mTail & mMask;
+		int chunk = Math.min(Math.min(available, free()), mRing.length - index);
+		int numBytesRead = inputStream.read(mRing, index, chunk);
+		if(numBytesRead < 0){
+			throw new IOException("The bluetooth input stream was closed!");
+		}
+		mTail += numBytesRead;
+		return numBytesRead;
+	}
+
+	/**
+	 * Reads into the ring buffer the next bytes of the stream, blocking until
+	 * some data is received.
+	 * @return The number of bytes read.
+	 * @throws IOException If the stream fails or was closed.
+	 */
+	public int read(InputStream inputStream) throws IOException{
+		if(free() == 0){
+			//the consumer is not keeping up. Drop the oldest data.
+			discard(ACK_LENGTH);
+		}
+		int index = mTail & mMask;
+		int chunk = Math.min(free(), mRing.length - index);
+		int numBytesRead = inputStream.read(mRing, index, chunk);
+		if(numBytesRead < 0){
+			throw new IOException("The bluetooth input stream was closed!");
+		}
+		mTail += numBytesRead;
+		return numBytesRead;
+	}
+
+	/**
+	 * Extracts the next complete frame.
+	 * @param dst Where the frame is copied.
+	 * @param dstOffset Position in dst for the first frame byte.
+	 * @return The length of the frame copied, or 0 if there is no complete
+	 * 		frame yet. The type of the frame is given by {@link #getLastFrameType()}.
+	 */
+	public int nextFrame(byte[] dst, int dstOffset){
+		mLastFrameType = FRAME_NONE;
+
+		while(size() >= ACK_LENGTH){
+			if(!isStartOfFrame()){
+				discard(1);
+				continue;
+			}
+			int len = peek(3);
+			int lcs = peek(4);
+
+			int type;
+			int frameLength;
+			if(len==0x00 && lcs==0xFF){
+				type = FRAME_ACK;
+				frameLength = ACK_LENGTH;
+			}
+			else if(len==0xFF && lcs==0x00){
+				type = FRAME_NACK;
+				frameLength = ACK_LENGTH;
+			}
+			else if(((len + lcs) & 0xFF) != 0){
+				//corrupted header or false preamble inside junk data...
+				discard(1);
+				continue;
+			}
+			else{
+				type = FRAME_INFORMATION;
+				frameLength = len + FRAME_OVERHEAD;
+				if(size() < frameLength){
+					//wait for the rest of the frame.
+					return 0;
+				}
+				if(!isDataChecksumOk(len)){
+					mCorruptedFrames++;
+					discard(1);
+					continue;
+				}
+			}
+
+			if(dst.length - dstOffset < frameLength){
+				//no room in the destination... the frame is lost.
+				discard(frameLength);
+				continue;
+			}
+			copy(dst, dstOffset, frameLength);
+			mHead += frameLength;
+			mLastFrameType = type;
+			return frameLength;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return The type of the frame returned by the last call to
+	 * 		{@link #nextFrame(byte[], int)}.
+	 */
+	public int getLastFrameType(){
+		return mLastFrameType;
+	}
+
+	/**
+	 * Drops all the pending bytes.
+	 */
+	public void clear(){
+		mDiscardedBytes += size();
+		mHead = mTail;
+	}
+
+	public long getDiscardedBytes(){
+		return mDiscardedBytes;
+	}
+
+	public long getCorruptedFrames(){
+		return mCorruptedFrames;
+	}
+
+	private boolean isStartOfFrame(){
+		return peek(0)==0x00 && peek(1)==0x00 && peek(2)==0xFF;
+	}
+
+	private boolean isDataChecksumOk(int len){
+		int sum = 0;
+		for(int i=FRAME_DATA; i<=FRAME_DATA+len; i++){
+			sum += peek(i);
+		}
+		return (sum & 0xFF) == 0;
+	}
+
+	private int peek(int index){
+		return mRing[(mHead + index) & mMask] & 0xFF;
+	}
+
+	private void copy(byte[] dst, int dstOffset, int length){
+		int index = mHead & mMask;
+		int chunk = Math.min(length, mRing.length - index);
+		System.arraycopy(mRing, index, dst, dstOffset, chunk);
+		if(chunk < length){
+			System.arraycopy(mRing, 0, dst, dstOffset + chunk, length - chunk);
+		}
+	}
+
+	private void discard(int count){
+		int length = Math.min(count, size());
+		mHead += length;
+		mDiscardedBytes += length;
+	}
+}
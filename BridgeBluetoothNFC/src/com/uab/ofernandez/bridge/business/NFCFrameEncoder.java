@@ -0,0 +1,92 @@
+package com.uab.ofernandez.bridge.business;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the normal information frames sent to the NFC module:
+ *
+ * 00 00 FF LEN LCS D4 CMD PAYLOAD... DCS 00
+ *
+ * The length (LCS) and data (DCS) checksums are computed while the frame is
+ * written, straight into the caller buffer, so encoding never allocates.
+ */
+public final class NFCFrameEncoder {
+
+	/** Frame identifier of the frames sent to the NFC module. */
+	public static final byte TFI_COMMAND = (byte)0xD4;
+	/** Longest payload of a normal information frame (LEN counts TFI and CMD). */
+	public static final int MAX_PAYLOAD_LENGTH = 255 - 2;
+	//PREAMBLE + START CODE (2) + LEN + LCS + TFI + CMD + DCS + POSTAMBLE
+	private static final int FRAME_OVERHEAD = 9;
+
+	private NFCFrameEncoder(){}
+
+	/**
+	 * @param payloadLength Length of the command payload.
+	 * @return The length of the encoded frame.
+	 */
+	public static int frameLength(int payloadLength){
+		return payloadLength + FRAME_OVERHEAD;
+	}
+
+	/**
+	 * Encodes a command frame.
+	 * @param command The command code, for instance 0x40 for InDataExchange.
+	 * @param payload The command parameters. Can be null if length is 0.
+	 * @param offset Position of the parameters in the payload buffer.
+	 * @param length Number of parameters, up to {@link #MAX_PAYLOAD_LENGTH}.
+	 * @param dst The destination, with room for frameLength(length) bytes.
+	 * @param dstOffset Position of the frame in the destination.
+	 * @return The length of the frame written.
+	 */
+	public static int encode(int command, byte[] payload, int offset, int length, byte[] dst, int dstOffset){
+		checkPayload(payload, offset, length);
+		int position = dstOffset;
+		dst[position++] = 0x00;
+		dst[position++] = 0x00;
+		dst[position++] = (byte)0xFF;
+		dst[position++] = (byte)(length + 2);
+		dst[position++] = (byte)-(length + 2);
+		dst[position++] = TFI_COMMAND;
+		dst[position++] = (byte)command;
+		int sum = TFI_COMMAND + command;
+		for(int i=offset; i<offset+length; i++){
+			dst[position++] = payload[i];
+			sum += payload[i];
+		}
+		dst[position++] = (byte)-sum;
+		dst[position++] = 0x00;
+		return position - dstOffset;
+	}
+
+	/**
+	 * Encodes a command frame at the position of a buffer, that can be a
+	 * direct buffer, and advances the position.
+	 * @return The length of the frame written.
+	 * @throws BufferOverflowException If the frame does not fit.
+	 */
+	public static int encode(int command, byte[] payload, int offset, int length, ByteBuffer dst){
+		checkPayload(payload, offset, length);
+		if(dst.remaining() < frameLength(length)){
+			throw new BufferOverflowException();
+		}
+		dst.put((byte)0x00).put((byte)0x00).put((byte)0xFF);
+		dst.put((byte)(length + 2)).put((byte)-(length + 2));
+		dst.put(TFI_COMMAND).put((byte)command);
+		int sum = TFI_COMMAND + command;
+		for(int i=offset; i<offset+length; i++){
+			dst.put(payload[i]);
+			sum += payload[i];
+		}
+		dst.put((byte)-sum).put((byte)0x00);
+		return frameLength(length);
+	}
+
+	private static void checkPayload(byte[] payload, int offset, int length){
+		if(length < 0 || length > MAX_PAYLOAD_LENGTH || (length > 0
+				&& (payload == null || offset < 0 || offset + length > payload.length))){
+			throw new IllegalArgumentException("Invalid command payload: "+length+" bytes at "+offset);
+		}
+	}
+}
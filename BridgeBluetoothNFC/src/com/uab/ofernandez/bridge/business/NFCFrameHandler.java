@@ -1,22 +1,19 @@
 package com.uab.ofernandez.bridge.business;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
-import android.util.Log;
-
-import com.uab.ofernandez.bridge.api.IConstants;
-
 public final class NFCFrameHandler {
 
-	private String callName;
-	private byte[] callValue;
+	private final String callName;
+	private final byte[] callValue;
+	private final int commandCode;
 
 	private NFCFrameHandler(String name, byte[] value){
 		callName = name;
 		callValue = value;
+		commandCode = findCommandCode(value);
 	}
 
 	public String getCallName() {
@@ -31,13 +28,135 @@ public final class NFCFrameHandler {
 		return callValue.length;
 	}
 
+	/**
+	 * @return The command code of the call (the byte following the D4 frame
+	 * 		identifier), or -1 if this is not a command frame. The response to
+	 * 		a command carries the command code + 1.
+	 */
+	public int getCommandCode(){
+		return commandCode;
+	}
+
+	private static int findCommandCode(byte[] value){
+		//look for the start code followed by a valid LEN/LCS pair...
+		for(int i=0; i+5<value.length; i++){
+			if(value[i]==0x00 && value[i+1]==(byte)0xFF && ((value[i+2]+value[i+3]) & 0xFF)==0
+					&& value[i+4]==TFI_COMMAND){
+				return value[i+5] & 0xFF;
+			}
+		}
+		return -1;
+	}
+
+	/**************************************************************************
+	 * NFC Command codes
+	 **************************************************************************/
+	public static final int CMD_GET_GENERAL_STATUS = 0x04;
+	public static final int CMD_SAM_CONFIGURATION = 0x14;
+	public static final int CMD_POWER_DOWN = 0x16;
+	public static final int CMD_RF_CONFIGURATION = 0x32;
+	public static final int CMD_IN_DATA_EXCHANGE = 0x40;
+	public static final int CMD_IN_LIST_PASSIVE_TARGET = 0x4A;
+	public static final int CMD_IN_RELEASE = 0x52;
+	public static final int CMD_IN_AUTO_POLL = 0x60;
+
 	/**************************************************************************
 	 * NFC Request Commands
 	 **************************************************************************/
-	public static final NFCFrameHandler TX_NFC_WAKE_UP    = new NFCFrameHandler("TX_NFC_WakeUp", new byte[]{0x55, 0x55, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xFF, 0x03, (byte) 0xFD, (byte) 0xD4, 0x14, 0x01, 0x17, 0x00});
-	public static final NFCFrameHandler TX_NFC_POWER_DOWN = new NFCFrameHandler("TX_NFC_PowerDown", new byte[]{0x00, 0x00, (byte)0xFF, 0x03, (byte)0xFD, (byte)0xD4, 0x16, 0x10, 0x06, 0x00});
-	public static final NFCFrameHandler TX_NFC_SCAN_TAG   = new NFCFrameHandler("TX_NFC_ScanTag", new byte[]{0x00, 0x00, (byte)0xFF, 0x06, (byte)0xFA, (byte)0xD4, 0x60, 0x01, 0x01, 0x00, 0x04, (byte)0xC6, 0x00});
-	public static final NFCFrameHandler TX_NFC_GET_STATUS = new NFCFrameHandler("TX_NFC_GetStatus", new byte[]{0x00, 0x00, (byte)0xFF, 0x02, (byte)0xFE, (byte)0xD4, 0x04, 0x28, 0x00});
+	//The wake up is preceded by 55 55 00 00 00 to wake the HSU link of the module.
+	public static final NFCFrameHandler TX_NFC_WAKE_UP    = buildCommand("TX_NFC_WakeUp", new byte[]{0x55, 0x55, 0x00, 0x00, 0x00}, CMD_SAM_CONFIGURATION, 0x01);
+	public static final NFCFrameHandler TX_NFC_POWER_DOWN = buildCommand("TX_NFC_PowerDown", null, CMD_POWER_DOWN, 0x10);
+	public static final NFCFrameHandler TX_NFC_SCAN_TAG   = buildCommand("TX_NFC_ScanTag", null, CMD_IN_AUTO_POLL, 0x01, 0x01, 0x00, 0x04);
+	public static final NFCFrameHandler TX_NFC_GET_STATUS = buildCommand("TX_NFC_GetStatus", null, CMD_GET_GENERAL_STATUS);
+	//Lists up to 2 ISO14443A targets (106 kbps), the most the NFC module handles at once.
+	public static final NFCFrameHandler TX_NFC_LIST_TARGETS = buildCommand("TX_NFC_ListTargets", null, CMD_IN_LIST_PASSIVE_TARGET, 0x02, 0x00);
+	//Releases all the listed targets, which are halted until they leave the field.
+	public static final NFCFrameHandler TX_NFC_RELEASE_ALL = buildCommand("TX_NFC_ReleaseAll", null, CMD_IN_RELEASE, 0x00);
+
+	/*
+	 * Commands built by getCommand(), by hash of their code and payload.
+	 * The instances are immutable, so they can be read without locking.
+	 */
+	private static final int COMMAND_CACHE_SIZE = 128;
+	private static final NFCFrameHandler[] commandCache = new NFCFrameHandler[COMMAND_CACHE_SIZE];
+
+	/**
+	 * Builds a command frame, computing its checksums.
+	 * @param name Name of the command, for the logs.
+	 * @param prefix Bytes sent before the frame, or null.
+	 * @param command The command code.
+	 * @param payload The command parameters, as ints for readability.
+	 * @return The command.
+	 */
+	public static NFCFrameHandler buildCommand(String name, byte[] prefix, int command, int... payload){
+		byte[] data = new byte[payload.length];
+		for(int i=0; i<payload.length; i++){
+			data[i] = (byte)payload[i];
+		}
+		int prefixLength = prefix == null ? 0 : prefix.length;
+		byte[] call = new byte[prefixLength + NFCFrameEncoder.frameLength(data.length)];
+		if(prefix != null){
+			System.arraycopy(prefix, 0, call, 0, prefixLength);
+		}
+		NFCFrameEncoder.encode(command, data, 0, data.length, call, prefixLength);
+		return new NFCFrameHandler(name, call);
+	}
+
+	/**
+	 * Gets the frame of any command. The frames are cached, so sending the
+	 * same command again (for instance, reading the same page of every tag)
+	 * does not encode it again nor allocate anything.
+	 * @param command The command code.
+	 * @param payload The command parameters. Can be null if length is 0.
+	 * @param offset Position of the parameters in the payload buffer.
+	 * @param length Number of parameters.
+	 * @return The command, immutable.
+	 */
+	public static NFCFrameHandler getCommand(int command, byte[] payload, int offset, int length){
+		int hash = command & 0xFF;
+		for(int i=offset; i<offset+length; i++){
+			hash = 31*hash + payload[i];
+		}
+		hash ^= hash >>> 16;
+		int slot = (hash * 0x9E3779B1) >>> 25;
+		NFCFrameHandler cached = commandCache[slot];
+		if(cached != null && cached.isCommand(command, payload, offset, length)){
+			return cached;
+		}
+		byte[] call = new byte[NFCFrameEncoder.frameLength(length)];
+		NFCFrameEncoder.encode(command, payload, offset, length, call, 0);
+		cached = new NFCFrameHandler("TX_0x"+Integer.toHexString(command & 0xFF), call);
+		commandCache[slot] = cached;
+		return cached;
+	}
+
+	/**
+	 * @return True if this is the frame of the given command.
+	 */
+	private boolean isCommand(int command, byte[] payload, int offset, int length){
+		if(callValue.length != NFCFrameEncoder.frameLength(length) || commandCode != (command & 0xFF)){
+			return false;
+		}
+		for(int i=0; i<length; i++){
+			if(callValue[FRAME_DATA + 2 + i] != payload[offset + i]){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Builds a scan tag (InAutoPoll) command with custom pooling parameters.
+	 * The NFC module pools the field "pollNr" times for each tag type, with a
+	 * pause of "period" x 150ms, and answers as soon as some tag is detected.
+	 * @param pollNr Number of pooling rounds, from 0x01 to 0xFE.
+	 * @param period Pooling period in units of 150ms, from 0x01 to 0x0F.
+	 * @return The scan tag command.
+	 */
+	public static NFCFrameHandler buildScanTagCall(int pollNr, int period){
+		return buildCommand("TX_NFC_ScanTag_Session", null, CMD_IN_AUTO_POLL, pollNr, period, 0x00, 0x04);
+	}
+
 	/**************************************************************************
 	 * "No card" response
 	 **************************************************************************/
@@ -49,21 +168,45 @@ public final class NFCFrameHandler {
 	public static final NFCFrameHandler NFC_ACK = new NFCFrameHandler("NFC_ACK", new byte[]{0x00, 0x00, (byte)0xFF, 0x00, (byte)0xFF, 0x00});
 	public static final NFCFrameHandler NFC_NACK = new NFCFrameHandler("NFC_NACK", new byte[]{0x00, 0x00, (byte)0xFF, (byte)0xFF, (byte)0x00, 0x00});
 
+	/**************************************************************************
+	 * Frame layout
+	 **************************************************************************/
+	private static final int ACK_LENGTH = 6;
+	//PREAMBLE + START CODE (2) + LEN + LCS + DCS + POSTAMBLE
+	private static final int FRAME_OVERHEAD = 7;
+	//Position of the TFI byte from the beginning of the frame
+	private static final int FRAME_DATA = 5;
+	private static final byte TFI_COMMAND = (byte)0xD4;
+	private static final byte TFI_RESPONSE = (byte)0xD5;
+	private static final byte RESPONSE_SCAN_TAG = 0x61;
+	private static final byte RESPONSE_LIST_TARGETS = 0x4B;
+	//SEL_RES bit telling that the target supports ISO14443-4, so the ATS follows.
+	private static final int SEL_RES_ISO14443_4 = 0x20;
+
 	/**
 	 * Checks if the received data is valid, meaning that it begins with ACK.
 	 * @param receivedData
 	 * @return True is the data begins with ACK byte data.
 	 */
 	public static boolean isAcknowledge(byte[] dataBuffer){
-		if(dataBuffer==null || dataBuffer.length<=6){
+		if(dataBuffer==null){
 			return false;
 		}
+		return isAcknowledge(dataBuffer, 0, dataBuffer.length);
+	}
 
-		//Copy the 6 initial bytes of the received data array...
-		byte[] copy = new byte[6];
-		System.arraycopy(dataBuffer, 0, copy, 0, copy.length);
-
-		return Arrays.equals(copy, NFC_ACK.getNFCCall());
+	/**
+	 * Checks if the received data begins with ACK and carries more data.
+	 * @param buffer The read buffer.
+	 * @param offset Position of the received data in the buffer.
+	 * @param length Number of bytes to consider.
+	 * @return True is the data begins with ACK byte data.
+	 */
+	public static boolean isAcknowledge(byte[] buffer, int offset, int length){
+		if(buffer==null || length<=ACK_LENGTH || offset<0 || offset+length>buffer.length){
+			return false;
+		}
+		return regionEquals(buffer, offset, NFC_ACK.getNFCCall());
 	}
 
 	/**
@@ -75,15 +218,25 @@ public final class NFCFrameHandler {
 	 * False otherwise.
 	 */
 	public static boolean isNoCardDetectedRXMsg(byte[] buffer, int readedBytes){
-		if(buffer==null || buffer.length==0 || readedBytes==0 || readedBytes > buffer.length){
+		return isNoCardDetectedRXMsg(buffer, 0, readedBytes);
+	}
+
+	/**
+	 * Checks if the NFC response message refers to a "No Card" detected
+	 * response.
+	 * @param buffer The read buffer.
+	 * @param offset Position of the response in the buffer.
+	 * @param length Number of bytes to consider.
+	 * @return True if the buffer contains a "No Card" NFC response message.
+	 * False otherwise.
+	 */
+	public static boolean isNoCardDetectedRXMsg(byte[] buffer, int offset, int length){
+		if(buffer==null || length<=0 || offset<0 || offset+length > buffer.length){
 			//Parameters are wrong. Discard message.
 			return true;
 		}
-
-		byte[] data = new byte[readedBytes];
-		System.arraycopy(buffer, 0, data, 0, readedBytes);
-
-		return Arrays.equals(data, NFCFrameHandler.RX_NFC_NOCARD.getNFCCall());
+		byte[] noCard = RX_NFC_NOCARD.getNFCCall();
+		return length==noCard.length && regionEquals(buffer, offset, noCard);
 	}
 
 	/**
@@ -97,6 +250,35 @@ public final class NFCFrameHandler {
 			return Collections.emptyList();
 		}
 
+		final ArrayList<byte[]> tagsNFC = new ArrayList<byte[]>();
+		extractNFCTagData(dataBuffer, 0, dataBuffer.length, new NFCTagSink() {
+			@Override
+			public void onNFCTag(byte cardType, byte[] buffer, int uidOffset, int uidLength) {
+				byte[] tag = new byte[uidLength];
+				System.arraycopy(buffer, uidOffset, tag, 0, uidLength);
+				tagsNFC.add(tag);
+			}
+		});
+
+		return tagsNFC;
+	}
+
+	/**
+	 * Extracts the NFC Tags existing in a scan tag response, without copying
+	 * the received data. Only JEWEL and MIFARE Tags are supported right now.
+	 * @param buffer The read buffer, containing the ACK followed by the
+	 * 		response frame.
+	 * @param offset Position of the response in the buffer.
+	 * @param length Number of bytes of the response.
+	 * @param sink Receives the identifier of every tag found.
+	 * @return The number of tags reported to the sink.
+	 */
+	public static int extractNFCTagData(byte[] buffer, int offset, int length, NFCTagSink sink){
+		if(buffer==null || sink==null || offset<0 || offset+length>buffer.length
+				|| length<ACK_LENGTH+FRAME_OVERHEAD){
+			return 0;
+		}
+
 		/*
 		 * DO NOT change the order of this method if you don't know what you're
 		 * doing! The sequence is relevant to be robust against all types of messages
@@ -104,160 +286,176 @@ public final class NFCFrameHandler {
 		 * a lot of weird junk data...
 		 */
 
-		ArrayList<byte[]> tagsNFC = new ArrayList<byte[]>();
-
-		//get size of the frame data byte #10 of the message
-		//from the frame we ignore the "FrameID" and the "CommandCode"
-		int frameSize = ((int)dataBuffer[9])-2;
-
-		if(frameSize==0 || dataBuffer.length<frameSize+13){
-			//just received an acknowledge without more data
-			//nothing to do...
-			return Collections.emptyList();
-		}
+		int frame = offset + ACK_LENGTH;
 
 		//Check CRC of the data received...
-		if(!isDataCRCsOk(dataBuffer)){
+		if(!isFrameChecksumOk(buffer, frame, length - ACK_LENGTH)){
 			//CRC check failed... data is corrupted. Ignore frame.
-			Log.d(IConstants.MY_TAG, "*** Data Frame CRC check failed!");
-			return Collections.emptyList();
+			return 0;
 		}
 
-		logger("*** FrameSize = "+frameSize);
-
-		byte[] data = new byte[frameSize];
-
-		//Keep only the information from "# of tags field"...
-		System.arraycopy(dataBuffer, 13, data, 0, frameSize);
-
-		logger("*** data[] = "+ Utils.convertToHexString(data, data.length));
-
-		//First byte data tells us the number of readed tags...
-		int readedTags = (int)data[0];
-
-		if(readedTags == 0){
-			return Collections.emptyList();
+		int frameSize = buffer[frame+3] & 0xFF;
+		int data = frame + FRAME_DATA;
+		if(frameSize<3 || buffer[data]!=TFI_RESPONSE || buffer[data+1]!=RESPONSE_SCAN_TAG){
+			//just received an acknowledge without tags data
+			//nothing to do...
+			return 0;
 		}
-
-		logger("*** Number of Tags = "+readedTags);
-
-		/****************************
-		 * Read the NFC Tag #1...
-		 ****************************/
-		int lengthDataFrame1 = (int)data[2];
-		//extract frame of the Tag#1 from "Tag Type" field...
-		byte[] dataFrame1 = new byte[lengthDataFrame1 + 2];
-		System.arraycopy(data, 1, dataFrame1, 0, dataFrame1.length);
-
-		byte[] tagNFC1 = readTagInformation(dataFrame1);
-
-		logger("*** dataFrame1[] = "+ Utils.convertToHexString(dataFrame1, dataFrame1.length));
-		logger("*** Read TAG1 = "+ Utils.convertToHexString(tagNFC1, tagNFC1.length));
-
-		tagsNFC.add(tagNFC1);
-
-		/****************************
-		 * Read the NFC Tag #2...
-		 ****************************/
-		if(readedTags==2){
-			byte[] dataFrame2 = new byte[data.length - dataFrame1.length - 1];
-			//extract frame of the Tag#2 from "Tag Type" field...
-			System.arraycopy(data, dataFrame1.length+1, dataFrame2, 0, dataFrame2.length);
-			byte[] tagNFC2 = readTagInformation(dataFrame2);
-
-			logger("*** dataFrame2[] = "+ Utils.convertToHexString(dataFrame2, dataFrame2.length));
-			logger("*** Read TAG2 = "+ Utils.convertToHexString(tagNFC2, tagNFC2.length));
-
-			tagsNFC.add(tagNFC2);
+		int end = data + frameSize;
+
+		//First byte data after "FrameID" and "CommandCode" tells us the number of readed tags...
+		int readedTags = buffer[data+2] & 0xFF;
+		int position = data + 3;
+		int found = 0;
+
+		//Every tag is a "Tag Type" byte, a length byte and the tag data...
+		for(int i=0; i<readedTags && position+2<=end; i++){
+			byte cardType = buffer[position];
+			int tagLength = buffer[position+1] & 0xFF;
+			int tagData = position + 2;
+			if(tagData + tagLength > end){
+				//truncated tag data...
+				break;
+			}
+			switch (cardType) {
+			case NFCCardType.MIFARE_TYPE:
+				//Tg, SENS_RES (2), SEL_RES, NFCID length and NFCID
+				if(tagLength>=5){
+					int uidLength = buffer[tagData+4] & 0xFF;
+					if(5+uidLength <= tagLength){
+						sink.onNFCTag(cardType, buffer, tagData+5, uidLength);
+						found++;
+					}
+				}
+				break;
+			case NFCCardType.JEWEL_TYPE:
+				//Tg, SENS_RES (2) and JEWELID (4)
+				if(tagLength>=7){
+					sink.onNFCTag(cardType, buffer, tagData+3, 4);
+					found++;
+				}
+				break;
+			default:
+				//this should not happen... just in case...
+				break;
+			}
+			position = tagData + tagLength;
 		}
 
-		return tagsNFC;
+		return found;
 	}
 
-	private static byte[] readTagInformation(byte[] dataFrame){
-		switch ((int)dataFrame[0]) {
-		case (int)(NFCCardType.MIFARE_TYPE):
-			return readTagMifare(dataFrame);
-		case (int)(NFCCardType.JEWEL_TYPE):
-			return readTagJewel(dataFrame);
-		default:
-			//this should not happen... just in case...
-			return new byte[0];
+	/**
+	 * Extracts the targets of an InListPassiveTarget response (106 kbps type
+	 * A), without copying the received data. The targets are reported as
+	 * MIFARE tags, like the InAutoPoll ones.
+	 * @param buffer The read buffer, containing the ACK followed by the
+	 * 		response frame.
+	 * @param offset Position of the response in the buffer.
+	 * @param length Number of bytes of the response.
+	 * @param sink Receives the identifier of every target found.
+	 * @return The number of targets reported to the sink.
+	 */
+	public static int extractListedTargets(byte[] buffer, int offset, int length, NFCTagSink sink){
+		if(buffer==null || sink==null || offset<0 || offset+length>buffer.length
+				|| length<ACK_LENGTH+FRAME_OVERHEAD){
+			return 0;
 		}
-	}
 
-	private static byte[] readTagMifare(byte[] dataFrame){
-		byte tag[] = new byte[dataFrame.length - 7];
-		System.arraycopy(dataFrame, 7, tag, 0, tag.length);
-		return tag;
-	}
+		int frame = offset + ACK_LENGTH;
+		if(!isFrameChecksumOk(buffer, frame, length - ACK_LENGTH)){
+			return 0;
+		}
 
-	private static byte[] readTagJewel(byte[] dataFrame){
-		byte tag[] = new byte[dataFrame.length - 5];
-		System.arraycopy(dataFrame, 5, tag, 0, tag.length);
-		return tag;
+		int frameSize = buffer[frame+3] & 0xFF;
+		int data = frame + FRAME_DATA;
+		if(frameSize<3 || buffer[data]!=TFI_RESPONSE || buffer[data+1]!=RESPONSE_LIST_TARGETS){
+			return 0;
+		}
+		int end = data + frameSize;
+		int listedTargets = buffer[data+2] & 0xFF;
+		int position = data + 3;
+		int found = 0;
+
+		//Every target is Tg, SENS_RES (2), SEL_RES, NFCID length, NFCID and the ATS if any...
+		for(int i=0; i<listedTargets && position+5<=end; i++){
+			int selRes = buffer[position+3] & 0xFF;
+			int uidLength = buffer[position+4] & 0xFF;
+			int uid = position + 5;
+			if(uid + uidLength > end){
+				//truncated target data...
+				break;
+			}
+			sink.onNFCTag(NFCCardType.MIFARE_TYPE, buffer, uid, uidLength);
+			found++;
+			position = uid + uidLength;
+			if((selRes & SEL_RES_ISO14443_4) != 0 && position < end){
+				//the ATS length byte counts itself.
+				position += Math.max(1, buffer[position] & 0xFF);
+			}
+		}
+
+		return found;
 	}
 
-	private static boolean isDataCRCsOk(byte[] dataBuffer){
-		if(dataBuffer==null || dataBuffer.length<13){
+	/**
+	 * Checks the length (LCS) and data (DCS) checksums of a normal information
+	 * frame.
+	 * @param buffer The read buffer.
+	 * @param frame Position of the frame preamble in the buffer.
+	 * @param length Number of bytes available from the frame position.
+	 * @return True if the frame is complete and both checksums are correct.
+	 */
+	public static boolean isFrameChecksumOk(byte[] buffer, int frame, int length){
+		if(buffer==null || frame<0 || length<FRAME_OVERHEAD || frame+length>buffer.length){
 			return false;
 		}
 
 		//Check#1 - NFC length CRC.
-		if((int)(dataBuffer[9]+dataBuffer[10])!=0){
+		int frameSize = buffer[frame+3] & 0xFF;
+		if(((frameSize + buffer[frame+4]) & 0xFF) != 0){
 			//NFC frame has a incorrect Len frame.
 			return false;
 		}
-
-		//Check#2 the "global" CRC.
-		byte sum = 0;
-		for(int i=11; i<=dataBuffer.length-3; i++){
-			sum += dataBuffer[i];
+		if(length < frameSize + FRAME_OVERHEAD){
+			//the frame is not complete.
+			return false;
 		}
 
-		if(sum + dataBuffer[dataBuffer.length-2] != 0){
-			return false;
+		//Check#2 the "global" CRC.
+		int sum = 0;
+		int data = frame + FRAME_DATA;
+		for(int i=data; i<=data+frameSize; i++){
+			sum += buffer[i];
 		}
 
-		return true;
+		return (sum & 0xFF) == 0;
 	}
 
 	public static boolean isFirmwareRXOk(byte[] dataBuffer, int readedBytes){
-		if(dataBuffer==null || readedBytes<=18){
+		if(dataBuffer==null || readedBytes<=18 || readedBytes>dataBuffer.length){
 			return false;
 		}
 
-		//extract the relevant bytes...
-		byte[] buffer = new byte[readedBytes];
-		System.arraycopy(dataBuffer, 0, buffer, 0, readedBytes);
-
 		//get acknowledge info...
-		byte[] ack = new byte[6];
-		System.arraycopy(dataBuffer, 0, ack, 0, 6);
-		if(!Arrays.equals(ack, NFCFrameHandler.NFC_ACK.getNFCCall())){
+		if(!isAcknowledge(dataBuffer, 0, readedBytes)){
 			return false;
 		}
 
-		//compute length CRC...
-		if(buffer[9]+buffer[10] != 0){
-			//lan CRC failed
-			return false;
-		}
+		//compute the length and global CRCs...
+		return isFrameChecksumOk(dataBuffer, ACK_LENGTH, readedBytes-ACK_LENGTH);
+	}
 
-		//compute global CRC...
-		byte crcSum = 0;
-		for(int i=11; i<=buffer.length-3;i++){
-			crcSum += buffer[i];
-		}
-		if(crcSum + buffer[buffer.length-2] != 0){
+	private static boolean regionEquals(byte[] buffer, int offset, byte[] expected){
+		if(offset + expected.length > buffer.length){
 			return false;
 		}
-
+		for(int i=0; i<expected.length; i++){
+			if(buffer[offset+i] != expected[i]){
+				return false;
+			}
+		}
 		return true;
 	}
 
-	private static void logger(String message){
-		Log.d(IConstants.MY_TAG, message);
-	}
-
 }
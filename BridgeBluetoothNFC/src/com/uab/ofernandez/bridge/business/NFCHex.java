@@ -0,0 +1,75 @@
+package com.uab.ofernandez.bridge.business;
+
+import java.util.Arrays;
+
+/**
+ * Table driven hexadecimal encoding of the tag identifiers and frames.
+ */
+public final class NFCHex {
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	//Value of every hex digit char, -1 for the other chars.
+	private static final byte[] HEX_VALUES = new byte[128];
+	static{
+		Arrays.fill(HEX_VALUES, (byte)-1);
+		for(int i=0; i<16; i++){
+			HEX_VALUES[HEX_DIGITS[i]] = (byte)i;
+			HEX_VALUES[Character.toUpperCase(HEX_DIGITS[i])] = (byte)i;
+		}
+	}
+
+	private NFCHex(){}
+
+	/**
+	 * Converts a region of an array of bytes to its lower case hexadecimal
+	 * string representation.
+	 * @param buffer The byte array that we want to convert.
+	 * @param offset The position of the first byte to convert.
+	 * @param numBytes The number of bytes we want to consider.
+	 * @return The string representation or and empty string in case of
+	 * 		invalid parameters.
+	 */
+	public static String toHexString(byte[] buffer, int offset, int numBytes){
+		if(buffer==null || offset<0 || numBytes<=0 || offset+numBytes>buffer.length){
+			return "";
+		}
+
+		char[] hexChars = new char[numBytes*2];
+		int position = 0;
+		for(int i=offset; i<offset+numBytes; i++){
+			position = encodeByte(buffer[i], hexChars, position);
+		}
+		return new String(hexChars);
+	}
+
+	/**
+	 * Writes the two lower case hexadecimal digits of a byte.
+	 * @param value The byte to convert.
+	 * @param buffer The destination char buffer.
+	 * @param offset Position of the first digit.
+	 * @return The position after the second digit.
+	 */
+	public static int encodeByte(byte value, char[] buffer, int offset){
+		buffer[offset] = HEX_DIGITS[(value >> 4) & 0x0F];
+		buffer[offset+1] = HEX_DIGITS[value & 0x0F];
+		return offset + 2;
+	}
+
+	/**
+	 * Converts two hexadecimal digits to their byte value.
+	 * @param high The most significant digit.
+	 * @param low The least significant digit.
+	 * @return The value, from 0 to 255, or -1 if a char is not a hex digit.
+	 */
+	public static int decodeByte(char high, char low){
+		if(high >= HEX_VALUES.length || low >= HEX_VALUES.length){
+			return -1;
+		}
+		int h = HEX_VALUES[high];
+		int l = HEX_VALUES[low];
+		if(h < 0 || l < 0){
+			return -1;
+		}
+		return (h << 4) | l;
+	}
+}
@@ -0,0 +1,48 @@
+package com.uab.ofernandez.bridge.business;
+
+import android.content.Context;
+
+/**
+ * Tag listener that broadcasts the detected tags as
+ * {@link com.uab.ofernandez.bridge.api.IConstants#INTENT_TRANSFER_NFC_TAGS}
+ * intents, like the bridge always did. Every intent carries the tags of a
+ * single scan, up to two tags.
+ */
+public final class NFCIntentBroadcaster implements NFCTagListener {
+
+	private static final int MAX_TAGS_PER_INTENT = 2;
+
+	private final Context mContext;
+	private final String mReaderId;
+
+	/**
+	 * @param context The context used to broadcast the intents.
+	 * @param readerId Only the tags of this reader are broadcasted. Null to
+	 * 		broadcast the tags of any reader.
+	 */
+	public NFCIntentBroadcaster(Context context, String readerId){
+		mContext = context;
+		mReaderId = readerId;
+	}
+
+	@Override
+	public void onNFCTags(NFCTagEvent[] events, int count) {
+		int first = 0;
+		while(first < count){
+			//the tags of the same scan share reader and timestamp...
+			int last = first + 1;
+			while(last < count && last - first < MAX_TAGS_PER_INTENT && isSameScan(events[first], events[last])){
+				last++;
+			}
+			if(mReaderId == null || mReaderId.equals(events[first].getReaderId())){
+				mContext.sendBroadcast(Utils.buildIntentWithNFCTags(events, first, last - first));
+			}
+			first = last;
+		}
+	}
+
+	private static boolean isSameScan(NFCTagEvent a, NFCTagEvent b){
+		return a.getTimestamp() == b.getTimestamp()
+			&& (a.getReaderId() == null ? b.getReaderId() == null : a.getReaderId().equals(b.getReaderId()));
+	}
+}
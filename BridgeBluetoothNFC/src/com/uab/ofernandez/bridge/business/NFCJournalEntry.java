@@ -0,0 +1,82 @@
+package com.uab.ofernandez.bridge.business;
+
+/**
+ * Immutable tag event read back from the {@link NFCTagJournal}.
+ */
+public final class NFCJournalEntry {
+
+	private final long mOffset;
+	private final long mTimestamp;
+	private final String mReaderId;
+	private final NFCTagId mTagId;
+	private final int mAccess;
+	private final int mType;
+	private final long mDwellTime;
+
+	NFCJournalEntry(long offset, long timestamp, String readerId, NFCTagId tagId, int access, int type, long dwellTime){
+		mOffset = offset;
+		mTimestamp = timestamp;
+		mReaderId = readerId;
+		mTagId = tagId;
+		mAccess = access;
+		mType = type;
+		mDwellTime = dwellTime;
+	}
+
+	/**
+	 * @return The position of the event in the journal. The events are
+	 * 		numbered from 0, in the order they were written.
+	 */
+	public long getOffset(){
+		return mOffset;
+	}
+
+	/**
+	 * @return Detection time, in miliseconds since the epoch.
+	 */
+	public long getTimestamp(){
+		return mTimestamp;
+	}
+
+	public String getReaderId(){
+		return mReaderId;
+	}
+
+	public NFCTagId getTagId(){
+		return mTagId;
+	}
+
+	/**
+	 * @return Access decision, one of the NFCAccessList.ACCESS_* values.
+	 */
+	public int getAccess(){
+		return mAccess;
+	}
+
+	/**
+	 * @return The presence event, one of the NFCTagEvent.TYPE_* values.
+	 */
+	public int getType(){
+		return mType;
+	}
+
+	/**
+	 * @return The time the tag had been in the field, in miliseconds.
+	 */
+	public long getDwellTime(){
+		return mDwellTime;
+	}
+
+	/**
+	 * @return The event as delivered to the tag listeners, without the NDEF
+	 * 		message, which is not journaled.
+	 */
+	public NFCTagEvent toTagEvent(){
+		return new NFCTagEvent(mReaderId, mTagId, mTimestamp, mAccess, null, mType, mDwellTime);
+	}
+
+	@Override
+	public String toString() {
+		return mOffset+" "+mTimestamp+" "+(mReaderId == null ? "-" : mReaderId)+" "+mTagId+" "+mAccess+" "+NFCTagEvent.getTypeName(mType)+" "+mDwellTime;
+	}
+}
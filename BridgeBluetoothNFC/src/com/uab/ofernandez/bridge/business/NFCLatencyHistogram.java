@@ -0,0 +1,115 @@
+package com.uab.ofernandez.bridge.business;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds, with a fixed memory footprint.
+ *
+ * The buckets follow the HDR histogram layout: one bucket per microsecond
+ * up to 32us, and then 16 buckets for every power of two, so any recorded
+ * value is known within 6.25% up to the largest trackable value (about 19
+ * hours). Recording a value is a few shifts and an atomic increment, without
+ * any allocation, so it can be done on every pooling cycle.
+ */
+public final class NFCLatencyHistogram {
+
+	//Linear buckets below 2^LINEAR_BITS, then SUB_BUCKETS per power of two.
+	private static final int LINEAR_BITS = 5;
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int MAX_EXPONENT = 35;
+
+	/** Largest value that can be told apart. Longer latencies are recorded as this one. */
+	public static final long MAX_TRACKABLE_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+	/** Number of buckets of every histogram. */
+	public static final int BUCKET_COUNT = (MAX_EXPONENT - LINEAR_BITS + 3) * SUB_BUCKETS;
+
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong mTotalCount = new AtomicLong();
+	private final AtomicLong mTotalValue = new AtomicLong();
+	private final AtomicLong mMaxValue = new AtomicLong();
+
+	/**
+	 * Records a latency.
+	 * @param micros The latency in microseconds. Negative values are ignored.
+	 */
+	public void record(long micros){
+		if(micros < 0){
+			return;
+		}
+		if(micros > MAX_TRACKABLE_VALUE){
+			micros = MAX_TRACKABLE_VALUE;
+		}
+		mCounts.incrementAndGet(bucketOf(micros));
+		mTotalCount.incrementAndGet();
+		mTotalValue.addAndGet(micros);
+		long max;
+		while(micros > (max = mMaxValue.get()) && !mMaxValue.compareAndSet(max, micros)){
+			//somebody else recorded meanwhile... retry.
+		}
+	}
+
+	public long getTotalCount(){
+		return mTotalCount.get();
+	}
+
+	/**
+	 * Copies the recorded values.
+	 * @param reset If true, the copied values are cleared at the same time,
+	 * 		so no value recorded meanwhile is lost.
+	 * @return The copy.
+	 */
+	public NFCLatencySnapshot snapshot(boolean reset){
+		long[] counts = new long[BUCKET_COUNT];
+		long totalCount = 0;
+		for(int i=0; i<BUCKET_COUNT; i++){
+			counts[i] = reset ? mCounts.getAndSet(i, 0) : mCounts.get(i);
+			totalCount += counts[i];
+		}
+		if(reset){
+			mTotalCount.addAndGet(-totalCount);
+			return new NFCLatencySnapshot(counts, totalCount, mTotalValue.getAndSet(0), mMaxValue.getAndSet(0));
+		}
+		return new NFCLatencySnapshot(counts, totalCount, mTotalValue.get(), mMaxValue.get());
+	}
+
+	/**
+	 * Clears all the recorded values.
+	 */
+	public void reset(){
+		for(int i=0; i<BUCKET_COUNT; i++){
+			mCounts.set(i, 0);
+		}
+		mTotalCount.set(0);
+		mTotalValue.set(0);
+		mMaxValue.set(0);
+	}
+
+	/**
+	 * @return The bucket of a value, from 0 to BUCKET_COUNT-1.
+	 */
+	static int bucketOf(long micros){
+		if(micros < (1 << LINEAR_BITS)){
+			return (int)micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int shift = exponent - SUB_BITS;
+		//the top SUB_BITS+1 bits of the value, from SUB_BUCKETS to 2*SUB_BUCKETS-1
+		int sub = (int)(micros >>> shift);
+		return (exponent - LINEAR_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return The highest value that falls in a bucket.
+	 */
+	static long highestValueOf(int bucket){
+		if(bucket < (1 << LINEAR_BITS)){
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + LINEAR_BITS - 2;
+		int shift = exponent - SUB_BITS;
+		long lowest = (long)(bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
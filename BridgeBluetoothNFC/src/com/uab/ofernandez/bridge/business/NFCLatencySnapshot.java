@@ -0,0 +1,70 @@
+package com.uab.ofernandez.bridge.business;
+
+/**
+ * Immutable copy of the values of a {@link NFCLatencyHistogram}, in
+ * microseconds.
+ */
+public final class NFCLatencySnapshot {
+
+	private final long[] mCounts;
+	private final long mTotalCount;
+	private final long mTotalValue;
+	private final long mMaxValue;
+
+	NFCLatencySnapshot(long[] counts, long totalCount, long totalValue, long maxValue){
+		mCounts = counts;
+		mTotalCount = totalCount;
+		mTotalValue = totalValue;
+		mMaxValue = maxValue;
+	}
+
+	/**
+	 * @return The number of recorded latencies.
+	 */
+	public long getCount(){
+		return mTotalCount;
+	}
+
+	public long getMax(){
+		return mMaxValue;
+	}
+
+	public double getMean(){
+		return mTotalCount == 0 ? 0 : (double)mTotalValue / mTotalCount;
+	}
+
+	/**
+	 * @param percentile The percentile, from 0 to 100.
+	 * @return The latency under which the given percentage of the values
+	 * 		fall, or 0 if there are no values.
+	 */
+	public long getPercentile(double percentile){
+		if(mTotalCount == 0){
+			return 0;
+		}
+		long rank = (long)Math.ceil(mTotalCount * Math.min(100, Math.max(0, percentile)) / 100.0);
+		rank = Math.max(1, rank);
+		long seen = 0;
+		for(int i=0; i<mCounts.length; i++){
+			seen += mCounts[i];
+			if(seen >= rank){
+				//the bucket bound can be over the real maximum...
+				return Math.min(NFCLatencyHistogram.highestValueOf(i), mMaxValue);
+			}
+		}
+		return mMaxValue;
+	}
+
+	/**
+	 * @return "count/p50/p90/p99/max" with the latencies in milliseconds.
+	 */
+	@Override
+	public String toString() {
+		return mTotalCount+" / "+millis(getPercentile(50))+" / "+millis(getPercentile(90))
+			+" / "+millis(getPercentile(99))+" / "+millis(mMaxValue)+" ms";
+	}
+
+	private static String millis(long micros){
+		return (micros / 1000)+"."+(micros / 100 % 10);
+	}
+}
@@ -0,0 +1,22 @@
+package com.uab.ofernandez.bridge.business;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A connected byte stream to a NFC reader, usually a bluetooth RFComm
+ * socket.
+ */
+public interface NFCLink {
+
+	public InputStream getInputStream() throws IOException;
+
+	public OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * Closes the link. The blocked reads and writes fail with an IOException.
+	 * @throws IOException
+	 */
+	public void close() throws IOException;
+}
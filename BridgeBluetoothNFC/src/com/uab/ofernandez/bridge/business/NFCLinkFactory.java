@@ -0,0 +1,16 @@
+package com.uab.ofernandez.bridge.business;
+
+import java.io.IOException;
+
+/**
+ * Opens new links to the same NFC reader, see {@link NFCConnectionSupervisor}.
+ */
+public interface NFCLinkFactory {
+
+	/**
+	 * Connects to the reader. Can block for as long as the connection takes.
+	 * @return The connected link.
+	 * @throws IOException If the reader could not be reached.
+	 */
+	public NFCLink open() throws IOException;
+}
@@ -0,0 +1,62 @@
+package com.uab.ofernandez.bridge.business;
+
+/**
+ * Logging of the protocol classes, with the same calls than android.util.Log.
+ *
+ * The protocol classes do not depend on the Android framework, so they can
+ * run on a plain JVM. The bridge installs a logger that writes to the
+ * android log; until then, only the warnings and errors are written to the
+ * standard error.
+ */
+public final class NFCLog {
+
+	/** Same values than the android.util.Log priorities. */
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+
+	private static final NFCLogger STDERR_LOGGER = new NFCLogger() {
+		@Override
+		public void println(int priority, String tag, String message) {
+			if(priority >= WARN){
+				System.err.println(tag+": "+message);
+			}
+		}
+	};
+
+	private static volatile NFCLogger sLogger = STDERR_LOGGER;
+
+	private NFCLog(){}
+
+	/**
+	 * @param logger The new log destination, or null to go back to the
+	 * 		standard error.
+	 */
+	public static void setLogger(NFCLogger logger){
+		sLogger = logger == null ? STDERR_LOGGER : logger;
+	}
+
+	/**
+	 * @param priority One of DEBUG, INFO, WARN or ERROR.
+	 */
+	public static void println(int priority, String tag, String message){
+		sLogger.println(priority, tag, message);
+	}
+
+	public static void d(String tag, String message){
+		sLogger.println(DEBUG, tag, message);
+	}
+
+	public static void i(String tag, String message){
+		sLogger.println(INFO, tag, message);
+	}
+
+	public static void w(String tag, String message){
+		sLogger.println(WARN, tag, message);
+	}
+
+	public static void e(String tag, String message){
+		sLogger.println(ERROR, tag, message);
+	}
+}
@@ -0,0 +1,15 @@
+package com.uab.ofernandez.bridge.business;
+
+/**
+ * Destination of the log messages of the protocol classes. On Android the
+ * messages go to the android log, see {@link NFCLog#setLogger(NFCLogger)}.
+ */
+public interface NFCLogger {
+
+	/**
+	 * @param priority One of the NFCLog priorities.
+	 * @param tag The log tag.
+	 * @param message The log message.
+	 */
+	public void println(int priority, String tag, String message);
+}
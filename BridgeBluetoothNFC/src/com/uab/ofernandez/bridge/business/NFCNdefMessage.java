@@ -0,0 +1,45 @@
+package com.uab.ofernandez.bridge.business;
+
+/**
+ * Immutable NDEF message read from a tag: the raw message bytes and the
+ * records parsed from them.
+ */
+public final class NFCNdefMessage {
+
+	private final byte[] mBytes;
+	private final NFCNdefRecord[] mRecords;
+
+	NFCNdefMessage(byte[] bytes, NFCNdefRecord[] records){
+		mBytes = bytes;
+		mRecords = records;
+	}
+
+	/**
+	 * @return A copy of the message, as stored in the NDEF TLV of the tag.
+	 */
+	public byte[] getBytes(){
+		return mBytes.clone();
+	}
+
+	public int getLength(){
+		return mBytes.length;
+	}
+
+	public int getRecordCount(){
+		return mRecords.length;
+	}
+
+	public NFCNdefRecord getRecord(int index){
+		return mRecords[index];
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("NDEF ").append(mBytes.length).append(" bytes");
+		for(NFCNdefRecord record : mRecords){
+			builder.append(", [").append(record).append(']');
+		}
+		return builder.toString();
+	}
+}
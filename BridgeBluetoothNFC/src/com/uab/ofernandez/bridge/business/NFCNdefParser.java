@@ -0,0 +1,252 @@
+package com.uab.ofernandez.bridge.business;
+
+import java.util.ArrayList;
+
+/**
+ * Incremental parser of the data area of a NFC Forum type 2 tag (NTAG,
+ * Mifare Ultralight).
+ *
+ * The data area is a sequence of TLV blocks: NULL blocks, lock and memory
+ * control blocks, the NDEF message block and the terminator. The bytes are
+ * fed as the pages are read, and the records of the NDEF message are parsed
+ * as soon as they are complete, so the caller knows from the first pages
+ * how many bytes are still needed and stops reading right at the end of
+ * the message.
+ *
+ * Chunked records are returned as separate records.
+ */
+public final class NFCNdefParser {
+
+	/**************************************************************************
+	 * TLV types
+	 **************************************************************************/
+	private static final int TLV_NULL = 0x00;
+	private static final int TLV_NDEF = 0x03;
+	private static final int TLV_TERMINATOR = 0xFE;
+
+	/**************************************************************************
+	 * Parser states
+	 **************************************************************************/
+	private static final int STATE_TYPE = 0;
+	private static final int STATE_LENGTH = 1;
+	private static final int STATE_LENGTH_HIGH = 2;
+	private static final int STATE_LENGTH_LOW = 3;
+	private static final int STATE_VALUE = 4;
+	private static final int STATE_DONE = 5;
+	private static final int STATE_FAILED = 6;
+
+	/**************************************************************************
+	 * Record header flags
+	 **************************************************************************/
+	private static final int FLAG_ME = 0x40;
+	private static final int FLAG_SR = 0x10;
+	private static final int FLAG_IL = 0x08;
+	private static final int TNF_MASK = 0x07;
+
+	//Longest message accepted. The biggest type 2 tags hold less than 1KB.
+	public static final int MAX_MESSAGE_LENGTH = 4096;
+
+	private int mState = STATE_TYPE;
+	private int mType;
+	private int mLength;
+	//Bytes of the current TLV value still to come.
+	private int mRemaining;
+	//Bytes fed since the reset.
+	private int mOffset;
+	//Offset of the end of the NDEF message, or -1 while unknown.
+	private int mEndOffset = -1;
+
+	private byte[] mMessage;
+	private int mMessageLength;
+	//Start of the first record not parsed yet.
+	private int mRecordOffset;
+	private boolean mLastRecord;
+	private final ArrayList<NFCNdefRecord> mRecords = new ArrayList<NFCNdefRecord>();
+
+	/**
+	 * Prepares the parser for a new tag.
+	 */
+	public void reset(){
+		mState = STATE_TYPE;
+		mOffset = 0;
+		mEndOffset = -1;
+		mMessage = null;
+		mMessageLength = 0;
+		mRecordOffset = 0;
+		mLastRecord = false;
+		mRecords.clear();
+	}
+
+	/**
+	 * Parses the next bytes of the data area.
+	 * @param buffer The read buffer.
+	 * @param offset Position of the bytes in the buffer.
+	 * @param length Number of bytes.
+	 * @return True if the parsing is finished: the message is complete, the
+	 * 		terminator was found or the data is not valid.
+	 */
+	public boolean feed(byte[] buffer, int offset, int length){
+		int end = offset + length;
+		int position = offset;
+		while(position < end && mState < STATE_DONE){
+			int value = buffer[position] & 0xFF;
+			switch (mState) {
+			case STATE_TYPE:
+				position++;
+				if(value == TLV_TERMINATOR){
+					mState = STATE_DONE;
+				}
+				else if(value != TLV_NULL){
+					mType = value;
+					mState = STATE_LENGTH;
+				}
+				break;
+
+			case STATE_LENGTH:
+				position++;
+				if(value == 0xFF){
+					mState = STATE_LENGTH_HIGH;
+				}
+				else{
+					startValue(value, mOffset + position - offset);
+				}
+				break;
+
+			case STATE_LENGTH_HIGH:
+				position++;
+				mLength = value << 8;
+				mState = STATE_LENGTH_LOW;
+				break;
+
+			case STATE_LENGTH_LOW:
+				position++;
+				startValue(mLength | value, mOffset + position - offset);
+				break;
+
+			case STATE_VALUE:
+				int count = Math.min(mRemaining, end - position);
+				if(mType == TLV_NDEF){
+					System.arraycopy(buffer, position, mMessage, mMessageLength, count);
+					mMessageLength += count;
+					parseRecords();
+				}
+				position += count;
+				mRemaining -= count;
+				if(mRemaining == 0 && mState == STATE_VALUE){
+					mState = mType == TLV_NDEF ? STATE_DONE : STATE_TYPE;
+				}
+				break;
+
+			default:
+				break;
+			}
+		}
+		mOffset += length;
+		return mState >= STATE_DONE;
+	}
+
+	/**
+	 * @return True if the parsing is finished.
+	 */
+	public boolean isFinished(){
+		return mState >= STATE_DONE;
+	}
+
+	/**
+	 * @return True if the data area is not a valid TLV sequence or the NDEF
+	 * 		message is malformed.
+	 */
+	public boolean isFailed(){
+		return mState == STATE_FAILED;
+	}
+
+	/**
+	 * @return The number of bytes of the data area needed to finish the
+	 * 		parsing, or -1 while the NDEF block was not found yet.
+	 */
+	public int getEndOffset(){
+		return mState >= STATE_DONE ? mOffset : mEndOffset;
+	}
+
+	/**
+	 * @return The number of records parsed so far.
+	 */
+	public int getRecordCount(){
+		return mRecords.size();
+	}
+
+	/**
+	 * @return The NDEF message, or null if the parsing is not finished, it
+	 * 		failed or the tag holds no message.
+	 */
+	public NFCNdefMessage getMessage(){
+		if(mState != STATE_DONE || mMessage == null || mMessageLength < mMessage.length){
+			return null;
+		}
+		return new NFCNdefMessage(mMessage, mRecords.toArray(new NFCNdefRecord[mRecords.size()]));
+	}
+
+	/**
+	 * @param length Length of the TLV value.
+	 * @param valueOffset Offset of the value from the beginning of the data area.
+	 */
+	private void startValue(int length, int valueOffset){
+		if(mType != TLV_NDEF){
+			mRemaining = length;
+			mState = length == 0 ? STATE_TYPE : STATE_VALUE;
+			return;
+		}
+		if(length > MAX_MESSAGE_LENGTH){
+			mState = STATE_FAILED;
+			return;
+		}
+		mMessage = new byte[length];
+		mMessageLength = 0;
+		mRemaining = length;
+		mEndOffset = valueOffset + length;
+		//an empty NDEF block: the tag is formatted but holds no message.
+		mState = length == 0 ? STATE_DONE : STATE_VALUE;
+	}
+
+	/**
+	 * Parses the records completely received.
+	 */
+	private void parseRecords(){
+		while(!mLastRecord && mRecordOffset < mMessageLength){
+			int position = mRecordOffset;
+			int flags = mMessage[position] & 0xFF;
+			boolean shortRecord = (flags & FLAG_SR) != 0;
+			boolean hasId = (flags & FLAG_IL) != 0;
+			int headerLength = 2 + (shortRecord ? 1 : 4) + (hasId ? 1 : 0);
+			if(mRecordOffset + headerLength > mMessageLength){
+				//wait for the rest of the header...
+				return;
+			}
+			position++;
+			int typeLength = mMessage[position++] & 0xFF;
+			long payloadLength;
+			if(shortRecord){
+				payloadLength = mMessage[position++] & 0xFF;
+			}
+			else{
+				payloadLength = ((mMessage[position] & 0xFFL) << 24) | ((mMessage[position+1] & 0xFF) << 16)
+					| ((mMessage[position+2] & 0xFF) << 8) | (mMessage[position+3] & 0xFF);
+				position += 4;
+			}
+			int idLength = hasId ? mMessage[position++] & 0xFF : 0;
+			long recordEnd = (long)position + typeLength + idLength + payloadLength;
+			if(recordEnd > mMessage.length){
+				//the record does not fit in the message...
+				mState = STATE_FAILED;
+				return;
+			}
+			if(recordEnd > mMessageLength){
+				return;
+			}
+			mRecords.add(new NFCNdefRecord(flags & TNF_MASK, mMessage, position, typeLength,
+					position + typeLength, idLength, position + typeLength + idLength, (int)payloadLength));
+			mRecordOffset = (int)recordEnd;
+			mLastRecord = (flags & FLAG_ME) != 0;
+		}
+	}
+}
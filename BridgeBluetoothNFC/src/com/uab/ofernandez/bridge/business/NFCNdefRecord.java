@@ -0,0 +1,112 @@
+package com.uab.ofernandez.bridge.business;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Immutable NDEF record read from a tag: its type name format, type,
+ * identifier and payload.
+ */
+public final class NFCNdefRecord {
+
+	/**************************************************************************
+	 * Type name formats
+	 **************************************************************************/
+	public static final int TNF_EMPTY = 0x00;
+	public static final int TNF_WELL_KNOWN = 0x01;
+	public static final int TNF_MIME_MEDIA = 0x02;
+	public static final int TNF_ABSOLUTE_URI = 0x03;
+	public static final int TNF_EXTERNAL_TYPE = 0x04;
+	public static final int TNF_UNKNOWN = 0x05;
+	public static final int TNF_UNCHANGED = 0x06;
+
+	private final int mTnf;
+	private final byte[] mType;
+	private final byte[] mId;
+	private final byte[] mPayload;
+
+	/**
+	 * Copies a record out of the message buffer.
+	 */
+	NFCNdefRecord(int tnf, byte[] buffer, int typeOffset, int typeLength, int idOffset, int idLength,
+			int payloadOffset, int payloadLength){
+		mTnf = tnf;
+		mType = copy(buffer, typeOffset, typeLength);
+		mId = copy(buffer, idOffset, idLength);
+		mPayload = copy(buffer, payloadOffset, payloadLength);
+	}
+
+	/**
+	 * @return One of the TNF_* constants.
+	 */
+	public int getTnf(){
+		return mTnf;
+	}
+
+	public byte[] getType(){
+		return mType.clone();
+	}
+
+	public byte[] getId(){
+		return mId.clone();
+	}
+
+	public byte[] getPayload(){
+		return mPayload.clone();
+	}
+
+	public int getPayloadLength(){
+		return mPayload.length;
+	}
+
+	/**
+	 * @param tnf One of the TNF_* constants.
+	 * @param type The record type, for instance "T" for a well known text record.
+	 * @return True if the record has this type.
+	 */
+	public boolean isType(int tnf, String type){
+		if(mTnf != tnf || type.length() != mType.length){
+			return false;
+		}
+		for(int i=0; i<mType.length; i++){
+			if(mType[i] != type.charAt(i)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The text of a well known text record ("T"), without its
+	 * 		language code, or null if this is not a text record.
+	 */
+	public String getText(){
+		if(!isType(TNF_WELL_KNOWN, "T") || mPayload.length == 0){
+			return null;
+		}
+		int status = mPayload[0] & 0xFF;
+		int start = 1 + (status & 0x3F);
+		if(start > mPayload.length){
+			return null;
+		}
+		try {
+			return new String(mPayload, start, mPayload.length - start, (status & 0x80) != 0 ? "UTF-16" : "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		char[] type = new char[mType.length];
+		for(int i=0; i<mType.length; i++){
+			type[i] = (char)(mType[i] & 0xFF);
+		}
+		return "tnf="+mTnf+" type="+new String(type)+" payload="+mPayload.length+" bytes";
+	}
+
+	private static byte[] copy(byte[] buffer, int offset, int length){
+		byte[] copy = new byte[length];
+		System.arraycopy(buffer, offset, copy, 0, length);
+		return copy;
+	}
+}
@@ -0,0 +1,179 @@
+package com.uab.ofernandez.bridge.business;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Lifecycle of a pooling thread:
+ * <pre>
+ * IDLE -> STARTING -> RUNNING -> STOPPING -> IDLE
+ *                            \-> FAILED (the pooling finished because of an error)
+ * FAILED -> STARTING (the failed pooling is resumed)
+ * FAILED -> IDLE (stop requested: the pooling is not resumed)
+ * </pre>
+ * A new pooling can be started from IDLE or FAILED only, so two pooling
+ * threads never share a reader. A pooling can be resumed from FAILED only.
+ * The transitions are atomic and the state is visible to all the threads.
+ * Every run has a {@link Completion}, done when the pooling thread
+ * finishes, that the callers can wait for.
+ */
+public final class NFCPoolerLifecycle {
+
+	/**************************************************************************
+	 * Lifecycle states
+	 **************************************************************************/
+	public static final int STATE_IDLE = 0;
+	public static final int STATE_STARTING = 1;
+	public static final int STATE_RUNNING = 2;
+	public static final int STATE_STOPPING = 3;
+	public static final int STATE_FAILED = 4;
+
+	private static final String[] STATE_NAMES = {"IDLE", "STARTING", "RUNNING", "STOPPING", "FAILED"};
+
+	private volatile int mState = STATE_IDLE;
+	//Completion of the last run. Guarded by this.
+	private Completion mCompletion = new Completion();
+
+	public NFCPoolerLifecycle(){
+		mCompletion.complete(STATE_IDLE);
+	}
+
+	/**
+	 * Starts a new run, if the previous one finished.
+	 * @return The completion of the new run, or null if a pooling is
+	 * 		starting, running or stopping.
+	 */
+	public synchronized Completion beginStart(){
+		if(mState != STATE_IDLE && mState != STATE_FAILED){
+			return null;
+		}
+		mState = STATE_STARTING;
+		mCompletion = new Completion();
+		return mCompletion;
+	}
+
+	/**
+	 * Starts a new run to resume a failed pooling.
+	 * @return The completion of the new run, or null if the pooling did not
+	 * 		fail or it was stopped since.
+	 */
+	public synchronized Completion beginResume(){
+		if(mState != STATE_FAILED){
+			return null;
+		}
+		return beginStart();
+	}
+
+	/**
+	 * Called by the pooling thread when it begins.
+	 * @return False if the stop was requested while starting: the thread
+	 * 		must finish.
+	 */
+	public synchronized boolean running(){
+		if(mState != STATE_STARTING){
+			return false;
+		}
+		mState = STATE_RUNNING;
+		return true;
+	}
+
+	/**
+	 * Asks the run to stop. The caller still has to tell the pooling. A
+	 * failed pooling goes back to IDLE, so it is not resumed.
+	 * @return The completion of the run, already done if the pooling is not
+	 * 		running.
+	 */
+	public synchronized Completion beginStop(){
+		if(mState == STATE_STARTING || mState == STATE_RUNNING){
+			mState = STATE_STOPPING;
+		}
+		else if(mState == STATE_FAILED){
+			mState = STATE_IDLE;
+		}
+		return mCompletion;
+	}
+
+	/**
+	 * Called by the pooling thread when it finishes.
+	 * @param failed True if the pooling finished because of an error. It is
+	 * 		ignored if the stop was requested.
+	 */
+	public synchronized void finished(boolean failed){
+		mState = failed && mState != STATE_STOPPING ? STATE_FAILED : STATE_IDLE;
+		mCompletion.complete(mState);
+	}
+
+	public int getState(){
+		return mState;
+	}
+
+	/**
+	 * @return The completion of the last run.
+	 */
+	public synchronized Completion getCompletion(){
+		return mCompletion;
+	}
+
+	public static String getStateName(int state){
+		return state >= 0 && state < STATE_NAMES.length ? STATE_NAMES[state] : String.valueOf(state);
+	}
+
+	/**
+	 * Done when a pooling thread finishes. Its value is the final state,
+	 * {@link #STATE_IDLE} or {@link #STATE_FAILED}. It can not be cancelled.
+	 */
+	public static final class Completion implements Future<Integer> {
+
+		private final CountDownLatch mDone = new CountDownLatch(1);
+		private volatile int mFinalState = STATE_IDLE;
+
+		private Completion(){
+		}
+
+		private void complete(int state){
+			mFinalState = state;
+			mDone.countDown();
+		}
+
+		/**
+		 * Waits until the pooling thread finishes.
+		 * @param timeout Maximum time to wait, in miliseconds.
+		 * @return False if the timeout expired.
+		 * @throws InterruptedException
+		 */
+		public boolean await(long timeout) throws InterruptedException{
+			return mDone.await(timeout, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return mDone.getCount() == 0;
+		}
+
+		@Override
+		public Integer get() throws InterruptedException {
+			mDone.await();
+			return mFinalState;
+		}
+
+		@Override
+		public Integer get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+			if(!mDone.await(timeout, unit)){
+				throw new TimeoutException("The pooling is still running");
+			}
+			return mFinalState;
+		}
+	}
+}
@@ -1,12 +1,8 @@
 package com.uab.ofernandez.bridge.business;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Collections;
-import java.util.List;
 
 import android.app.Activity;
-import android.bluetooth.BluetoothSocket;
 import android.util.Log;
 
 import com.uab.ofernandez.bridge.api.IConstants;
@@ -15,37 +11,40 @@ public final class NFCPoolingHandler {
 
 	private static NFCPoolingHandler instance;
 
-	/*
-	 * 255 bytes is the theoretical buffer size maximum
-	 * supported by a NFC Tag.
-	 */
-	private byte[] mReadBuffer = new byte[255];
-	private InputStream mInputStream;
-
 	//Pooling thread manager
 	private Thread mManagerThread;
-	//Flag to warn the thread manager to finish
-	private boolean mFinishThread = false;
-
-	//debug flag
-	private boolean D = IConstants.DEBUG_ENABLED;
-
-	/*
-	 * Establishes the pauses that are required between a RX and TX command.
-	 * In other words, enforces the required pause times between a call and
-	 * its response. This is mandatory in order to get the call system
-	 * synchronized and functioning properly.
-	 *
-	 * DO NOT change these parameters if you don't know what you're doing!
-	 * Otherwise the system may be unresponsive!
-	 */
-	private static final long PAUSE_WAKE_UP_RX = 50;
-	private static final long PAUSE_READ_TAG_RX = 300;
-	private static final long PAUSE_GETSTATUS = 300;
-	private static final long PAUSE_READ_POWERDOWN_RX = 50;
-	private static long POOLING_TIME;
-
-	private NFCPoolingHandler(){}
+	//State of the pooling thread, and its completion
+	private final NFCPoolerLifecycle mLifecycle = new NFCPoolerLifecycle();
+	//Pooling state machine driven by the thread manager
+	private volatile NFCReaderSession mSession;
+	//Allow/deny list given to the pooling sessions
+	private volatile NFCAccessList mAccessList;
+	//Read the NDEF message of the tags in the next poolings
+	private volatile boolean mNdefReading = false;
+	//Presence tracking of the next poolings. No tracking if the cycles are 0.
+	private volatile int mDepartureCycles = 0;
+	private volatile long mHeartbeatInterval = 0;
+	//Maximum tags of the inventory of the next poolings. No inventory if 0.
+	private volatile int mInventoryTags = 0;
+	//Delivers the readed tags to the listeners. The tags of a scan are
+	//delivered together, so the intents keep carrying both of them.
+	private final NFCTagDispatcher mDispatcher = new NFCTagDispatcher(EVENT_QUEUE_CAPACITY, EVENT_BATCH_SIZE);
+	//Broadcasts the readed tags as intents, only if a context was given
+	private NFCIntentBroadcaster mBroadcaster;
+	//Context of the last pooling started, used when it is resumed
+	private Activity mContext;
+
+	private static final int EVENT_QUEUE_CAPACITY = 256;
+	private static final int EVENT_BATCH_SIZE = 16;
+	//Maximum time to wait for the failed pooling thread before resuming.
+	private static final long RESUME_WAIT = 2000;
+	//Maximum time to wait for the pooling thread to finish when stopped.
+	//The running command is aborted, so it takes a single response time.
+	private static final long STOP_WAIT = 4000;
+
+	private NFCPoolingHandler(){
+		mDispatcher.start();
+	}
 
 	public static NFCPoolingHandler getInstance(){
 		if(instance==null){
@@ -54,205 +53,278 @@ public final class NFCPoolingHandler {
 		return instance;
 	}
 
-	public boolean startPoolingBridge(BluetoothSocket btSocket, long poolingTime, Activity context)
+	public boolean startPoolingBridge(NFCCommandChannel channel, long poolingTime, Activity context)
 	throws IOException, InterruptedException{
-		if(btSocket==null || poolingTime <= 0 || context==null){
+		if(channel==null || poolingTime <= 0){
 			return false;
 		}
-		//Set the flag to NOT STOP the thread!
-		mFinishThread = false;
 
 		//Connect pooling here...
-		managerNFCPooling(btSocket, poolingTime, context);
-
-		return true;
+		return managerNFCPooling(context, new NFCReaderSession(null, channel, mDispatcher, poolingTime), false);
 	}
 
-	public boolean stopPoolingBridge(BluetoothSocket btSocket) throws IOException{
-		if(btSocket==null){
+	/**
+	 * Starts the pooling in continuous session mode. The NFC hardware is
+	 * woken up only once and every cycle is a single scan tag command, that
+	 * keeps the NFC module pooling the field for pollNr x period x 150ms.
+	 * @param channel The command channel of the bluetooth connection.
+	 * @param poolingTime Minimum time between two scan commands, in ms.
+	 * @param pollNr Number of pooling rounds per scan, from 0x01 to 0xFE.
+	 * @param period Pooling period in units of 150ms, from 0x01 to 0x0F.
+	 * @param context The activity that receives the intents with the readed
+	 * 		tags, or null to deliver them only to the tag listeners.
+	 * @return True if the pooling was started, false if the parameters are
+	 * 		not valid or a pooling is running.
+	 */
+	public boolean startPoolingSession(NFCCommandChannel channel, long poolingTime, int pollNr, int period, Activity context)
+	throws IOException, InterruptedException{
+		if(channel==null || poolingTime <= 0){
 			return false;
 		}
-
-		//set the flag TO STOP the thread and shutdown pooling...
-		mFinishThread = true;
-
-		//wait until the thread finishes for a maximum of 4 seconds...
-		//it will be quicker than this...
-		if(mManagerThread != null){
-			int iter = 0;
-			while(mManagerThread.isAlive() && iter++<200){
-				poolingSleep(20);
-			}
+		NFCReaderSession session = new NFCReaderSession(null, channel, mDispatcher, poolingTime);
+		if(!session.setSessionMode(pollNr, period)){
+			return false;
 		}
-		return true;
+
+		//Connect pooling here...
+		return managerNFCPooling(context, session, false);
 	}
 
-	private void managerNFCPooling(final BluetoothSocket btSocket, final long poolingTime, final Activity context)
+	/**
+	 * Starts the pooling with a period that adapts to the tags activity.
+	 * @param channel The command channel of the bluetooth connection.
+	 * @param scheduler Decides the pooling period of every cycle.
+	 * @param context The activity that receives the intents with the readed
+	 * 		tags, or null to deliver them only to the tag listeners.
+	 * @return True if the pooling was started.
+	 */
+	public boolean startPoolingAdaptive(NFCCommandChannel channel, NFCAdaptivePoolingScheduler scheduler, Activity context)
 	throws IOException, InterruptedException{
-		if(btSocket == null || poolingTime<=0){
-			//arguments invalid
-			return;
+		if(channel==null || scheduler==null){
+			return false;
 		}
+		NFCReaderSession session = new NFCReaderSession(null, channel, mDispatcher, scheduler.getPoolingTime());
+		session.setAdaptiveScheduler(scheduler);
 
-		POOLING_TIME = poolingTime - (PAUSE_WAKE_UP_RX+PAUSE_READ_TAG_RX+PAUSE_GETSTATUS+PAUSE_READ_POWERDOWN_RX);
+		//Connect pooling here...
+		return managerNFCPooling(context, session, false);
+	}
 
-		if(POOLING_TIME < 150){
-			//the overall pooling time will be at least of 500ms;
-			POOLING_TIME = 150;
-		}
+	/**
+	 * @return The effective number of pooling cycles per second, or 0 if
+	 * 		the pooling was never started.
+	 */
+	public float getEffectivePoolingRate(){
+		NFCReaderSession session = mSession;
+		return session == null ? 0 : session.getEffectivePoolingRate();
+	}
 
-		if(mManagerThread!=null && mManagerThread.isAlive()){
-			//thread is already running!
-			return;
+	/**
+	 * Sets the allow/deny list checked for every detected tag. It applies to
+	 * the running pooling and to the next ones.
+	 * @param accessList The list, or null to stop checking the tags.
+	 */
+	public void setAccessList(NFCAccessList accessList){
+		mAccessList = accessList;
+		NFCReaderSession session = mSession;
+		if(session != null){
+			session.setAccessList(accessList);
 		}
+	}
 
-		mManagerThread = new Thread() {
-			public void run() {
-				try {
-					mInputStream = btSocket.getInputStream();
-				} catch (IOException e) {
-					Log.e(IConstants.MY_TAG, "*** Error while getting the input stream...");
-					return;//exit thread
-				}
-
-				while(!mFinishThread){
-					int numBytesRead = 0;
-
-					/********************************
-					 * Wake up NFC Hardware...
-					 ********************************/
-					try {
-						sendMessageViaBluetooth(btSocket, NFCFrameHandler.TX_NFC_WAKE_UP.getNFCCall());
-
-						//if(D){Log.d(IConstants.MY_TAG, "*** Wake Up len = "+ NFCFrameHandler.TX_NFC_WAKE_UP.getNFCCall().length);}
-
-						poolingSleep(PAUSE_WAKE_UP_RX);//wait for the NFC module build up completely its buffer...
-						//without this the messege will be sliced.
-
-						numBytesRead = mInputStream.read(mReadBuffer);
-
-						if(D){
-							Log.d(IConstants.MY_TAG, "*** managerNFCPooling - Bytes read - Wake Up RX: "+ numBytesRead);
-							Log.d(IConstants.MY_TAG, "*** managerNFCPooling - Buffer - Wake Up RX: "+ Utils.convertToHexString(mReadBuffer, numBytesRead));
-						}
-
-					} catch (IOException e1) {
-						Log.e(IConstants.MY_TAG, "*** Error while sending message...");
-						return;//exit thread
-					}
-
-
-					/********************************
-					/* Read NFC Tags message...
-					 ********************************/
-					try {
-						if(D){Log.d(IConstants.MY_TAG, "*** managerNFCPooling: Pooling NFC Messages...");}
-
-						//Send message for NFC Tag Reading Command...
-						sendMessageViaBluetooth(btSocket, NFCFrameHandler.TX_NFC_SCAN_TAG.getNFCCall());
-
-						//if(D){Log.d(IConstants.MY_TAG, "*** READ TAG len = "+ NFCFrameHandler.TX_NFC_SCAN_TAG.getNFCCall().length);}
-					} catch (IOException e) {
-						Log.e(IConstants.MY_TAG, "*** Error while writing message to the NFC Socket: "+e);
-						return;//exit thread
-					}
-
-					poolingSleep(PAUSE_READ_TAG_RX);//wait for the NFC module build up completely its buffer...
-					                  //without this the message will be sliced.
-
-					try {
-						numBytesRead = mInputStream.read(mReadBuffer);
-					} catch (IOException e) {
-						Log.e(IConstants.MY_TAG, "IOException occured... finishing thread: "+e);
-						return;
-					}
-
-					if(D){
-						Log.d(IConstants.MY_TAG, "*** managerNFCPooling - Bytes read: "+ numBytesRead);
-						Log.d(IConstants.MY_TAG, "*** managerNFCPooling - Buffer: "+ Utils.convertToHexString(mReadBuffer, numBytesRead));
-					}
-
-					if(!NFCFrameHandler.isNoCardDetectedRXMsg(mReadBuffer, numBytesRead)){
-						//enters here if the message IS NOT a "no card" NFC response...
-
-						List<byte[]> list = processNFCMessageExtractTags(mReadBuffer, numBytesRead);
-						/*
-						 * Send the notification Intent to be catched in the Activity context
-						 * that has implemented and registered a BroadcastReceiver for this
-						 * intent type.
-						 */
-						if(!list.isEmpty()){
-							context.sendBroadcast(Utils.buildIntentWithNFCTags(list));
-						}
-					}
-
-					/***********************************
-					/* Power Down the NFC hardware...
-					 ***********************************/
-					try {
-						sendMessageViaBluetooth(btSocket, NFCFrameHandler.TX_NFC_POWER_DOWN.getNFCCall());
-
-						//if(D){Log.d(IConstants.MY_TAG, "*** Power Down len = "+ NFCFrameHandler.TX_NFC_POWER_DOWN.getNFCCall().length);}
-
-						poolingSleep(PAUSE_READ_POWERDOWN_RX);//wait for the NFC module build up completely its buffer...
-						                 //without this the message will be sliced.
+	/**
+	 * Enables the reading of the NDEF message of the tags. It applies to the
+	 * next poolings started.
+	 * @param enabled True to read the tags memory.
+	 */
+	public void setNdefReading(boolean enabled){
+		mNdefReading = enabled;
+	}
 
-						numBytesRead = mInputStream.read(mReadBuffer);
+	/**
+	 * Reports the tags entering and leaving the field instead of the tags of
+	 * every scan. It applies to the next poolings started.
+	 * @param departureCycles Number of consecutive scans without a tag before
+	 * 		it is reported as departed, or 0 to disable the tracking.
+	 * @param heartbeatInterval Time between the PRESENT events of a tag in
+	 * 		the field, in miliseconds, or 0 to send none.
+	 */
+	public void setPresenceTracking(int departureCycles, long heartbeatInterval){
+		if(departureCycles < 0 || heartbeatInterval < 0){
+			throw new IllegalArgumentException("Invalid presence tracking: "+departureCycles+"/"+heartbeatInterval);
+		}
+		mDepartureCycles = departureCycles;
+		mHeartbeatInterval = heartbeatInterval;
+	}
 
-						if(D){
-							Log.d(IConstants.MY_TAG, "*** managerNFCPooling - Bytes read - PowerDown RX: "+ numBytesRead);
-							Log.d(IConstants.MY_TAG, "*** managerNFCPooling - Buffer - PowerDown RX: "+ Utils.convertToHexString(mReadBuffer, numBytesRead));
-						}
-					} catch (IOException e) {
-						Log.e(IConstants.MY_TAG, "IOException occured... finishing thread: "+e);
-						return;
-					}
+	/**
+	 * Finds all the tags of the field on every cycle, with repeated
+	 * InListPassiveTarget rounds, instead of the first two. It applies to the
+	 * next poolings started, except the continuous session mode ones.
+	 * @param maxTags Maximum number of tags found by a cycle, at least 2, or
+	 * 		0 to disable the inventory.
+	 */
+	public void setInventoryMode(int maxTags){
+		if(maxTags < 0 || maxTags == 1){
+			throw new IllegalArgumentException("Invalid inventory size: "+maxTags);
+		}
+		mInventoryTags = maxTags;
+	}
 
-					//pooling pause....
-					poolingSleep(POOLING_TIME);
+	/**
+	 * Resumes the pooling on the channel of a new connection, with the same
+	 * configuration, if it finished because the previous connection failed.
+	 * A pooling stopped with stopPoolingBridge is not resumed.
+	 * @param channel The command channel of the new connection.
+	 * @return True if the pooling was resumed.
+	 */
+	public boolean resumePooling(NFCCommandChannel channel)
+	throws IOException, InterruptedException{
+		NFCReaderSession session = mSession;
+		if(channel==null || session==null || session.getState()!=NFCReaderSession.STATE_FAILED){
+			return false;
+		}
+		//the failed pooling thread may not have noticed the lost connection yet...
+		if(!mLifecycle.getCompletion().await(RESUME_WAIT)){
+			Log.w(IConstants.MY_TAG, "*** resumePooling - The failed pooling thread is still running!");
+			return false;
+		}
+		if(mLifecycle.getState() != NFCPoolerLifecycle.STATE_FAILED){
+			//stopped meanwhile...
+			return false;
+		}
+		Log.i(IConstants.MY_TAG, "*** resumePooling - Resuming the pooling on the new connection");
+		return managerNFCPooling(mContext, session.recreate(channel), true);
+	}
 
-				}///// while //////
+	public void addTagListener(NFCTagListener listener){
+		mDispatcher.addListener(listener);
+	}
 
-				Log.i(IConstants.MY_TAG, "*** managerNFCPooling - Stop Pooling was requested... Finishing thread...");
-				//exiting thread...
-				return;
-			}//run()
-		};
-		mManagerThread.setName("NFCPoolingHandler");
-		mManagerThread.start();
+	public void removeTagListener(NFCTagListener listener){
+		mDispatcher.removeListener(listener);
 	}
 
-	private void poolingSleep(long poolingTime){
+	/**
+	 * Stops the pooling and waits until the pooling thread finishes.
+	 * @return False if the pooling thread did not finish in time.
+	 */
+	public boolean stopPoolingBridge() throws IOException{
+		NFCPoolerLifecycle.Completion completion = stopPooling();
 		try {
-			Thread.sleep(poolingTime);
+			if(!completion.await(STOP_WAIT)){
+				Log.w(IConstants.MY_TAG, "*** stopPoolingBridge - The pooling thread is still running!");
+				return false;
+			}
 		} catch (InterruptedException e) {
-			Log.e(IConstants.MY_TAG,"*** Error while sleeping...");
+			Log.e(IConstants.MY_TAG,"*** Interrupted while waiting the pooling thread...");
+			Thread.currentThread().interrupt();
+			return false;
 		}
+		return true;
 	}
 
-	private void sendMessageViaBluetooth(BluetoothSocket btSocket, byte[] outBuffer)
-	throws IOException {
-		if(btSocket==null || outBuffer==null || outBuffer.length==0){
-			return;
+	/**
+	 * Asks the pooling to stop without waiting. The command running on the
+	 * NFC module is aborted, so the pooling thread finishes after a single
+	 * response time instead of the whole scan.
+	 * @return Done when the pooling thread finishes.
+	 */
+	public NFCPoolerLifecycle.Completion stopPooling(){
+		NFCPoolerLifecycle.Completion completion = mLifecycle.beginStop();
+		NFCReaderSession session = mSession;
+		if(session != null){
+			session.requestStop();
 		}
-		btSocket.getOutputStream().write(outBuffer,0,outBuffer.length);
+		return completion;
 	}
 
-	private List<byte[]> processNFCMessageExtractTags(byte[] buffer, int dataSize){
-		if(buffer==null || buffer.length<dataSize || dataSize <=0){
-			//Should not happen...
-			return Collections.emptyList();
+	/**
+	 * @return The state of the pooling thread, one of the
+	 * 		NFCPoolerLifecycle.STATE_* values.
+	 */
+	public int getPoolingState(){
+		return mLifecycle.getState();
+	}
+
+	/**
+	 * @param resume True to resume a failed pooling, only if it was not
+	 * 		stopped since.
+	 * @return False if a pooling is running.
+	 */
+	private boolean managerNFCPooling(Activity context, final NFCReaderSession session, boolean resume)
+	throws IOException, InterruptedException{
+		NFCPoolerLifecycle.Completion completion;
+		if(resume){
+			//a stop requested while the pooling was failed cancels the resume...
+			completion = mLifecycle.beginResume();
+			if(completion == null){
+				Log.i(IConstants.MY_TAG, "*** managerNFCPooling - The pooling was stopped, not resuming it");
+				return false;
+			}
+		}
+		else{
+			completion = mLifecycle.beginStart();
+			if(completion == null && mLifecycle.getState() == NFCPoolerLifecycle.STATE_STOPPING){
+				//restarted right after a stop... the previous thread is finishing.
+				mLifecycle.getCompletion().await(STOP_WAIT);
+				completion = mLifecycle.beginStart();
+			}
+		}
+		if(completion == null){
+			Log.w(IConstants.MY_TAG, "*** managerNFCPooling - The pooling is already "
+					+NFCPoolerLifecycle.getStateName(mLifecycle.getState()));
+			return false;
 		}
 
-		byte[] nfcData = new byte[dataSize];
-		System.arraycopy(buffer, 0, nfcData, 0, dataSize);
+		//the intent broadcast is just one more listener...
+		if(mBroadcaster != null){
+			mDispatcher.removeListener(mBroadcaster);
+			mBroadcaster = null;
+		}
+		if(context != null){
+			mBroadcaster = new NFCIntentBroadcaster(context, null);
+			mDispatcher.addListener(mBroadcaster);
+		}
 
-		if(NFCFrameHandler.isAcknowledge(nfcData)){
-			return NFCFrameHandler.extractNFCTagData(nfcData);
+		session.setAccessList(mAccessList);
+		session.setNdefReading(mNdefReading);
+		int inventoryTags = mInventoryTags;
+		if(inventoryTags > 0 && !session.setInventoryMode(inventoryTags)){
+			Log.w(IConstants.MY_TAG, "*** managerNFCPooling - No inventory in continuous session mode");
 		}
-		else{
-			return Collections.emptyList();
+		int departureCycles = mDepartureCycles;
+		if(departureCycles > 0){
+			//the tracker must follow all the tags of an inventory...
+			session.setPresenceTracker(new NFCPresenceTracker(Math.max(NFCPresenceTracker.DEFAULT_CAPACITY, inventoryTags),
+					departureCycles, mHeartbeatInterval));
 		}
+		mContext = context;
+		mSession = session;
+		mManagerThread = new Thread() {
+			public void run() {
+				try {
+					if(!mLifecycle.running()){
+						//stopped before the session was known...
+						session.requestStop();
+					}
+					long delay;
+					while((delay = session.step(NFCReaderSession.now())) != NFCReaderSession.FINISHED){
+						//sleeps until the next cycle, or until a response arrives...
+						session.awaitWork(delay);
+					}
+				} catch (InterruptedException e) {
+					Log.e(IConstants.MY_TAG, "*** managerNFCPooling - Interrupted... finishing thread");
+				} finally {
+					mLifecycle.finished(session.getState() == NFCReaderSession.STATE_FAILED);
+				}
+				Log.i(IConstants.MY_TAG, "*** managerNFCPooling - Pooling finished: "
+						+NFCPoolerLifecycle.getStateName(mLifecycle.getState()));
+			}//run()
+		};
+		mManagerThread.setName("NFCPoolingHandler");
+		mManagerThread.start();
+		return true;
 	}
 
 }
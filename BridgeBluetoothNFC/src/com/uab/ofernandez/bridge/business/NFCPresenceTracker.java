@@ -0,0 +1,208 @@
+package com.uab.ofernandez.bridge.business;
+
+/**
+ * Follows the tags staying in the field of a reader, so a card left on the
+ * reader is reported once instead of on every pooling cycle.
+ *
+ * The tags found by every scan are matched against a small fixed-capacity
+ * table of the tags in the field. A new tag gives a
+ * {@link NFCTagEvent#TYPE_ARRIVED} event, a tag still there gives nothing,
+ * or a {@link NFCTagEvent#TYPE_PRESENT} heartbeat every heartbeat interval,
+ * and a tag missing from the scans for the departure number of cycles gives
+ * a {@link NFCTagEvent#TYPE_DEPARTED} event. Every event carries the time
+ * the tag has been in the field.
+ *
+ * When the table is full the new tags are not tracked: they are reported
+ * with {@link NFCTagEvent#TYPE_DETECTED} events on every cycle, like without
+ * tracking, and counted.
+ *
+ * It is used by a single pooling session at a time, from its thread. The
+ * events are built in an internal array reused on every update.
+ */
+public final class NFCPresenceTracker {
+
+	public static final int DEFAULT_CAPACITY = 16;
+
+	private final int mDepartureCycles;
+	private final long mHeartbeatInterval;
+
+	//Tags in the field.
+	private final NFCTagId[] mTags;
+	private final int[] mAccess;
+	private final long[] mFirstSeen;
+	private final long[] mLastSeen;
+	private final long[] mLastReported;
+	private final int[] mMissedCycles;
+	//True for the entries found by the current update.
+	private final boolean[] mSeen;
+	private int mSize = 0;
+
+	private final NFCTagEvent[] mEvents;
+	private int mEventCount = 0;
+	private long mUntracked = 0;
+
+	/**
+	 * @param capacity Maximum number of tags followed at once.
+	 * @param departureCycles Number of consecutive scans without a tag
+	 * 		before it is reported as departed. 1 reports it at the first scan
+	 * 		missing it. A higher value hides the scans that miss a tag still in
+	 * 		the field.
+	 * @param heartbeatInterval Time between the PRESENT events of a tag in
+	 * 		the field, in miliseconds, or 0 to send none.
+	 */
+	public NFCPresenceTracker(int capacity, int departureCycles, long heartbeatInterval){
+		if(capacity <= 0 || departureCycles <= 0 || heartbeatInterval < 0){
+			throw new IllegalArgumentException("Invalid presence tracking: "+capacity+"/"+departureCycles+"/"+heartbeatInterval);
+		}
+		mDepartureCycles = departureCycles;
+		mHeartbeatInterval = heartbeatInterval;
+		mTags = new NFCTagId[capacity];
+		mAccess = new int[capacity];
+		mFirstSeen = new long[capacity];
+		mLastSeen = new long[capacity];
+		mLastReported = new long[capacity];
+		mMissedCycles = new int[capacity];
+		mSeen = new boolean[capacity];
+		//every tag in the field can depart while as many tags are detected.
+		mEvents = new NFCTagEvent[2 * capacity + NFCReaderSession.MAX_TAGS_PER_SCAN];
+	}
+
+	/**
+	 * Matches the tags of a scan against the tags in the field.
+	 * @param tags The tags found by the scan. Empty if none.
+	 * @param messages The NDEF messages of the tags, by position, or null.
+	 * @param readerId Added to the events.
+	 * @param timestamp The scan time, in miliseconds since the epoch.
+	 * @return The number of events, see {@link #getEvent(int)}.
+	 */
+	public int update(NFCTagList tags, NFCNdefMessage[] messages, String readerId, long timestamp){
+		mEventCount = 0;
+		for(int i=0; i<mSize; i++){
+			mSeen[i] = false;
+		}
+		for(int t=0; t<tags.size() && mEventCount < mEvents.length; t++){
+			NFCNdefMessage message = messages == null || t >= messages.length ? null : messages[t];
+			int entry = find(tags, t);
+			if(entry >= 0){
+				mSeen[entry] = true;
+				mLastSeen[entry] = timestamp;
+				mMissedCycles[entry] = 0;
+				mAccess[entry] = tags.getAccess(t);
+				if(mHeartbeatInterval > 0 && timestamp - mLastReported[entry] >= mHeartbeatInterval){
+					mLastReported[entry] = timestamp;
+					addEvent(readerId, entry, timestamp, NFCTagEvent.TYPE_PRESENT, message);
+				}
+				continue;
+			}
+			NFCTagId tagId = tags.getTagId(t);
+			if(mSize == mTags.length){
+				mUntracked++;
+				mEvents[mEventCount++] = new NFCTagEvent(readerId, tagId, timestamp, tags.getAccess(t), message);
+				continue;
+			}
+			entry = mSize++;
+			mTags[entry] = tagId;
+			mAccess[entry] = tags.getAccess(t);
+			mFirstSeen[entry] = mLastSeen[entry] = mLastReported[entry] = timestamp;
+			mMissedCycles[entry] = 0;
+			mSeen[entry] = true;
+			addEvent(readerId, entry, timestamp, NFCTagEvent.TYPE_ARRIVED, message);
+		}
+
+		for(int i=mSize-1; i>=0; i--){
+			if(!mSeen[i] && ++mMissedCycles[i] >= mDepartureCycles){
+				depart(readerId, i, timestamp);
+			}
+		}
+		return mEventCount;
+	}
+
+	/**
+	 * Reports all the tags in the field as departed, for instance when the
+	 * pooling stops.
+	 * @return The number of events, see {@link #getEvent(int)}.
+	 */
+	public int departAll(String readerId, long timestamp){
+		mEventCount = 0;
+		for(int i=mSize-1; i>=0; i--){
+			depart(readerId, i, timestamp);
+		}
+		return mEventCount;
+	}
+
+	/**
+	 * @return An event of the last update. The array is reused by the next
+	 * 		update, the events are not.
+	 */
+	public NFCTagEvent getEvent(int index){
+		return mEvents[index];
+	}
+
+	/**
+	 * @return True if a tag found by a scan is already in the field, for
+	 * 		instance to avoid reading its memory again.
+	 */
+	public boolean isPresent(NFCTagList tags, int index){
+		return find(tags, index) >= 0;
+	}
+
+	/**
+	 * @return The number of tags in the field.
+	 */
+	public int getPresentCount(){
+		return mSize;
+	}
+
+	/**
+	 * @return The number of detections not tracked because the table was full.
+	 */
+	public long getUntracked(){
+		return mUntracked;
+	}
+
+	/*************************************************************************/
+
+	private int find(NFCTagList tags, int index){
+		byte[] buffer = tags.getUidBuffer();
+		int offset = tags.getUidOffset(index);
+		int length = tags.getUidLength(index);
+		for(int i=0; i<mSize; i++){
+			NFCTagId tagId = mTags[i];
+			if(tagId.length() != length){
+				continue;
+			}
+			int j = 0;
+			while(j < length && tagId.getByte(j) == buffer[offset + j]){
+				j++;
+			}
+			if(j == length){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void addEvent(String readerId, int entry, long timestamp, int type, NFCNdefMessage message){
+		mEvents[mEventCount++] = new NFCTagEvent(readerId, mTags[entry], timestamp, mAccess[entry], message,
+				type, timestamp - mFirstSeen[entry]);
+	}
+
+	/**
+	 * Reports a tag as departed and removes it, moving the last entry to its place.
+	 */
+	private void depart(String readerId, int entry, long timestamp){
+		if(mEventCount < mEvents.length){
+			mEvents[mEventCount++] = new NFCTagEvent(readerId, mTags[entry], timestamp, mAccess[entry], null,
+					NFCTagEvent.TYPE_DEPARTED, mLastSeen[entry] - mFirstSeen[entry]);
+		}
+		int last = --mSize;
+		mTags[entry] = mTags[last];
+		mAccess[entry] = mAccess[last];
+		mFirstSeen[entry] = mFirstSeen[last];
+		mLastSeen[entry] = mLastSeen[last];
+		mLastReported[entry] = mLastReported[last];
+		mMissedCycles[entry] = mMissedCycles[last];
+		mSeen[entry] = mSeen[last];
+		mTags[last] = null;
+	}
+}
@@ -0,0 +1,689 @@
+package com.uab.ofernandez.bridge.business;
+
+import com.uab.ofernandez.bridge.api.IConstants;
+
+/**
+ * Pooling state machine of one NFC reader.
+ *
+ * Every call to {@link #step(long)} makes the progress possible without
+ * blocking and returns how long the caller can wait before the next call.
+ * This lets a dedicated thread ({@link NFCPoolingHandler}) or a shared
+ * thread pool (the reader manager) drive the pooling of the reader.
+ *
+ * A pooling cycle is: wake up, scan tag and power down. In continuous
+ * session mode the NFC hardware is woken up once and kept scanning with a
+ * long running InAutoPoll, and it is only powered down when the pooling is
+ * stopped.
+ *
+ * When the memory reading is enabled, the NDEF message of every type 2 tag
+ * found by a scan is read before the tags are dispatched, while the tag is
+ * still activated by the scan.
+ *
+ * In inventory mode the scan is replaced by an inventory pass, see
+ * {@link NFCTagInventory}, that finds all the tags of the field instead of
+ * the first two. The pass is dispatched as a single scan.
+ */
+public final class NFCReaderSession implements NFCCommandListener {
+
+	/**************************************************************************
+	 * Session states
+	 **************************************************************************/
+	public static final int STATE_IDLE = 0;
+	public static final int STATE_WAKE_UP = 1;
+	public static final int STATE_SCAN = 2;
+	public static final int STATE_POWER_DOWN = 3;
+	public static final int STATE_STOPPING = 4;
+	public static final int STATE_FINISHED = 5;
+	public static final int STATE_FAILED = 6;
+	public static final int STATE_READ_MEMORY = 7;
+	public static final int STATE_INVENTORY = 8;
+
+	/** Returned by {@link #step(long)} when the session is over. */
+	public static final long FINISHED = -1;
+
+	/*
+	 * Establishes the maximum time to wait for the response of each command.
+	 * The responses are handled as soon as they are complete, so these values
+	 * only matter when the NFC module does not answer in time.
+	 *
+	 * DO NOT lower these parameters if you don't know what you're doing!
+	 * The scan command keeps the NFC module busy while it pools the field.
+	 */
+	private static final long RX_DEADLINE_WAKE_UP = 500;
+	private static final long RX_DEADLINE_READ_TAG = 1000;
+	private static final long RX_DEADLINE_POWERDOWN = 500;
+	private static final long RX_DEADLINE_READ_MEMORY = 200;
+	//Events written to the log when the pooling fails.
+	private static final int TRACE_DUMP_EVENTS = 64;
+	//Minimum pause between two pooling cycles.
+	private static final long MIN_POOLING_PAUSE = 150;
+	//Time unit of the InAutoPoll period and number of tag types pooled.
+	private static final long SCAN_PERIOD_UNIT = 150;
+	private static final int SCAN_TAG_TYPES = 2;
+	static final int MAX_TAGS_PER_SCAN = 2;
+
+	//debug flag: dumps the trace to the log when the pooling fails.
+	private boolean D = IConstants.DEBUG_ENABLED;
+
+	private final String mReaderId;
+	private final NFCCommandChannel mChannel;
+	private final NFCReaderStats mStats;
+	private final NFCTrace mTrace;
+	private final NFCTagDispatcher mDispatcher;
+	private final long mPoolingTime;
+
+	/*
+	 * Commands of the pooling cycle. They are reused on every cycle.
+	 */
+	private final NFCCommandFuture mWakeUpCommand;
+	private final NFCCommandFuture mPowerDownCommand;
+	private NFCCommandFuture mScanTagCommand;
+	private boolean mSessionMode = false;
+	private int mPollNr;
+	private int mPeriod;
+	//Decides the pooling period from the tags activity. Can be null.
+	private NFCAdaptivePoolingScheduler mScheduler;
+	//Checks the tags before they are dispatched. Can be null.
+	private volatile NFCAccessList mAccessList;
+	//Reads the NDEF message of the tags. Null if the reading is disabled.
+	private NFCTagMemoryReader mMemoryReader;
+	//Follows the tags in the field. Null if every scan dispatches its tags.
+	private NFCPresenceTracker mPresenceTracker;
+	//Enumerates all the tags of the field. Null if the scan is an InAutoPoll.
+	private NFCTagInventory mInventory;
+	//Tag of the last scan being read, and the messages read.
+	private int mReadTag;
+	private NFCNdefMessage[] mNdefMessages = new NFCNdefMessage[MAX_TAGS_PER_SCAN];
+
+	//Tags found in the last scan. Reused on every cycle.
+	private NFCTagList mTagList = new NFCTagList(MAX_TAGS_PER_SCAN);
+
+	private volatile boolean mStopRequested = false;
+	private volatile int mState = STATE_IDLE;
+	private boolean mNfcAwake = false;
+	//True once the commands running when the stop was requested are aborted.
+	private boolean mAborted = false;
+	private long mCycleStart = -1;
+	private long mCycleStartNanos = 0;
+	private int mCycleCount = 0;
+	private long mNextCycle = 0;
+	private boolean mTagsDetected = false;
+	//Pooling cycles per second, smoothed.
+	private volatile float mPoolingRate = 0;
+	private static final float RATE_SMOOTHING = 0.2f;
+
+	//Set when a command completes, to wake up a waiting driver thread.
+	private boolean mCompleted = false;
+
+	/**
+	 * @param readerId Identifier of the reader, added to the tags events. Can
+	 * 		be null when there is a single reader.
+	 * @param channel The command channel of the reader connection.
+	 * @param dispatcher Delivers the readed tags to the listeners.
+	 * @param poolingTime The pooling period in miliseconds.
+	 */
+	public NFCReaderSession(String readerId, NFCCommandChannel channel, NFCTagDispatcher dispatcher, long poolingTime){
+		mReaderId = readerId;
+		mChannel = channel;
+		mStats = channel.getStats();
+		mTrace = channel.getTrace();
+		mDispatcher = dispatcher;
+		mPoolingTime = poolingTime;
+		mWakeUpCommand = new NFCCommandFuture(NFCFrameHandler.TX_NFC_WAKE_UP, RX_DEADLINE_WAKE_UP, this);
+		mPowerDownCommand = new NFCCommandFuture(NFCFrameHandler.TX_NFC_POWER_DOWN, RX_DEADLINE_POWERDOWN, this);
+		mScanTagCommand = new NFCCommandFuture(NFCFrameHandler.TX_NFC_SCAN_TAG, RX_DEADLINE_READ_TAG, this);
+	}
+
+	/**
+	 * Switches the session to continuous session mode. Must be called before
+	 * the first step.
+	 * @param pollNr Number of pooling rounds per scan, from 0x01 to 0xFE.
+	 * @param period Pooling period in units of 150ms, from 0x01 to 0x0F.
+	 * @return False if the parameters are not valid, or in inventory mode.
+	 */
+	public boolean setSessionMode(int pollNr, int period){
+		if(pollNr < 0x01 || pollNr > 0xFE || period < 0x01 || period > 0x0F || mInventory != null){
+			return false;
+		}
+		mSessionMode = true;
+		mPollNr = pollNr;
+		mPeriod = period;
+		mScanTagCommand = new NFCCommandFuture(NFCFrameHandler.buildScanTagCall(pollNr, period),
+				pollNr * period * SCAN_PERIOD_UNIT * SCAN_TAG_TYPES + RX_DEADLINE_READ_TAG, this);
+		return true;
+	}
+
+	/**
+	 * Switches the session to inventory mode: every cycle finds all the
+	 * ISO14443A tags of the field, up to maxTags, with repeated
+	 * InListPassiveTarget rounds. The tags are released by the inventory, so
+	 * their NDEF message is not read. Must be called before the first step.
+	 * @param maxTags Maximum number of tags of a pass, at least 2. 0 to scan
+	 * 		with InAutoPoll.
+	 * @return False if maxTags is not valid, or in continuous session mode.
+	 */
+	public boolean setInventoryMode(int maxTags){
+		if(maxTags == 0){
+			mInventory = null;
+			mTagList = new NFCTagList(MAX_TAGS_PER_SCAN);
+			mNdefMessages = new NFCNdefMessage[MAX_TAGS_PER_SCAN];
+			return true;
+		}
+		if(maxTags < MAX_TAGS_PER_SCAN || mSessionMode){
+			return false;
+		}
+		mInventory = new NFCTagInventory(mChannel, RX_DEADLINE_READ_TAG, this);
+		mTagList = new NFCTagList(maxTags);
+		mNdefMessages = new NFCNdefMessage[maxTags];
+		return true;
+	}
+
+	/**
+	 * @return The inventory of the session, to read the throughput of the
+	 * 		last pass, or null if it is not in inventory mode.
+	 */
+	public NFCTagInventory getInventory(){
+		return mInventory;
+	}
+
+	/**
+	 * Makes the pooling period follow the tags activity instead of being
+	 * fixed. Must be called before the first step.
+	 * @param scheduler The scheduler. It must not be shared with other sessions.
+	 */
+	public void setAdaptiveScheduler(NFCAdaptivePoolingScheduler scheduler){
+		mScheduler = scheduler;
+	}
+
+	/**
+	 * Reads the NDEF message of the type 2 tags (NTAG, Mifare Ultralight)
+	 * found by every scan. The tags denied by the access list are not read.
+	 * Must be called before the first step.
+	 * @param enabled True to read the tags memory.
+	 */
+	public void setNdefReading(boolean enabled){
+		mMemoryReader = enabled ? new NFCTagMemoryReader(mChannel, RX_DEADLINE_READ_MEMORY, this) : null;
+	}
+
+	/**
+	 * Reports the tags entering and leaving the field instead of the tags of
+	 * every scan. With the NDEF reading, a tag is read only when it arrives.
+	 * Must be called before the first step.
+	 * @param tracker The tracker, or null to dispatch the tags of every scan.
+	 * 		It must not be shared with other sessions.
+	 */
+	public void setPresenceTracker(NFCPresenceTracker tracker){
+		mPresenceTracker = tracker;
+	}
+
+	/**
+	 * Sets the allow/deny list checked for every detected tag. It can be
+	 * replaced at any time, from any thread.
+	 * @param accessList The list, or null to stop checking the tags.
+	 */
+	public void setAccessList(NFCAccessList accessList){
+		mAccessList = accessList;
+	}
+
+	/**
+	 * Builds a new session with the same configuration (mode, pooling
+	 * period, scheduler, access list, presence tracker and inventory) on
+	 * another channel. Used to resume the pooling after a reconnection.
+	 * @param channel The command channel of the new connection.
+	 * @return The new session, not started.
+	 */
+	public NFCReaderSession recreate(NFCCommandChannel channel){
+		NFCReaderSession session = new NFCReaderSession(mReaderId, channel, mDispatcher, mPoolingTime);
+		if(mSessionMode){
+			session.setSessionMode(mPollNr, mPeriod);
+		}
+		if(mInventory != null){
+			session.setInventoryMode(mTagList.getCapacity());
+		}
+		session.setAdaptiveScheduler(mScheduler);
+		session.setAccessList(mAccessList);
+		session.setNdefReading(mMemoryReader != null);
+		session.setPresenceTracker(mPresenceTracker);
+		return session;
+	}
+
+	/**
+	 * @return The effective number of pooling cycles per second.
+	 */
+	public float getEffectivePoolingRate(){
+		return mPoolingRate;
+	}
+
+	public String getReaderId(){
+		return mReaderId;
+	}
+
+	public NFCCommandChannel getChannel(){
+		return mChannel;
+	}
+
+	public NFCReaderStats getStats(){
+		return mStats;
+	}
+
+	public int getState(){
+		return mState;
+	}
+
+	public boolean isFinished(){
+		return mState == STATE_FINISHED || mState == STATE_FAILED;
+	}
+
+	/**
+	 * @return True if the session is waiting for the response of a command.
+	 */
+	public boolean isAwaitingResponse(){
+		int state = mState;
+		return state == STATE_WAKE_UP || state == STATE_SCAN || state == STATE_READ_MEMORY || state == STATE_INVENTORY
+			|| state == STATE_POWER_DOWN || state == STATE_STOPPING;
+	}
+
+	/**
+	 * Asks the session to finish. The command running on the NFC module is
+	 * aborted at the next step, and the NFC hardware is powered down first
+	 * if needed. It can be called from any thread.
+	 */
+	public void requestStop(){
+		mStopRequested = true;
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Advances the pooling without blocking.
+	 * @param now The current time in miliseconds, see {@link #now()}.
+	 * @return The time in miliseconds until the next step is needed, or
+	 * 		{@link #FINISHED}. While waiting for a response the returned time
+	 * 		is the command deadline, but the step should be repeated as soon as
+	 * 		new data is received.
+	 */
+	public long step(long now){
+		while(true){
+			switch (mState) {
+			case STATE_IDLE:
+				if(mStopRequested){
+					//after an abort the module can be left awake in any mode...
+					if((mAborted || (mSessionMode && mNfcAwake)) && mChannel.submit(mPowerDownCommand)){
+						mState = STATE_STOPPING;
+						continue;
+					}
+					mState = STATE_FINISHED;
+					continue;
+				}
+				if(now < mNextCycle){
+					return mNextCycle - now;
+				}
+				if(!startCycle(now)){
+					NFCLog.e(IConstants.MY_TAG, "*** Error while sending message... finishing pooling");
+					mState = STATE_FAILED;
+					continue;
+				}
+				continue;
+
+			case STATE_WAKE_UP:
+				abortOnStop();
+				if(!mWakeUpCommand.isDone()){
+					return RX_DEADLINE_WAKE_UP;
+				}
+				recordLatency(NFCReaderStats.PHASE_WAKE_UP, mWakeUpCommand);
+				if(isChannelFailed(mWakeUpCommand)){
+					continue;
+				}
+				mNfcAwake = mWakeUpCommand.getStatus() == NFCCommandFuture.STATUS_DONE;
+				if(mInventory == null){
+					mState = STATE_SCAN;
+				}
+				else if(mInventory.start(mTagList)){
+					mState = STATE_INVENTORY;
+				}
+				else{
+					NFCLog.e(IConstants.MY_TAG, "*** Error while sending message... finishing pooling");
+					mState = STATE_FAILED;
+				}
+				continue;
+
+			case STATE_SCAN:
+				abortOnStop();
+				if(!mScanTagCommand.isDone()){
+					return mScanTagCommand.getTimeout();
+				}
+				recordLatency(NFCReaderStats.PHASE_SCAN, mScanTagCommand);
+				if(isChannelFailed(mScanTagCommand)){
+					continue;
+				}
+				processScanResponse();
+				if(mMemoryReader != null && mTagsDetected){
+					mReadTag = -1;
+					if(startNextRead()){
+						mState = STATE_READ_MEMORY;
+						continue;
+					}
+				}
+				if(mTagsDetected || mScanTagCommand.getStatus() == NFCCommandFuture.STATUS_DONE){
+					dispatchTags();
+				}
+				finishScan(now);
+				continue;
+
+			case STATE_READ_MEMORY:
+				abortOnStop();
+				int readState = mMemoryReader.step();
+				if(readState == NFCTagMemoryReader.STATE_READING){
+					return RX_DEADLINE_READ_MEMORY;
+				}
+				if(mMemoryReader.getLastReadStatus() == NFCCommandFuture.STATUS_IO_ERROR){
+					NFCLog.e(IConstants.MY_TAG, "IOException occured... finishing pooling of reader "+mReaderId+": "+mChannel.getFailure());
+					mState = STATE_FAILED;
+					continue;
+				}
+				if(readState == NFCTagMemoryReader.STATE_DONE){
+					mStats.recordLatency(NFCReaderStats.PHASE_READ_MEMORY, System.nanoTime() - mMemoryReader.getStartNanos());
+					mNdefMessages[mReadTag] = mMemoryReader.getMessage();
+				}
+				else{
+					mStats.increment(NFCReaderStats.COUNTER_READ_ERRORS);
+				}
+				if(!startNextRead()){
+					dispatchTags();
+					finishScan(now);
+				}
+				continue;
+
+			case STATE_INVENTORY:
+				abortOnStop();
+				int inventoryState = mInventory.step();
+				if(inventoryState == NFCTagInventory.STATE_RUNNING){
+					return RX_DEADLINE_READ_TAG;
+				}
+				if(mInventory.getLastStatus() == NFCCommandFuture.STATUS_IO_ERROR){
+					NFCLog.e(IConstants.MY_TAG, "IOException occured... finishing pooling of reader "+mReaderId+": "+mChannel.getFailure());
+					mState = STATE_FAILED;
+					continue;
+				}
+				if(inventoryState == NFCTagInventory.STATE_DONE){
+					mStats.recordLatency(NFCReaderStats.PHASE_INVENTORY, mInventory.getElapsedNanos());
+					if(mTagList.isEmpty()){
+						mStats.increment(NFCReaderStats.COUNTER_NO_CARD);
+					}
+				}
+				else if(mInventory.getLastStatus() != NFCCommandFuture.STATUS_CANCELLED){
+					NFCLog.w(IConstants.MY_TAG, "*** NFCReaderSession - Inventory failed after "+mInventory.getRounds()
+							+" rounds: "+mInventory.getLastStatus());
+				}
+				acceptTags();
+				if(mTagsDetected || inventoryState == NFCTagInventory.STATE_DONE){
+					dispatchTags();
+				}
+				finishScan(now);
+				continue;
+
+			case STATE_POWER_DOWN:
+				if(!mPowerDownCommand.isDone()){
+					return RX_DEADLINE_POWERDOWN;
+				}
+				recordLatency(NFCReaderStats.PHASE_POWER_DOWN, mPowerDownCommand);
+				if(isChannelFailed(mPowerDownCommand)){
+					continue;
+				}
+				recordCycle(mPowerDownCommand);
+				scheduleNextCycle(now);
+				continue;
+
+			case STATE_STOPPING:
+				if(!mPowerDownCommand.isDone()){
+					return RX_DEADLINE_POWERDOWN;
+				}
+				mState = STATE_FINISHED;
+				continue;
+
+			default:
+				//STATE_FINISHED or STATE_FAILED
+				if(mPresenceTracker != null){
+					//nobody follows the field anymore...
+					postPresenceEvents(mPresenceTracker.departAll(mReaderId, System.currentTimeMillis()));
+				}
+				mTrace.record(NFCTrace.EVENT_STOP, -1, mState, 0);
+				if(mState == STATE_FAILED && D){
+					mTrace.dumpToLog(NFCLog.WARN, IConstants.MY_TAG, TRACE_DUMP_EVENTS);
+				}
+				NFCLog.i(IConstants.MY_TAG, "*** NFCReaderSession - Finishing pooling of reader "+mReaderId);
+				return FINISHED;
+			}
+		}
+	}
+
+	/**
+	 * Waits until a command completes, the stop is requested or the timeout
+	 * expires. Used by the threads dedicated to a single session.
+	 * @param timeout Maximum time to wait, in miliseconds.
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitWork(long timeout) throws InterruptedException{
+		if(!mCompleted && !mStopRequested && timeout > 0){
+			wait(timeout);
+		}
+		mCompleted = false;
+	}
+
+	@Override
+	public void onCommandCompleted(NFCCommandFuture command) {
+		synchronized (this) {
+			mCompleted = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @return The current time in miliseconds, from a monotonic clock.
+	 */
+	public static long now(){
+		return System.nanoTime() / 1000000L;
+	}
+
+	/**
+	 * Aborts the commands of the cycle when the stop is requested, so the
+	 * stop does not wait for a scan that can last seconds. The power down
+	 * is not aborted.
+	 */
+	private void abortOnStop(){
+		if(mStopRequested && !mAborted){
+			mAborted = true;
+			int cancelled = mChannel.abort();
+			NFCLog.i(IConstants.MY_TAG, "*** NFCReaderSession - Stop requested, "+cancelled+" commands aborted on reader "+mReaderId);
+		}
+	}
+
+	private boolean startCycle(long now){
+		if(mCycleStart >= 0 && now > mCycleStart){
+			float rate = 1000f / (now - mCycleStart);
+			mPoolingRate = mPoolingRate == 0 ? rate : mPoolingRate + RATE_SMOOTHING * (rate - mPoolingRate);
+		}
+		mCycleStart = now;
+		mCycleStartNanos = System.nanoTime();
+		mStats.increment(NFCReaderStats.COUNTER_CYCLES);
+		mTrace.record(NFCTrace.EVENT_CYCLE, -1, ++mCycleCount, 0);
+		boolean wakeUp = !mSessionMode || !mNfcAwake;
+
+		/*
+		 * All the commands of the cycle are queued at once. The channel
+		 * writes each one as soon as the previous response is received.
+		 */
+		if((wakeUp && !mChannel.submit(mWakeUpCommand))
+				|| (mInventory == null && !mChannel.submit(mScanTagCommand))
+				|| (!mSessionMode && mMemoryReader == null && mInventory == null && !mChannel.submit(mPowerDownCommand))){
+			return false;
+		}
+		mState = wakeUp ? STATE_WAKE_UP : STATE_SCAN;
+		return true;
+	}
+
+	/**
+	 * Ends the cycle after the scan: powers down the NFC hardware, or waits
+	 * for the next scan in session mode.
+	 */
+	private void finishScan(long now){
+		if(mSessionMode){
+			recordCycle(mScanTagCommand);
+			scheduleNextCycle(now);
+		}
+		else if((mMemoryReader != null || mInventory != null) && !mChannel.submit(mPowerDownCommand)){
+			//the power down waits for the tags memory or the inventory rounds...
+			NFCLog.e(IConstants.MY_TAG, "*** Error while sending message... finishing pooling");
+			mState = STATE_FAILED;
+		}
+		else{
+			mState = STATE_POWER_DOWN;
+		}
+	}
+
+	/**
+	 * Starts reading the memory of the next tag of the last scan that can
+	 * hold a NDEF message.
+	 * @return False if there are no more tags to read.
+	 */
+	private boolean startNextRead(){
+		while(!mStopRequested && ++mReadTag < mTagList.size()){
+			if(mTagList.getCardType(mReadTag) != NFCCardType.MIFARE_TYPE
+					|| mTagList.getAccess(mReadTag) == NFCAccessList.ACCESS_DENIED
+					|| (mPresenceTracker != null && mPresenceTracker.isPresent(mTagList, mReadTag))){
+				continue;
+			}
+			//the NFC module numbers the targets of the scan from 1...
+			if(mMemoryReader.start(mReadTag + 1)){
+				return true;
+			}
+			mStats.increment(NFCReaderStats.COUNTER_READ_ERRORS);
+		}
+		return false;
+	}
+
+	private void scheduleNextCycle(long now){
+		//pooling pause.... the time spent waiting for the responses
+		//is already part of the pooling period.
+		long poolingTime = mScheduler == null ? mPoolingTime : mScheduler.nextPoolingTime(now, mTagsDetected);
+		long pause = poolingTime - (now - mCycleStart);
+		if(!mSessionMode && mScheduler == null){
+			pause = Math.max(pause, MIN_POOLING_PAUSE);
+		}
+		//the NFC module already paces the session scans...
+		mNextCycle = now + Math.max(pause, 0);
+		mState = STATE_IDLE;
+	}
+
+	private boolean isChannelFailed(NFCCommandFuture command){
+		if(command.getStatus() == NFCCommandFuture.STATUS_IO_ERROR){
+			NFCLog.e(IConstants.MY_TAG, "IOException occured... finishing pooling of reader "+mReaderId+": "+mChannel.getFailure());
+			mState = STATE_FAILED;
+			return true;
+		}
+		return false;
+	}
+
+	private void processScanResponse(){
+		int status = mScanTagCommand.getStatus();
+		byte[] response = mScanTagCommand.getResponse();
+		int numBytesRead = mScanTagCommand.getResponseLength();
+		mTagsDetected = false;
+
+		if(status != NFCCommandFuture.STATUS_DONE){
+			if(status != NFCCommandFuture.STATUS_CANCELLED){
+				NFCLog.w(IConstants.MY_TAG, "*** NFCReaderSession - Scan tag response failed: "+status);
+			}
+			return;
+		}
+		mTagList.clear();
+		for(int i=0; i<mNdefMessages.length; i++){
+			mNdefMessages[i] = null;
+		}
+		if(NFCFrameHandler.isNoCardDetectedRXMsg(response, numBytesRead)){
+			mStats.increment(NFCReaderStats.COUNTER_NO_CARD);
+			return;
+		}
+
+		//enters here if the message IS NOT a "no card" NFC response...
+		if(NFCFrameHandler.isAcknowledge(response, 0, numBytesRead)){
+			NFCFrameHandler.extractNFCTagData(response, 0, numBytesRead, mTagList);
+		}
+		acceptTags();
+	}
+
+	/**
+	 * Counts the tags of the last scan and checks them against the access
+	 * list. The response frames are already in the trace.
+	 */
+	private void acceptTags(){
+		mTagsDetected = false;
+		mTrace.record(NFCTrace.EVENT_TAGS, -1, 0, mTagList.size());
+		if(!mTagList.isEmpty()){
+			mTagsDetected = true;
+			mStats.add(NFCReaderStats.COUNTER_TAGS, mTagList.size());
+			NFCAccessList accessList = mAccessList;
+			if(accessList != null){
+				accessList.check(mTagList);
+			}
+		}
+	}
+
+	/**
+	 * Hands the tags of the last scan to the listeners, without waiting for
+	 * them. With presence tracking, only the arrivals and departures.
+	 */
+	private void dispatchTags(){
+		long timestamp = System.currentTimeMillis();
+		if(mPresenceTracker != null){
+			postPresenceEvents(mPresenceTracker.update(mTagList, mNdefMessages, mReaderId, timestamp));
+			return;
+		}
+		if(mTagList.isEmpty()){
+			return;
+		}
+		//the tags of the scan are posted together, to reach the listeners in the same call...
+		NFCTagEvent[] events = new NFCTagEvent[mTagList.size()];
+		for(int i=0; i<events.length; i++){
+			events[i] = new NFCTagEvent(mReaderId, mTagList.getTagId(i), timestamp, mTagList.getAccess(i), mNdefMessages[i]);
+		}
+		postEvents(events, events.length);
+	}
+
+	private void postPresenceEvents(int count){
+		if(count == 0){
+			return;
+		}
+		NFCTagEvent[] events = new NFCTagEvent[count];
+		for(int i=0; i<count; i++){
+			events[i] = mPresenceTracker.getEvent(i);
+		}
+		postEvents(events, count);
+	}
+
+	private void postEvents(NFCTagEvent[] events, int count){
+		if(!mDispatcher.post(events, count)){
+			NFCLog.w(IConstants.MY_TAG, "*** NFCReaderSession - Tag listeners too slow, "+count
+					+" events dropped on reader "+mReaderId);
+		}
+	}
+
+	/**
+	 * Records the response time of a command answered by the NFC module.
+	 */
+	private void recordLatency(int phase, NFCCommandFuture command){
+		if(command.getStatus() == NFCCommandFuture.STATUS_DONE){
+			mStats.recordLatency(phase, command.getLatency());
+		}
+	}
+
+	/**
+	 * Records the duration of the cycle ended by a command.
+	 */
+	private void recordCycle(NFCCommandFuture lastCommand){
+		if(lastCommand.getStatus() == NFCCommandFuture.STATUS_DONE){
+			mStats.recordLatency(NFCReaderStats.PHASE_CYCLE, lastCommand.getCompletedTime() - mCycleStartNanos);
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package com.uab.ofernandez.bridge.business;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies and counters of the pooling of one reader.
+ *
+ * The command channel counts the bytes and the link errors, and the pooling
+ * session records how long the NFC module takes to answer every phase of the
+ * cycle. All the values are kept in preallocated atomic arrays, so recording
+ * never allocates and never blocks the pooling. They can be read at any time
+ * with {@link #snapshot(boolean)}, from any thread.
+ */
+public final class NFCReaderStats {
+
+	/**************************************************************************
+	 * Pooling phases
+	 **************************************************************************/
+	//From the wake up command written to its response.
+	public static final int PHASE_WAKE_UP = 0;
+	//From the scan command written to its response.
+	public static final int PHASE_SCAN = 1;
+	//From the power down command written to its response.
+	public static final int PHASE_POWER_DOWN = 2;
+	//From the start of the cycle to the last response of the cycle.
+	public static final int PHASE_CYCLE = 3;
+	//From the first page read of a tag to its complete NDEF message.
+	public static final int PHASE_READ_MEMORY = 4;
+	//From the first command of an inventory pass to its last response.
+	public static final int PHASE_INVENTORY = 5;
+	public static final int PHASE_COUNT = 6;
+
+	/**************************************************************************
+	 * Counters
+	 **************************************************************************/
+	public static final int COUNTER_BYTES_IN = 0;
+	public static final int COUNTER_BYTES_OUT = 1;
+	public static final int COUNTER_CYCLES = 2;
+	//Scan responses without any tag.
+	public static final int COUNTER_NO_CARD = 3;
+	//Frames dropped because of a wrong length or data checksum.
+	public static final int COUNTER_CHECKSUM_ERRORS = 4;
+	//Commands whose response was missing or incomplete at the deadline.
+	public static final int COUNTER_SHORT_READS = 5;
+	public static final int COUNTER_NACKS = 6;
+	public static final int COUNTER_ERROR_FRAMES = 7;
+	public static final int COUNTER_IO_ERRORS = 8;
+	//Tags detected, including the same tag in consecutive cycles.
+	public static final int COUNTER_TAGS = 9;
+	//Tags whose NDEF message could not be read.
+	public static final int COUNTER_READ_ERRORS = 10;
+	//Commands written again after a missed deadline.
+	public static final int COUNTER_RETRIES = 11;
+	//Commands never acknowledged by the NFC module, even after the retries.
+	public static final int COUNTER_STALLS = 12;
+	public static final int COUNTER_COUNT = 13;
+
+	private static final String[] PHASE_NAMES = {"wake up", "scan", "power down", "cycle", "read memory", "inventory"};
+	private static final String[] COUNTER_NAMES = {"bytes in", "bytes out", "cycles", "no card",
+		"checksum errors", "short reads", "NACKs", "error frames", "IO errors", "tags", "read errors",
+		"retries", "stalls"};
+
+	private final NFCLatencyHistogram[] mPhases = new NFCLatencyHistogram[PHASE_COUNT];
+	private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_COUNT);
+	//Start of the current measure interval, System.nanoTime().
+	private volatile long mIntervalStart = System.nanoTime();
+
+	public NFCReaderStats(){
+		for(int i=0; i<PHASE_COUNT; i++){
+			mPhases[i] = new NFCLatencyHistogram();
+		}
+	}
+
+	/**
+	 * Records the latency of a phase.
+	 * @param phase One of the PHASE_* constants.
+	 * @param nanos The latency in nanoseconds. Negative values are ignored.
+	 */
+	public void recordLatency(int phase, long nanos){
+		if(nanos >= 0){
+			mPhases[phase].record(nanos / 1000L);
+		}
+	}
+
+	public void increment(int counter){
+		mCounters.incrementAndGet(counter);
+	}
+
+	public void add(int counter, long delta){
+		if(delta != 0){
+			mCounters.addAndGet(counter, delta);
+		}
+	}
+
+	public long getCounter(int counter){
+		return mCounters.get(counter);
+	}
+
+	/**
+	 * Copies the current values.
+	 * @param reset If true, a new measure interval starts: the values are
+	 * 		cleared as they are copied, so nothing recorded meanwhile is lost.
+	 * @return The copy, covering the time since the last reset.
+	 */
+	public NFCReaderStatsSnapshot snapshot(boolean reset){
+		long now = System.nanoTime();
+		long intervalStart = mIntervalStart;
+		if(reset){
+			mIntervalStart = now;
+		}
+		long[] counters = new long[COUNTER_COUNT];
+		for(int i=0; i<COUNTER_COUNT; i++){
+			counters[i] = reset ? mCounters.getAndSet(i, 0) : mCounters.get(i);
+		}
+		NFCLatencySnapshot[] phases = new NFCLatencySnapshot[PHASE_COUNT];
+		for(int i=0; i<PHASE_COUNT; i++){
+			phases[i] = mPhases[i].snapshot(reset);
+		}
+		return new NFCReaderStatsSnapshot(phases, counters, (now - intervalStart) / 1000000L);
+	}
+
+	/**
+	 * Clears all the values and starts a new measure interval.
+	 */
+	public void reset(){
+		for(int i=0; i<COUNTER_COUNT; i++){
+			mCounters.set(i, 0);
+		}
+		for(int i=0; i<PHASE_COUNT; i++){
+			mPhases[i].reset();
+		}
+		mIntervalStart = System.nanoTime();
+	}
+
+	public static String getPhaseName(int phase){
+		return PHASE_NAMES[phase];
+	}
+
+	public static String getCounterName(int counter){
+		return COUNTER_NAMES[counter];
+	}
+}
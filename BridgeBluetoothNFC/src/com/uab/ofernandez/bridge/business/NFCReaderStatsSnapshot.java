@@ -0,0 +1,65 @@
+package com.uab.ofernandez.bridge.business;
+
+/**
+ * Immutable copy of the {@link NFCReaderStats} of a reader.
+ */
+public final class NFCReaderStatsSnapshot {
+
+	private final NFCLatencySnapshot[] mPhases;
+	private final long[] mCounters;
+	private final long mInterval;
+
+	NFCReaderStatsSnapshot(NFCLatencySnapshot[] phases, long[] counters, long interval){
+		mPhases = phases;
+		mCounters = counters;
+		mInterval = interval;
+	}
+
+	/**
+	 * @param phase One of the NFCReaderStats.PHASE_* constants.
+	 * @return The latencies of the phase.
+	 */
+	public NFCLatencySnapshot getLatency(int phase){
+		return mPhases[phase];
+	}
+
+	/**
+	 * @param counter One of the NFCReaderStats.COUNTER_* constants.
+	 */
+	public long getCounter(int counter){
+		return mCounters[counter];
+	}
+
+	/**
+	 * @return The time covered by the snapshot, since the last reset, in miliseconds.
+	 */
+	public long getInterval(){
+		return mInterval;
+	}
+
+	public float getTagsPerSecond(){
+		return mInterval <= 0 ? 0 : mCounters[NFCReaderStats.COUNTER_TAGS] * 1000f / mInterval;
+	}
+
+	public float getCyclesPerSecond(){
+		return mInterval <= 0 ? 0 : mCounters[NFCReaderStats.COUNTER_CYCLES] * 1000f / mInterval;
+	}
+
+	/**
+	 * @return A multi-line summary, to be logged or sent with a support report.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("interval: ").append(mInterval).append(" ms, tags/s: ").append(getTagsPerSecond())
+			.append(", cycles/s: ").append(getCyclesPerSecond()).append('\n');
+		for(int i=0; i<NFCReaderStats.COUNTER_COUNT; i++){
+			builder.append(i == 0 ? "" : ", ").append(NFCReaderStats.getCounterName(i)).append(": ").append(mCounters[i]);
+		}
+		builder.append('\n').append("latency count / p50 / p90 / p99 / max:");
+		for(int i=0; i<NFCReaderStats.PHASE_COUNT; i++){
+			builder.append('\n').append("  ").append(NFCReaderStats.getPhaseName(i)).append(": ").append(mPhases[i]);
+		}
+		return builder.toString();
+	}
+}
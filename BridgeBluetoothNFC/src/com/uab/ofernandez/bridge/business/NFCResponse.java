@@ -0,0 +1,100 @@
+package com.uab.ofernandez.bridge.business;
+
+/**
+ * Immutable response of the NFC module to a command sent with a transceive:
+ * the completion status and the response data, that is, the bytes following
+ * the response code (command code + 1) of the frame.
+ */
+public final class NFCResponse {
+
+	private static final byte[] NO_DATA = new byte[0];
+	private static final int ACK_LENGTH = 6;
+	//Position of the LEN byte and of the response data, after the ACK.
+	private static final int FRAME_LEN = ACK_LENGTH + 3;
+	private static final int FRAME_DATA = ACK_LENGTH + 7;
+
+	private final int mStatus;
+	private final int mCommandCode;
+	private final byte[] mData;
+
+	private NFCResponse(int status, int commandCode, byte[] data){
+		mStatus = status;
+		mCommandCode = commandCode;
+		mData = data;
+	}
+
+	/**
+	 * Copies the response of a completed command.
+	 * @param command A completed command.
+	 * @return The response.
+	 */
+	public static NFCResponse of(NFCCommandFuture command){
+		int status = command.getStatus();
+		int code = command.getCommand().getCommandCode();
+		if(status != NFCCommandFuture.STATUS_DONE){
+			return new NFCResponse(status, code, NO_DATA);
+		}
+		byte[] response = command.getResponse();
+		int length = command.getResponseLength();
+		//LEN counts the TFI and the response code...
+		int dataLength = length > FRAME_LEN ? (response[FRAME_LEN] & 0xFF) - 2 : -1;
+		if(dataLength < 0 || FRAME_DATA + dataLength > length){
+			return new NFCResponse(NFCCommandFuture.STATUS_ERROR_FRAME, code, NO_DATA);
+		}
+		byte[] data = new byte[dataLength];
+		System.arraycopy(response, FRAME_DATA, data, 0, dataLength);
+		return new NFCResponse(status, code, data);
+	}
+
+	/**
+	 * @return One of the NFCCommandFuture.STATUS_* constants.
+	 */
+	public int getStatus(){
+		return mStatus;
+	}
+
+	/**
+	 * @return True if the module answered the command.
+	 */
+	public boolean isOk(){
+		return mStatus == NFCCommandFuture.STATUS_DONE;
+	}
+
+	/**
+	 * @return The code of the command this response answers.
+	 */
+	public int getCommandCode(){
+		return mCommandCode;
+	}
+
+	/**
+	 * @return A copy of the response data. Empty if the command failed.
+	 */
+	public byte[] getData(){
+		return mData.clone();
+	}
+
+	public int getDataLength(){
+		return mData.length;
+	}
+
+	/**
+	 * @param index Position in the response data.
+	 * @return The data byte, from 0 to 255.
+	 */
+	public int getByte(int index){
+		return mData[index] & 0xFF;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("cmd=0x").append(Integer.toHexString(mCommandCode)).append(" status=").append(mStatus).append(" [");
+		char[] hex = new char[2 * mData.length];
+		int chars = 0;
+		for(int i=0; i<mData.length; i++){
+			chars = NFCHex.encodeByte(mData[i], hex, chars);
+		}
+		return builder.append(hex, 0, chars).append(']').toString();
+	}
+}
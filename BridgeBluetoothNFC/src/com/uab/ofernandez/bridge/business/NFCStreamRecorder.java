@@ -0,0 +1,274 @@
+package com.uab.ofernandez.bridge.business;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.uab.ofernandez.bridge.api.IConstants;
+
+/**
+ * Captures the raw bytes exchanged with the NFC readers into a binary trace
+ * file, to reproduce the field problems with {@link NFCStreamReplay}.
+ *
+ * The links are wrapped (see {@link #wrap(NFCLink)}): every chunk written to
+ * the reader and every chunk returned by a read is recorded as it is, with
+ * its time, before the frames are assembled. So the junk data and the
+ * fragmentation of the RFCOMM stream are kept.
+ *
+ * File layout, big endian:
+ * <pre>
+ * header: u32 magic "NFS1", u8 version, u64 start time (ms since the epoch)
+ * record: u8 kind (TX, RX, OPEN), varint nanoseconds since the previous
+ *         record, and for TX and RX: varint length, bytes
+ * </pre>
+ * The varints are unsigned LEB128, so a frame received a few miliseconds
+ * after the previous one costs 4 or 5 bytes more than its data. An OPEN
+ * record starts every new link, for instance after a reconnection.
+ *
+ * The recording never breaks the link: if the file can not be written the
+ * capture stops and the error is logged. Records are buffered; they reach
+ * the file when the buffer is full, on {@link #flush()} and on
+ * {@link #close()}.
+ */
+public final class NFCStreamRecorder {
+
+	/**************************************************************************
+	 * Record kinds
+	 **************************************************************************/
+	public static final int KIND_TX = 0;
+	public static final int KIND_RX = 1;
+	public static final int KIND_OPEN = 2;
+
+	static final int MAGIC = 0x4E465331;
+	static final int VERSION = 1;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	//kind + 2 varints of up to 10 bytes.
+	private static final int MAX_RECORD_HEADER = 1 + 10 + 10;
+
+	private final File mFile;
+	//Guarded by this.
+	private OutputStream mOutput;
+	private final byte[] mHeader = new byte[MAX_RECORD_HEADER];
+	private long mLastTime;
+	private long mRecords = 0;
+	private long mBytes = 0;
+	private IOException mFailure;
+
+	/**
+	 * Creates the trace file, replacing an existing one.
+	 * @throws IOException If the file can not be created.
+	 */
+	public NFCStreamRecorder(File file) throws IOException{
+		mFile = file;
+		mOutput = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+		mLastTime = System.nanoTime();
+		byte[] header = new byte[4 + 1 + 8];
+		putLong(header, 0, MAGIC, 4);
+		header[4] = VERSION;
+		putLong(header, 5, System.currentTimeMillis(), 8);
+		mOutput.write(header);
+	}
+
+	public File getFile(){
+		return mFile;
+	}
+
+	/**
+	 * @return A link that records its traffic. The OPEN record is written now.
+	 */
+	public NFCLink wrap(final NFCLink link){
+		record(KIND_OPEN, null, 0, 0);
+		return new NFCLink() {
+			@Override
+			public InputStream getInputStream() throws IOException {
+				return new RecordingInputStream(link.getInputStream());
+			}
+
+			@Override
+			public OutputStream getOutputStream() throws IOException {
+				return new RecordingOutputStream(link.getOutputStream());
+			}
+
+			@Override
+			public void close() throws IOException {
+				link.close();
+			}
+		};
+	}
+
+	/**
+	 * @return A factory whose links record their traffic, so the
+	 * 		reconnections are captured too.
+	 */
+	public NFCLinkFactory wrap(final NFCLinkFactory factory){
+		return new NFCLinkFactory() {
+			@Override
+			public NFCLink open() throws IOException {
+				return wrap(factory.open());
+			}
+		};
+	}
+
+	/**
+	 * Records a chunk. Called by the wrapped streams.
+	 * @param kind One of the KIND_* values.
+	 */
+	public synchronized void record(int kind, byte[] buffer, int offset, int length){
+		if(mOutput == null){
+			return;
+		}
+		long now = System.nanoTime();
+		int position = 0;
+		mHeader[position++] = (byte)kind;
+		position = putVarint(mHeader, position, Math.max(0, now - mLastTime));
+		if(kind != KIND_OPEN){
+			position = putVarint(mHeader, position, length);
+		}
+		mLastTime = now;
+		try {
+			mOutput.write(mHeader, 0, position);
+			if(kind != KIND_OPEN){
+				mOutput.write(buffer, offset, length);
+			}
+		} catch (IOException e) {
+			NFCLog.e(IConstants.MY_TAG, "*** NFCStreamRecorder - Unable to write "+mFile+", the capture stops: "+e);
+			mFailure = e;
+			closeQuietly();
+			return;
+		}
+		mRecords++;
+		mBytes += length;
+	}
+
+	/**
+	 * Writes the buffered records to the file.
+	 */
+	public synchronized void flush(){
+		if(mOutput == null){
+			return;
+		}
+		try {
+			mOutput.flush();
+		} catch (IOException e) {
+			NFCLog.e(IConstants.MY_TAG, "*** NFCStreamRecorder - Unable to write "+mFile+", the capture stops: "+e);
+			mFailure = e;
+			closeQuietly();
+		}
+	}
+
+	/**
+	 * Stops the capture. The wrapped links keep working, without recording.
+	 */
+	public synchronized void close(){
+		flush();
+		closeQuietly();
+	}
+
+	public synchronized boolean isClosed(){
+		return mOutput == null;
+	}
+
+	/**
+	 * @return The number of chunks recorded.
+	 */
+	public synchronized long getRecords(){
+		return mRecords;
+	}
+
+	/**
+	 * @return The number of bytes of the chunks recorded.
+	 */
+	public synchronized long getBytes(){
+		return mBytes;
+	}
+
+	/**
+	 * @return The error that stopped the capture, or null.
+	 */
+	public synchronized IOException getFailure(){
+		return mFailure;
+	}
+
+	/*************************************************************************/
+
+	private void closeQuietly(){
+		try {
+			mOutput.close();
+		} catch (IOException e) {
+			//nothing else to do...
+		}
+		mOutput = null;
+	}
+
+	static int putVarint(byte[] buffer, int position, long value){
+		while((value & ~0x7FL) != 0){
+			buffer[position++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte)value;
+		return position;
+	}
+
+	private static void putLong(byte[] buffer, int position, long value, int bytes){
+		for(int i=bytes-1; i>=0; i--){
+			buffer[position + i] = (byte)value;
+			value >>>= 8;
+		}
+	}
+
+	private final class RecordingInputStream extends FilterInputStream {
+
+		RecordingInputStream(InputStream in){
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int value = in.read();
+			if(value >= 0){
+				byte[] chunk = {(byte)value};
+				record(KIND_RX, chunk, 0, 1);
+			}
+			return value;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int numBytesRead = in.read(buffer, offset, length);
+			if(numBytesRead > 0){
+				record(KIND_RX, buffer, offset, numBytesRead);
+			}
+			return numBytesRead;
+		}
+	}
+
+	private final class RecordingOutputStream extends FilterOutputStream {
+
+		RecordingOutputStream(OutputStream out){
+			super(out);
+		}
+
+		@Override
+		public void write(int value) throws IOException {
+			byte[] chunk = {(byte)value};
+			record(KIND_TX, chunk, 0, 1);
+			out.write(value);
+		}
+
+		/**
+		 * The chunk is recorded before it is written, or the response could
+		 * be recorded first.
+		 */
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			record(KIND_TX, buffer, offset, length);
+			out.write(buffer, offset, length);
+		}
+	}
+}
@@ -0,0 +1,564 @@
+package com.uab.ofernandez.bridge.business;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Plays back a trace file written by {@link NFCStreamRecorder}.
+ *
+ * The whole trace is loaded in memory. It can be fed:
+ * <ul>
+ * <li>to the frame parser alone, as fast as possible, to measure its
+ * throughput on a real workload, see {@link #measureParser(int)};</li>
+ * <li>to the whole pooling pipeline, through a {@link NFCLink} that plays the
+ * reader, see {@link #openLink(int, boolean)}.</li>
+ * </ul>
+ * A trace truncated by a crash is read up to its last complete record.
+ */
+public final class NFCStreamReplay {
+
+	//Same as the command channel.
+	private static final int RING_BUFFER_SIZE = 1024;
+	private static final int ACK_LENGTH = 6;
+
+	private final long mStartTime;
+	private int mCount = 0;
+	private byte[] mKinds = new byte[1024];
+	//Nanoseconds since the start of the capture.
+	private long[] mTimes = new long[1024];
+	private int[] mOffsets = new int[1024];
+	private int[] mLengths = new int[1024];
+	private byte[] mData = new byte[64 * 1024];
+	private int mDataLength = 0;
+	//First record of every connection, and the end of the last one.
+	private int[] mConnections;
+	private long mTxBytes = 0;
+	private long mRxBytes = 0;
+
+	/**
+	 * Loads a trace file.
+	 * @throws IOException If the file can not be read or is not a trace.
+	 */
+	public NFCStreamReplay(File file) throws IOException{
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		try {
+			if(input.readInt() != NFCStreamRecorder.MAGIC || input.readUnsignedByte() != NFCStreamRecorder.VERSION){
+				throw new IOException("Not a NFC stream trace: "+file);
+			}
+			mStartTime = input.readLong();
+			load(input);
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * @return The capture start, in miliseconds since the epoch.
+	 */
+	public long getStartTime(){
+		return mStartTime;
+	}
+
+	/**
+	 * @return The number of chunks and OPEN records.
+	 */
+	public int getRecordCount(){
+		return mCount;
+	}
+
+	/**
+	 * @return The number of links captured. A trace without OPEN records
+	 * 		has a single one.
+	 */
+	public int getConnectionCount(){
+		return mConnections.length - 1;
+	}
+
+	public long getTxBytes(){
+		return mTxBytes;
+	}
+
+	public long getRxBytes(){
+		return mRxBytes;
+	}
+
+	/**
+	 * @return The time between the first and the last record, in nanoseconds.
+	 */
+	public long getDuration(){
+		return mCount == 0 ? 0 : mTimes[mCount - 1] - mTimes[0];
+	}
+
+	/**
+	 * @return The kind of a record, one of the NFCStreamRecorder.KIND_* values.
+	 */
+	public int getKind(int record){
+		return mKinds[record];
+	}
+
+	/**
+	 * @return The time of a record, in nanoseconds since the capture start.
+	 */
+	public long getTime(int record){
+		return mTimes[record];
+	}
+
+	/**
+	 * @return A copy of the bytes of a chunk.
+	 */
+	public byte[] getChunk(int record){
+		return Arrays.copyOfRange(mData, mOffsets[record], mOffsets[record] + mLengths[record]);
+	}
+
+	/**
+	 * Feeds all the received chunks to the frame assembler and the tags
+	 * parser, like the command channel does, without any pause.
+	 * @param rounds Number of times the trace is parsed.
+	 * @return The counters and the time spent.
+	 */
+	public ParserResult measureParser(int rounds){
+		NFCFrameAssembler assembler = null;
+		byte[] frame = new byte[NFCCommandFuture.MAX_RESPONSE_LENGTH];
+		System.arraycopy(NFCFrameHandler.NFC_ACK.getNFCCall(), 0, frame, 0, ACK_LENGTH);
+		NFCTagList tags = new NFCTagList(NFCReaderSession.MAX_TAGS_PER_SCAN);
+		long[] counters = new long[ParserResult.COUNTERS];
+		long corrupted = 0;
+		long discarded = 0;
+
+		long start = System.nanoTime();
+		for(int round=0; round<rounds; round++){
+			for(int record=0; record<mCount; record++){
+				if(assembler == null || mKinds[record] == NFCStreamRecorder.KIND_OPEN){
+					//every link starts with an empty buffer...
+					if(assembler != null){
+						corrupted += assembler.getCorruptedFrames();
+						discarded += assembler.getDiscardedBytes() + assembler.size();
+					}
+					assembler = new NFCFrameAssembler(RING_BUFFER_SIZE);
+				}
+				if(mKinds[record] != NFCStreamRecorder.KIND_RX){
+					continue;
+				}
+				int offset = mOffsets[record];
+				int remaining = mLengths[record];
+				counters[ParserResult.BYTES] += remaining;
+				while(remaining > 0){
+					int written = assembler.write(mData, offset, remaining);
+					offset += written;
+					remaining -= written;
+					parseFrames(assembler, frame, tags, counters);
+				}
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		if(assembler != null){
+			corrupted += assembler.getCorruptedFrames();
+			discarded += assembler.getDiscardedBytes() + assembler.size();
+		}
+		return new ParserResult(counters, corrupted, discarded, elapsed);
+	}
+
+	/**
+	 * Opens a link that plays the reader of a captured connection. Every
+	 * write of the pipeline stands for the next captured TX chunk, and the
+	 * RX chunks captured after a TX chunk are returned only once it is
+	 * written, so the responses follow the commands. The reads return the
+	 * end of stream after the last chunk, which fails the channel.
+	 * @param connection The connection, from 0 to getConnectionCount()-1.
+	 * @param realTime True to return every RX chunk after the same delay as
+	 * 		in the capture, counted from the TX chunk before it. False to
+	 * 		return them as soon as possible.
+	 */
+	public ReplayLink openLink(int connection, boolean realTime){
+		if(connection < 0 || connection >= getConnectionCount()){
+			throw new IllegalArgumentException("No connection "+connection+" in the trace");
+		}
+		return new ReplayLink(mConnections[connection], mConnections[connection + 1], realTime);
+	}
+
+	/*************************************************************************/
+
+	private static void parseFrames(NFCFrameAssembler assembler, byte[] frame, NFCTagList tags, long[] counters){
+		int frameLength;
+		while((frameLength = assembler.nextFrame(frame, ACK_LENGTH)) > 0){
+			switch (assembler.getLastFrameType()) {
+			case NFCFrameAssembler.FRAME_ACK:
+				counters[ParserResult.ACKS]++;
+				break;
+			case NFCFrameAssembler.FRAME_NACK:
+				counters[ParserResult.NACKS]++;
+				break;
+			default:
+				counters[ParserResult.FRAMES]++;
+				tags.clear();
+				counters[ParserResult.TAGS] += NFCFrameHandler.extractNFCTagData(frame, 0, ACK_LENGTH + frameLength, tags);
+				//the inventory rounds list their targets...
+				counters[ParserResult.TAGS] += NFCFrameHandler.extractListedTargets(frame, 0, ACK_LENGTH + frameLength, tags);
+				break;
+			}
+		}
+	}
+
+	private void load(DataInputStream input) throws IOException{
+		int[] connections = new int[8];
+		int connectionCount = 0;
+		long time = 0;
+		try {
+			while(true){
+				int kind = input.read();
+				if(kind < 0){
+					break;
+				}
+				time += readVarint(input);
+				int length = kind == NFCStreamRecorder.KIND_OPEN ? 0 : (int)readVarint(input);
+				if(mDataLength + length > mData.length){
+					mData = Arrays.copyOf(mData, Math.max(2 * mData.length, mDataLength + length));
+				}
+				input.readFully(mData, mDataLength, length);
+				if(mCount == mKinds.length){
+					int capacity = 2 * mCount;
+					mKinds = Arrays.copyOf(mKinds, capacity);
+					mTimes = Arrays.copyOf(mTimes, capacity);
+					mOffsets = Arrays.copyOf(mOffsets, capacity);
+					mLengths = Arrays.copyOf(mLengths, capacity);
+				}
+				//the chunks before the first OPEN record are a connection too...
+				if(kind == NFCStreamRecorder.KIND_OPEN || connectionCount == 0){
+					if(connectionCount == connections.length){
+						connections = Arrays.copyOf(connections, 2 * connectionCount);
+					}
+					connections[connectionCount++] = mCount;
+				}
+				mKinds[mCount] = (byte)kind;
+				mTimes[mCount] = time;
+				mOffsets[mCount] = mDataLength;
+				mLengths[mCount] = length;
+				mCount++;
+				mDataLength += length;
+				if(kind == NFCStreamRecorder.KIND_TX){
+					mTxBytes += length;
+				}
+				else if(kind == NFCStreamRecorder.KIND_RX){
+					mRxBytes += length;
+				}
+			}
+		} catch (EOFException e) {
+			//truncated record... the capture was not closed.
+		}
+		if(connectionCount == 0){
+			connections[connectionCount++] = 0;
+		}
+		mConnections = Arrays.copyOf(connections, connectionCount + 1);
+		mConnections[connectionCount] = mCount;
+	}
+
+	private static long readVarint(InputStream input) throws IOException{
+		long value = 0;
+		for(int shift=0; shift<64; shift+=7){
+			int b = input.read();
+			if(b < 0){
+				throw new EOFException();
+			}
+			value |= (long)(b & 0x7F) << shift;
+			if((b & 0x80) == 0){
+				return value;
+			}
+		}
+		throw new IOException("Invalid varint in the trace");
+	}
+
+	/**
+	 * Result of {@link NFCStreamReplay#measureParser(int)}.
+	 */
+	public static final class ParserResult {
+
+		static final int BYTES = 0;
+		static final int ACKS = 1;
+		static final int NACKS = 2;
+		static final int FRAMES = 3;
+		static final int TAGS = 4;
+		static final int COUNTERS = 5;
+
+		private final long[] mCounters;
+		private final long mCorruptedFrames;
+		private final long mDiscardedBytes;
+		private final long mElapsed;
+
+		ParserResult(long[] counters, long corruptedFrames, long discardedBytes, long elapsed){
+			mCounters = counters;
+			mCorruptedFrames = corruptedFrames;
+			mDiscardedBytes = discardedBytes;
+			mElapsed = elapsed;
+		}
+
+		public long getBytes(){
+			return mCounters[BYTES];
+		}
+
+		public long getAcks(){
+			return mCounters[ACKS];
+		}
+
+		public long getNacks(){
+			return mCounters[NACKS];
+		}
+
+		/**
+		 * @return The number of information frames.
+		 */
+		public long getFrames(){
+			return mCounters[FRAMES];
+		}
+
+		public long getTags(){
+			return mCounters[TAGS];
+		}
+
+		public long getCorruptedFrames(){
+			return mCorruptedFrames;
+		}
+
+		/**
+		 * @return The number of junk bytes skipped by the assembler.
+		 */
+		public long getDiscardedBytes(){
+			return mDiscardedBytes;
+		}
+
+		/**
+		 * @return The parsing time, in nanoseconds.
+		 */
+		public long getElapsed(){
+			return mElapsed;
+		}
+
+		public double getBytesPerSecond(){
+			return mElapsed == 0 ? 0 : mCounters[BYTES] * 1e9 / mElapsed;
+		}
+
+		public double getFramesPerSecond(){
+			return mElapsed == 0 ? 0 : (mCounters[ACKS] + mCounters[NACKS] + mCounters[FRAMES]) * 1e9 / mElapsed;
+		}
+
+		@Override
+		public String toString() {
+			return mCounters[BYTES]+" bytes, "+mCounters[ACKS]+" ACK, "+mCounters[NACKS]+" NACK, "+mCounters[FRAMES]+" frames, "
+				+mCounters[TAGS]+" tags, "+mCorruptedFrames+" corrupted, "+mDiscardedBytes+" bytes discarded in "
+				+(mElapsed / 1000000L)+" ms: "+String.format("%.1f MB/s, %.0f frames/s", getBytesPerSecond() / 1e6, getFramesPerSecond());
+		}
+	}
+
+	/**
+	 * Plays the reader of a captured connection, see
+	 * {@link NFCStreamReplay#openLink(int, boolean)}.
+	 */
+	public final class ReplayLink implements NFCLink {
+
+		private final int mEnd;
+		private final boolean mRealTime;
+		private final long mOpenTime;
+		//Captured TX chunks of the connection.
+		private final int[] mTxRecords;
+		//Replay time of every TX chunk written. Guarded by this.
+		private final long[] mTxWriteTimes;
+		private int mTxWritten = 0;
+		private long mTxMismatches = 0;
+		private long mTxExtra = 0;
+		//Next record to play, and position in its chunk.
+		private int mNext;
+		private int mChunkPosition = 0;
+		//TX chunks of the capture already passed, and the time of the last one.
+		private int mTxPassed = 0;
+		private long mLastTxTime;
+		private long mRxDelivered = 0;
+		private boolean mClosed = false;
+
+		private final InputStream mInputStream = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] single = new byte[1];
+				return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				return readChunk(buffer, offset, length);
+			}
+
+			@Override
+			public int available() throws IOException {
+				return availableChunk();
+			}
+		};
+
+		private final OutputStream mOutputStream = new OutputStream() {
+			@Override
+			public void write(int value) throws IOException {
+				write(new byte[]{(byte)value}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] buffer, int offset, int length) throws IOException {
+				writeChunk(buffer, offset, length);
+			}
+		};
+
+		private ReplayLink(int start, int end, boolean realTime){
+			mEnd = end;
+			mRealTime = realTime;
+			mOpenTime = System.nanoTime();
+			int txCount = 0;
+			for(int i=start; i<end; i++){
+				if(mKinds[i] == NFCStreamRecorder.KIND_TX){
+					txCount++;
+				}
+			}
+			mTxRecords = new int[txCount];
+			mTxWriteTimes = new long[txCount];
+			txCount = 0;
+			for(int i=start; i<end; i++){
+				if(mKinds[i] == NFCStreamRecorder.KIND_TX){
+					mTxRecords[txCount++] = i;
+				}
+			}
+			mNext = start;
+			mLastTxTime = mTimes[start];
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return mInputStream;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return mOutputStream;
+		}
+
+		@Override
+		public synchronized void close() {
+			mClosed = true;
+			notifyAll();
+		}
+
+		/**
+		 * @return True once all the chunks of the connection were played.
+		 */
+		public synchronized boolean isFinished(){
+			return mNext >= mEnd;
+		}
+
+		/**
+		 * @return The number of writes that differ from the captured TX chunk.
+		 */
+		public synchronized long getTxMismatches(){
+			return mTxMismatches;
+		}
+
+		/**
+		 * @return The number of writes after the last captured TX chunk.
+		 */
+		public synchronized long getTxExtra(){
+			return mTxExtra;
+		}
+
+		public synchronized long getRxDelivered(){
+			return mRxDelivered;
+		}
+
+		private synchronized int readChunk(byte[] buffer, int offset, int length) throws IOException{
+			while(true){
+				if(mClosed){
+					throw new IOException("The replay link is closed!");
+				}
+				long wait = nextChunk(System.nanoTime());
+				if(wait < 0){
+					return -1;
+				}
+				if(wait == 0){
+					break;
+				}
+				try {
+					wait(wait / 1000000L, (int)(wait % 1000000L));
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted while replaying");
+				}
+			}
+			int count = Math.min(length, mLengths[mNext] - mChunkPosition);
+			System.arraycopy(mData, mOffsets[mNext] + mChunkPosition, buffer, offset, count);
+			mChunkPosition += count;
+			mRxDelivered += count;
+			if(mChunkPosition == mLengths[mNext]){
+				mNext++;
+				mChunkPosition = 0;
+			}
+			return count;
+		}
+
+		private synchronized int availableChunk() throws IOException{
+			if(mClosed){
+				throw new IOException("The replay link is closed!");
+			}
+			//the end of stream is found by the next read...
+			long wait = nextChunk(System.nanoTime());
+			return wait == 0 ? mLengths[mNext] - mChunkPosition : wait < 0 ? 1 : 0;
+		}
+
+		private synchronized void writeChunk(byte[] buffer, int offset, int length) throws IOException{
+			if(mClosed){
+				throw new IOException("The replay link is closed!");
+			}
+			if(mTxWritten == mTxRecords.length){
+				mTxExtra++;
+				return;
+			}
+			int record = mTxRecords[mTxWritten];
+			boolean same = mLengths[record] == length;
+			for(int i=0; same && i<length; i++){
+				same = buffer[offset + i] == mData[mOffsets[record] + i];
+			}
+			if(!same){
+				mTxMismatches++;
+			}
+			mTxWriteTimes[mTxWritten++] = System.nanoTime();
+			notifyAll();
+		}
+
+		/**
+		 * Skips the TX chunks already written and the OPEN records.
+		 * @return 0 if the RX chunk at mNext can be returned, the
+		 * 		nanoseconds to wait, Long.MAX_VALUE until the pipeline writes,
+		 * 		or -1 at the end of the connection.
+		 */
+		private long nextChunk(long now){
+			while(mNext < mEnd){
+				int kind = mKinds[mNext];
+				if(kind == NFCStreamRecorder.KIND_RX){
+					if(!mRealTime){
+						return 0;
+					}
+					long base = mTxPassed == 0 ? mOpenTime : mTxWriteTimes[mTxPassed - 1];
+					long due = base + (mTimes[mNext] - mLastTxTime);
+					return Math.max(0, due - now);
+				}
+				if(kind == NFCStreamRecorder.KIND_TX){
+					if(mTxPassed == mTxWritten){
+						//the response must follow the command...
+						return Long.MAX_VALUE;
+					}
+					mTxPassed++;
+					mLastTxTime = mTimes[mNext];
+				}
+				mNext++;
+			}
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package com.uab.ofernandez.bridge.business;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.uab.ofernandez.bridge.api.IConstants;
+
+/**
+ * Delivers the detected tags to the registered {@link NFCTagListener}s.
+ *
+ * The pooling threads post the events to a bounded lock-free queue and never
+ * wait for the listeners. A single dispatcher thread drains the queue and
+ * hands every listener all the events queued meanwhile, up to the maximum
+ * batch size, in one call. The events of a scan are queued as one element
+ * and always delivered in the same call. If the listeners fall behind and
+ * the queue fills up, the new scans are dropped and their events counted.
+ */
+public final class NFCTagDispatcher {
+
+	private static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+	private final NFCTagEventQueue mQueue;
+	private final NFCTagEvent[] mBatch;
+	//Scan taken from the queue that did not fit in the last batch.
+	private NFCTagEvent[] mPending;
+	private final CopyOnWriteArrayList<NFCTagListener> mListeners = new CopyOnWriteArrayList<NFCTagListener>();
+
+	private volatile boolean mClosed = false;
+	//Set while the dispatcher thread is parked waiting for events.
+	private volatile boolean mWaiting = false;
+	private volatile Thread mThread;
+
+	private final AtomicLong mDroppedEvents = new AtomicLong();
+
+	public NFCTagDispatcher(){
+		this(DEFAULT_QUEUE_CAPACITY, 1);
+	}
+
+	/**
+	 * @param queueCapacity Maximum number of scans waiting to be delivered.
+	 * @param maxBatchSize Maximum number of events delivered by each call.
+	 * 		A larger scan is delivered on its own. Use 1 to deliver every
+	 * 		scan on its own.
+	 */
+	public NFCTagDispatcher(int queueCapacity, int maxBatchSize){
+		if(queueCapacity <= 0 || maxBatchSize <= 0){
+			throw new IllegalArgumentException("Invalid dispatcher sizes: "+queueCapacity+"/"+maxBatchSize);
+		}
+		mQueue = new NFCTagEventQueue(queueCapacity);
+		mBatch = new NFCTagEvent[maxBatchSize];
+	}
+
+	/**
+	 * Starts the dispatcher thread.
+	 */
+	public synchronized void start(){
+		if(mThread != null){
+			return;
+		}
+		mThread = new Thread() {
+			public void run() {
+				dispatchLoop();
+			}
+		};
+		mThread.setName("NFCTagDispatcher");
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * Stops the dispatcher thread. The events still queued are not delivered.
+	 */
+	public void shutdown(){
+		mClosed = true;
+		Thread thread = mThread;
+		if(thread != null){
+			LockSupport.unpark(thread);
+		}
+	}
+
+	public void addListener(NFCTagListener listener){
+		if(listener != null){
+			mListeners.addIfAbsent(listener);
+		}
+	}
+
+	public void removeListener(NFCTagListener listener){
+		mListeners.remove(listener);
+	}
+
+	public boolean hasListeners(){
+		return !mListeners.isEmpty();
+	}
+
+	/**
+	 * Queues an event for delivery. It never blocks.
+	 * @return False if the queue is full and the event was dropped.
+	 */
+	public boolean post(NFCTagEvent event){
+		if(!mQueue.offer(new NFCTagEvent[]{event})){
+			mDroppedEvents.incrementAndGet();
+			return false;
+		}
+		wakeUp();
+		return true;
+	}
+
+	/**
+	 * Queues the events of a scan, which are delivered to the listeners in
+	 * the same call. It never blocks.
+	 * @param events The events. The array is kept by the dispatcher if count
+	 * 		is its length, and must not be modified afterwards.
+	 * @return False if the queue is full and the events were dropped.
+	 */
+	public boolean post(NFCTagEvent[] events, int count){
+		if(count <= 0){
+			return true;
+		}
+		NFCTagEvent[] scan = events;
+		if(count != events.length){
+			scan = new NFCTagEvent[count];
+			System.arraycopy(events, 0, scan, 0, count);
+		}
+		if(!mQueue.offer(scan)){
+			mDroppedEvents.addAndGet(count);
+			return false;
+		}
+		wakeUp();
+		return true;
+	}
+
+	/**
+	 * @return The number of events dropped because the queue was full.
+	 */
+	public long getDroppedEvents(){
+		return mDroppedEvents.get();
+	}
+
+	private void wakeUp(){
+		if(mWaiting){
+			Thread thread = mThread;
+			if(thread != null){
+				LockSupport.unpark(thread);
+			}
+		}
+	}
+
+	private void dispatchLoop(){
+		while(!mClosed){
+			NFCTagEvent[] scan = mPending;
+			mPending = null;
+			if(scan == null){
+				scan = mQueue.poll();
+			}
+			if(scan != null && scan.length > mBatch.length){
+				//too large for a batch, delivered on its own...
+				deliver(scan, scan.length);
+				continue;
+			}
+			int count = 0;
+			while(scan != null){
+				if(count + scan.length > mBatch.length){
+					//the scan goes whole in the next batch...
+					mPending = scan;
+					break;
+				}
+				System.arraycopy(scan, 0, mBatch, count, scan.length);
+				count += scan.length;
+				scan = mQueue.poll();
+			}
+
+			if(count == 0){
+				mWaiting = true;
+				//check again, an event could be posted before the flag was seen...
+				if(mQueue.isEmpty() && !mClosed){
+					LockSupport.park(this);
+				}
+				mWaiting = false;
+				continue;
+			}
+
+			deliver(mBatch, count);
+			for(int i=0; i<count; i++){
+				mBatch[i] = null;
+			}
+		}
+	}
+
+	private void deliver(NFCTagEvent[] events, int count){
+		for(NFCTagListener listener : mListeners){
+			try {
+				listener.onNFCTags(events, count);
+			} catch (RuntimeException e) {
+				NFCLog.e(IConstants.MY_TAG, "*** NFCTagDispatcher - Error in tag listener: "+e);
+			}
+		}
+	}
+}
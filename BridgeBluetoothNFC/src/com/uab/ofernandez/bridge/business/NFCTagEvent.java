@@ -0,0 +1,116 @@
+package com.uab.ofernandez.bridge.business;
+
+/**
+ * Detection of a single NFC tag, as delivered to the {@link NFCTagListener}s.
+ *
+ * The tags detected by the same scan share the reader identifier and the
+ * timestamp. Without presence tracking every scan gives a DETECTED event per
+ * tag; with it, see {@link NFCPresenceTracker}, a tag gives an ARRIVED event
+ * when it enters the field, optional PRESENT heartbeats, and a DEPARTED event
+ * when it leaves.
+ */
+public final class NFCTagEvent {
+
+	/**************************************************************************
+	 * Event types
+	 **************************************************************************/
+	public static final int TYPE_DETECTED = 0;
+	public static final int TYPE_ARRIVED = 1;
+	public static final int TYPE_PRESENT = 2;
+	public static final int TYPE_DEPARTED = 3;
+
+	private static final String[] TYPE_NAMES = {"DETECTED", "ARRIVED", "PRESENT", "DEPARTED"};
+
+	private final String mReaderId;
+	private final NFCTagId mTagId;
+	private final long mTimestamp;
+	private final int mAccess;
+	private final NFCNdefMessage mNdefMessage;
+	private final int mType;
+	private final long mDwellTime;
+
+	/**
+	 * @param readerId Reader that detected the tag. Null when there is a single reader.
+	 * @param tagId The tag identifier, with the card type reported by the NFC module.
+	 * @param timestamp Detection time, in miliseconds since the epoch.
+	 * @param access Access decision, one of the NFCAccessList.ACCESS_* values.
+	 */
+	public NFCTagEvent(String readerId, NFCTagId tagId, long timestamp, int access){
+		this(readerId, tagId, timestamp, access, null);
+	}
+
+	/**
+	 * @param ndefMessage The NDEF message read from the tag, or null.
+	 */
+	public NFCTagEvent(String readerId, NFCTagId tagId, long timestamp, int access, NFCNdefMessage ndefMessage){
+		this(readerId, tagId, timestamp, access, ndefMessage, TYPE_DETECTED, 0);
+	}
+
+	/**
+	 * @param type One of the TYPE_* values.
+	 * @param dwellTime Time the tag has been in the field, in miliseconds.
+	 */
+	public NFCTagEvent(String readerId, NFCTagId tagId, long timestamp, int access, NFCNdefMessage ndefMessage,
+			int type, long dwellTime){
+		mReaderId = readerId;
+		mTagId = tagId;
+		mTimestamp = timestamp;
+		mAccess = access;
+		mNdefMessage = ndefMessage;
+		mType = type;
+		mDwellTime = dwellTime;
+	}
+
+	public String getReaderId(){
+		return mReaderId;
+	}
+
+	public NFCTagId getTagId(){
+		return mTagId;
+	}
+
+	public byte getCardType(){
+		return mTagId.getCardType();
+	}
+
+	public long getTimestamp(){
+		return mTimestamp;
+	}
+
+	public int getAccess(){
+		return mAccess;
+	}
+
+	/**
+	 * @return The NDEF message of the tag, or null if the memory reading is
+	 * 		not enabled or the tag could not be read.
+	 */
+	public NFCNdefMessage getNdefMessage(){
+		return mNdefMessage;
+	}
+
+	/**
+	 * @return One of the TYPE_* values.
+	 */
+	public int getType(){
+		return mType;
+	}
+
+	/**
+	 * @return The time the tag has been in the field, in miliseconds: until
+	 * 		this event, or until it was last seen for a DEPARTED event. Always
+	 * 		0 for a DETECTED event.
+	 */
+	public long getDwellTime(){
+		return mDwellTime;
+	}
+
+	public static String getTypeName(int type){
+		return type >= 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : String.valueOf(type);
+	}
+
+	@Override
+	public String toString() {
+		return mTagId.toString();
+	}
+}
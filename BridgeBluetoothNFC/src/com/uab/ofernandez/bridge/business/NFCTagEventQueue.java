@@ -0,0 +1,97 @@
+package com.uab.ofernandez.bridge.business;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue of tag events. Every element holds all the events
+ * of a scan, so they are always taken together.
+ *
+ * Every slot of the ring has a sequence number telling whether it can be
+ * written or read for a given position, so producers and consumers only
+ * compete on a compare-and-set of their own position and never block. Any
+ * number of pooling threads can offer events.
+ */
+final class NFCTagEventQueue {
+
+	private final AtomicReferenceArray<NFCTagEvent[]> mBuffer;
+	private final AtomicLongArray mSequences;
+	private final int mMask;
+	private final AtomicLong mTail = new AtomicLong();
+	private final AtomicLong mHead = new AtomicLong();
+
+	/**
+	 * @param capacity Maximum number of queued scans, rounded up to a power of two.
+	 */
+	NFCTagEventQueue(int capacity){
+		int size = 2;
+		while(size < capacity){
+			size <<= 1;
+		}
+		mBuffer = new AtomicReferenceArray<NFCTagEvent[]>(size);
+		mSequences = new AtomicLongArray(size);
+		for(int i=0; i<size; i++){
+			mSequences.set(i, i);
+		}
+		mMask = size - 1;
+	}
+
+	/**
+	 * @return False if the queue is full.
+	 */
+	boolean offer(NFCTagEvent[] events){
+		long position = mTail.get();
+		int index;
+		while(true){
+			index = (int)position & mMask;
+			long difference = mSequences.get(index) - position;
+			if(difference == 0){
+				if(mTail.compareAndSet(position, position + 1)){
+					break;
+				}
+			}
+			else if(difference < 0){
+				//the consumer did not free this slot yet...
+				return false;
+			}
+			else{
+				position = mTail.get();
+			}
+		}
+		mBuffer.set(index, events);
+		mSequences.lazySet(index, position + 1);
+		return true;
+	}
+
+	/**
+	 * @return The events of the oldest scan, or null if the queue is empty.
+	 */
+	NFCTagEvent[] poll(){
+		long position = mHead.get();
+		int index;
+		while(true){
+			index = (int)position & mMask;
+			long difference = mSequences.get(index) - (position + 1);
+			if(difference == 0){
+				if(mHead.compareAndSet(position, position + 1)){
+					break;
+				}
+			}
+			else if(difference < 0){
+				return null;
+			}
+			else{
+				position = mHead.get();
+			}
+		}
+		NFCTagEvent[] events = mBuffer.get(index);
+		mBuffer.set(index, null);
+		mSequences.lazySet(index, position + mMask + 1);
+		return events;
+	}
+
+	boolean isEmpty(){
+		return mHead.get() >= mTail.get();
+	}
+}
@@ -0,0 +1,186 @@
+package com.uab.ofernandez.bridge.business;
+
+/**
+ * Immutable NFC tag identifier.
+ *
+ * The identifier bytes (up to 10, a triple size ISO14443A UID) are packed
+ * into two longs, so an instance is small, the hash code is computed once
+ * and equals compares a few primitive fields. It can be used as a map key
+ * without any conversion. The hexadecimal representation is only built
+ * when it is first asked for, and then cached.
+ *
+ * Two identifiers are equal when their bytes are equal: the card type is
+ * informative only, since it is not known for the identifiers parsed from
+ * an intent.
+ */
+public final class NFCTagId {
+
+	/** Longest supported identifier. */
+	public static final int MAX_LENGTH = 10;
+	/** Card type of the identifiers whose type is not known. */
+	public static final byte TYPE_UNKNOWN = 0;
+
+	private static final int LOW_BYTES = 8;
+
+	//bytes 0..7 in mLow (byte 0 is the most significant), bytes 8..9 in mHigh.
+	private final long mLow;
+	private final long mHigh;
+	private final byte mLength;
+	private final byte mCardType;
+	private final int mHash;
+
+	//Built on demand. The race is benign: any thread builds the same string.
+	private String mHex;
+
+	private NFCTagId(long low, long high, int length, byte cardType){
+		mLow = low;
+		mHigh = high;
+		mLength = (byte)length;
+		mCardType = cardType;
+		long mixed = (low ^ (high * 0x9E3779B97F4A7C15L) ^ length) * 0xff51afd7ed558ccdL;
+		mHash = (int)(mixed ^ (mixed >>> 32));
+	}
+
+	/**
+	 * Builds an identifier from the bytes of a buffer.
+	 * @param cardType The card type reported by the NFC module, or {@link #TYPE_UNKNOWN}.
+	 * @param buffer Buffer containing the identifier.
+	 * @param offset Position of the identifier in the buffer.
+	 * @param length Length of the identifier, from 1 to {@link #MAX_LENGTH}.
+	 * @return The identifier.
+	 */
+	public static NFCTagId valueOf(byte cardType, byte[] buffer, int offset, int length){
+		if(buffer==null || length<1 || length>MAX_LENGTH || offset<0 || offset+length>buffer.length){
+			throw new IllegalArgumentException("Invalid tag identifier: "+length+" bytes at "+offset);
+		}
+		long low = 0;
+		long high = 0;
+		for(int i=0; i<length; i++){
+			long value = buffer[offset+i] & 0xFF;
+			if(i < LOW_BYTES){
+				low |= value << (8 * (LOW_BYTES - 1 - i));
+			}
+			else{
+				high |= value << (8 * (MAX_LENGTH - 1 - i));
+			}
+		}
+		return new NFCTagId(low, high, length, cardType);
+	}
+
+	/**
+	 * Parses the hexadecimal representation of an identifier, as built by
+	 * {@link #toString()}. Both upper and lower case digits are accepted.
+	 * @param hex The hexadecimal identifier.
+	 * @param cardType The card type, or {@link #TYPE_UNKNOWN}.
+	 * @return The identifier, or null if the string is not a valid identifier.
+	 */
+	public static NFCTagId parse(CharSequence hex, byte cardType){
+		if(hex==null || hex.length()<2 || hex.length()>2*MAX_LENGTH || hex.length()%2!=0){
+			return null;
+		}
+		int length = hex.length() / 2;
+		long low = 0;
+		long high = 0;
+		for(int i=0; i<length; i++){
+			int value = NFCHex.decodeByte(hex.charAt(2*i), hex.charAt(2*i+1));
+			if(value < 0){
+				return null;
+			}
+			if(i < LOW_BYTES){
+				low |= (long)value << (8 * (LOW_BYTES - 1 - i));
+			}
+			else{
+				high |= (long)value << (8 * (MAX_LENGTH - 1 - i));
+			}
+		}
+		return new NFCTagId(low, high, length, cardType);
+	}
+
+	public int length(){
+		return mLength;
+	}
+
+	public byte getCardType(){
+		return mCardType;
+	}
+
+	/**
+	 * @param index Position of the byte, from 0 to length()-1.
+	 * @return A byte of the identifier.
+	 */
+	public byte getByte(int index){
+		if(index<0 || index>=mLength){
+			throw new IndexOutOfBoundsException("Invalid index "+index+" for a "+mLength+" bytes identifier");
+		}
+		if(index < LOW_BYTES){
+			return (byte)(mLow >>> (8 * (LOW_BYTES - 1 - index)));
+		}
+		return (byte)(mHigh >>> (8 * (MAX_LENGTH - 1 - index)));
+	}
+
+	/**
+	 * Copies the identifier bytes into a buffer.
+	 * @return The number of bytes copied.
+	 */
+	public int copyTo(byte[] buffer, int offset){
+		for(int i=0; i<mLength; i++){
+			buffer[offset+i] = getByte(i);
+		}
+		return mLength;
+	}
+
+	/**
+	 * @return A new array with the identifier bytes.
+	 */
+	public byte[] toByteArray(){
+		byte[] bytes = new byte[mLength];
+		copyTo(bytes, 0);
+		return bytes;
+	}
+
+	/**
+	 * Writes the hexadecimal representation into a char buffer, so callers
+	 * can reuse the buffer instead of creating strings.
+	 * @param buffer The destination, with room for 2 x length() chars.
+	 * @param offset Position of the first char.
+	 * @return The number of chars written.
+	 */
+	public int appendHex(char[] buffer, int offset){
+		for(int i=0; i<mLength; i++){
+			offset = NFCHex.encodeByte(getByte(i), buffer, offset);
+		}
+		return 2 * mLength;
+	}
+
+	/**
+	 * @return The identifier as a lower case hexadecimal string.
+	 */
+	@Override
+	public String toString() {
+		String hex = mHex;
+		if(hex == null){
+			char[] chars = new char[2 * mLength];
+			appendHex(chars, 0);
+			hex = new String(chars);
+			mHex = hex;
+		}
+		return hex;
+	}
+
+	@Override
+	public int hashCode() {
+		return mHash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(this == obj){
+			return true;
+		}
+		if(!(obj instanceof NFCTagId)){
+			return false;
+		}
+		NFCTagId other = (NFCTagId)obj;
+		return mLow == other.mLow && mHigh == other.mHigh && mLength == other.mLength;
+	}
+}
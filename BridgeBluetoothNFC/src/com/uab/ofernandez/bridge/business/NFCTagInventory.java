@@ -0,0 +1,221 @@
+package com.uab.ofernandez.bridge.business;
+
+/**
+ * Enumerates all the ISO14443A tags in the field, beyond the two targets
+ * the NFC module reports in a single scan.
+ *
+ * An inventory pass is a sequence of rounds. Every round lists up to two
+ * targets (InListPassiveTarget) and releases them (InRelease), queued at
+ * once. A released tag is halted: it does not answer the next rounds until
+ * the RF field is switched off by the power down, so every round finds the
+ * next tags of the field. The pass ends when a round lists less than two
+ * targets or no new one, or when the result list is full.
+ *
+ * Before the first round the activation retries of the NFC module are
+ * limited, or an InListPassiveTarget with no tag left would wait forever.
+ *
+ * The tags found are collected into a reusable {@link NFCTagList}, each one
+ * once. Like the session, {@link #step()} never blocks.
+ */
+public final class NFCTagInventory {
+
+	/**************************************************************************
+	 * Inventory states
+	 **************************************************************************/
+	public static final int STATE_IDLE = 0;
+	public static final int STATE_RUNNING = 1;
+	public static final int STATE_DONE = 2;
+	public static final int STATE_FAILED = 3;
+
+	//Targets listed by every InListPassiveTarget, see TX_NFC_LIST_TARGETS.
+	private static final int TARGETS_PER_ROUND = 2;
+
+	/*
+	 * RFConfiguration MaxRetries: ATR_REQ and PSL_REQ retries (defaults), and
+	 * 2 retries of the passive activation instead of the default infinite.
+	 */
+	private static final NFCFrameHandler TX_NFC_LIMIT_RETRIES = NFCFrameHandler.buildCommand("TX_NFC_LimitRetries", null,
+			NFCFrameHandler.CMD_RF_CONFIGURATION, 0x05, 0xFF, 0x01, 0x02);
+
+	private final NFCCommandChannel mChannel;
+	private final long mTimeout;
+	private final NFCCommandListener mListener;
+	private NFCCommandFuture mRetriesCommand;
+	private NFCCommandFuture mListCommand;
+	private NFCCommandFuture mReleaseCommand;
+
+	/*
+	 * Adds the targets of a round to the result list, skipping the tags
+	 * already found.
+	 */
+	private final NFCTagSink mCollector = new NFCTagSink() {
+		@Override
+		public void onNFCTag(byte cardType, byte[] buffer, int uidOffset, int uidLength) {
+			mRoundTargets++;
+			if(mTags.size() < mTags.getCapacity() && mTags.indexOf(buffer, uidOffset, uidLength) < 0){
+				mTags.onNFCTag(cardType, buffer, uidOffset, uidLength);
+				mRoundNewTags++;
+			}
+		}
+	};
+
+	private NFCTagList mTags;
+	private int mState = STATE_IDLE;
+	private boolean mRetriesPending;
+	private int mRounds;
+	private int mRoundTargets;
+	private int mRoundNewTags;
+	private int mLastStatus;
+	private long mStartNanos;
+	private long mElapsedNanos;
+
+	/**
+	 * @param channel The command channel of the reader.
+	 * @param timeout Maximum time to wait for each command, in miliseconds.
+	 * @param listener Notified when each command completes. Can be null.
+	 */
+	public NFCTagInventory(NFCCommandChannel channel, long timeout, NFCCommandListener listener){
+		mChannel = channel;
+		mTimeout = timeout;
+		mListener = listener;
+		mRetriesCommand = new NFCCommandFuture(TX_NFC_LIMIT_RETRIES, timeout, listener);
+		mListCommand = new NFCCommandFuture(NFCFrameHandler.TX_NFC_LIST_TARGETS, timeout, listener);
+		mReleaseCommand = new NFCCommandFuture(NFCFrameHandler.TX_NFC_RELEASE_ALL, timeout, listener);
+	}
+
+	/**
+	 * Starts an inventory pass. The NFC module must be awake.
+	 * @param tags The list where the tags are collected. It is cleared, and
+	 * 		its capacity is the maximum number of tags of the pass.
+	 * @return False if the commands could not be queued.
+	 */
+	public boolean start(NFCTagList tags){
+		if(mState == STATE_RUNNING || mState == STATE_FAILED){
+			//the commands of the previous pass may still be on the link...
+			mRetriesCommand = new NFCCommandFuture(TX_NFC_LIMIT_RETRIES, mTimeout, mListener);
+			mListCommand = new NFCCommandFuture(NFCFrameHandler.TX_NFC_LIST_TARGETS, mTimeout, mListener);
+			mReleaseCommand = new NFCCommandFuture(NFCFrameHandler.TX_NFC_RELEASE_ALL, mTimeout, mListener);
+		}
+		tags.clear();
+		mTags = tags;
+		mRounds = 0;
+		mLastStatus = NFCCommandFuture.STATUS_DONE;
+		mStartNanos = System.nanoTime();
+		mElapsedNanos = 0;
+		mState = STATE_RUNNING;
+		mRetriesPending = true;
+		if(!mChannel.submit(mRetriesCommand) || !submitRound()){
+			mState = STATE_FAILED;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Consumes the round completed and queues the next one.
+	 * @return The inventory state.
+	 */
+	public int step(){
+		if(mState != STATE_RUNNING){
+			return mState;
+		}
+		if(mRetriesPending){
+			if(!mRetriesCommand.isDone()){
+				return mState;
+			}
+			mRetriesPending = false;
+			if(mRetriesCommand.getStatus() == NFCCommandFuture.STATUS_IO_ERROR){
+				return finish(STATE_FAILED, NFCCommandFuture.STATUS_IO_ERROR);
+			}
+		}
+		if(!mListCommand.isDone() || !mReleaseCommand.isDone()){
+			return mState;
+		}
+		mRounds++;
+		if(mListCommand.getStatus() != NFCCommandFuture.STATUS_DONE){
+			return finish(STATE_FAILED, mListCommand.getStatus());
+		}
+		if(mReleaseCommand.getStatus() == NFCCommandFuture.STATUS_IO_ERROR){
+			return finish(STATE_FAILED, NFCCommandFuture.STATUS_IO_ERROR);
+		}
+
+		mRoundTargets = 0;
+		mRoundNewTags = 0;
+		byte[] response = mListCommand.getResponse();
+		int length = mListCommand.getResponseLength();
+		if(NFCFrameHandler.isAcknowledge(response, 0, length)){
+			NFCFrameHandler.extractListedTargets(response, 0, length, mCollector);
+		}
+		if(mRoundTargets < TARGETS_PER_ROUND || mRoundNewTags == 0 || mTags.size() == mTags.getCapacity()){
+			//the field is exhausted, or the tags are not halted by the release.
+			return finish(STATE_DONE, NFCCommandFuture.STATUS_DONE);
+		}
+		if(!submitRound()){
+			return finish(STATE_FAILED, NFCCommandFuture.STATUS_DONE);
+		}
+		return mState;
+	}
+
+	public int getState(){
+		return mState;
+	}
+
+	/**
+	 * @return The status of the last command consumed, to tell the link
+	 * 		failures apart from the rounds that could not complete.
+	 */
+	public int getLastStatus(){
+		return mLastStatus;
+	}
+
+	/**
+	 * @return The list of the tags found by the last pass.
+	 */
+	public NFCTagList getTags(){
+		return mTags;
+	}
+
+	/**
+	 * @return The number of rounds of the last pass.
+	 */
+	public int getRounds(){
+		return mRounds;
+	}
+
+	/**
+	 * @return The System.nanoTime() of the start of the last pass.
+	 */
+	public long getStartNanos(){
+		return mStartNanos;
+	}
+
+	/**
+	 * @return The duration of the last pass finished, in nanoseconds.
+	 */
+	public long getElapsedNanos(){
+		return mElapsedNanos;
+	}
+
+	/**
+	 * @return The tags found per second by the last pass finished.
+	 */
+	public float getTagsPerSecond(){
+		if(mTags == null || mElapsedNanos <= 0){
+			return 0;
+		}
+		return mTags.size() * 1e9f / mElapsedNanos;
+	}
+
+	/*************************************************************************/
+
+	private boolean submitRound(){
+		return mChannel.submit(mListCommand) && mChannel.submit(mReleaseCommand);
+	}
+
+	private int finish(int state, int status){
+		mState = state;
+		mLastStatus = status;
+		mElapsedNanos = System.nanoTime() - mStartNanos;
+		return mState;
+	}
+}
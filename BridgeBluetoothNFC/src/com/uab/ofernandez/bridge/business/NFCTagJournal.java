@@ -0,0 +1,911 @@
+package com.uab.ofernandez.bridge.business;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import com.uab.ofernandez.bridge.api.IConstants;
+
+/**
+ * Append-only journal of the detected tags, kept on disk so the reads are
+ * not lost when no application is listening.
+ *
+ * Every tag event is a fixed size binary record (timestamp, reader, card
+ * type, access decision, UID, event type and dwell time) written through a memory mapped segment
+ * file, so an append is a few stores into memory and costs the same
+ * whatever the journal size. The records are numbered from 0 in the order
+ * they are written: this offset is used to replay the journal from the last
+ * event consumed. When a segment is full it is sealed: its time and UID
+ * indexes are written next to it and a new segment is started.
+ *
+ * The time index is sparse: the minimum and maximum timestamps of every
+ * block of records, and of every segment. The UID index keeps, for every
+ * sealed segment, the records sorted by a hash of their UID, searched in
+ * the index file; the segment being written keeps a chain of the records
+ * of every UID in memory. Only the segment being written is mapped, the
+ * sealed ones are read with positional reads.
+ *
+ * The journal can be added as a {@link NFCTagListener} to a dispatcher. It
+ * is thread safe. The mapped records reach the disk when the system writes
+ * the pages back, or when {@link #flush()} is called.
+ */
+public final class NFCTagJournal implements NFCTagListener {
+
+	/**************************************************************************
+	 * Record layout
+	 **************************************************************************/
+	private static final int RECORD_SIZE = 32;
+	private static final int REC_TIMESTAMP = 0;
+	private static final int REC_READER = 8;
+	private static final int REC_CARD_TYPE = 10;
+	private static final int REC_ACCESS = 11;
+	private static final int REC_UID_LENGTH = 12;
+	private static final int REC_UID = 13;
+	//Presence event, 0 (DETECTED) in the records written without tracking.
+	private static final int REC_EVENT_TYPE = 23;
+	private static final int REC_DWELL = 24;
+	//Written last: the records without it were not completely written.
+	private static final int REC_COMMIT = 31;
+	private static final byte COMMIT_MARK = (byte)0xA5;
+
+	/**************************************************************************
+	 * Segments and indexes
+	 **************************************************************************/
+	//8MB segments.
+	public static final int DEFAULT_SEGMENT_RECORDS = 1 << 18;
+	//The record number of a UID index entry takes 20 bits.
+	public static final int MAX_SEGMENT_RECORDS = 1 << 20;
+	private static final int MIN_SEGMENT_RECORDS = 1 << 10;
+	private static final int TIME_BLOCK_RECORDS = 1024;
+	private static final int UID_RECORD_BITS = 20;
+	private static final int INDEX_MAGIC = 0x4E464A31;
+	//magic, record count, block count, min and max timestamps.
+	private static final int INDEX_HEADER = 4 + 4 + 4 + 8 + 8;
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final String READERS_FILE = "readers.dat";
+	//Sealed segments whose files are kept open.
+	private static final int MAX_OPEN_SEGMENTS = 16;
+	//Reader code of the events without reader identifier.
+	private static final int NO_READER = 0;
+	private static final int MAX_READERS = 0xFFFF;
+
+	private final File mDirectory;
+	private final int mSegmentRecords;
+	private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+	private Segment mActive;
+
+	//Reader identifiers, coded by their position + 1.
+	private final HashMap<String, Integer> mReaderCodes = new HashMap<String, Integer>();
+	private final ArrayList<String> mReaderIds = new ArrayList<String>();
+	private DataOutputStream mReadersOut;
+
+	//Sealed segments with open files, least recently used first.
+	private final LinkedHashMap<Segment, Segment> mOpenSegments = new LinkedHashMap<Segment, Segment>(16, 0.75f, true);
+	//Buffers of the queries, used holding the lock.
+	private final ByteBuffer mBlockBuffer = ByteBuffer.allocate(TIME_BLOCK_RECORDS * RECORD_SIZE);
+	private final ByteBuffer mLongBuffer = ByteBuffer.allocate(8);
+	private final byte[] mUid = new byte[NFCTagId.MAX_LENGTH];
+
+	private boolean mClosed = false;
+	private long mWriteErrors = 0;
+
+	/**
+	 * Opens the journal stored in a directory, or creates it.
+	 * @param directory Directory of the journal files.
+	 * @throws IOException
+	 */
+	public NFCTagJournal(File directory) throws IOException{
+		this(directory, DEFAULT_SEGMENT_RECORDS);
+	}
+
+	/**
+	 * Opens the journal stored in a directory, or creates it. The records
+	 * not completely written before a crash are dropped.
+	 * @param directory Directory of the journal files.
+	 * @param segmentRecords Number of records of the new segments.
+	 * @throws IOException
+	 */
+	public NFCTagJournal(File directory, int segmentRecords) throws IOException{
+		if(segmentRecords < MIN_SEGMENT_RECORDS || segmentRecords > MAX_SEGMENT_RECORDS){
+			throw new IllegalArgumentException("Invalid segment size: "+segmentRecords);
+		}
+		if(!directory.isDirectory() && !directory.mkdirs()){
+			throw new IOException("Unable to create the journal directory "+directory);
+		}
+		mDirectory = directory;
+		mSegmentRecords = segmentRecords;
+		loadReaders();
+		loadSegments();
+	}
+
+	@Override
+	public void onNFCTags(NFCTagEvent[] events, int count) {
+		synchronized (this) {
+			for(int i=0; i<count; i++){
+				try {
+					append(events[i]);
+				} catch (IOException e) {
+					//the dispatcher thread must go on with the other listeners...
+					if(mWriteErrors++ == 0){
+						NFCLog.e(IConstants.MY_TAG, "*** NFCTagJournal - Unable to write the journal: "+e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appends a tag event.
+	 * @throws IOException If the journal is closed or a new segment could
+	 * 		not be created.
+	 */
+	public synchronized void append(NFCTagEvent event) throws IOException{
+		if(mClosed){
+			throw new IOException("The tag journal is closed!");
+		}
+		if(mActive == null || mActive.mMap == null || mActive.mCount == mActive.mCapacity){
+			roll();
+		}
+		Segment segment = mActive;
+		int record = segment.mCount;
+		int position = record * RECORD_SIZE;
+		MappedByteBuffer map = segment.mMap;
+		NFCTagId tagId = event.getTagId();
+		int length = tagId.copyTo(mUid, 0);
+		map.putLong(position + REC_TIMESTAMP, event.getTimestamp());
+		map.putShort(position + REC_READER, (short)readerCode(event.getReaderId()));
+		map.put(position + REC_CARD_TYPE, tagId.getCardType());
+		map.put(position + REC_ACCESS, (byte)event.getAccess());
+		map.put(position + REC_UID_LENGTH, (byte)length);
+		for(int i=0; i<length; i++){
+			map.put(position + REC_UID + i, mUid[i]);
+		}
+		map.put(position + REC_EVENT_TYPE, (byte)event.getType());
+		map.putInt(position + REC_DWELL, (int)Math.min(event.getDwellTime(), Integer.MAX_VALUE));
+		map.put(position + REC_COMMIT, COMMIT_MARK);
+		segment.index(record, event.getTimestamp(), uidKey(mUid, 0, length));
+		segment.mCount++;
+	}
+
+	/**
+	 * @return The offset the next event will get, that is, the number of
+	 * 		events written.
+	 */
+	public synchronized long getNextOffset(){
+		return mActive == null ? 0 : mActive.mBase + mActive.mCount;
+	}
+
+	/**
+	 * @return The number of events that could not be written by the
+	 * 		listener.
+	 */
+	public synchronized long getWriteErrors(){
+		return mWriteErrors;
+	}
+
+	/**
+	 * Reads the events from an offset on, in the order they were written.
+	 * @param offset The first event, for instance the offset following the
+	 * 		last event consumed.
+	 * @param maxEntries Maximum number of events returned.
+	 * @return The events. Empty if there are no events from this offset on.
+	 * @throws IOException
+	 */
+	public synchronized List<NFCJournalEntry> read(long offset, int maxEntries) throws IOException{
+		ArrayList<NFCJournalEntry> entries = new ArrayList<NFCJournalEntry>();
+		int index = findSegment(offset);
+		while(index >= 0 && index < mSegments.size() && entries.size() < maxEntries){
+			Segment segment = mSegments.get(index++);
+			int record = (int)Math.max(0, offset - segment.mBase);
+			while(record < segment.mCount && entries.size() < maxEntries){
+				int count = Math.min(Math.min(TIME_BLOCK_RECORDS, segment.mCount - record), maxEntries - entries.size());
+				load(segment, record, count);
+				for(int i=0; i<count; i++){
+					entries.add(decode(segment, record + i, i * RECORD_SIZE));
+				}
+				record += count;
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Hands the events from an offset on to a listener, in batches, like the
+	 * dispatcher does. Used to forward the events stored while nobody was
+	 * listening.
+	 * @param offset The first event.
+	 * @param listener Receives the events. It is called without holding the
+	 * 		journal lock, so the journal keeps recording meanwhile.
+	 * @param batchSize Maximum number of events per call.
+	 * @return The offset following the last event replayed.
+	 * @throws IOException
+	 */
+	public long replay(long offset, NFCTagListener listener, int batchSize) throws IOException{
+		NFCTagEvent[] batch = new NFCTagEvent[batchSize];
+		while(true){
+			List<NFCJournalEntry> entries = read(offset, batchSize);
+			if(entries.isEmpty()){
+				return offset;
+			}
+			for(int i=0; i<entries.size(); i++){
+				batch[i] = entries.get(i).toTagEvent();
+			}
+			listener.onNFCTags(batch, entries.size());
+			offset = entries.get(entries.size() - 1).getOffset() + 1;
+		}
+	}
+
+	/**
+	 * Finds the events detected in a time range, in the order they were
+	 * written.
+	 * @param from First detection time, in miliseconds since the epoch.
+	 * @param to Last detection time, included.
+	 * @param maxEntries Maximum number of events returned.
+	 * @return The events.
+	 * @throws IOException
+	 */
+	public synchronized List<NFCJournalEntry> queryTime(long from, long to, int maxEntries) throws IOException{
+		ArrayList<NFCJournalEntry> entries = new ArrayList<NFCJournalEntry>();
+		for(int s=0; s<mSegments.size() && entries.size() < maxEntries; s++){
+			Segment segment = mSegments.get(s);
+			if(segment.mCount == 0 || segment.mMaxTime < from || segment.mMinTime > to){
+				continue;
+			}
+			int blocks = (segment.mCount + TIME_BLOCK_RECORDS - 1) / TIME_BLOCK_RECORDS;
+			for(int b=0; b<blocks && entries.size() < maxEntries; b++){
+				if(segment.mBlockMax[b] < from || segment.mBlockMin[b] > to){
+					continue;
+				}
+				int first = b * TIME_BLOCK_RECORDS;
+				int count = Math.min(TIME_BLOCK_RECORDS, segment.mCount - first);
+				load(segment, first, count);
+				for(int i=0; i<count && entries.size() < maxEntries; i++){
+					long timestamp = mBlockBuffer.getLong(i * RECORD_SIZE + REC_TIMESTAMP);
+					if(timestamp >= from && timestamp <= to){
+						entries.add(decode(segment, first + i, i * RECORD_SIZE));
+					}
+				}
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Finds the events of a tag, in the order they were written.
+	 * @param tagId The tag identifier. The card type is not compared.
+	 * @param maxEntries Maximum number of events returned.
+	 * @return The events.
+	 * @throws IOException
+	 */
+	public List<NFCJournalEntry> queryUid(NFCTagId tagId, int maxEntries) throws IOException{
+		return queryUid(tagId, Long.MIN_VALUE, Long.MAX_VALUE, maxEntries);
+	}
+
+	/**
+	 * Finds the events of a tag in a time range, in the order they were
+	 * written. The time range skips the segments out of it.
+	 * @param tagId The tag identifier. The card type is not compared.
+	 * @param from First detection time, in miliseconds since the epoch.
+	 * @param to Last detection time, included.
+	 * @param maxEntries Maximum number of events returned.
+	 * @return The events.
+	 * @throws IOException
+	 */
+	public synchronized List<NFCJournalEntry> queryUid(NFCTagId tagId, long from, long to, int maxEntries) throws IOException{
+		ArrayList<NFCJournalEntry> entries = new ArrayList<NFCJournalEntry>();
+		int length = tagId.copyTo(mUid, 0);
+		long key = uidKey(mUid, 0, length);
+		for(int s=0; s<mSegments.size() && entries.size() < maxEntries; s++){
+			Segment segment = mSegments.get(s);
+			if(segment.mCount == 0 || segment.mMaxTime < from || segment.mMinTime > to){
+				continue;
+			}
+			if(segment.mPrev != null){
+				queryActiveUid(segment, key, tagId, from, to, maxEntries, entries);
+			}
+			else{
+				querySealedUid(segment, key, tagId, from, to, maxEntries, entries);
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Forces the records written to the disk.
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException{
+		if(mActive != null && mActive.mMap != null){
+			mActive.mMap.force();
+		}
+		if(mReadersOut != null){
+			mReadersOut.flush();
+		}
+	}
+
+	/**
+	 * Writes the records to the disk and closes the files. The journal is
+	 * opened again, and continues, with a new instance.
+	 */
+	public synchronized void close(){
+		if(mClosed){
+			return;
+		}
+		mClosed = true;
+		try {
+			flush();
+		} catch (IOException e) {
+			NFCLog.e(IConstants.MY_TAG, "*** NFCTagJournal - Error flushing the journal: "+e);
+		}
+		if(mActive != null){
+			mActive.closeFiles();
+		}
+		for(Segment segment : mOpenSegments.keySet()){
+			segment.closeFiles();
+		}
+		mOpenSegments.clear();
+		closeQuietly(mReadersOut);
+	}
+
+	/*************************************************************************/
+
+	private void queryActiveUid(Segment segment, long key, NFCTagId tagId, long from, long to,
+			int maxEntries, List<NFCJournalEntry> entries) throws IOException{
+		//the chain goes from the last record back...
+		ArrayList<NFCJournalEntry> found = new ArrayList<NFCJournalEntry>();
+		for(int record = segment.lastRecordOf(key); record >= 0; record = segment.mPrev[record]){
+			load(segment, record, 1);
+			if(matches(tagId, from, to)){
+				found.add(decode(segment, record, 0));
+			}
+		}
+		Collections.reverse(found);
+		for(int i=0; i<found.size() && entries.size() < maxEntries; i++){
+			entries.add(found.get(i));
+		}
+	}
+
+	private void querySealedUid(Segment segment, long key, NFCTagId tagId, long from, long to,
+			int maxEntries, List<NFCJournalEntry> entries) throws IOException{
+		FileChannel index = open(segment).mIndexChannel;
+		long uidPosition = INDEX_HEADER + 16L * segment.mBlockMin.length + 4;
+		//lower bound of the first entry of the key...
+		long target = key << UID_RECORD_BITS;
+		int low = 0;
+		int high = segment.mCount;
+		while(low < high){
+			int middle = (low + high) >>> 1;
+			if(readLong(index, uidPosition + 8L * middle) < target){
+				low = middle + 1;
+			}
+			else{
+				high = middle;
+			}
+		}
+		for(int i=low; i<segment.mCount && entries.size() < maxEntries; i++){
+			long entry = readLong(index, uidPosition + 8L * i);
+			if(entry >>> UID_RECORD_BITS != key){
+				break;
+			}
+			int record = (int)(entry & ((1 << UID_RECORD_BITS) - 1));
+			load(segment, record, 1);
+			if(matches(tagId, from, to)){
+				entries.add(decode(segment, record, 0));
+			}
+		}
+	}
+
+	/**
+	 * @return True if the first record of the block buffer is of the tag and
+	 * 		in the time range.
+	 */
+	private boolean matches(NFCTagId tagId, long from, long to){
+		long timestamp = mBlockBuffer.getLong(REC_TIMESTAMP);
+		int length = mBlockBuffer.get(REC_UID_LENGTH);
+		if(timestamp < from || timestamp > to || length != tagId.length()){
+			return false;
+		}
+		for(int i=0; i<length; i++){
+			if(mBlockBuffer.get(REC_UID + i) != tagId.getByte(i)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The entry of a record loaded in the block buffer.
+	 */
+	private NFCJournalEntry decode(Segment segment, int record, int position){
+		int length = mBlockBuffer.get(position + REC_UID_LENGTH);
+		for(int i=0; i<length; i++){
+			mUid[i] = mBlockBuffer.get(position + REC_UID + i);
+		}
+		int reader = mBlockBuffer.getShort(position + REC_READER) & 0xFFFF;
+		return new NFCJournalEntry(segment.mBase + record, mBlockBuffer.getLong(position + REC_TIMESTAMP),
+				reader == NO_READER || reader > mReaderIds.size() ? null : mReaderIds.get(reader - 1),
+				NFCTagId.valueOf(mBlockBuffer.get(position + REC_CARD_TYPE), mUid, 0, length),
+				mBlockBuffer.get(position + REC_ACCESS), mBlockBuffer.get(position + REC_EVENT_TYPE),
+				mBlockBuffer.getInt(position + REC_DWELL));
+	}
+
+	/**
+	 * Copies records of a segment to the beginning of the block buffer.
+	 */
+	private void load(Segment segment, int first, int count) throws IOException{
+		mBlockBuffer.clear();
+		mBlockBuffer.limit(count * RECORD_SIZE);
+		if(segment.mMap != null){
+			ByteBuffer records = segment.mMap.duplicate();
+			records.position(first * RECORD_SIZE);
+			records.limit((first + count) * RECORD_SIZE);
+			mBlockBuffer.put(records);
+		}
+		else{
+			readFully(open(segment).mLogChannel, mBlockBuffer, (long)first * RECORD_SIZE);
+		}
+		mBlockBuffer.clear();
+	}
+
+	private long readLong(FileChannel channel, long position) throws IOException{
+		mLongBuffer.clear();
+		readFully(channel, mLongBuffer, position);
+		return mLongBuffer.getLong(0);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException{
+		while(buffer.hasRemaining()){
+			int read = channel.read(buffer, position);
+			if(read < 0){
+				throw new EOFException("Journal file truncated at "+position);
+			}
+			position += read;
+		}
+	}
+
+	/**
+	 * @return The index of the segment holding an offset, the next segment
+	 * 		if the offset is before the first one, or -1 if it is not written yet.
+	 */
+	private int findSegment(long offset){
+		int low = 0;
+		int high = mSegments.size() - 1;
+		int found = -1;
+		while(low <= high){
+			int middle = (low + high) >>> 1;
+			Segment segment = mSegments.get(middle);
+			if(segment.mBase + segment.mCount <= offset){
+				low = middle + 1;
+			}
+			else{
+				found = middle;
+				high = middle - 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Opens the files of a sealed segment, closing the least recently used.
+	 */
+	private Segment open(Segment segment) throws IOException{
+		if(mOpenSegments.get(segment) == null){
+			segment.mLogChannel = new FileInputStream(segment.mLogFile).getChannel();
+			try {
+				segment.mIndexChannel = new FileInputStream(indexFile(segment)).getChannel();
+			} catch (IOException e) {
+				segment.closeFiles();
+				throw e;
+			}
+			mOpenSegments.put(segment, segment);
+			if(mOpenSegments.size() > MAX_OPEN_SEGMENTS){
+				Iterator<Segment> eldest = mOpenSegments.keySet().iterator();
+				eldest.next().closeFiles();
+				eldest.remove();
+			}
+		}
+		return segment;
+	}
+
+	/**
+	 * Seals the segment being written and starts a new one.
+	 */
+	private void roll() throws IOException{
+		long base = 0;
+		if(mActive != null){
+			if(mActive.mMap != null){
+				seal(mActive);
+			}
+			base = mActive.mBase + mActive.mCount;
+		}
+		Segment segment = new Segment(base, new File(mDirectory, String.format("%020d", base) + SEGMENT_SUFFIX), mSegmentRecords);
+		segment.mapForWriting();
+		mSegments.add(segment);
+		mActive = segment;
+	}
+
+	/**
+	 * Writes the indexes of a full segment and stops writing it.
+	 */
+	private void seal(Segment segment) throws IOException{
+		if(segment.mMap != null){
+			segment.mMap.force();
+		}
+		long[] uids = new long[segment.mCount];
+		for(int first=0; first<segment.mCount; first+=TIME_BLOCK_RECORDS){
+			int count = Math.min(TIME_BLOCK_RECORDS, segment.mCount - first);
+			load(segment, first, count);
+			for(int i=0; i<count; i++){
+				int length = mBlockBuffer.get(i * RECORD_SIZE + REC_UID_LENGTH);
+				for(int j=0; j<length; j++){
+					mUid[j] = mBlockBuffer.get(i * RECORD_SIZE + REC_UID + j);
+				}
+				uids[first + i] = (uidKey(mUid, 0, length) << UID_RECORD_BITS) | (first + i);
+			}
+		}
+		Arrays.sort(uids);
+
+		//written aside and renamed, so a crash never leaves half an index...
+		File index = indexFile(segment);
+		File temp = new File(mDirectory, index.getName() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+		try {
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(segment.mCount);
+			out.writeInt(segment.mBlockMin.length);
+			out.writeLong(segment.mMinTime);
+			out.writeLong(segment.mMaxTime);
+			for(int b=0; b<segment.mBlockMin.length; b++){
+				out.writeLong(segment.mBlockMin[b]);
+				out.writeLong(segment.mBlockMax[b]);
+			}
+			out.writeInt(uids.length);
+			for(long uid : uids){
+				out.writeLong(uid);
+			}
+		} finally {
+			out.close();
+		}
+		if(!temp.renameTo(index)){
+			throw new IOException("Unable to write the journal index "+index);
+		}
+		segment.closeFiles();
+		segment.releaseChains();
+	}
+
+	private File indexFile(Segment segment){
+		String name = segment.mLogFile.getName();
+		return new File(mDirectory, name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+	}
+
+	/**
+	 * Finds the segments of the directory, loads the indexes of the sealed
+	 * ones and goes on writing the last one.
+	 */
+	private void loadSegments() throws IOException{
+		File[] files = mDirectory.listFiles();
+		ArrayList<Long> bases = new ArrayList<Long>();
+		if(files != null){
+			for(File file : files){
+				String name = file.getName();
+				if(name.endsWith(SEGMENT_SUFFIX)){
+					try {
+						bases.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+					} catch (NumberFormatException e) {
+						//not a segment...
+					}
+				}
+			}
+		}
+		Collections.sort(bases);
+		for(int i=0; i<bases.size(); i++){
+			long base = bases.get(i);
+			File file = new File(mDirectory, String.format("%020d", base) + SEGMENT_SUFFIX);
+			//a crash may leave the last segment empty before its size was set...
+			int capacity = file.length() == 0 ? mSegmentRecords : (int)Math.min(MAX_SEGMENT_RECORDS, file.length() / RECORD_SIZE);
+			Segment segment = new Segment(base, file, capacity);
+			mSegments.add(segment);
+			mActive = segment;
+			if(loadIndex(segment)){
+				continue;
+			}
+			//the last segment, or a crash before its index was written...
+			segment.mapForWriting();
+			recover(segment);
+			if(i < bases.size() - 1 || segment.mCount == segment.mCapacity){
+				seal(segment);
+			}
+		}
+	}
+
+	/**
+	 * Loads the time index of a sealed segment.
+	 * @return False if the segment has no valid index.
+	 */
+	private boolean loadIndex(Segment segment) throws IOException{
+		File index = indexFile(segment);
+		if(!index.exists()){
+			return false;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index), 1 << 16));
+		try {
+			if(in.readInt() != INDEX_MAGIC){
+				return false;
+			}
+			int count = in.readInt();
+			int blocks = in.readInt();
+			if(count > segment.mCapacity || blocks != segment.mBlockMin.length){
+				return false;
+			}
+			segment.mCount = count;
+			segment.mMinTime = in.readLong();
+			segment.mMaxTime = in.readLong();
+			for(int b=0; b<blocks; b++){
+				segment.mBlockMin[b] = in.readLong();
+				segment.mBlockMax[b] = in.readLong();
+			}
+			segment.releaseChains();
+			return true;
+		} catch (EOFException e) {
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Finds the records completely written in a mapped segment and rebuilds
+	 * its indexes.
+	 */
+	private void recover(Segment segment){
+		MappedByteBuffer map = segment.mMap;
+		int count = 0;
+		while(count < segment.mCapacity && map.get(count * RECORD_SIZE + REC_COMMIT) == COMMIT_MARK){
+			int position = count * RECORD_SIZE;
+			int length = map.get(position + REC_UID_LENGTH);
+			if(length < 1 || length > NFCTagId.MAX_LENGTH){
+				break;
+			}
+			for(int i=0; i<length; i++){
+				mUid[i] = map.get(position + REC_UID + i);
+			}
+			segment.index(count, map.getLong(position + REC_TIMESTAMP), uidKey(mUid, 0, length));
+			count++;
+		}
+		segment.mCount = count;
+		//clear what a crash left after the last record, so it is not taken
+		//for a record once overwritten...
+		int record = count;
+		while(record < segment.mCapacity && clearRecord(map, record * RECORD_SIZE)){
+			record++;
+		}
+	}
+
+	/**
+	 * Clears a record.
+	 * @return False if it was already clear.
+	 */
+	private static boolean clearRecord(MappedByteBuffer map, int position){
+		boolean written = false;
+		for(int i=position; i<position+RECORD_SIZE; i++){
+			if(map.get(i) != 0){
+				map.put(i, (byte)0);
+				written = true;
+			}
+		}
+		return written;
+	}
+
+	private void loadReaders() throws IOException{
+		File file = new File(mDirectory, READERS_FILE);
+		if(file.exists()){
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				while(true){
+					String readerId = in.readUTF();
+					mReaderIds.add(readerId);
+					mReaderCodes.put(readerId, mReaderIds.size());
+				}
+			} catch (EOFException e) {
+				//all read... a truncated last name is dropped.
+			} finally {
+				in.close();
+			}
+		}
+		mReadersOut = new DataOutputStream(new FileOutputStream(file, true));
+	}
+
+	/**
+	 * @return The code of a reader, added to the readers file the first
+	 * 		time it is seen.
+	 */
+	private int readerCode(String readerId) throws IOException{
+		if(readerId == null){
+			return NO_READER;
+		}
+		Integer code = mReaderCodes.get(readerId);
+		if(code != null){
+			return code;
+		}
+		if(mReaderIds.size() == MAX_READERS){
+			return NO_READER;
+		}
+		mReadersOut.writeUTF(readerId);
+		mReadersOut.flush();
+		mReaderIds.add(readerId);
+		mReaderCodes.put(readerId, mReaderIds.size());
+		return mReaderIds.size();
+	}
+
+	/**
+	 * @return A 44 bits hash of an identifier.
+	 */
+	private static long uidKey(byte[] uid, int offset, int length){
+		long hash = 0xcbf29ce484222325L ^ length;
+		for(int i=offset; i<offset+length; i++){
+			hash = (hash ^ (uid[i] & 0xFF)) * 0x100000001b3L;
+		}
+		hash = (hash ^ (hash >>> 29)) * 0xbf58476d1ce4e5b9L;
+		return (hash ^ (hash >>> 32)) >>> UID_RECORD_BITS;
+	}
+
+	private static void closeQuietly(Closeable closeable){
+		if(closeable != null){
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				//nothing to do...
+			}
+		}
+	}
+
+	/**
+	 * A segment file and its indexes.
+	 */
+	private static final class Segment {
+		//Empty slot of the chain heads table. The keys are positive.
+		private static final long EMPTY = -1;
+
+		final long mBase;
+		final File mLogFile;
+		final int mCapacity;
+		int mCount = 0;
+		long mMinTime = Long.MAX_VALUE;
+		long mMaxTime = Long.MIN_VALUE;
+		final long[] mBlockMin;
+		final long[] mBlockMax;
+
+		//While written: the mapped file and the chains of the records of every UID.
+		RandomAccessFile mFile;
+		MappedByteBuffer mMap;
+		long[] mHeadKeys;
+		int[] mHeadRecords;
+		int mHeadCount;
+		int[] mPrev;
+
+		//Once sealed, while open.
+		FileChannel mLogChannel;
+		FileChannel mIndexChannel;
+
+		Segment(long base, File logFile, int capacity){
+			mBase = base;
+			mLogFile = logFile;
+			mCapacity = capacity;
+			int blocks = (capacity + TIME_BLOCK_RECORDS - 1) / TIME_BLOCK_RECORDS;
+			mBlockMin = new long[blocks];
+			mBlockMax = new long[blocks];
+			Arrays.fill(mBlockMin, Long.MAX_VALUE);
+			Arrays.fill(mBlockMax, Long.MIN_VALUE);
+		}
+
+		void mapForWriting() throws IOException{
+			mFile = new RandomAccessFile(mLogFile, "rw");
+			try {
+				mFile.setLength((long)mCapacity * RECORD_SIZE);
+				mMap = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long)mCapacity * RECORD_SIZE);
+			} catch (IOException e) {
+				closeFiles();
+				throw e;
+			}
+			mHeadKeys = new long[1024];
+			mHeadRecords = new int[1024];
+			Arrays.fill(mHeadKeys, EMPTY);
+			mHeadCount = 0;
+			mPrev = new int[mCapacity];
+		}
+
+		/**
+		 * Adds a record to the time index and, while written, to the chains.
+		 */
+		void index(int record, long timestamp, long key){
+			mMinTime = Math.min(mMinTime, timestamp);
+			mMaxTime = Math.max(mMaxTime, timestamp);
+			int block = record / TIME_BLOCK_RECORDS;
+			mBlockMin[block] = Math.min(mBlockMin[block], timestamp);
+			mBlockMax[block] = Math.max(mBlockMax[block], timestamp);
+			if(mPrev == null){
+				return;
+			}
+			if(2 * (mHeadCount + 1) > mHeadKeys.length){
+				growHeads();
+			}
+			int slot = findHead(mHeadKeys, key);
+			if(mHeadKeys[slot] == EMPTY){
+				mHeadKeys[slot] = key;
+				mHeadCount++;
+				mPrev[record] = -1;
+			}
+			else{
+				mPrev[record] = mHeadRecords[slot];
+			}
+			mHeadRecords[slot] = record;
+		}
+
+		/**
+		 * @return The last record of a UID hash, or -1.
+		 */
+		int lastRecordOf(long key){
+			int slot = findHead(mHeadKeys, key);
+			return mHeadKeys[slot] == EMPTY ? -1 : mHeadRecords[slot];
+		}
+
+		void releaseChains(){
+			mHeadKeys = null;
+			mHeadRecords = null;
+			mPrev = null;
+		}
+
+		void closeFiles(){
+			closeQuietly(mFile);
+			closeQuietly(mLogChannel);
+			closeQuietly(mIndexChannel);
+			mFile = null;
+			mMap = null;
+			mLogChannel = null;
+			mIndexChannel = null;
+		}
+
+		private void growHeads(){
+			long[] keys = mHeadKeys;
+			int[] records = mHeadRecords;
+			mHeadKeys = new long[keys.length * 2];
+			mHeadRecords = new int[keys.length * 2];
+			Arrays.fill(mHeadKeys, EMPTY);
+			for(int i=0; i<keys.length; i++){
+				if(keys[i] != EMPTY){
+					int slot = findHead(mHeadKeys, keys[i]);
+					mHeadKeys[slot] = keys[i];
+					mHeadRecords[slot] = records[i];
+				}
+			}
+		}
+
+		private static int findHead(long[] keys, long key){
+			int mask = keys.length - 1;
+			int slot = (int)(key ^ (key >>> 17)) & mask;
+			while(keys[slot] != EMPTY && keys[slot] != key){
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+	}
+}
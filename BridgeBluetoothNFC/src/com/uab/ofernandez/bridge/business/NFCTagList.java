@@ -0,0 +1,116 @@
+package com.uab.ofernandez.bridge.business;
+
+/**
+ * Reusable fixed-capacity list of NFC tags. The tag identifiers are copied
+ * into storage allocated once, so filling and clearing the list on every
+ * pooling cycle does not create garbage.
+ */
+public final class NFCTagList implements NFCTagSink {
+
+	/** ISO14443A triple size UIDs are the longest supported identifiers. */
+	public static final int MAX_UID_LENGTH = 10;
+
+	private final byte[] mUids;
+	private final int[] mUidLengths;
+	private final byte[] mCardTypes;
+	private final int[] mAccess;
+	private int mSize = 0;
+
+	public NFCTagList(int capacity){
+		mUids = new byte[capacity * MAX_UID_LENGTH];
+		mUidLengths = new int[capacity];
+		mCardTypes = new byte[capacity];
+		mAccess = new int[capacity];
+	}
+
+	@Override
+	public void onNFCTag(byte cardType, byte[] buffer, int uidOffset, int uidLength) {
+		if(mSize == mCardTypes.length || uidLength > MAX_UID_LENGTH){
+			//no room for more tags... ignore it.
+			return;
+		}
+		System.arraycopy(buffer, uidOffset, mUids, mSize * MAX_UID_LENGTH, uidLength);
+		mUidLengths[mSize] = uidLength;
+		mCardTypes[mSize] = cardType;
+		mAccess[mSize] = NFCAccessList.ACCESS_UNCHECKED;
+		mSize++;
+	}
+
+	public void clear(){
+		mSize = 0;
+	}
+
+	public int size(){
+		return mSize;
+	}
+
+	public boolean isEmpty(){
+		return mSize == 0;
+	}
+
+	public byte getCardType(int index){
+		return mCardTypes[index];
+	}
+
+	/**
+	 * @return The access decision of a tag, one of the NFCAccessList.ACCESS_* values.
+	 */
+	public int getAccess(int index){
+		return mAccess[index];
+	}
+
+	public void setAccess(int index, int access){
+		mAccess[index] = access;
+	}
+
+	public int getUidLength(int index){
+		return mUidLengths[index];
+	}
+
+	/**
+	 * @return The storage of all the identifiers. The identifier of the tag
+	 * 		"index" begins at {@link #getUidOffset(int)}.
+	 */
+	public byte[] getUidBuffer(){
+		return mUids;
+	}
+
+	public int getUidOffset(int index){
+		return index * MAX_UID_LENGTH;
+	}
+
+	/**
+	 * Looks for a tag identifier in the list.
+	 * @return The position of the tag, or -1 if it is not in the list.
+	 */
+	public int indexOf(byte[] buffer, int uidOffset, int uidLength){
+		for(int i=0; i<mSize; i++){
+			if(mUidLengths[i] != uidLength){
+				continue;
+			}
+			int uid = getUidOffset(i);
+			int j = 0;
+			while(j < uidLength && mUids[uid + j] == buffer[uidOffset + j]){
+				j++;
+			}
+			if(j == uidLength){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The maximum number of tags of the list.
+	 */
+	public int getCapacity(){
+		return mCardTypes.length;
+	}
+
+	/**
+	 * @return The identifier of a tag, with its card type.
+	 */
+	public NFCTagId getTagId(int index){
+		return NFCTagId.valueOf(mCardTypes[index], mUids, getUidOffset(index), mUidLengths[index]);
+	}
+}
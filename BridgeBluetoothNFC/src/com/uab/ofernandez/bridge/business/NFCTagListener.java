@@ -0,0 +1,18 @@
+package com.uab.ofernandez.bridge.business;
+
+/**
+ * Receives the detected NFC tags directly, without going through the
+ * Android broadcast intents.
+ */
+public interface NFCTagListener {
+
+	/**
+	 * Called from the dispatcher thread with the tags detected since the
+	 * previous call. Implementations should return quickly, since the next
+	 * events wait for it.
+	 * @param events The detected tags, in detection order. The array is
+	 * 		reused on every call, so it must not be kept.
+	 * @param count Number of events in the array.
+	 */
+	public void onNFCTags(NFCTagEvent[] events, int count);
+}
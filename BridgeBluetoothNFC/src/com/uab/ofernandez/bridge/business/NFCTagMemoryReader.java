@@ -0,0 +1,214 @@
+package com.uab.ofernandez.bridge.business;
+
+/**
+ * Reads the NDEF message of a NFC Forum type 2 tag (NTAG, Mifare
+ * Ultralight) activated by the last scan.
+ *
+ * Every InDataExchange READ returns 16 bytes (4 pages). The next read is
+ * always queued behind the one in flight, so the channel writes it the
+ * moment the previous response arrives, while the pages already received
+ * are parsed. Once the NDEF block length is known no read is queued past
+ * the end of the message, and the reading stops as soon as the message or
+ * the terminator is found.
+ *
+ * Like the session, {@link #step()} never blocks. The commands are reused
+ * for every tag.
+ */
+public final class NFCTagMemoryReader {
+
+	/**************************************************************************
+	 * Reader states
+	 **************************************************************************/
+	public static final int STATE_IDLE = 0;
+	public static final int STATE_READING = 1;
+	public static final int STATE_DONE = 2;
+	public static final int STATE_FAILED = 3;
+
+	//Type 2 tag READ command and its parameters.
+	private static final byte CMD_READ = 0x30;
+	private static final int FIRST_DATA_PAGE = 4;
+	private static final int PAGE_SIZE = 4;
+	private static final int PAGES_PER_READ = 4;
+	private static final int BYTES_PER_READ = PAGE_SIZE * PAGES_PER_READ;
+	//The page number is a single byte.
+	private static final int MAX_PAGE = 0xFF;
+	//Reads in flight or queued on the channel.
+	private static final int PIPELINE_DEPTH = 2;
+
+	/*
+	 * Position of the InDataExchange status and of the page data in the
+	 * response: ACK, preamble, start code, LEN, LCS, TFI and response code.
+	 */
+	private static final int RESPONSE_LEN = 6 + 3;
+	private static final int RESPONSE_STATUS = 6 + 7;
+	private static final int RESPONSE_DATA = RESPONSE_STATUS + 1;
+	private static final int STATUS_ERROR_MASK = 0x3F;
+
+	private final NFCCommandChannel mChannel;
+	private final long mTimeout;
+	private final NFCCommandListener mListener;
+	private final NFCCommandFuture[] mReads = new NFCCommandFuture[PIPELINE_DEPTH];
+	//True while the read is submitted and its response not consumed.
+	private final boolean[] mSubmitted = new boolean[PIPELINE_DEPTH];
+	private final byte[] mPayload = new byte[3];
+	private final NFCNdefParser mParser = new NFCNdefParser();
+
+	private int mState = STATE_IDLE;
+	//Read whose response comes next, and page of the next read to submit.
+	private int mHead;
+	private int mNextPage;
+	private int mReadCount;
+	private int mLastStatus;
+	private long mStartNanos;
+
+	/**
+	 * @param channel The command channel of the reader.
+	 * @param timeout Maximum time to wait for each read, in miliseconds.
+	 * @param listener Notified when each read completes. Can be null.
+	 */
+	public NFCTagMemoryReader(NFCCommandChannel channel, long timeout, NFCCommandListener listener){
+		mChannel = channel;
+		mTimeout = timeout;
+		mListener = listener;
+		for(int i=0; i<PIPELINE_DEPTH; i++){
+			mReads[i] = new NFCCommandFuture(NFCFrameHandler.TX_NFC_GET_STATUS, timeout, listener);
+		}
+	}
+
+	/**
+	 * Starts reading the memory of a tag.
+	 * @param target The logical number of the tag given by the NFC module,
+	 * 		1 for the first tag of the scan.
+	 * @return False if the reads could not be queued.
+	 */
+	public boolean start(int target){
+		for(int i=0; i<PIPELINE_DEPTH; i++){
+			if(mSubmitted[i] && !mReads[i].isDone()){
+				//a read not needed by the previous tag is still on the link...
+				mReads[i] = new NFCCommandFuture(NFCFrameHandler.TX_NFC_GET_STATUS, mTimeout, mListener);
+			}
+			mSubmitted[i] = false;
+		}
+		mParser.reset();
+		mPayload[0] = (byte)target;
+		mPayload[1] = CMD_READ;
+		mHead = 0;
+		mNextPage = FIRST_DATA_PAGE;
+		mReadCount = 0;
+		mLastStatus = NFCCommandFuture.STATUS_DONE;
+		mStartNanos = System.nanoTime();
+		mState = STATE_READING;
+		for(int i=0; i<PIPELINE_DEPTH; i++){
+			if(!submitNext(i)){
+				mState = STATE_FAILED;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Consumes the reads completed and queues the next ones.
+	 * @return The reader state.
+	 */
+	public int step(){
+		while(mState == STATE_READING && mSubmitted[mHead] && mReads[mHead].isDone()){
+			NFCCommandFuture read = mReads[mHead];
+			mSubmitted[mHead] = false;
+			mReadCount++;
+			mLastStatus = read.getStatus();
+			if(!parsePages(read)){
+				mState = STATE_FAILED;
+				break;
+			}
+			if(mParser.isFinished()){
+				mState = mParser.isFailed() ? STATE_FAILED : STATE_DONE;
+				break;
+			}
+			if(!submitNext(mHead)){
+				mState = STATE_FAILED;
+				break;
+			}
+			mHead = (mHead + 1) % PIPELINE_DEPTH;
+			if(!mSubmitted[mHead]){
+				//nothing else queued and the message is not complete...
+				mState = STATE_FAILED;
+			}
+		}
+		return mState;
+	}
+
+	public int getState(){
+		return mState;
+	}
+
+	/**
+	 * @return The status of the last read consumed, to tell the link
+	 * 		failures apart from the tags that could not be read.
+	 */
+	public int getLastReadStatus(){
+		return mLastStatus;
+	}
+
+	/**
+	 * @return The NDEF message read, or null if the tag holds none or the
+	 * 		reading failed.
+	 */
+	public NFCNdefMessage getMessage(){
+		return mState == STATE_DONE ? mParser.getMessage() : null;
+	}
+
+	/**
+	 * @return The number of reads consumed for the last tag.
+	 */
+	public int getReadCount(){
+		return mReadCount;
+	}
+
+	/**
+	 * @return The System.nanoTime() of the start of the last tag.
+	 */
+	public long getStartNanos(){
+		return mStartNanos;
+	}
+
+	/**
+	 * Queues the read of the next pages, unless the parser already knows
+	 * they are not needed.
+	 * @return False if the channel refused the read.
+	 */
+	private boolean submitNext(int slot){
+		int endOffset = mParser.getEndOffset();
+		int offset = (mNextPage - FIRST_DATA_PAGE) * PAGE_SIZE;
+		if(mNextPage > MAX_PAGE || (endOffset >= 0 && offset >= endOffset)){
+			return true;
+		}
+		mPayload[2] = (byte)mNextPage;
+		mReads[slot].setCommand(NFCFrameHandler.getCommand(NFCFrameHandler.CMD_IN_DATA_EXCHANGE, mPayload, 0, mPayload.length));
+		if(!mChannel.submit(mReads[slot])){
+			return false;
+		}
+		mSubmitted[slot] = true;
+		mNextPage += PAGES_PER_READ;
+		return true;
+	}
+
+	/**
+	 * Feeds the pages of a read response to the parser.
+	 * @return False if the read failed.
+	 */
+	private boolean parsePages(NFCCommandFuture read){
+		if(read.getStatus() != NFCCommandFuture.STATUS_DONE){
+			return false;
+		}
+		byte[] response = read.getResponse();
+		int length = read.getResponseLength();
+		if(length <= RESPONSE_DATA || (response[RESPONSE_STATUS] & STATUS_ERROR_MASK) != 0
+				|| (response[RESPONSE_LEN] & 0xFF) - 3 < BYTES_PER_READ){
+			//the tag did not answer, or it is not a type 2 tag.
+			return false;
+		}
+		mParser.feed(response, RESPONSE_DATA, BYTES_PER_READ);
+		return true;
+	}
+}
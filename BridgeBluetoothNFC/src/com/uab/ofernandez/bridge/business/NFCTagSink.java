@@ -0,0 +1,20 @@
+package com.uab.ofernandez.bridge.business;
+
+/**
+ * Receives the NFC tags found by the frame parser.
+ *
+ * The tag identifier is given as a view over the receive buffer, which is
+ * reused by the next read. Implementations must copy the bytes they want to
+ * keep before returning.
+ */
+public interface NFCTagSink {
+
+	/**
+	 * Called for every NFC tag found in a response frame.
+	 * @param cardType The card type, see {@link NFCCardType}.
+	 * @param buffer The receive buffer.
+	 * @param uidOffset Position of the tag identifier in the buffer.
+	 * @param uidLength Length of the tag identifier.
+	 */
+	public void onNFCTag(byte cardType, byte[] buffer, int uidOffset, int uidLength);
+}
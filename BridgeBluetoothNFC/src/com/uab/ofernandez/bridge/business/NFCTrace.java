@@ -0,0 +1,257 @@
+package com.uab.ofernandez.bridge.business;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory trace of the traffic with one reader.
+ *
+ * Every event is a fixed size binary record (time, type, command code, a
+ * value and a byte count) written into preallocated arrays used as a ring
+ * buffer, so the last events are always kept and the oldest ones are
+ * overwritten. The received frames can be attached to their event: they are
+ * copied, not formatted, into a smaller ring of frame buffers. Nothing is
+ * converted to text until the trace is dumped, so the trace can stay
+ * enabled while pooling without creating any garbage.
+ *
+ * Several threads can record at the same time (the channel threads and the
+ * pooling thread). A dump skips the records being overwritten meanwhile.
+ */
+public final class NFCTrace {
+
+	/**************************************************************************
+	 * Event types
+	 **************************************************************************/
+	//A command was written. value: not used, count: bytes written.
+	public static final int EVENT_TX = 1;
+	//A command completed. value: NFCCommandFuture status, count: response bytes.
+	public static final int EVENT_RX = 2;
+	//A pooling cycle started. value: cycle number.
+	public static final int EVENT_CYCLE = 3;
+	//Tags found by a scan. count: number of tags.
+	public static final int EVENT_TAGS = 4;
+	//A response frame nobody was waiting for. count: frame bytes.
+	public static final int EVENT_STRAY = 5;
+	//The link failed.
+	public static final int EVENT_IO_ERROR = 6;
+	//The pooling session finished. value: final session state.
+	public static final int EVENT_STOP = 7;
+
+	private static final String[] EVENT_NAMES = {"?", "TX", "RX", "CYCLE", "TAGS", "STRAY", "IO ERROR", "STOP"};
+	private static final String[] STATUS_NAMES = {"pending", "done", "timeout", "NACK", "error frame", "IO error", "cancelled"};
+
+	private static final int DEFAULT_EVENTS = 1024;
+	private static final int DEFAULT_FRAMES = 32;
+	private static final int NO_FRAME = -1;
+
+	//Events: the sequence number of the record is published last.
+	private final int mEventMask;
+	private final AtomicLongArray mEventSequences;
+	private final long[] mTimes;
+	private final byte[] mTypes;
+	private final byte[] mCodes;
+	private final int[] mValues;
+	private final int[] mCounts;
+	private final long[] mFrameRefs;
+	private final AtomicLong mNextEvent = new AtomicLong();
+
+	//Frame snapshots, referenced by their sequence number.
+	private final int mFrameMask;
+	private final AtomicLongArray mFrameSequences;
+	private final byte[][] mFrames;
+	private final int[] mFrameLengths;
+	private final AtomicLong mNextFrame = new AtomicLong();
+
+	public NFCTrace(){
+		this(DEFAULT_EVENTS, DEFAULT_FRAMES);
+	}
+
+	/**
+	 * @param events Number of events kept. Rounded up to a power of two.
+	 * @param frames Number of frames kept. Rounded up to a power of two.
+	 */
+	public NFCTrace(int events, int frames){
+		if(events <= 0 || frames <= 0){
+			throw new IllegalArgumentException("Invalid trace sizes: "+events+"/"+frames);
+		}
+		int eventCapacity = Integer.highestOneBit(Math.max(events, 2) - 1) << 1;
+		int frameCapacity = Integer.highestOneBit(Math.max(frames, 2) - 1) << 1;
+		mEventMask = eventCapacity - 1;
+		mEventSequences = new AtomicLongArray(eventCapacity);
+		mTimes = new long[eventCapacity];
+		mTypes = new byte[eventCapacity];
+		mCodes = new byte[eventCapacity];
+		mValues = new int[eventCapacity];
+		mCounts = new int[eventCapacity];
+		mFrameRefs = new long[eventCapacity];
+		mFrameMask = frameCapacity - 1;
+		mFrameSequences = new AtomicLongArray(frameCapacity);
+		mFrames = new byte[frameCapacity][NFCCommandFuture.MAX_RESPONSE_LENGTH];
+		mFrameLengths = new int[frameCapacity];
+		for(int i=0; i<eventCapacity; i++){
+			mEventSequences.set(i, -1);
+		}
+		for(int i=0; i<frameCapacity; i++){
+			mFrameSequences.set(i, -1);
+		}
+	}
+
+	/**
+	 * Records an event without frame.
+	 * @param type One of the EVENT_* constants.
+	 * @param code The NFC command code, or -1.
+	 */
+	public void record(int type, int code, int value, int count){
+		publish(type, code, value, count, NO_FRAME);
+	}
+
+	/**
+	 * Records an event and a copy of its frame.
+	 * @param type One of the EVENT_* constants.
+	 * @param code The NFC command code, or -1.
+	 * @param buffer The frame bytes. Longer frames are truncated.
+	 */
+	public void record(int type, int code, int value, byte[] buffer, int offset, int length){
+		long frameRef = NO_FRAME;
+		if(buffer != null && length > 0){
+			frameRef = mNextFrame.getAndIncrement();
+			int slot = (int)frameRef & mFrameMask;
+			//invalidate the slot while it is being overwritten...
+			mFrameSequences.set(slot, -1);
+			int copied = Math.min(length, mFrames[slot].length);
+			System.arraycopy(buffer, offset, mFrames[slot], 0, copied);
+			mFrameLengths[slot] = copied;
+			mFrameSequences.set(slot, frameRef);
+		}
+		publish(type, code, value, length, frameRef);
+	}
+
+	/**
+	 * @return The number of events recorded since the trace was created.
+	 */
+	public long getRecordedEvents(){
+		return mNextEvent.get();
+	}
+
+	/**
+	 * Formats the events kept, oldest first. The times are relative to the
+	 * moment of the dump.
+	 * @param maxEvents Maximum number of events, the most recent ones.
+	 * @return The trace, one event per line.
+	 */
+	public String dump(int maxEvents){
+		long now = System.nanoTime();
+		long last = mNextEvent.get();
+		long first = Math.max(0, last - Math.min(maxEvents, mEventMask + 1));
+		StringBuilder builder = new StringBuilder(64 * (int)(last - first));
+		char[] hex = new char[2 * NFCCommandFuture.MAX_RESPONSE_LENGTH];
+		for(long sequence=first; sequence<last; sequence++){
+			int i = (int)sequence & mEventMask;
+			if(mEventSequences.get(i) != sequence){
+				//not published yet, or already overwritten...
+				continue;
+			}
+			long time = mTimes[i];
+			int type = mTypes[i];
+			int code = mCodes[i] & 0xFF;
+			int value = mValues[i];
+			int count = mCounts[i];
+			long frameRef = mFrameRefs[i];
+			if(mEventSequences.get(i) != sequence){
+				continue;
+			}
+			appendEvent(builder, now - time, type, code, value, count);
+			if(frameRef != NO_FRAME){
+				appendFrame(builder, frameRef, hex);
+			}
+			builder.append('\n');
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Writes the events kept to the log, one line per event.
+	 * @param priority One of the NFCLog priorities.
+	 */
+	public void dumpToLog(int priority, String tag, int maxEvents){
+		String trace = dump(maxEvents);
+		int start = 0;
+		int end;
+		while((end = trace.indexOf('\n', start)) >= 0){
+			NFCLog.println(priority, tag, trace.substring(start, end));
+			start = end + 1;
+		}
+	}
+
+	/**
+	 * Forgets all the events kept.
+	 */
+	public void clear(){
+		for(int i=0; i<=mEventMask; i++){
+			mEventSequences.set(i, -1);
+		}
+	}
+
+	private void publish(int type, int code, int value, int count, long frameRef){
+		long sequence = mNextEvent.getAndIncrement();
+		int i = (int)sequence & mEventMask;
+		mEventSequences.set(i, -1);
+		mTimes[i] = System.nanoTime();
+		mTypes[i] = (byte)type;
+		mCodes[i] = (byte)code;
+		mValues[i] = value;
+		mCounts[i] = count;
+		mFrameRefs[i] = frameRef;
+		mEventSequences.set(i, sequence);
+	}
+
+	private static void appendEvent(StringBuilder builder, long age, int type, int code, int value, int count){
+		long micros = age / 1000L;
+		builder.append('-').append(micros / 1000).append('.');
+		long fraction = micros % 1000;
+		if(fraction < 100){
+			builder.append(fraction < 10 ? "00" : "0");
+		}
+		builder.append(fraction).append("ms ").append(type < EVENT_NAMES.length ? EVENT_NAMES[type] : EVENT_NAMES[0]);
+		if(code != 0xFF){
+			builder.append(" cmd=0x").append(Integer.toHexString(code));
+		}
+		switch (type) {
+		case EVENT_RX:
+			builder.append(' ').append(value >= 0 && value < STATUS_NAMES.length ? STATUS_NAMES[value] : String.valueOf(value));
+			builder.append(' ').append(count).append(" bytes");
+			break;
+		case EVENT_CYCLE:
+		case EVENT_STOP:
+			builder.append(' ').append(value);
+			break;
+		case EVENT_TAGS:
+			builder.append(' ').append(count);
+			break;
+		case EVENT_TX:
+		case EVENT_STRAY:
+			builder.append(' ').append(count).append(" bytes");
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void appendFrame(StringBuilder builder, long frameRef, char[] hex){
+		int slot = (int)frameRef & mFrameMask;
+		if(mFrameSequences.get(slot) != frameRef){
+			builder.append(" [frame overwritten]");
+			return;
+		}
+		int length = mFrameLengths[slot];
+		int chars = 0;
+		for(int i=0; i<length; i++){
+			chars = NFCHex.encodeByte(mFrames[slot][i], hex, chars);
+		}
+		if(mFrameSequences.get(slot) != frameRef){
+			builder.append(" [frame overwritten]");
+			return;
+		}
+		builder.append(" [").append(hex, 0, chars).append(']');
+	}
+}
@@ -0,0 +1,206 @@
+package com.uab.ofernandez.bridge.business;
+
+/**
+ * Set of NFC tag identifiers stored as primitive longs.
+ *
+ * The identifiers up to 7 bytes long (every single and double size
+ * ISO14443A UID) are packed with their length into a long key, so a lookup
+ * never creates objects. The keys live in an open addressing hash table with
+ * linear probing, fronted by a small Bloom filter that rejects most of the
+ * identifiers that are not in the set without touching the table.
+ *
+ * The set is not synchronized: fill it first and then publish it to the
+ * threads that query it.
+ */
+public final class NFCUidSet {
+
+	/** Longest identifier that fits in a key. */
+	public static final int MAX_UID_LENGTH = 7;
+
+	//Empty slot marker. A valid key always has its length bits set.
+	private static final long EMPTY = 0;
+	private static final int MIN_CAPACITY = 16;
+	//Bits of the Bloom filter per slot of the table and number of hashes.
+	private static final int BLOOM_BITS_PER_SLOT = 8;
+	private static final int BLOOM_HASHES = 3;
+
+	private long[] mTable;
+	private int mMask;
+	private int mSize = 0;
+
+	private long[] mBloom;
+	private int mBloomMask;
+
+	/**
+	 * @param expectedSize Number of identifiers expected, to avoid resizing
+	 * 		while the set is filled.
+	 */
+	public NFCUidSet(int expectedSize){
+		allocate(tableCapacity(expectedSize));
+	}
+
+	/**
+	 * Packs a tag identifier into a key.
+	 * @return The key, or 0 if the identifier is empty or too long.
+	 */
+	public static long toKey(byte[] buffer, int offset, int length){
+		if(buffer==null || length<1 || length>MAX_UID_LENGTH || offset<0 || offset+length>buffer.length){
+			return EMPTY;
+		}
+		long key = length;
+		for(int i=offset; i<offset+length; i++){
+			key = (key << 8) | (buffer[i] & 0xFF);
+		}
+		return key;
+	}
+
+	/**
+	 * Packs a tag identifier into a key.
+	 * @return The key, or 0 if the identifier is too long.
+	 */
+	public static long toKey(NFCTagId tagId){
+		if(tagId==null || tagId.length()>MAX_UID_LENGTH){
+			return EMPTY;
+		}
+		long key = tagId.length();
+		for(int i=0; i<tagId.length(); i++){
+			key = (key << 8) | (tagId.getByte(i) & 0xFF);
+		}
+		return key;
+	}
+
+	/**
+	 * Adds an identifier.
+	 * @return False if the identifier is too long or already present.
+	 */
+	public boolean add(byte[] buffer, int offset, int length){
+		return addKey(toKey(buffer, offset, length));
+	}
+
+	/**
+	 * Adds a key built with {@link #toKey(byte[], int, int)}.
+	 * @return False if the key is not valid or already present.
+	 */
+	public boolean addKey(long key){
+		if(key == EMPTY){
+			return false;
+		}
+		if(2 * (mSize + 1) > mTable.length){
+			resize();
+		}
+		if(!insert(mTable, mMask, key)){
+			return false;
+		}
+		addToBloom(key);
+		mSize++;
+		return true;
+	}
+
+	public boolean contains(byte[] buffer, int offset, int length){
+		return containsKey(toKey(buffer, offset, length));
+	}
+
+	public boolean containsKey(long key){
+		if(key == EMPTY){
+			return false;
+		}
+		long hash = mix(key);
+		if(!mightContain(hash)){
+			return false;
+		}
+		for(int i=(int)hash & mMask; ; i=(i+1) & mMask){
+			long slot = mTable[i];
+			if(slot == key){
+				return true;
+			}
+			if(slot == EMPTY){
+				return false;
+			}
+		}
+	}
+
+	public int size(){
+		return mSize;
+	}
+
+	public boolean isEmpty(){
+		return mSize == 0;
+	}
+
+	private static int tableCapacity(int expectedSize){
+		int capacity = MIN_CAPACITY;
+		//keep the load factor at 0.5 at most...
+		while(capacity < 2L * expectedSize && capacity < (1 << 30)){
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	private void allocate(int capacity){
+		mTable = new long[capacity];
+		mMask = capacity - 1;
+		//capacity x BLOOM_BITS_PER_SLOT bits, 64 per long.
+		int bloomLength = Math.max(1, capacity * BLOOM_BITS_PER_SLOT / 64);
+		mBloom = new long[bloomLength];
+		mBloomMask = bloomLength * 64 - 1;
+	}
+
+	private void resize(){
+		long[] old = mTable;
+		allocate(old.length << 1);
+		for(int i=0; i<old.length; i++){
+			if(old[i] != EMPTY){
+				insert(mTable, mMask, old[i]);
+				addToBloom(old[i]);
+			}
+		}
+	}
+
+	private static boolean insert(long[] table, int mask, long key){
+		for(int i=(int)mix(key) & mask; ; i=(i+1) & mask){
+			long slot = table[i];
+			if(slot == key){
+				return false;
+			}
+			if(slot == EMPTY){
+				table[i] = key;
+				return true;
+			}
+		}
+	}
+
+	private void addToBloom(long key){
+		long hash = mix(key);
+		int h1 = (int)(hash >>> 32);
+		int h2 = (int)hash | 1;
+		for(int i=0; i<BLOOM_HASHES; i++){
+			int bit = (h1 + i*h2) & mBloomMask;
+			mBloom[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	private boolean mightContain(long hash){
+		int h1 = (int)(hash >>> 32);
+		int h2 = (int)hash | 1;
+		for(int i=0; i<BLOOM_HASHES; i++){
+			int bit = (h1 + i*h2) & mBloomMask;
+			if((mBloom[bit >>> 6] & (1L << bit)) == 0){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Spreads the bits of a key (MurmurHash3 finalizer). The identifiers of
+	 * the same batch of cards usually share most of their bytes.
+	 */
+	private static long mix(long key){
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+}
@@ -18,22 +18,19 @@ public final class Utils {
 	 * 		invalid parameters.
 	 */
 	public static String convertToHexString(byte[] buffer, int numBytes){
-		if(buffer==null || numBytes<=0 || numBytes>buffer.length){
-			return new String("");
-		}
-
-		StringBuilder hexString = new StringBuilder();
+		return convertToHexString(buffer, 0, numBytes);
+	}
 
-		for(int i=0; i<numBytes; i++){
-			String hex = Integer.toHexString(0xFF & buffer[i]);
-			if(hex.length()==2){
-				hexString.append(hex);
-			}
-			else{//length 1
-				hexString.append("0").append(hex);
-			}
-		}
-		return hexString.toString();
+	/**
+	 * Converts a region of an array of bytes to its hexadecimal string representation.
+	 * @param buffer The byte array that we want to convert.
+	 * @param offset The position of the first byte to convert.
+	 * @param numBytes The number of bytes we want to consider.
+	 * @return The string representation or and empty string in case of
+	 * 		invalid parameters.
+	 */
+	public static String convertToHexString(byte[] buffer, int offset, int numBytes){
+		return NFCHex.toHexString(buffer, offset, numBytes);
 	}
 
 	/**
@@ -56,6 +53,51 @@ public final class Utils {
 		return intent;
 	}
 
+	/**
+	 * Builds an Intent containing the NFC tags of a scan, for later broadcast
+	 * to the Broadcast receiver implemented by some Activity.
+	 * @param events The tag events. Only the first two are added.
+	 * @param offset Position of the first event of the scan.
+	 * @param count Number of events of the scan.
+	 * @return Intent containing tag information.
+	 */
+	public static Intent buildIntentWithNFCTags(NFCTagEvent[] events, int offset, int count){
+		Intent intent = new Intent();
+		intent.setAction(IConstants.INTENT_TRANSFER_NFC_TAGS);
+		if(count>0){
+			NFCTagEvent tag1 = events[offset];
+			intent.putExtra(IConstants.ID_NFC_TAG_1, tag1.getTagId().toString());
+			if(tag1.getAccess() != NFCAccessList.ACCESS_UNCHECKED){
+				intent.putExtra(IConstants.ID_NFC_ACCESS_1, tag1.getAccess());
+			}
+			if(tag1.getNdefMessage() != null){
+				intent.putExtra(IConstants.ID_NFC_NDEF_1, tag1.getNdefMessage().getBytes());
+			}
+			if(tag1.getType() != NFCTagEvent.TYPE_DETECTED){
+				intent.putExtra(IConstants.ID_NFC_EVENT_1, tag1.getType());
+				intent.putExtra(IConstants.ID_NFC_DWELL_1, tag1.getDwellTime());
+			}
+			if(tag1.getReaderId() != null){
+				intent.putExtra(IConstants.ID_NFC_READER, tag1.getReaderId());
+			}
+		}
+		if(count>1){
+			NFCTagEvent tag2 = events[offset+1];
+			intent.putExtra(IConstants.ID_NFC_TAG_2, tag2.getTagId().toString());
+			if(tag2.getAccess() != NFCAccessList.ACCESS_UNCHECKED){
+				intent.putExtra(IConstants.ID_NFC_ACCESS_2, tag2.getAccess());
+			}
+			if(tag2.getNdefMessage() != null){
+				intent.putExtra(IConstants.ID_NFC_NDEF_2, tag2.getNdefMessage().getBytes());
+			}
+			if(tag2.getType() != NFCTagEvent.TYPE_DETECTED){
+				intent.putExtra(IConstants.ID_NFC_EVENT_2, tag2.getType());
+				intent.putExtra(IConstants.ID_NFC_DWELL_2, tag2.getDwellTime());
+			}
+		}
+		return intent;
+	}
+
 	/**
 	 * Extracts the NFC tags from a received Intent.
 	 * @param intent Intent instance.
@@ -77,4 +119,22 @@ public final class Utils {
 		return tags;
 	}
 
+	/**
+	 * Extracts the NFC tags from a received Intent as tag identifiers. The
+	 * card type is not sent in the intent, so it is always unknown.
+	 * @param intent Intent instance.
+	 * @return A list of NFC Tag identifiers.
+	 */
+	public static List<NFCTagId> retrieveNFCTagIdsFromIntent(Intent intent){
+		List<String> tags = retrieveNFCTagsFromIntent(intent);
+		ArrayList<NFCTagId> tagIds = new ArrayList<NFCTagId>(tags.size());
+		for(String tag : tags){
+			NFCTagId tagId = NFCTagId.parse(tag, NFCTagId.TYPE_UNKNOWN);
+			if(tagId != null){
+				tagIds.add(tagId);
+			}
+		}
+		return tagIds;
+	}
+
 }
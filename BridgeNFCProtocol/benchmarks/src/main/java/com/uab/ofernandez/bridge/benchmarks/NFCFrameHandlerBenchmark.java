@@ -0,0 +1,76 @@
+package com.uab.ofernandez.bridge.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.uab.ofernandez.bridge.business.NFCFrameHandler;
+import com.uab.ofernandez.bridge.business.NFCTagList;
+
+/**
+ * Parsing of the scan tag responses. Run with "-prof gc" to see the
+ * allocation rate of every parser.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NFCFrameHandlerBenchmark {
+
+	private static final int ACK_LENGTH = 6;
+
+	@Param({ScanResponses.ONE_TAG, ScanResponses.TWO_TAGS, ScanResponses.NO_CARD, ScanResponses.CORRUPT})
+	public String response;
+
+	private byte[] mBuffer;
+	private final NFCTagList mTagList = new NFCTagList(2);
+
+	@Setup
+	public void setUp(){
+		mBuffer = ScanResponses.build(response);
+	}
+
+	@Benchmark
+	public int extractNFCTagData(){
+		mTagList.clear();
+		return NFCFrameHandler.extractNFCTagData(mBuffer, 0, mBuffer.length, mTagList);
+	}
+
+	@Benchmark
+	public List<byte[]> extractNFCTagDataList(){
+		return NFCFrameHandler.extractNFCTagData(mBuffer);
+	}
+
+	@Benchmark
+	public boolean isFrameChecksumOk(){
+		return NFCFrameHandler.isFrameChecksumOk(mBuffer, ACK_LENGTH, mBuffer.length - ACK_LENGTH);
+	}
+
+	@Benchmark
+	public boolean isFirmwareRXOk(){
+		return NFCFrameHandler.isFirmwareRXOk(mBuffer, mBuffer.length);
+	}
+
+	@Benchmark
+	public boolean isAcknowledge(){
+		return NFCFrameHandler.isAcknowledge(mBuffer, 0, mBuffer.length);
+	}
+
+	@Benchmark
+	public boolean isNoCardDetectedRXMsg(){
+		return NFCFrameHandler.isNoCardDetectedRXMsg(mBuffer, 0, mBuffer.length);
+	}
+}
@@ -0,0 +1,81 @@
+package com.uab.ofernandez.bridge.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.uab.ofernandez.bridge.business.NFCAccessList;
+import com.uab.ofernandez.bridge.business.NFCFrameHandler;
+import com.uab.ofernandez.bridge.business.NFCHex;
+import com.uab.ofernandez.bridge.business.NFCTagEvent;
+import com.uab.ofernandez.bridge.business.NFCTagId;
+import com.uab.ofernandez.bridge.business.NFCTagList;
+
+/**
+ * Conversion of the detected tags to events and hex strings, as done by the
+ * pooling for every detection.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NFCTagBenchmark {
+
+	@Param({ScanResponses.ONE_TAG, ScanResponses.TWO_TAGS})
+	public String response;
+
+	private byte[] mBuffer;
+	private final NFCTagList mTagList = new NFCTagList(2);
+	private NFCTagId mTagId;
+	private String mHex;
+	private final char[] mHexBuffer = new char[2 * NFCTagId.MAX_LENGTH];
+
+	@Setup
+	public void setUp(){
+		mBuffer = ScanResponses.build(response);
+		NFCFrameHandler.extractNFCTagData(mBuffer, 0, mBuffer.length, mTagList);
+		mTagId = mTagList.getTagId(0);
+		mHex = mTagId.toString();
+	}
+
+	/**
+	 * Parse, then build the events handed to the tag listeners.
+	 */
+	@Benchmark
+	public void buildTagEvents(Blackhole blackhole){
+		mTagList.clear();
+		NFCFrameHandler.extractNFCTagData(mBuffer, 0, mBuffer.length, mTagList);
+		long timestamp = System.currentTimeMillis();
+		for(int i=0; i<mTagList.size(); i++){
+			blackhole.consume(new NFCTagEvent(null, mTagList.getTagId(i), timestamp, NFCAccessList.ACCESS_UNCHECKED));
+		}
+	}
+
+	@Benchmark
+	public String convertToHexString(){
+		return NFCHex.toHexString(mTagList.getUidBuffer(), mTagList.getUidOffset(0), mTagList.getUidLength(0));
+	}
+
+	@Benchmark
+	public int appendHex(){
+		return mTagId.appendHex(mHexBuffer, 0);
+	}
+
+	@Benchmark
+	public NFCTagId parseTagId(){
+		return NFCTagId.parse(mHex, NFCTagId.TYPE_UNKNOWN);
+	}
+}
@@ -0,0 +1,74 @@
+package com.uab.ofernandez.bridge.benchmarks;
+
+/**
+ * Scan tag (InAutoPoll) responses as read from the bridge: the ACK followed
+ * by the response frame.
+ */
+final class ScanResponses {
+
+	static final String ONE_TAG = "ONE_TAG";
+	static final String TWO_TAGS = "TWO_TAGS";
+	static final String NO_CARD = "NO_CARD";
+	static final String CORRUPT = "CORRUPT";
+
+	private static final int[] ACK = {0x00, 0x00, 0xFF, 0x00, 0xFF, 0x00};
+	//Mifare target: Tg, SENS_RES, SEL_RES, NFCID length and 7 bytes NFCID
+	private static final int[] MIFARE = {0x10, 12, 0x01, 0x00, 0x44, 0x00, 0x07,
+		0x04, 0xA1, 0xB2, 0xC3, 0xD4, 0xE5, 0xF6};
+	//Jewel target: Tg, SENS_RES and JEWELID
+	private static final int[] JEWEL = {0x04, 7, 0x02, 0x0C, 0x00, 0x11, 0x22, 0x33, 0x44};
+
+	private ScanResponses(){}
+
+	static byte[] build(String kind){
+		if(ONE_TAG.equals(kind)){
+			return response(1, MIFARE);
+		}
+		if(TWO_TAGS.equals(kind)){
+			return response(2, MIFARE, JEWEL);
+		}
+		if(NO_CARD.equals(kind)){
+			return response(0);
+		}
+		if(CORRUPT.equals(kind)){
+			byte[] response = response(2, MIFARE, JEWEL);
+			//break the data checksum...
+			response[response.length - 2] ^= 0x5A;
+			return response;
+		}
+		throw new IllegalArgumentException("Unknown response: "+kind);
+	}
+
+	private static byte[] response(int tags, int[]... targets){
+		int dataLength = 3;
+		for(int[] target : targets){
+			dataLength += target.length;
+		}
+		byte[] response = new byte[ACK.length + dataLength + 7];
+		int position = 0;
+		for(int value : ACK){
+			response[position++] = (byte)value;
+		}
+		response[position++] = 0x00;
+		response[position++] = 0x00;
+		response[position++] = (byte)0xFF;
+		response[position++] = (byte)dataLength;
+		response[position++] = (byte)-dataLength;
+		int data = position;
+		response[position++] = (byte)0xD5;
+		response[position++] = 0x61;
+		response[position++] = (byte)tags;
+		for(int[] target : targets){
+			for(int value : target){
+				response[position++] = (byte)value;
+			}
+		}
+		int sum = 0;
+		for(int i=data; i<position; i++){
+			sum += response[i];
+		}
+		response[position++] = (byte)-sum;
+		response[position] = 0x00;
+		return response;
+	}
+}
@@ -0,0 +1,655 @@
+package com.uab.ofernandez.bridge.simulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import com.uab.ofernandez.bridge.business.NFCCardType;
+import com.uab.ofernandez.bridge.business.NFCCommandFuture;
+import com.uab.ofernandez.bridge.business.NFCFrameAssembler;
+import com.uab.ofernandez.bridge.business.NFCTagId;
+
+/**
+ * Software stand-in for the bridge: a PN532 NFC module behind the RFComm
+ * link, seen through the same pair of streams than a BluetoothSocket.
+ *
+ * It answers the commands used by the pooling (SAMConfiguration wake up,
+ * InAutoPoll, PowerDown, GetGeneralStatus and GetFirmwareVersion), the
+ * InDataExchange READ of the tags memory and the inventory commands
+ * (RFConfiguration, InListPassiveTarget and InRelease) with the ACK and a
+ * response frame with correct checksums. The tags in the field
+ * follow a {@link TagScript}, and an InAutoPoll waits for a tag up to the
+ * pooling time it asks for, like the real module, unless the host aborts
+ * it writing an ACK frame. The InAutoPoll reports the first two tags; the
+ * released targets are halted until the power down switches the RF field
+ * off or they leave the field.
+ *
+ * The link can be degraded with a response delay, fragmented writes, lost
+ * bytes and NACKs, all driven by a seeded random generator so the runs are
+ * repeatable.
+ */
+public final class PN532Simulator {
+
+	private static final byte TFI_COMMAND = (byte)0xD4;
+	private static final byte TFI_RESPONSE = (byte)0xD5;
+	private static final byte CMD_GET_FIRMWARE_VERSION = 0x02;
+	private static final byte CMD_GET_GENERAL_STATUS = 0x04;
+	private static final byte CMD_SAM_CONFIGURATION = 0x14;
+	private static final byte CMD_POWER_DOWN = 0x16;
+	private static final byte CMD_RF_CONFIGURATION = 0x32;
+	private static final byte CMD_IN_DATA_EXCHANGE = 0x40;
+	private static final byte CMD_IN_LIST_PASSIVE_TARGET = 0x4A;
+	private static final byte CMD_IN_RELEASE = 0x52;
+	private static final byte CMD_IN_AUTO_POLL = 0x60;
+	//Type 2 tag READ, and the InDataExchange status when the target is gone.
+	private static final byte TAG_CMD_READ = 0x30;
+	private static final byte STATUS_TIMEOUT = 0x01;
+	private static final int PAGE_SIZE = 4;
+	private static final int READ_LENGTH = 16;
+	//Targets reported by an InAutoPoll or listed by an InListPassiveTarget.
+	private static final int MAX_TARGETS = 2;
+
+	private static final byte[] ACK = {0x00, 0x00, (byte)0xFF, 0x00, (byte)0xFF, 0x00};
+	private static final byte[] NACK = {0x00, 0x00, (byte)0xFF, (byte)0xFF, 0x00, 0x00};
+	private static final byte[] ERROR_FRAME = {0x00, 0x00, (byte)0xFF, 0x01, (byte)0xFF, 0x7F, (byte)0x81, 0x00};
+	//PN532 v1.6
+	private static final byte[] FIRMWARE_VERSION = {0x32, 0x01, 0x06, 0x07};
+
+	//Duration of an InAutoPoll period unit, in miliseconds.
+	private static final long POLL_PERIOD_UNIT = 150;
+
+	private final TagScript mScript;
+	private final HostInputStream mHostInput = new HostInputStream();
+	private final HostOutputStream mHostOutput = new HostOutputStream();
+	private final NFCFrameAssembler mAssembler = new NFCFrameAssembler(1024);
+	private final byte[] mFrame = new byte[NFCCommandFuture.MAX_RESPONSE_LENGTH];
+
+	//Commands waiting for the device thread. Guarded by mLock.
+	private final Object mLock = new Object();
+	private final ArrayDeque<byte[]> mCommands = new ArrayDeque<byte[]>();
+	//An ACK written by the host aborts the running command.
+	private boolean mAbortRequested = false;
+	private volatile boolean mClosed = false;
+	private Thread mDeviceThread;
+	private long mStartNanos;
+
+	/*
+	 * Link conditions. They can be changed before start.
+	 */
+	private Random mRandom = new Random(1);
+	private long mMinDelayMs = 0;
+	private long mMaxDelayMs = 0;
+	private int mMaxFragment = 0;
+	private long mFragmentGapMicros = 0;
+	private double mDropRate = 0;
+	private double mNackRate = 0;
+	private double mPollUnitScale = 1;
+	//Memory of every Mifare tag in the field, page 0 first.
+	private byte[] mTagMemory = type2TagMemory(new byte[0], 36);
+
+	//Tags listed by the last InListPassiveTarget, and the released ones.
+	//Only used by the device thread.
+	private final List<NFCTagId> mListed = new ArrayList<NFCTagId>();
+	private final Set<NFCTagId> mHalted = new HashSet<NFCTagId>();
+
+	//Statistics, only updated by the device thread.
+	private volatile long mCommandsReceived = 0;
+	private volatile long mBytesDropped = 0;
+	private volatile long mNacksSent = 0;
+	private volatile long mPollsAborted = 0;
+
+	public PN532Simulator(TagScript script){
+		mScript = script;
+	}
+
+	/**
+	 * @param minMs Minimum time between the ACK and the response frame.
+	 * @param maxMs Maximum time between the ACK and the response frame.
+	 */
+	public PN532Simulator setResponseDelay(long minMs, long maxMs){
+		mMinDelayMs = minMs;
+		mMaxDelayMs = Math.max(minMs, maxMs);
+		return this;
+	}
+
+	/**
+	 * Splits every frame sent to the host in chunks of random size.
+	 * @param maxFragment Maximum size of a chunk. 0 sends whole frames.
+	 * @param gapMicros Pause between two chunks, in microseconds.
+	 */
+	public PN532Simulator setFragmentation(int maxFragment, long gapMicros){
+		mMaxFragment = maxFragment;
+		mFragmentGapMicros = gapMicros;
+		return this;
+	}
+
+	/**
+	 * @param rate Probability of losing every byte sent to the host.
+	 */
+	public PN532Simulator setDropRate(double rate){
+		mDropRate = rate;
+		return this;
+	}
+
+	/**
+	 * @param rate Probability of answering a command with a NACK.
+	 */
+	public PN532Simulator setNackRate(double rate){
+		mNackRate = rate;
+		return this;
+	}
+
+	/**
+	 * Scales the InAutoPoll period unit, to run long pooling sessions faster.
+	 * @param scale 1 for the real 150ms unit.
+	 */
+	public PN532Simulator setPollUnitScale(double scale){
+		mPollUnitScale = scale;
+		return this;
+	}
+
+	/**
+	 * @param memory Memory returned by the READ of every Mifare tag, from
+	 * 		page 0. See {@link #type2TagMemory(byte[], int)}.
+	 */
+	public PN532Simulator setTagMemory(byte[] memory){
+		mTagMemory = memory.clone();
+		return this;
+	}
+
+	/**
+	 * Builds the memory of a NFC Forum type 2 tag: UID and lock pages, the
+	 * capability container and the NDEF message block followed by the
+	 * terminator.
+	 * @param ndefMessage The NDEF message.
+	 * @param dataPages Number of pages of the data area (36 for a NTAG213).
+	 * @return The tag memory, page 0 first.
+	 */
+	public static byte[] type2TagMemory(byte[] ndefMessage, int dataPages){
+		byte[] memory = new byte[(4 + dataPages) * PAGE_SIZE];
+		int position = 3 * PAGE_SIZE;
+		memory[position++] = (byte)0xE1;
+		memory[position++] = 0x10;
+		memory[position++] = (byte)(dataPages * PAGE_SIZE / 8);
+		memory[position++] = 0x00;
+		memory[position++] = 0x03;
+		if(ndefMessage.length < 0xFF){
+			memory[position++] = (byte)ndefMessage.length;
+		}
+		else{
+			memory[position++] = (byte)0xFF;
+			memory[position++] = (byte)(ndefMessage.length >> 8);
+			memory[position++] = (byte)ndefMessage.length;
+		}
+		if(position + ndefMessage.length >= memory.length){
+			throw new IllegalArgumentException("The NDEF message does not fit in "+dataPages+" pages");
+		}
+		System.arraycopy(ndefMessage, 0, memory, position, ndefMessage.length);
+		memory[position + ndefMessage.length] = (byte)0xFE;
+		return memory;
+	}
+
+	public PN532Simulator setSeed(long seed){
+		mRandom = new Random(seed);
+		return this;
+	}
+
+	/**
+	 * Starts the device thread and the tags script.
+	 */
+	public synchronized void start(){
+		if(mDeviceThread != null){
+			return;
+		}
+		mStartNanos = System.nanoTime();
+		mDeviceThread = new Thread() {
+			public void run() {
+				deviceLoop();
+			}
+		};
+		mDeviceThread.setName("PN532Simulator");
+		mDeviceThread.setDaemon(true);
+		mDeviceThread.start();
+	}
+
+	/**
+	 * Breaks the link: the host reads get an end of stream and the writes fail.
+	 */
+	public void close(){
+		mClosed = true;
+		synchronized (mLock) {
+			mLock.notifyAll();
+		}
+		mHostInput.close();
+	}
+
+	/** The stream the host reads the responses from. */
+	public InputStream getInputStream(){
+		return mHostInput;
+	}
+
+	/** The stream the host writes the commands to. */
+	public OutputStream getOutputStream(){
+		return mHostOutput;
+	}
+
+	public TagScript getScript(){
+		return mScript;
+	}
+
+	/**
+	 * @return The time elapsed since the start, in miliseconds of the
+	 * 		script timeline.
+	 */
+	public long getElapsed(){
+		return (System.nanoTime() - mStartNanos) / 1000000L;
+	}
+
+	/**
+	 * @return System.nanoTime() of the start of a script step.
+	 */
+	public long getStepStartNanos(long step){
+		return mStartNanos + mScript.stepStart(step) * 1000000L;
+	}
+
+	public long getCommandsReceived(){
+		return mCommandsReceived;
+	}
+
+	public long getBytesDropped(){
+		return mBytesDropped;
+	}
+
+	public long getNacksSent(){
+		return mNacksSent;
+	}
+
+	/**
+	 * @return The number of InAutoPoll aborted by a new command or an ACK before any
+	 * 		tag arrived or the pooling time finished.
+	 */
+	public long getPollsAborted(){
+		return mPollsAborted;
+	}
+
+	/**
+	 * Called with the bytes written by the host.
+	 */
+	private void onHostBytes(byte[] buffer, int offset, int length) throws IOException{
+		if(mClosed){
+			throw new IOException("The simulated link is closed!");
+		}
+		synchronized (mLock) {
+			while(length > 0){
+				int written = mAssembler.write(buffer, offset, length);
+				offset += written;
+				length -= written;
+				int frameLength;
+				while((frameLength = mAssembler.nextFrame(mFrame, 0)) > 0){
+					//the host only sends ACKs to abort the running command.
+					if(mAssembler.getLastFrameType() == NFCFrameAssembler.FRAME_ACK){
+						mAbortRequested = true;
+						mLock.notifyAll();
+					}
+					else if(mAssembler.getLastFrameType() == NFCFrameAssembler.FRAME_INFORMATION && mFrame[5] == TFI_COMMAND){
+						byte[] command = new byte[frameLength];
+						System.arraycopy(mFrame, 0, command, 0, frameLength);
+						mCommands.add(command);
+						mLock.notifyAll();
+					}
+				}
+			}
+		}
+	}
+
+	private void deviceLoop(){
+		try {
+			while(!mClosed){
+				byte[] command;
+				synchronized (mLock) {
+					while(mCommands.isEmpty() && !mClosed){
+						mLock.wait();
+					}
+					command = mCommands.poll();
+					mAbortRequested = false;
+				}
+				if(command != null){
+					mCommandsReceived++;
+					process(command);
+				}
+			}
+		} catch (InterruptedException e) {
+			//simulator closed...
+		}
+	}
+
+	private void process(byte[] command) throws InterruptedException{
+		if(mNackRate > 0 && mRandom.nextDouble() < mNackRate){
+			mNacksSent++;
+			send(NACK);
+			return;
+		}
+		send(ACK);
+
+		byte code = command[6];
+		byte[] response;
+		switch (code) {
+		case CMD_SAM_CONFIGURATION:
+			response = responseFrame(code);
+			break;
+		case CMD_POWER_DOWN:
+			//the RF field is switched off...
+			mListed.clear();
+			mHalted.clear();
+			response = responseFrame(code, (byte)0x00);
+			break;
+		case CMD_RF_CONFIGURATION:
+			response = responseFrame(code);
+			break;
+		case CMD_IN_LIST_PASSIVE_TARGET:
+			response = listTargets(command);
+			break;
+		case CMD_IN_RELEASE:
+			mHalted.addAll(mListed);
+			mListed.clear();
+			response = responseFrame(code, (byte)0x00);
+			break;
+		case CMD_GET_FIRMWARE_VERSION:
+			response = responseFrame(code, FIRMWARE_VERSION);
+			break;
+		case CMD_GET_GENERAL_STATUS:
+			NFCTagId[] tags = currentTags();
+			response = responseFrame(code, (byte)0x00, (byte)(tags.length > 0 ? 1 : 0), (byte)0x00, (byte)0x00);
+			break;
+		case CMD_IN_AUTO_POLL:
+			response = autoPoll(command);
+			break;
+		case CMD_IN_DATA_EXCHANGE:
+			response = dataExchange(command);
+			break;
+		default:
+			response = ERROR_FRAME;
+			break;
+		}
+		if(response == null){
+			//aborted by a new command or an ACK...
+			return;
+		}
+
+		if(mMaxDelayMs > 0){
+			long delay = mMinDelayMs + (long)(mRandom.nextDouble() * (mMaxDelayMs - mMinDelayMs));
+			Thread.sleep(delay);
+		}
+		send(response);
+	}
+
+	/**
+	 * Waits until a tag is in the field or the pooling time asked by the
+	 * command finishes.
+	 * @return The response, or null if a new command aborted the pooling.
+	 */
+	private byte[] autoPoll(byte[] command) throws InterruptedException{
+		int length = command[3] & 0xFF;
+		int pollNr = command[7] & 0xFF;
+		int period = command[8] & 0xFF;
+		int types = Math.max(1, length - 4);
+		long unit = Math.max(1, (long)(POLL_PERIOD_UNIT * mPollUnitScale));
+		long deadline = System.nanoTime()/1000000L + (pollNr == 0xFF ? Long.MAX_VALUE/2 : (long)pollNr * period * unit * types);
+
+		while(true){
+			NFCTagId[] tags = currentTags();
+			if(tags.length > 0){
+				return targetsFrame(tags.length > MAX_TARGETS ? Arrays.copyOf(tags, MAX_TARGETS) : tags);
+			}
+			long now = System.nanoTime()/1000000L;
+			if(now >= deadline){
+				return responseFrame(CMD_IN_AUTO_POLL, (byte)0x00);
+			}
+			long elapsed = getElapsed();
+			long nextStep = mScript.stepStart(mScript.stepAt(elapsed) + 1) - elapsed;
+			synchronized (mLock) {
+				if(!mCommands.isEmpty() || mAbortRequested || mClosed){
+					mPollsAborted++;
+					return null;
+				}
+				mLock.wait(Math.max(1, Math.min(deadline - now, nextStep)));
+				if(!mCommands.isEmpty() || mAbortRequested || mClosed){
+					mPollsAborted++;
+					return null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Answers the READ of 4 pages of a Mifare tag in the field. The reads
+	 * past the end roll over to page 0, like a NTAG.
+	 */
+	private byte[] dataExchange(byte[] command){
+		int length = command[3] & 0xFF;
+		int target = command[7] & 0xFF;
+		NFCTagId[] tags = currentTags();
+		if(length != 5 || command[8] != TAG_CMD_READ || target < 1 || target > tags.length
+				|| tags[target-1].getCardType() != NFCCardType.MIFARE_TYPE){
+			return responseFrame(CMD_IN_DATA_EXCHANGE, STATUS_TIMEOUT);
+		}
+		byte[] data = new byte[1 + READ_LENGTH];
+		int start = (command[9] & 0xFF) * PAGE_SIZE;
+		for(int i=0; i<READ_LENGTH; i++){
+			data[1 + i] = mTagMemory[(start + i) % mTagMemory.length];
+		}
+		return responseFrame(CMD_IN_DATA_EXCHANGE, data);
+	}
+
+	/**
+	 * Lists the Mifare tags in the field that are not halted, up to MaxTg.
+	 * There are no retries: without tags the answer is immediate.
+	 */
+	private byte[] listTargets(byte[] command){
+		int length = command[3] & 0xFF;
+		int maxTargets = Math.min(MAX_TARGETS, command[7] & 0xFF);
+		NFCTagId[] tags = currentTags();
+		//the tags that left the field are not halted anymore...
+		mHalted.retainAll(Arrays.asList(tags));
+		mListed.clear();
+		if(length == 4 && command[8] == 0x00){
+			for(int i=0; i<tags.length && mListed.size() < maxTargets; i++){
+				if(tags[i].getCardType() == NFCCardType.MIFARE_TYPE && !mHalted.contains(tags[i])){
+					mListed.add(tags[i]);
+				}
+			}
+		}
+		int dataLength = 1;
+		for(NFCTagId tag : mListed){
+			dataLength += 5 + tag.length();
+		}
+		byte[] data = new byte[dataLength];
+		int position = 0;
+		data[position++] = (byte)mListed.size();
+		for(int i=0; i<mListed.size(); i++){
+			NFCTagId tag = mListed.get(i);
+			//Tg, SENS_RES, SEL_RES, NFCID length and NFCID
+			data[position++] = (byte)(i + 1);
+			data[position++] = 0x00;
+			data[position++] = (byte)(tag.length() == 4 ? 0x04 : 0x44);
+			data[position++] = 0x00;
+			data[position++] = (byte)tag.length();
+			position += tag.copyTo(data, position);
+		}
+		return responseFrame(CMD_IN_LIST_PASSIVE_TARGET, data);
+	}
+
+	private NFCTagId[] currentTags(){
+		return mScript.tagsOf(mScript.stepAt(getElapsed()));
+	}
+
+	private static byte[] targetsFrame(NFCTagId[] tags){
+		int length = 1;
+		for(NFCTagId tag : tags){
+			length += tag.getCardType() == NFCCardType.JEWEL_TYPE ? 9 : 7 + tag.length();
+		}
+		byte[] data = new byte[length];
+		int position = 0;
+		data[position++] = (byte)tags.length;
+		for(int i=0; i<tags.length; i++){
+			NFCTagId tag = tags[i];
+			if(tag.getCardType() == NFCCardType.JEWEL_TYPE){
+				//Type, length, Tg, SENS_RES and JEWELID
+				data[position++] = NFCCardType.JEWEL_TYPE;
+				data[position++] = 7;
+				data[position++] = (byte)(i + 1);
+				data[position++] = 0x0C;
+				data[position++] = 0x00;
+			}
+			else{
+				//Type, length, Tg, SENS_RES, SEL_RES, NFCID length and NFCID
+				data[position++] = NFCCardType.MIFARE_TYPE;
+				data[position++] = (byte)(5 + tag.length());
+				data[position++] = (byte)(i + 1);
+				data[position++] = 0x00;
+				data[position++] = (byte)(tag.length() == 4 ? 0x04 : 0x44);
+				data[position++] = 0x00;
+				data[position++] = (byte)tag.length();
+			}
+			position += tag.copyTo(data, position);
+		}
+		return responseFrame(CMD_IN_AUTO_POLL, data);
+	}
+
+	/**
+	 * @return A normal information frame with the response to a command.
+	 */
+	private static byte[] responseFrame(byte command, byte... data){
+		int length = data.length + 2;
+		byte[] frame = new byte[length + 7];
+		frame[0] = 0x00;
+		frame[1] = 0x00;
+		frame[2] = (byte)0xFF;
+		frame[3] = (byte)length;
+		frame[4] = (byte)-length;
+		frame[5] = TFI_RESPONSE;
+		frame[6] = (byte)(command + 1);
+		System.arraycopy(data, 0, frame, 7, data.length);
+		int sum = 0;
+		for(int i=5; i<5+length; i++){
+			sum += frame[i];
+		}
+		frame[5 + length] = (byte)-sum;
+		frame[6 + length] = 0x00;
+		return frame;
+	}
+
+	/**
+	 * Sends bytes to the host through the degraded link.
+	 */
+	private void send(byte[] frame){
+		int position = 0;
+		while(position < frame.length){
+			int chunk = frame.length - position;
+			if(mMaxFragment > 0){
+				chunk = Math.min(chunk, 1 + mRandom.nextInt(mMaxFragment));
+			}
+			for(int i=position; i<position+chunk; i++){
+				if(mDropRate > 0 && mRandom.nextDouble() < mDropRate){
+					mBytesDropped++;
+					continue;
+				}
+				mHostInput.push(frame[i]);
+			}
+			position += chunk;
+			if(mMaxFragment > 0 && mFragmentGapMicros > 0 && position < frame.length){
+				LockSupport.parkNanos(mFragmentGapMicros * 1000L);
+			}
+		}
+	}
+
+	/**
+	 * Host side of the device to host direction. Blocking reads like the
+	 * bluetooth socket, and available() for the pumped channels.
+	 */
+	private static final class HostInputStream extends InputStream {
+		private byte[] mBuffer = new byte[4096];
+		private int mHead = 0;
+		private int mCount = 0;
+		private boolean mEof = false;
+
+		synchronized void push(byte value){
+			if(mCount == mBuffer.length){
+				byte[] bigger = new byte[mBuffer.length * 2];
+				for(int i=0; i<mCount; i++){
+					bigger[i] = mBuffer[(mHead + i) % mBuffer.length];
+				}
+				mBuffer = bigger;
+				mHead = 0;
+			}
+			mBuffer[(mHead + mCount) % mBuffer.length] = value;
+			mCount++;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void close(){
+			mEof = true;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized int available() {
+			return mCount;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+			if(length == 0){
+				return 0;
+			}
+			while(mCount == 0){
+				if(mEof){
+					return -1;
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			int read = Math.min(length, mCount);
+			for(int i=0; i<read; i++){
+				buffer[offset + i] = mBuffer[mHead];
+				mHead = (mHead + 1) % mBuffer.length;
+			}
+			mCount -= read;
+			return read;
+		}
+	}
+
+	/**
+	 * Host side of the host to device direction.
+	 */
+	private final class HostOutputStream extends OutputStream {
+		@Override
+		public void write(int value) throws IOException {
+			onHostBytes(new byte[]{(byte)value}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			onHostBytes(buffer, offset, length);
+		}
+	}
+}
@@ -0,0 +1,282 @@
+package com.uab.ofernandez.bridge.simulator;
+
+import java.util.Arrays;
+
+import com.uab.ofernandez.bridge.business.NFCCommandChannel;
+import com.uab.ofernandez.bridge.business.NFCReaderSession;
+import com.uab.ofernandez.bridge.business.NFCTagDispatcher;
+import com.uab.ofernandez.bridge.business.NFCTagEvent;
+import com.uab.ofernandez.bridge.business.NFCTagInventory;
+import com.uab.ofernandez.bridge.business.NFCTagListener;
+
+/**
+ * Runs the pooling engine against simulated readers and reports the
+ * detection latency and throughput.
+ *
+ * Usage: PoolingLoadTest [readers] [seconds] [fixed|session|inventory] [clean|slow|adversarial]
+ * 		[one|two|burst|dwell|bin] [uid|ndef]
+ *
+ * The detection latency is the time between the arrival of the tags in the
+ * field and the delivery of their event to the tag listener. Every arrival
+ * is counted once: the presentations that end before a detection are missed.
+ * In ndef mode every tag holds a ticket message that is read before the tag
+ * is delivered, so the latency includes the memory reading. In inventory
+ * mode every cycle finds all the tags of the field; with the bin script, a
+ * dozen tags presented together, the report shows how many tags the last
+ * inventory pass found and how fast.
+ */
+public final class PoolingLoadTest {
+
+	private static final long POOLING_TIME = 200;
+	private static final int SESSION_POLL_NR = 0x10;
+	private static final int SESSION_PERIOD = 0x01;
+	private static final int INVENTORY_TAGS = 16;
+	private static final int MAX_SAMPLES = 1 << 20;
+	//NTAG213 data area.
+	private static final int TAG_DATA_PAGES = 36;
+	private static final String TICKET = "TICKET;zone=1-3;valid=2026-12-31T23:59;id=0000000000000001";
+
+	private final Reader[] mReaders;
+	private final NFCTagDispatcher mDispatcher = new NFCTagDispatcher(4096, 32);
+
+	//Latency samples in microseconds. Only used by the dispatcher thread.
+	private final long[] mLatencies = new long[MAX_SAMPLES];
+	private int mLatencyCount = 0;
+	private long mEvents = 0;
+	private long mNdefEvents = 0;
+
+	public PoolingLoadTest(int readers, String mode, String link, String script, boolean ndef){
+		mReaders = new Reader[readers];
+		for(int i=0; i<readers; i++){
+			PN532Simulator simulator = new PN532Simulator(buildScript(script)).setSeed(i + 1);
+			configureLink(simulator, link);
+			if(ndef){
+				simulator.setTagMemory(PN532Simulator.type2TagMemory(ticketMessage(), TAG_DATA_PAGES));
+			}
+			mReaders[i] = new Reader("SIM-"+i, simulator, mode, ndef);
+		}
+		mDispatcher.addListener(new NFCTagListener() {
+			@Override
+			public void onNFCTags(NFCTagEvent[] events, int count) {
+				long now = System.nanoTime();
+				for(int i=0; i<count; i++){
+					onTag(events[i], now);
+				}
+			}
+		});
+	}
+
+	public static void main(String[] args) throws Exception {
+		int readers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		String mode = args.length > 2 ? args[2] : "fixed";
+		String link = args.length > 3 ? args[3] : "clean";
+		String script = args.length > 4 ? args[4] : "one";
+		boolean ndef = args.length > 5 && "ndef".equals(args[5]);
+
+		System.out.println("Readers: "+readers+", duration: "+seconds+"s, mode: "+mode
+				+", link: "+link+", script: "+script+(ndef ? ", ndef" : ""));
+		PoolingLoadTest test = new PoolingLoadTest(readers, mode, link, script, ndef);
+		test.run(seconds * 1000L);
+		test.report(seconds);
+	}
+
+	public void run(long durationMs) throws InterruptedException{
+		mDispatcher.start();
+		for(Reader reader : mReaders){
+			reader.start();
+		}
+		Thread.sleep(durationMs);
+		for(Reader reader : mReaders){
+			reader.stop();
+		}
+		//let the last events reach the listener...
+		Thread.sleep(100);
+		mDispatcher.shutdown();
+	}
+
+	public void report(int seconds){
+		long presentations = 0;
+		long detected = 0;
+		long commands = 0;
+		long strays = 0;
+		long corrupted = 0;
+		long dropped = 0;
+		long nacks = 0;
+		float rate = 0;
+		for(Reader reader : mReaders){
+			presentations += reader.countPresentations();
+			detected += reader.mDetected;
+			commands += reader.mSimulator.getCommandsReceived();
+			strays += reader.mChannel.getStrayFrames();
+			corrupted += reader.mChannel.getAssembler().getCorruptedFrames();
+			dropped += reader.mSimulator.getBytesDropped();
+			nacks += reader.mSimulator.getNacksSent();
+			rate += reader.mSession.getEffectivePoolingRate();
+		}
+
+		System.out.println("Commands: "+commands+" ("+(commands / Math.max(1, seconds))+"/s), pooling rate: "
+				+String.format("%.2f", rate)+" cycles/s");
+		System.out.println("Tag events: "+mEvents+" ("+mNdefEvents+" with NDEF), presentations: "+presentations+", detected: "+detected
+				+", missed: "+Math.max(0, presentations - detected));
+		System.out.println("Stray frames: "+strays+", corrupted frames: "+corrupted+", bytes dropped: "+dropped
+				+", NACKs: "+nacks+", events dropped: "+mDispatcher.getDroppedEvents());
+		if(mLatencyCount > 0){
+			long[] sorted = Arrays.copyOf(mLatencies, mLatencyCount);
+			Arrays.sort(sorted);
+			System.out.println("Detection latency (ms): p50="+percentile(sorted, 50)+" p90="+percentile(sorted, 90)
+					+" p99="+percentile(sorted, 99)+" max="+percentile(sorted, 100));
+		}
+		for(Reader reader : mReaders){
+			System.out.println(reader.mSession.getReaderId()+" - "+reader.mSession.getStats().snapshot(false));
+			NFCTagInventory inventory = reader.mSession.getInventory();
+			if(inventory != null && inventory.getTags() != null){
+				System.out.println(reader.mSession.getReaderId()+" - last inventory: "+inventory.getTags().size()+" tags in "
+						+inventory.getRounds()+" rounds, "+(inventory.getElapsedNanos() / 1000000L)+" ms, "
+						+String.format("%.1f", inventory.getTagsPerSecond())+" tags/s");
+			}
+		}
+	}
+
+	private void onTag(NFCTagEvent event, long now){
+		mEvents++;
+		if(event.getNdefMessage() != null){
+			mNdefEvents++;
+		}
+		Reader reader = mReaders[Integer.parseInt(event.getReaderId().substring(4))];
+		PN532Simulator simulator = reader.mSimulator;
+		long step = simulator.getScript().stepAt(simulator.getElapsed());
+		if(step == reader.mLastDetectedStep || simulator.getScript().tagsOf(step).length == 0){
+			//already detected, or the tag already left...
+			return;
+		}
+		reader.mLastDetectedStep = step;
+		reader.mDetected++;
+		if(mLatencyCount < MAX_SAMPLES){
+			mLatencies[mLatencyCount++] = (now - simulator.getStepStartNanos(step)) / 1000L;
+		}
+	}
+
+	private static String percentile(long[] sorted, int percentile){
+		int index = Math.min(sorted.length - 1, (int)Math.ceil(sorted.length * percentile / 100.0) - 1);
+		return String.format("%.1f", sorted[Math.max(0, index)] / 1000.0);
+	}
+
+	private static TagScript buildScript(String script){
+		if("two".equals(script)){
+			return TagScript.twoTags(800, 1200);
+		}
+		if("burst".equals(script)){
+			return TagScript.burst(10, 400, 300, 3000);
+		}
+		if("bin".equals(script)){
+			return TagScript.bin(12, 3000, 1000);
+		}
+		if("dwell".equals(script)){
+			return TagScript.longDwell(10000, 2000);
+		}
+		return TagScript.oneTag(800, 1200);
+	}
+
+	private static void configureLink(PN532Simulator simulator, String link){
+		if("slow".equals(link)){
+			simulator.setResponseDelay(20, 60).setFragmentation(8, 2000);
+		}
+		else if("adversarial".equals(link)){
+			simulator.setResponseDelay(5, 80).setFragmentation(3, 500).setDropRate(0.002).setNackRate(0.01);
+		}
+		else{
+			simulator.setResponseDelay(1, 3);
+		}
+	}
+
+	/**
+	 * A simulated reader and the thread that drives its pooling, like the
+	 * pooling handler of the bridge.
+	 */
+	/**
+	 * @return A message with a single well known text record holding the ticket.
+	 */
+	private static byte[] ticketMessage(){
+		byte[] text = TICKET.getBytes();
+		byte[] payload = new byte[3 + text.length];
+		payload[0] = 0x02;
+		payload[1] = 'e';
+		payload[2] = 'n';
+		System.arraycopy(text, 0, payload, 3, text.length);
+		byte[] message = new byte[4 + payload.length];
+		//MB, ME, SR and well known type
+		message[0] = (byte)0xD1;
+		message[1] = 1;
+		message[2] = (byte)payload.length;
+		message[3] = 'T';
+		System.arraycopy(payload, 0, message, 4, payload.length);
+		return message;
+	}
+
+	private final class Reader {
+		private final PN532Simulator mSimulator;
+		private final NFCCommandChannel mChannel;
+		private final NFCReaderSession mSession;
+		private Thread mThread;
+		//Only used by the dispatcher thread.
+		private long mLastDetectedStep = -1;
+		private long mDetected = 0;
+		private long mStopElapsed = 0;
+
+		Reader(String readerId, PN532Simulator simulator, String mode, boolean ndef){
+			mSimulator = simulator;
+			mChannel = new NFCCommandChannel(simulator.getInputStream(), simulator.getOutputStream());
+			mSession = new NFCReaderSession(readerId, mChannel, mDispatcher, POOLING_TIME);
+			if("session".equals(mode)){
+				mSession.setSessionMode(SESSION_POLL_NR, SESSION_PERIOD);
+			}
+			else if("inventory".equals(mode)){
+				mSession.setInventoryMode(INVENTORY_TAGS);
+			}
+			mSession.setNdefReading(ndef);
+		}
+
+		void start(){
+			mSimulator.start();
+			mChannel.start();
+			mThread = new Thread() {
+				public void run() {
+					try {
+						long delay;
+						while((delay = mSession.step(NFCReaderSession.now())) != NFCReaderSession.FINISHED){
+							mSession.awaitWork(delay);
+						}
+					} catch (InterruptedException e) {
+						//finishing...
+					}
+				}
+			};
+			mThread.setName("PoolingLoadTest-"+mSession.getReaderId());
+			mThread.start();
+		}
+
+		void stop() throws InterruptedException{
+			mStopElapsed = mSimulator.getElapsed();
+			mSession.requestStop();
+			mThread.join(5000);
+			mChannel.close();
+			mSimulator.close();
+		}
+
+		/**
+		 * @return The number of tag arrivals until the pooling was stopped.
+		 */
+		long countPresentations(){
+			TagScript script = mSimulator.getScript();
+			long last = script.stepAt(mStopElapsed);
+			long count = 0;
+			for(long step=0; step<=last; step++){
+				if(script.tagsOf(step).length > 0){
+					count++;
+				}
+			}
+			return count;
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.uab.ofernandez.bridge.simulator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.uab.ofernandez.bridge.business.NFCCardType;
+import com.uab.ofernandez.bridge.business.NFCTagId;
+
+/**
+ * Timeline of the tags present in the field of a simulated reader.
+ *
+ * The script is a sequence of steps, each one with a duration and the tags
+ * present during it (none for a gap). The sequence repeats forever. Every
+ * step is numbered, counting the repetitions, so a detection can be matched
+ * to the step that made the tags arrive.
+ */
+public final class TagScript {
+
+	//Tags of a step. The InAutoPoll only reports the first two.
+	private static final int MAX_TAGS_PER_STEP = 16;
+
+	private final List<Long> mDurations = new ArrayList<Long>();
+	private final List<NFCTagId[]> mTags = new ArrayList<NFCTagId[]>();
+	private long mLength = 0;
+
+	/**
+	 * Adds a step to the script.
+	 * @param durationMs Duration of the step, in miliseconds.
+	 * @param tags Tags present in the field during the step, at most 16.
+	 * @return This script.
+	 */
+	public TagScript addStep(long durationMs, NFCTagId... tags){
+		if(durationMs <= 0 || tags.length > MAX_TAGS_PER_STEP){
+			throw new IllegalArgumentException("Invalid step: "+durationMs+"ms, "+tags.length+" tags");
+		}
+		mDurations.add(durationMs);
+		mTags.add(tags.clone());
+		mLength += durationMs;
+		return this;
+	}
+
+	/**
+	 * A single tag presented for "dwellMs" every "gapMs".
+	 */
+	public static TagScript oneTag(long dwellMs, long gapMs){
+		return new TagScript()
+			.addStep(gapMs)
+			.addStep(dwellMs, mifare(1));
+	}
+
+	/**
+	 * Two tags presented together.
+	 */
+	public static TagScript twoTags(long dwellMs, long gapMs){
+		return new TagScript()
+			.addStep(gapMs)
+			.addStep(dwellMs, mifare(1), jewel(2));
+	}
+
+	/**
+	 * A queue of "count" different tags presented one after the other, like
+	 * people going through a turnstile, and then a pause.
+	 */
+	public static TagScript burst(int count, long dwellMs, long gapMs, long pauseMs){
+		TagScript script = new TagScript();
+		script.addStep(pauseMs);
+		for(int i=0; i<count; i++){
+			script.addStep(dwellMs, mifare(100 + i));
+			script.addStep(gapMs);
+		}
+		return script;
+	}
+
+	/**
+	 * A bin of "count" tagged items put on the reader for "dwellMs" every
+	 * "gapMs", to be inventoried at once.
+	 */
+	public static TagScript bin(int count, long dwellMs, long gapMs){
+		NFCTagId[] tags = new NFCTagId[count];
+		for(int i=0; i<count; i++){
+			tags[i] = mifare(200 + i);
+		}
+		return new TagScript()
+			.addStep(gapMs)
+			.addStep(dwellMs, tags);
+	}
+
+	/**
+	 * A tag left in the field for a long time.
+	 */
+	public static TagScript longDwell(long dwellMs, long gapMs){
+		return new TagScript()
+			.addStep(gapMs)
+			.addStep(dwellMs, mifare(7));
+	}
+
+	/**
+	 * @return A Mifare tag with a 7 bytes identifier derived from the number.
+	 */
+	public static NFCTagId mifare(int number){
+		byte[] uid = {0x04, 0x5A, 0x3C, (byte)(number >> 24), (byte)(number >> 16), (byte)(number >> 8), (byte)number};
+		return NFCTagId.valueOf(NFCCardType.MIFARE_TYPE, uid, 0, uid.length);
+	}
+
+	/**
+	 * @return A Jewel tag with a 4 bytes identifier derived from the number.
+	 */
+	public static NFCTagId jewel(int number){
+		byte[] uid = {0x11, (byte)(number >> 16), (byte)(number >> 8), (byte)number};
+		return NFCTagId.valueOf(NFCCardType.JEWEL_TYPE, uid, 0, uid.length);
+	}
+
+	/**
+	 * @return The number of the step running at the given time, counting
+	 * 		the repetitions of the script.
+	 */
+	public long stepAt(long elapsedMs){
+		checkNotEmpty();
+		long loops = elapsedMs / mLength;
+		long position = elapsedMs % mLength;
+		int step = 0;
+		while(position >= mDurations.get(step)){
+			position -= mDurations.get(step);
+			step++;
+		}
+		return loops * mDurations.size() + step;
+	}
+
+	/**
+	 * @return The time the given step begins, in miliseconds from the start
+	 * 		of the script.
+	 */
+	public long stepStart(long step){
+		checkNotEmpty();
+		long start = (step / mDurations.size()) * mLength;
+		for(int i=0; i<step % mDurations.size(); i++){
+			start += mDurations.get(i);
+		}
+		return start;
+	}
+
+	/**
+	 * @return The tags present in the field during the given step.
+	 */
+	public NFCTagId[] tagsOf(long step){
+		checkNotEmpty();
+		return mTags.get((int)(step % mDurations.size()));
+	}
+
+	private void checkNotEmpty(){
+		if(mLength == 0){
+			throw new IllegalStateException("The script has no steps!");
+		}
+	}
+}
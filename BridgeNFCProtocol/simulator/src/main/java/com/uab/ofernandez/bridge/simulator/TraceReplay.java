@@ -0,0 +1,251 @@
+package com.uab.ofernandez.bridge.simulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.uab.ofernandez.bridge.business.NFCAdaptivePoolingScheduler;
+import com.uab.ofernandez.bridge.business.NFCCommandChannel;
+import com.uab.ofernandez.bridge.business.NFCFrameHandler;
+import com.uab.ofernandez.bridge.business.NFCLink;
+import com.uab.ofernandez.bridge.business.NFCReaderSession;
+import com.uab.ofernandez.bridge.business.NFCReaderStats;
+import com.uab.ofernandez.bridge.business.NFCStreamRecorder;
+import com.uab.ofernandez.bridge.business.NFCStreamReplay;
+import com.uab.ofernandez.bridge.business.NFCTagDispatcher;
+import com.uab.ofernandez.bridge.business.NFCTagEvent;
+import com.uab.ofernandez.bridge.business.NFCTagListener;
+
+/**
+ * Plays back the NFC traffic captured with NFCStreamRecorder, on the
+ * device or here from a simulated reader.
+ *
+ * Usage: TraceReplay file [fast|realtime] [rounds]
+ * 		TraceReplay record file [seconds] [fixed|session|inventory] [clean|slow|adversarial]
+ *
+ * The replay first measures the throughput of the frame parser alone over
+ * all the received chunks, and then drives a pooling session with every
+ * captured connection. The pooling mode, the inventory and the NDEF reading are found in
+ * the captured commands. In fast mode the responses are returned as soon as
+ * the command is written and the pooling pause is removed, so the run
+ * measures the whole pipeline; in realtime mode the responses keep their
+ * captured delays.
+ */
+public final class TraceReplay {
+
+	private static final long POOLING_TIME = 200;
+	private static final int SESSION_POLL_NR = 0x10;
+	private static final int SESSION_PERIOD = 0x01;
+	private static final int DEFAULT_ROUNDS = 20;
+	//Time allowed over the captured duration before the replay is stopped.
+	private static final long FINISH_MARGIN = 30000;
+
+	//PN532 command frame: preamble, start code, LEN, LCS, TFI, command, parameters...
+	private static final int FRAME_TFI = 5;
+	private static final byte TFI_HOST = (byte)0xD4;
+	private static final int CMD_IN_AUTO_POLL = 0x60;
+	private static final int CMD_IN_DATA_EXCHANGE = 0x40;
+	private static final int CMD_IN_LIST_PASSIVE_TARGET = 0x4A;
+	private static final int INVENTORY_TAGS = 16;
+
+	private long mEvents = 0;
+	private long mTags = 0;
+
+	public static void main(String[] args) throws Exception {
+		if(args.length == 0){
+			System.out.println("Usage: TraceReplay file [fast|realtime] [rounds]");
+			System.out.println("       TraceReplay record file [seconds] [fixed|session|inventory] [clean|slow|adversarial]");
+			return;
+		}
+		if("record".equals(args[0])){
+			int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+			String mode = args.length > 3 ? args[3] : "fixed";
+			String link = args.length > 4 ? args[4] : "adversarial";
+			record(new File(args[1]), seconds, mode, link);
+			return;
+		}
+		boolean realTime = args.length > 1 && "realtime".equals(args[1]);
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_ROUNDS;
+
+		NFCStreamReplay replay = new NFCStreamReplay(new File(args[0]));
+		System.out.println("Trace: "+replay.getRecordCount()+" records, "+replay.getConnectionCount()+" connections, "
+				+replay.getTxBytes()+" bytes TX, "+replay.getRxBytes()+" bytes RX, "+(replay.getDuration() / 1000000L)+" ms");
+
+		//warm up, then measure...
+		replay.measureParser(rounds);
+		NFCStreamReplay.ParserResult parser = replay.measureParser(rounds);
+		System.out.println("Parser x"+rounds+": "+parser);
+
+		TraceReplay driver = new TraceReplay();
+		for(int connection=0; connection<replay.getConnectionCount(); connection++){
+			driver.replay(replay, connection, realTime);
+		}
+	}
+
+	/**
+	 * Pools a simulated reader while recording its traffic.
+	 */
+	private static void record(File file, int seconds, String mode, String linkProfile)
+	throws IOException, InterruptedException{
+		boolean inventory = "inventory".equals(mode);
+		final PN532Simulator simulator = new PN532Simulator(inventory ? TagScript.bin(12, 3000, 1000)
+				: TagScript.twoTags(800, 1200)).setSeed(1);
+		if("slow".equals(linkProfile)){
+			simulator.setResponseDelay(20, 60).setFragmentation(8, 2000);
+		}
+		else if("adversarial".equals(linkProfile)){
+			simulator.setResponseDelay(5, 80).setFragmentation(3, 500).setDropRate(0.002).setNackRate(0.01);
+		}
+		else{
+			simulator.setResponseDelay(1, 3);
+		}
+		NFCStreamRecorder recorder = new NFCStreamRecorder(file);
+		NFCLink link = recorder.wrap(new NFCLink() {
+			@Override
+			public InputStream getInputStream() {
+				return simulator.getInputStream();
+			}
+
+			@Override
+			public OutputStream getOutputStream() {
+				return simulator.getOutputStream();
+			}
+
+			@Override
+			public void close() {
+				simulator.close();
+			}
+		});
+		NFCCommandChannel channel = new NFCCommandChannel(link.getInputStream(), link.getOutputStream());
+		NFCTagDispatcher dispatcher = new NFCTagDispatcher();
+		final NFCReaderSession session = new NFCReaderSession("SIM", channel, dispatcher, POOLING_TIME);
+		if("session".equals(mode)){
+			session.setSessionMode(SESSION_POLL_NR, SESSION_PERIOD);
+		}
+		else if(inventory){
+			session.setInventoryMode(INVENTORY_TAGS);
+		}
+		simulator.start();
+		channel.start();
+		dispatcher.start();
+		Thread thread = poolingThread(session);
+		thread.start();
+		Thread.sleep(seconds * 1000L);
+		session.requestStop();
+		thread.join(5000);
+		channel.close();
+		link.close();
+		dispatcher.shutdown();
+		recorder.close();
+		System.out.println("Recorded "+recorder.getRecords()+" chunks, "+recorder.getBytes()+" bytes to "+file
+				+" ("+file.length()+" bytes)");
+	}
+
+	private void replay(NFCStreamReplay replay, int connection, boolean realTime) throws InterruptedException{
+		NFCStreamReplay.ReplayLink link = replay.openLink(connection, realTime);
+		NFCCommandChannel channel = new NFCCommandChannel(link.getInputStream(), link.getOutputStream());
+		NFCTagDispatcher dispatcher = new NFCTagDispatcher(4096, 32);
+		dispatcher.addListener(new NFCTagListener() {
+			@Override
+			public void onNFCTags(NFCTagEvent[] events, int count) {
+				mEvents++;
+				mTags += count;
+			}
+		});
+		NFCReaderSession session = buildSession(replay, connection, channel, dispatcher, realTime);
+
+		long events = mEvents;
+		long tags = mTags;
+		long start = System.nanoTime();
+		dispatcher.start();
+		channel.start();
+		Thread thread = poolingThread(session);
+		thread.start();
+		thread.join(replay.getDuration() / 1000000L + FINISH_MARGIN);
+		long elapsed = System.nanoTime() - start;
+		if(thread.isAlive()){
+			System.out.println("Connection "+connection+": the pooling did not finish, stopping it");
+			session.requestStop();
+			thread.join(5000);
+		}
+		channel.close();
+		link.close();
+		//let the last events reach the listener...
+		Thread.sleep(100);
+		dispatcher.shutdown();
+
+		long cycles = session.getStats().snapshot(false).getCounter(NFCReaderStats.COUNTER_CYCLES);
+		System.out.println("Connection "+connection+" ("+(realTime ? "realtime" : "fast")+"): "+(elapsed / 1000000L)+" ms, "
+				+cycles+" cycles ("+String.format("%.0f", cycles * 1e9 / Math.max(1, elapsed))+"/s), "
+				+(mTags - tags)+" tags in "+(mEvents - events)+" batches, "
+				+link.getRxDelivered()+" bytes RX, TX mismatches: "+link.getTxMismatches()+", extra TX: "+link.getTxExtra()
+				+(link.isFinished() ? "" : ", NOT FINISHED"));
+		System.out.println("  "+session.getStats().snapshot(false));
+	}
+
+	/**
+	 * @return A session configured like the captured one.
+	 */
+	private static NFCReaderSession buildSession(NFCStreamReplay replay, int connection, NFCCommandChannel channel,
+			NFCTagDispatcher dispatcher, boolean realTime){
+		int pollNr = -1;
+		int period = -1;
+		boolean ndef = false;
+		boolean inventory = false;
+		byte[] fixedScan = NFCFrameHandler.TX_NFC_SCAN_TAG.getNFCCall();
+		for(int record=0; record<replay.getRecordCount(); record++){
+			if(replay.getKind(record) != NFCStreamRecorder.KIND_TX){
+				continue;
+			}
+			byte[] chunk = replay.getChunk(record);
+			if(chunk.length <= FRAME_TFI + 3 || chunk[FRAME_TFI] != TFI_HOST){
+				continue;
+			}
+			int command = chunk[FRAME_TFI + 1] & 0xFF;
+			//the fixed mode scan is an InAutoPoll too...
+			if(command == CMD_IN_AUTO_POLL && pollNr < 0 && !Arrays.equals(chunk, fixedScan)){
+				pollNr = chunk[FRAME_TFI + 2] & 0xFF;
+				period = chunk[FRAME_TFI + 3] & 0xFF;
+			}
+			else if(command == CMD_IN_DATA_EXCHANGE){
+				ndef = true;
+			}
+			else if(command == CMD_IN_LIST_PASSIVE_TARGET){
+				inventory = true;
+			}
+		}
+
+		NFCReaderSession session = new NFCReaderSession("REPLAY-"+connection, channel, dispatcher, realTime ? POOLING_TIME : 1);
+		if(pollNr >= 0){
+			session.setSessionMode(pollNr, period);
+		}
+		else if(inventory){
+			session.setInventoryMode(INVENTORY_TAGS);
+		}
+		if(pollNr < 0 && !realTime){
+			//removes the minimum pause between the cycles...
+			session.setAdaptiveScheduler(new NFCAdaptivePoolingScheduler(1, 1, 0));
+		}
+		session.setNdefReading(ndef);
+		return session;
+	}
+
+	private static Thread poolingThread(final NFCReaderSession session){
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					long delay;
+					while((delay = session.step(NFCReaderSession.now())) != NFCReaderSession.FINISHED){
+						session.awaitWork(delay);
+					}
+				} catch (InterruptedException e) {
+					//finishing...
+				}
+			}
+		};
+		thread.setName("TraceReplay-"+session.getReaderId());
+		return thread;
+	}
+}